@@ -20,7 +20,9 @@ create_customer_table_sql = '''
     Balance int,
     OverdraftBalance int,
     NumFraudReversals int,
-    NumDepositsForInterest int
+    NumDepositsForInterest int,
+    PRIMARY KEY (CustomerID),
+    INDEX (OverdraftBalance)
   );
   '''
 cursor.execute(create_customer_table_sql)
@@ -51,8 +53,11 @@ create_transactionhistory_table_sql = '''
 CREATE TABLE TransactionHistory (
   CustomerID varchar(255),
   Timestamp DATETIME,
-  Action varchar(255) CHECK (Action IN ('Deposit', 'Withdraw', 'TransferSend', 'TransferReceive', 'CryptoBuy', 'CryptoSell')),
-  Amount int
+  Action varchar(255) CHECK (Action IN ('Deposit', 'Withdraw', 'TransferSend', 'TransferReceive', 'CryptoBuy', 'CryptoSell', 'TransferRefund')),
+  Amount int,
+  INDEX (CustomerID, Timestamp)
+) PARTITION BY RANGE (TO_DAYS(Timestamp)) (
+  PARTITION pFuture VALUES LESS THAN MAXVALUE
 );
 '''
 cursor.execute(create_transactionhistory_table_sql)
@@ -64,6 +69,8 @@ CREATE TABLE TransferHistory (
   TransferTo varchar(255),
   Timestamp DATETIME,
   Amount int
+) PARTITION BY RANGE (TO_DAYS(Timestamp)) (
+  PARTITION pFuture VALUES LESS THAN MAXVALUE
 );
 '''
 cursor.execute(create_transferhistory_table_sql)
@@ -88,10 +95,183 @@ CREATE TABLE CryptoHistory (
   Action varchar(255) CHECK (Action IN ('Buy', 'Sell')),
   CryptoName varchar(255),
   CryptoAmount decimal(30,18)
+) PARTITION BY RANGE (TO_DAYS(Timestamp)) (
+  PARTITION pFuture VALUES LESS THAN MAXVALUE
 );
 '''
 cursor.execute(create_cryptohistory_table_sql)
 
+# Make empty TransferSagas table (tracks transfers between customers on different shards)
+create_transfersagas_table_sql = '''
+CREATE TABLE TransferSagas (
+  SagaID varchar(36) PRIMARY KEY,
+  TransferFrom varchar(255),
+  TransferTo varchar(255),
+  Timestamp DATETIME,
+  Amount int,
+  Status varchar(255) CHECK (Status IN ('Debited', 'Completed', 'Compensated'))
+);
+'''
+cursor.execute(create_transfersagas_table_sql)
+
+# Make empty TransferSagaCredits table (marks cross-shard transfers already deposited into the recipient)
+create_transfersagacredits_table_sql = '''
+CREATE TABLE TransferSagaCredits (
+  SagaID varchar(36) PRIMARY KEY,
+  CustomerID varchar(255)
+);
+'''
+cursor.execute(create_transfersagacredits_table_sql)
+
+# Make empty LedgerEntries table (append-only double-entry journal of every balance change)
+create_ledgerentries_table_sql = '''
+CREATE TABLE LedgerEntries (
+  EntryID bigint AUTO_INCREMENT PRIMARY KEY,
+  JournalID varchar(255),
+  CustomerID varchar(255),
+  Account varchar(255),
+  Amount bigint,
+  Action varchar(255),
+  Timestamp DATETIME,
+  INDEX (CustomerID, Account, EntryID, Amount)
+);
+'''
+cursor.execute(create_ledgerentries_table_sql)
+
+# Make empty LedgerSnapshots table (per-account balances folded from LedgerEntries up to the latest snapshot run)
+create_ledgersnapshots_table_sql = '''
+CREATE TABLE LedgerSnapshots (
+  CustomerID varchar(255),
+  Account varchar(255),
+  Balance bigint,
+  PRIMARY KEY (CustomerID, Account)
+);
+'''
+cursor.execute(create_ledgersnapshots_table_sql)
+
+# Make empty LedgerSnapshotRuns table (tracks which LedgerEntries are already folded into LedgerSnapshots)
+create_ledgersnapshotruns_table_sql = '''
+CREATE TABLE LedgerSnapshotRuns (
+  RunID bigint AUTO_INCREMENT PRIMARY KEY,
+  LastEntryID bigint,
+  ObservedEntryID bigint,
+  Timestamp DATETIME
+);
+'''
+cursor.execute(create_ledgersnapshotruns_table_sql)
+
+# Make empty BalanceEngineCheckpoints table (write-ahead log segments of the in-memory balance engine already written to this DB)
+create_balanceenginecheckpoints_table_sql = '''
+CREATE TABLE BalanceEngineCheckpoints (
+  SegmentNumber bigint PRIMARY KEY,
+  Timestamp DATETIME
+);
+'''
+cursor.execute(create_balanceenginecheckpoints_table_sql)
+
+# Make empty IdempotencyKeys table (results of money-moving requests, so browser retries are not run twice)
+create_idempotencykeys_table_sql = '''
+CREATE TABLE IdempotencyKeys (
+  CustomerID varchar(255),
+  IdempotencyKey varchar(255),
+  Endpoint varchar(255),
+  Response varchar(255),
+  Timestamp DATETIME,
+  PRIMARY KEY (CustomerID, IdempotencyKey),
+  INDEX (Timestamp)
+);
+'''
+cursor.execute(create_idempotencykeys_table_sql)
+
+# Make empty InterestAccruals table (progress of each key range of the nightly balance and overdraft interest accruals, to resume after a crash)
+create_interestaccruals_table_sql = '''
+CREATE TABLE InterestAccruals (
+  AccrualType varchar(255),
+  AccrualDate DATE,
+  RangeIndex int,
+  RangeStart varchar(255),
+  RangeEnd varchar(255),
+  LastCustomerID varchar(255),
+  IsComplete boolean,
+  PRIMARY KEY (AccrualType, AccrualDate, RangeIndex)
+);
+'''
+cursor.execute(create_interestaccruals_table_sql)
+
+# Make empty ReconciliationMismatches table (customers whose balances disagreed with the ledger in a reconciliation run)
+create_reconciliationmismatches_table_sql = '''
+CREATE TABLE ReconciliationMismatches (
+  RunTimestamp DATETIME,
+  CustomerID varchar(255),
+  Balance int,
+  ExpectedBalance bigint,
+  OverdraftBalance int,
+  ExpectedOverdraftBalance bigint,
+  PRIMARY KEY (RunTimestamp, CustomerID)
+);
+'''
+cursor.execute(create_reconciliationmismatches_table_sql)
+
+# Make empty CustomerDailyRollups table (per-customer daily count and total of each TransactionHistory action)
+create_customerdailyrollups_table_sql = '''
+CREATE TABLE CustomerDailyRollups (
+  CustomerID varchar(255),
+  Day DATE,
+  Action varchar(255),
+  NumTransactions int,
+  TotalAmount bigint,
+  PRIMARY KEY (CustomerID, Day, Action)
+);
+'''
+cursor.execute(create_customerdailyrollups_table_sql)
+
+# Make empty BankDailyRollups table (bank-wide daily count and total of each action, spread over a few slots per day and action)
+create_bankdailyrollups_table_sql = '''
+CREATE TABLE BankDailyRollups (
+  Day DATE,
+  Action varchar(255),
+  Slot int,
+  NumTransactions bigint,
+  TotalAmount bigint,
+  PRIMARY KEY (Day, Action, Slot)
+);
+'''
+cursor.execute(create_bankdailyrollups_table_sql)
+
+# Make empty LedgerOutbox table (ledger events waiting to be relayed to the in-process event bus)
+create_ledgeroutbox_table_sql = '''
+CREATE TABLE LedgerOutbox (
+  EventID bigint AUTO_INCREMENT PRIMARY KEY,
+  JournalID varchar(255),
+  CustomerID varchar(255),
+  Action varchar(255),
+  Amount bigint,
+  Timestamp DATETIME,
+  INDEX (CustomerID, EventID)
+);
+'''
+cursor.execute(create_ledgeroutbox_table_sql)
+
+# Make empty AccountViews table (denormalized read model of the account_info page)
+create_accountviews_table_sql = '''
+CREATE TABLE AccountViews (
+  CustomerID varchar(255),
+  FirstName varchar(255),
+  LastName varchar(255),
+  Balance int,
+  OverdraftBalance int,
+  EthBalance double,
+  SolBalance double,
+  OverdraftLogs mediumtext,
+  TransactionHist text,
+  TransferHist text,
+  CryptoHist mediumtext,
+  LastEventID bigint DEFAULT 0,
+  PRIMARY KEY (CustomerID)
+);
+'''
+cursor.execute(create_accountviews_table_sql)
+
 
 
 # The two sets created below are used to ensure that this
@@ -147,6 +327,17 @@ for i in range(num_customers_to_add):
                 "'" + customer_password + "'")
     cursor.execute(insert_password_sql)
     
+    # post the customer's opening balance to the ledger, funded from the bank's External account
+    insert_opening_balance_sql = '''
+    INSERT INTO LedgerEntries (JournalID, CustomerID, Account, Amount, Action, Timestamp)
+    VALUES  ({0},{1},'Cash',{2},'OpeningBalance',NOW()),
+            ({0},'TestudoBank','External',{3},'OpeningBalance',NOW());
+    '''.format("'OpeningBalance-" + customer_id + "'",
+                "'" + customer_id + "'",
+                customer_balance,
+                -customer_balance)
+    cursor.execute(insert_opening_balance_sql)
+    
     # add this customer's randomly-generated ID to the set
     # to ensure this ID is not re-used by accident.
     ids_just_added.add(customer_id)
@@ -0,0 +1,78 @@
+package net.testudobank;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.WebRequest;
+
+/**
+ * Serves the history sections of the "account_info" page (overdraft logs, transactions, transfers and crypto
+ * history) as HTML fragments, which the page fetches after its balances are shown.
+ * <p>
+ * The page passes the {@link FragmentTokens} token it was rendered with in the `X-Fragment-Token` header. Each
+ * fragment's ETag and Last-Modified come from its section version in {@link AccountViews}, and responses must be
+ * revalidated before reuse, so the browser asks again on every page load and an unchanged section is answered with a
+ * 304 that takes no database read. With the read model disabled there are no versions, and fragments aren't cached.
+ */
+@Controller
+public class AccountFragmentController {
+  //// CONSTANT LITERALS ////
+  public static final String FRAGMENT_TOKEN_HEADER = "X-Fragment-Token";
+
+  private final AccountViews accountViews;
+
+  @Autowired
+  public AccountFragmentController(AccountViews accountViews) {
+    this.accountViews = accountViews;
+  }
+
+  /**
+   * HTML GET request handler for one history section of the customer's page.
+   *
+   * @param id CustomerID
+   * @param sectionName "overdraft-logs", "transactions", "transfers" or "crypto-history"
+   * @param token fragment token the customer's page was rendered with
+   */
+  @GetMapping("/api/accounts/{id}/fragments/{section}")
+  @ResponseBody
+  public ResponseEntity<String> getFragment(@PathVariable("id") String id,
+                                            @PathVariable("section") String sectionName,
+                                            @RequestHeader(value = FRAGMENT_TOKEN_HEADER, required = false) String token,
+                                            WebRequest webRequest) {
+    if (!accountViews.getFragmentTokens().isValid(token, id)) {
+      return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+    }
+    AccountView.Section section = null;
+    for (AccountView.Section candidate : AccountView.Section.values()) {
+      if (candidate.getPathName().equals(sectionName)) {
+        section = candidate;
+      }
+    }
+    if (section == null) {
+      return ResponseEntity.notFound().build();
+    }
+
+    if (!accountViews.isEnabled()) {
+      return ResponseEntity.ok().cacheControl(CacheControl.noStore()).contentType(MediaType.TEXT_HTML)
+                           .body(accountViews.get(id).getSection(section));
+    }
+    // the version is read before the view, so a newer view can carry an older version but never the other way around
+    long version = accountViews.getSectionVersion(id, section);
+    String eTag = "\"" + section.getPathName() + "-" + version + "\"";
+    long lastModifiedMillis = TimeUnit.SECONDS.toMillis(version);
+    if (webRequest.checkNotModified(eTag, lastModifiedMillis)) {
+      return null;
+    }
+    return ResponseEntity.ok().cacheControl(CacheControl.noCache().cachePrivate()).eTag(eTag).lastModified(lastModifiedMillis)
+                         .contentType(MediaType.TEXT_HTML).body(accountViews.get(id).getSection(section));
+  }
+}
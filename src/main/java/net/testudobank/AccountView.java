@@ -0,0 +1,109 @@
+package net.testudobank;
+
+import java.util.Locale;
+import java.util.Map;
+
+import lombok.Getter;
+
+/**
+ * Everything the "account_info" page shows for one customer, as stored in the AccountViews table. History fields
+ * are already rendered as lines separated by HTML line breaks. Crypto holdings are stored as amounts, since their
+ * dollar value depends on the price when the page is rendered.
+ */
+public class AccountView {
+  @Getter
+  private final String customerID;
+  @Getter
+  private final String firstName;
+  @Getter
+  private final String lastName;
+  @Getter
+  private final int balanceInPennies;
+  @Getter
+  private final int overdraftBalanceInPennies;
+  @Getter
+  private final double ethBalance;
+  @Getter
+  private final double solBalance;
+  @Getter
+  private final String overdraftLogs;
+  @Getter
+  private final String transactionHist;
+  @Getter
+  private final String transferHist;
+  @Getter
+  private final String cryptoHist;
+  // EventID of the customer's newest LedgerOutbox event on their shard that the view already reflects
+  @Getter
+  private final long lastEventID;
+
+  public AccountView(String customerID, String firstName, String lastName, int balanceInPennies, int overdraftBalanceInPennies,
+                     double ethBalance, double solBalance, String overdraftLogs, String transactionHist, String transferHist, String cryptoHist,
+                     long lastEventID) {
+    this.customerID = customerID;
+    this.firstName = firstName;
+    this.lastName = lastName;
+    this.balanceInPennies = balanceInPennies;
+    this.overdraftBalanceInPennies = overdraftBalanceInPennies;
+    this.ethBalance = ethBalance;
+    this.solBalance = solBalance;
+    this.overdraftLogs = overdraftLogs;
+    this.transactionHist = transactionHist;
+    this.transferHist = transferHist;
+    this.cryptoHist = cryptoHist;
+    this.lastEventID = lastEventID;
+  }
+
+  // Builds a view from a row returned by TestudoBankRepository.getAccountView
+  static AccountView fromRow(Map<String,Object> row) {
+    return new AccountView((String) row.get("CustomerID"), (String) row.get("FirstName"), (String) row.get("LastName"),
+                           ((Number) row.get("Balance")).intValue(), ((Number) row.get("OverdraftBalance")).intValue(),
+                           ((Number) row.get("EthBalance")).doubleValue(), ((Number) row.get("SolBalance")).doubleValue(),
+                           (String) row.get("OverdraftLogs"), (String) row.get("TransactionHist"), (String) row.get("TransferHist"),
+                           (String) row.get("CryptoHist"), ((Number) row.get("LastEventID")).longValue());
+  }
+
+  // Column values in AccountViews table order
+  Object[] toRow() {
+    return new Object[] {customerID, firstName, lastName, balanceInPennies, overdraftBalanceInPennies, ethBalance, solBalance,
+                         overdraftLogs, transactionHist, transferHist, cryptoHist, lastEventID};
+  }
+
+  // Rendered lines of one of the page's history sections
+  public String getSection(Section section) {
+    switch (section) {
+      case OVERDRAFT_LOGS:
+        return overdraftLogs;
+      case TRANSACTIONS:
+        return transactionHist;
+      case TRANSFERS:
+        return transferHist;
+      default:
+        return cryptoHist;
+    }
+  }
+
+  // Amount held of one of the SUPPORTED_CRYPTOCURRENCIES
+  public double getCryptoBalance(String cryptoName) {
+    switch (cryptoName) {
+      case "ETH":
+        return ethBalance;
+      case "SOL":
+        return solBalance;
+      default:
+        throw new IllegalArgumentException("AccountViews has no column for " + cryptoName);
+    }
+  }
+
+  /**
+   * History sections of the "account_info" page, which the page fetches separately from its balances.
+   */
+  public enum Section {
+    OVERDRAFT_LOGS, TRANSACTIONS, TRANSFERS, CRYPTO_HISTORY;
+
+    // Name of the section in fragment URLs, like "crypto-history"
+    public String getPathName() {
+      return name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+  }
+}
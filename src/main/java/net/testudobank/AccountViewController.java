@@ -0,0 +1,40 @@
+package net.testudobank;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Serves how far the {@link AccountViews} read model trails the ledger, and how many of its page reads are coalesced,
+ * to the ops dashboard as JSON.
+ */
+@Controller
+public class AccountViewController {
+  private final AccountViews accountViews;
+
+  @Autowired
+  public AccountViewController(AccountViews accountViews) {
+    this.accountViews = accountViews;
+  }
+
+  /**
+   * JSON GET request handler for the read model's staleness. lagMillis is how old the oldest ledger event of the
+   * last applied batch was when it was applied, and lastAppliedMillis is when that was.
+   */
+  @GetMapping("/api/account-views/staleness")
+  @ResponseBody
+  public AccountViews.Staleness getStaleness() {
+    return accountViews.getStaleness();
+  }
+
+  /**
+   * JSON GET request handler for how many account page reads were served by a concurrent read of the same
+   * customer's page instead of their own trip to the database.
+   */
+  @GetMapping("/api/account-views/coalescing")
+  @ResponseBody
+  public SingleFlight.Stats getReadCoalescingStats() {
+    return accountViews.getReadCoalescingStats();
+  }
+}
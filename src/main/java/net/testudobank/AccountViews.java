@@ -0,0 +1,500 @@
+package net.testudobank;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.util.LinkedCaseInsensitiveMap;
+
+import lombok.Getter;
+
+/**
+ * Read model for the "account_info" page. Each shard's AccountViews table holds one denormalized {@link AccountView}
+ * per customer, so rendering the page is a single primary-key lookup instead of reads from Customers,
+ * TransactionHistory, TransferHistory, OverdraftLogs, CryptoHoldings and CryptoHistory.
+ * <p>
+ * A view is updated whenever the customer's account changes: right away by the request that changed it, so customers
+ * always see their own changes, and otherwise when the change's ledger event arrives from the {@link OutboxEventBus},
+ * which covers changes made outside of a customer's request (transfers received, interest accrual, the balance engine
+ * and sequencer). An event is applied to the stored view as a delta: its net amount moves the balances, and only the
+ * sections the event's action can change are re-read, the recent transactions and transfers from the
+ * {@link RecentActivityCache}. Each view records the newest of the customer's outbox events it reflects, so an event
+ * that a request already stored, or that is delivered again, is skipped. A view is rebuilt from the source tables
+ * only when it can't take deltas: when it is missing, when the customer's events come from another shard than the
+ * one that holds the view, or when a request finds that the view missed a change. A customer without a view gets
+ * one built on their first page load, and {@link #rebuild()} rebuilds every view from scratch.
+ * <p>
+ * Concurrent page loads for the same customer share one read through a {@link SingleFlight}, keyed by the customer
+ * and a version of their data that {@link #refresh(String)} bumps once the new view is stored, so a page load that
+ * starts after a refresh never joins a read that started before it.
+ * <p>
+ * The page's history sections are fetched separately by {@link AccountFragmentController}, so each section also has
+ * a version that only moves when a stored view changes that section's content. Clients revalidate a section with
+ * its version as the ETag, and an unchanged section is answered from memory.
+ * <p>
+ * When disabled, no views are stored and every page load reads the source tables like before.
+ */
+@Component
+public class AccountViews {
+  //// CONSTANT LITERALS ////
+  private static String CONSUMER_NAME = "account-views";
+  private static DateTimeFormatter EVENT_TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+  // Customers share versions by hash, so memory stays fixed; a shared bump only costs an uncoalesced read
+  private static int NUM_VERSION_STRIPES = 4096;
+  private static AccountView.Section[] SECTIONS = AccountView.Section.values();
+  private static long NO_CONTENT_HASH = 0;
+  private static Set<String> TRANSFER_ACTIONS = new HashSet<>(Arrays.asList(
+    MvcController.TRANSACTION_HISTORY_TRANSFER_SEND_ACTION, MvcController.TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION,
+    MvcController.TRANSACTION_HISTORY_TRANSFER_REFUND_ACTION
+  ));
+  private static Set<String> CRYPTO_ACTIONS = new HashSet<>(Arrays.asList(
+    MvcController.TRANSACTION_HISTORY_CRYPTO_BUY_ACTION, MvcController.TRANSACTION_HISTORY_CRYPTO_SELL_ACTION
+  ));
+  private static Set<String> OVERDRAFT_ACTIONS = new HashSet<>(Arrays.asList(
+    LedgerJournal.OVERDRAFT_INTEREST_ACTION, LedgerJournal.OVERDRAFT_CORRECTION_ACTION
+  ));
+
+  private final ShardRouter shardRouter;
+  private final BalanceEngine balanceEngine;
+  private final boolean isEnabled;
+  private final boolean isCoalescingEnabled;
+  private final SingleFlight<String,AccountView> pageReads = new SingleFlight<>();
+  private final AtomicLongArray dataVersions = new AtomicLongArray(NUM_VERSION_STRIPES);
+  // Per stripe and section: the second the section last changed, and a hash of its content then (guarded by the stripe's lock)
+  private final AtomicLongArray sectionVersions = new AtomicLongArray(NUM_VERSION_STRIPES * SECTIONS.length);
+  private final long[] sectionHashes = new long[NUM_VERSION_STRIPES * SECTIONS.length];
+  private final Object[] stripeLocks = new Object[NUM_VERSION_STRIPES];
+  private final FragmentTokens fragmentTokens;
+
+  private volatile long numEventsApplied = 0;
+  private volatile long lastAppliedMillis = 0;
+  private volatile long lastLagMillis = 0;
+
+  @Autowired
+  public AccountViews(ShardRouter shardRouter, BalanceEngine balanceEngine, OutboxEventBus eventBus,
+                      @Value("${testudobank.account-views.enabled:true}") boolean isEnabled,
+                      @Value("${testudobank.account-views.coalesce-reads:true}") boolean isCoalescingEnabled,
+                      @Value("${testudobank.account-views.fragment-signing-key:}") String fragmentSigningKey,
+                      @Value("${testudobank.account-views.fragment-token-ttl-millis:3600000}") long fragmentTokenTTLMillis) {
+    this.shardRouter = shardRouter;
+    this.balanceEngine = balanceEngine;
+    this.isEnabled = isEnabled;
+    this.isCoalescingEnabled = isCoalescingEnabled;
+    this.fragmentTokens = new FragmentTokens(fragmentSigningKey, fragmentTokenTTLMillis);
+    // versions start at startup, so they are newer than any a client got from before a restart
+    long startupSeconds = System.currentTimeMillis() / 1000;
+    for (int i = 0; i < sectionVersions.length(); i++) {
+      sectionVersions.set(i, startupSeconds);
+    }
+    for (int i = 0; i < NUM_VERSION_STRIPES; i++) {
+      stripeLocks[i] = new Object();
+    }
+    if (isEnabled) {
+      eventBus.subscribe(CONSUMER_NAME, this::applyEvents);
+    }
+  }
+
+  public AccountViews(ShardRouter shardRouter, BalanceEngine balanceEngine, OutboxEventBus eventBus, boolean isEnabled, boolean isCoalescingEnabled) {
+    this(shardRouter, balanceEngine, eventBus, isEnabled, isCoalescingEnabled, "", 3600000);
+  }
+
+  public AccountViews(ShardRouter shardRouter, BalanceEngine balanceEngine, OutboxEventBus eventBus, boolean isEnabled) {
+    this(shardRouter, balanceEngine, eventBus, isEnabled, true);
+  }
+
+  // Read model that is switched off, so every page load reads the source tables
+  public static AccountViews disabled(ShardRouter shardRouter, BalanceEngine balanceEngine) {
+    return new AccountViews(shardRouter, balanceEngine, null, false);
+  }
+
+  public boolean isEnabled() {
+    return isEnabled;
+  }
+
+  // Signs the tokens that let a customer's page fetch its history fragments
+  public FragmentTokens getFragmentTokens() {
+    return fragmentTokens;
+  }
+
+  /**
+   * Returns the second at which a history section of the customer's stored view last changed, for fragment ETags and
+   * Last-Modified headers. Versions only move forward, by at least one each time the section's content changes or
+   * the view is dropped; customers that share a version stripe also move each other's versions, which only costs a
+   * client a full response. Read the version before reading the view it describes, so a view stored in between is
+   * never served under the older version. Only meaningful while views are enabled, since changes made outside of a
+   * customer's requests reach the versions through ledger events.
+   */
+  public long getSectionVersion(String customerID, AccountView.Section section) {
+    return sectionVersions.get(versionStripe(customerID) * SECTIONS.length + section.ordinal());
+  }
+
+  /**
+   * Returns the customer's stored view, and builds it if they don't have one yet. Concurrent calls for the same
+   * customer share one read, unless the customer's view was refreshed after that read started.
+   */
+  public AccountView get(String customerID) {
+    if (!isCoalescingEnabled) {
+      return read(customerID);
+    }
+    return pageReads.execute(customerID + "@" + dataVersions.get(versionStripe(customerID)), () -> read(customerID));
+  }
+
+  /**
+   * Rebuilds the customer's view from the source tables and stores it. Call after the customer's account changed.
+   *
+   * @return the new view
+   */
+  public AccountView refresh(String customerID) {
+    JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(customerID);
+    if (!isEnabled) {
+      AccountView accountView = build(jdbcTemplate, customerID, false);
+      dataVersions.incrementAndGet(versionStripe(customerID));
+      return accountView;
+    }
+    // one snapshot for the tables and the outbox, so the view's LastEventID covers exactly the events it reflects
+    synchronized (stripeLocks[versionStripe(customerID)]) {
+      AccountView accountView = shardRouter.transactionTemplateFor(customerID).execute(status -> build(jdbcTemplate, customerID, true));
+      store(jdbcTemplate, accountView);
+      return accountView;
+    }
+  }
+
+  /**
+   * Stores the customer's view after a deposit or withdraw, without re-reading their whole account: the balances
+   * are the ones the mutation computed, an overdraft repayment is appended to the stored view's overdraft logs, and
+   * the newest transactions and transfers come from the {@link RecentActivityCache}. Only the holdings and history of
+   * changedCryptoName are re-read, if the request changed them. Without a mutation or a stored view, this is a
+   * {@link #refresh(String)}.
+   * <p>
+   * The view then covers the mutation's ledger event, so the outbox consumer skips it. When the balances are kept in
+   * MySQL, that is only right if the stored view held the balances the mutation started from and the customer's
+   * balances haven't moved since; otherwise the view missed a change and is refreshed instead. With the balance
+   * engine, the mutation is journaled later and its event sets the balances from the engine, so applying it again
+   * is harmless.
+   *
+   * @param changedCryptoName cryptocurrency whose holdings changed, or null
+   * @return the new view
+   */
+  public AccountView update(String customerID, BalanceMutation mutation, String changedCryptoName) {
+    if (!isEnabled || mutation == null) {
+      return refresh(customerID);
+    }
+    // read and stored under the stripe's lock, like refreshes and applied events, so none of them stores over another
+    synchronized (stripeLocks[versionStripe(customerID)]) {
+      return updateLocked(customerID, mutation, changedCryptoName);
+    }
+  }
+
+  private AccountView updateLocked(String customerID, BalanceMutation mutation, String changedCryptoName) {
+    JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(customerID);
+    Optional<Map<String,Object>> row = TestudoBankRepository.getAccountView(jdbcTemplate, customerID);
+    if (!row.isPresent()) {
+      return refresh(customerID);
+    }
+    AccountView previousView = AccountView.fromRow(row.get());
+
+    long lastEventID = previousView.getLastEventID();
+    if (!balanceEngine.isEnabled()) {
+      Map<String,Object> balances = TestudoBankRepository.getCustomerBalancesWithLastOutboxEventID(jdbcTemplate, customerID).orElse(null);
+      boolean isViewCurrent = balances != null
+        && previousView.getBalanceInPennies() == mutation.oldCashBalanceInPennies
+        && previousView.getOverdraftBalanceInPennies() == mutation.oldOverdraftBalanceInPennies
+        && (int) balances.get("Balance") == mutation.newCashBalanceInPennies
+        && (int) balances.get("OverdraftBalance") == mutation.newOverdraftBalanceInPennies;
+      if (!isViewCurrent) {
+        return refresh(customerID);
+      }
+      lastEventID = Math.max(lastEventID, ((Number) balances.get("LastEventID")).longValue());
+    }
+
+    String overdraftLogs = previousView.getOverdraftLogs();
+    if (mutation.isDeposit() && mutation.oldOverdraftBalanceInPennies > 0) {
+      overdraftLogs += overdraftLog(mutation) + MvcController.HTML_LINE_BREAK;
+    }
+    double ethBalance = previousView.getEthBalance();
+    double solBalance = previousView.getSolBalance();
+    String cryptoHist = previousView.getCryptoHist();
+    if (changedCryptoName != null) {
+      double cryptoBalance = TestudoBankRepository.getCustomerCryptoBalance(jdbcTemplate, customerID, changedCryptoName).orElse(0.0);
+      ethBalance = changedCryptoName.equals("ETH") ? cryptoBalance : ethBalance;
+      solBalance = changedCryptoName.equals("SOL") ? cryptoBalance : solBalance;
+      cryptoHist = render(TestudoBankRepository.getCryptoLogs(jdbcTemplate, customerID));
+    }
+
+    AccountView accountView = new AccountView(customerID, previousView.getFirstName(), previousView.getLastName(), mutation.newCashBalanceInPennies,
+                                              mutation.newOverdraftBalanceInPennies, ethBalance, solBalance, overdraftLogs,
+                                              render(TestudoBankRepository.getRecentTransactions(jdbcTemplate, shardRouter.getRecentActivityCache(), customerID, MvcController.MAX_NUM_TRANSACTIONS_DISPLAYED)),
+                                              render(TestudoBankRepository.getTransferLogs(jdbcTemplate, shardRouter.getRecentActivityCache(), customerID, MvcController.MAX_NUM_TRANSFERS_DISPLAYED)),
+                                              cryptoHist, lastEventID);
+    store(jdbcTemplate, accountView);
+    return accountView;
+  }
+
+  /**
+   * Drops the customer's stored view, so their next page load builds a new one. A cheaper alternative to
+   * {@link #refresh(String)} after a change made by a request that doesn't show the page.
+   */
+  public void invalidate(String customerID) {
+    if (isEnabled) {
+      drop(shardRouter.jdbcTemplateFor(customerID), customerID);
+    } else {
+      dataVersions.incrementAndGet(versionStripe(customerID));
+    }
+  }
+
+  /**
+   * Drops every stored view on every shard, and builds a new one for every customer.
+   *
+   * @return number of views built
+   */
+  public int rebuild() {
+    int numViewsBuilt = 0;
+    for (JdbcTemplate shard : shardRouter.getShards()) {
+      TestudoBankRepository.deleteAccountViews(shard);
+      for (String customerID : TestudoBankRepository.getCustomerIDs(shard)) {
+        refresh(customerID);
+        numViewsBuilt++;
+      }
+    }
+    return numViewsBuilt;
+  }
+
+  public SingleFlight.Stats getReadCoalescingStats() {
+    return pageReads.stats();
+  }
+
+  public Staleness getStaleness() {
+    return new Staleness(numEventsApplied, lastAppliedMillis, lastLagMillis);
+  }
+
+  /**
+   * How far the views trail the ledger. lagMillis is how long before lastAppliedMillis the oldest event of the last
+   * applied batch was written, so it includes the relay's poll interval and any backlog on the bus. Event
+   * timestamps have one second resolution.
+   */
+  public static class Staleness {
+    @Getter
+    private final long numEventsApplied;
+    @Getter
+    private final long lastAppliedMillis;
+    @Getter
+    private final long lagMillis;
+
+    private Staleness(long numEventsApplied, long lastAppliedMillis, long lagMillis) {
+      this.numEventsApplied = numEventsApplied;
+      this.lastAppliedMillis = lastAppliedMillis;
+      this.lagMillis = lagMillis;
+    }
+  }
+
+  private static int versionStripe(String customerID) {
+    return (customerID.hashCode() & Integer.MAX_VALUE) % NUM_VERSION_STRIPES;
+  }
+
+  // Stores the view, and moves the version of every section whose content changed
+  private void store(JdbcTemplate jdbcTemplate, AccountView accountView) {
+    int stripe = versionStripe(accountView.getCustomerID());
+    synchronized (stripeLocks[stripe]) {
+      TestudoBankRepository.replaceAccountView(jdbcTemplate, accountView.toRow());
+      // before the sections, so a reader that sees a new section version never joins a page read of the old view
+      dataVersions.incrementAndGet(stripe);
+      for (AccountView.Section section : SECTIONS) {
+        int slot = stripe * SECTIONS.length + section.ordinal();
+        long contentHash = contentHash(accountView.getSection(section));
+        if (sectionHashes[slot] != contentHash) {
+          sectionHashes[slot] = contentHash;
+          bumpSectionVersion(slot);
+        }
+      }
+    }
+  }
+
+  // Deletes the view, and moves the version of every section, since the next view is built from the changed account
+  private void drop(JdbcTemplate jdbcTemplate, String customerID) {
+    int stripe = versionStripe(customerID);
+    synchronized (stripeLocks[stripe]) {
+      TestudoBankRepository.deleteAccountView(jdbcTemplate, customerID);
+      dataVersions.incrementAndGet(stripe);
+      for (int slot = stripe * SECTIONS.length; slot < (stripe + 1) * SECTIONS.length; slot++) {
+        sectionHashes[slot] = NO_CONTENT_HASH;
+        bumpSectionVersion(slot);
+      }
+    }
+  }
+
+  // Seconds, so a version is also a Last-Modified; more than one change in a second runs the version ahead of the clock
+  private void bumpSectionVersion(int slot) {
+    sectionVersions.accumulateAndGet(slot, System.currentTimeMillis() / 1000, (version, nowSeconds) -> Math.max(version + 1, nowSeconds));
+  }
+
+  // 64 bit hash of a section's rendered lines, never NO_CONTENT_HASH
+  private static long contentHash(String content) {
+    long hash = 1125899906842597L;
+    if (content != null) {
+      for (int i = 0; i < content.length(); i++) {
+        hash = 31 * hash + content.charAt(i);
+      }
+    }
+    return hash == NO_CONTENT_HASH ? 1 : hash;
+  }
+
+  // Outbox consumer: applies each customer's events in the batch to their view, in the order they were written
+  private void applyEvents(List<OutboxEvent> events) {
+    Map<String,List<OutboxEvent>> customerEvents = new LinkedHashMap<>();
+    String oldestTimestamp = null;
+    for (OutboxEvent event : events) {
+      customerEvents.computeIfAbsent(event.getCustomerID(), customerID -> new ArrayList<>()).add(event);
+      if (oldestTimestamp == null || event.getTimestamp().compareTo(oldestTimestamp) < 0) {
+        oldestTimestamp = event.getTimestamp();
+      }
+    }
+    for (Map.Entry<String,List<OutboxEvent>> entry : customerEvents.entrySet()) {
+      synchronized (stripeLocks[versionStripe(entry.getKey())]) {
+        apply(entry.getKey(), entry.getValue());
+      }
+    }
+
+    long nowMillis = System.currentTimeMillis();
+    if (oldestTimestamp != null) {
+      long oldestEventMillis = LocalDateTime.parse(oldestTimestamp, EVENT_TIMESTAMP_FORMATTER).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+      lastLagMillis = Math.max(0, nowMillis - oldestEventMillis);
+    }
+    numEventsApplied += events.size();
+    lastAppliedMillis = nowMillis;
+  }
+
+  // Applies one customer's events to their stored view, or rebuilds the view when it can't take the events as deltas
+  private void apply(String customerID, List<OutboxEvent> events) {
+    JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(customerID);
+    int shardIndex = shardRouter.shardIndexFor(customerID);
+    boolean isFromCustomersShard = events.stream().allMatch(event -> event.getShardIndex() == shardIndex);
+    Optional<Map<String,Object>> row = isFromCustomersShard ? TestudoBankRepository.getAccountView(jdbcTemplate, customerID) : Optional.empty();
+    if (!row.isPresent()) {
+      // the customer may have been moved to another shard or removed since the events were written
+      if (TestudoBankRepository.doesCustomerExist(jdbcTemplate, shardRouter.getCustomerIDFilter(), shardRouter.getCustomerProfileCache(), customerID)) {
+        refresh(customerID);
+      } else {
+        drop(jdbcTemplate, customerID);
+      }
+      return;
+    }
+    AccountView previousView = AccountView.fromRow(row.get());
+    // a customer is never owed a balance and in overdraft at once, so one signed position holds both balances
+    if (previousView.getBalanceInPennies() > 0 && previousView.getOverdraftBalanceInPennies() > 0) {
+      refresh(customerID);
+      return;
+    }
+
+    long lastEventID = previousView.getLastEventID();
+    long positionInPennies = previousView.getBalanceInPennies() - previousView.getOverdraftBalanceInPennies();
+    boolean isOverdraftChanged = false;
+    boolean isTransferChanged = false;
+    boolean isCryptoChanged = false;
+    for (OutboxEvent event : events) {
+      // already in the view, stored by the customer's own request or by an earlier delivery
+      if (event.getEventID() <= lastEventID) {
+        continue;
+      }
+      isOverdraftChanged |= positionInPennies < 0 || OVERDRAFT_ACTIONS.contains(event.getAction());
+      positionInPennies += event.getAmountInPennies();
+      isOverdraftChanged |= positionInPennies < 0;
+      isTransferChanged |= TRANSFER_ACTIONS.contains(event.getAction());
+      isCryptoChanged |= CRYPTO_ACTIONS.contains(event.getAction());
+      lastEventID = event.getEventID();
+    }
+    if (lastEventID == previousView.getLastEventID()) {
+      return;
+    }
+
+    // the balance engine holds the latest balances when it is enabled, and MySQL and the events trail it
+    int balanceInPennies = (int) Math.max(positionInPennies, 0);
+    int overdraftBalanceInPennies = (int) Math.max(-positionInPennies, 0);
+    if (balanceEngine.isEnabled()) {
+      balanceInPennies = balanceEngine.getCashBalanceInPennies(customerID);
+      overdraftBalanceInPennies = balanceEngine.getOverdraftBalanceInPennies(customerID);
+      isOverdraftChanged |= previousView.getOverdraftBalanceInPennies() > 0 || overdraftBalanceInPennies > 0;
+    }
+    AccountView accountView = new AccountView(customerID, previousView.getFirstName(), previousView.getLastName(), balanceInPennies, overdraftBalanceInPennies,
+                                              isCryptoChanged ? TestudoBankRepository.getCustomerCryptoBalance(jdbcTemplate, customerID, "ETH").orElse(0.0) : previousView.getEthBalance(),
+                                              isCryptoChanged ? TestudoBankRepository.getCustomerCryptoBalance(jdbcTemplate, customerID, "SOL").orElse(0.0) : previousView.getSolBalance(),
+                                              isOverdraftChanged ? render(TestudoBankRepository.getOverdraftLogs(jdbcTemplate, customerID)) : previousView.getOverdraftLogs(),
+                                              render(TestudoBankRepository.getRecentTransactions(jdbcTemplate, shardRouter.getRecentActivityCache(), customerID, MvcController.MAX_NUM_TRANSACTIONS_DISPLAYED)),
+                                              isTransferChanged ? render(TestudoBankRepository.getTransferLogs(jdbcTemplate, shardRouter.getRecentActivityCache(), customerID, MvcController.MAX_NUM_TRANSFERS_DISPLAYED)) : previousView.getTransferHist(),
+                                              isCryptoChanged ? render(TestudoBankRepository.getCryptoLogs(jdbcTemplate, customerID)) : previousView.getCryptoHist(),
+                                              lastEventID);
+    store(jdbcTemplate, accountView);
+  }
+
+  // Stored view, or a new one when there is none
+  private AccountView read(String customerID) {
+    JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(customerID);
+    if (!isEnabled) {
+      return build(jdbcTemplate, customerID, false);
+    }
+    Optional<Map<String,Object>> row = TestudoBankRepository.getAccountView(jdbcTemplate, customerID);
+    return row.isPresent() ? AccountView.fromRow(row.get()) : refresh(customerID);
+  }
+
+  // Reads everything the page shows from the source tables, plus the customer's newest outbox event if withLastEventID
+  private AccountView build(JdbcTemplate jdbcTemplate, String customerID, boolean withLastEventID) {
+    long lastEventID = withLastEventID ? TestudoBankRepository.getLastOutboxEventID(jdbcTemplate, customerID) : 0;
+    CustomerProfileCache.Profile profile = TestudoBankRepository.getCustomerProfile(jdbcTemplate, shardRouter.getCustomerProfileCache(), customerID)
+      .orElseThrow(() -> new IllegalArgumentException("No customer with ID " + customerID));
+
+    String overdraftLogs = render(TestudoBankRepository.getOverdraftLogs(jdbcTemplate, customerID));
+    String transactionHist = render(TestudoBankRepository.getRecentTransactions(jdbcTemplate, shardRouter.getRecentActivityCache(), customerID, MvcController.MAX_NUM_TRANSACTIONS_DISPLAYED));
+    String transferHist = render(TestudoBankRepository.getTransferLogs(jdbcTemplate, shardRouter.getRecentActivityCache(), customerID, MvcController.MAX_NUM_TRANSFERS_DISPLAYED));
+    String cryptoHist = render(TestudoBankRepository.getCryptoLogs(jdbcTemplate, customerID));
+
+    // the balance engine holds the latest balances when it is enabled, since MySQL is only updated at checkpoints
+    int balanceInPennies;
+    int overdraftBalanceInPennies;
+    if (balanceEngine.isEnabled()) {
+      balanceInPennies = balanceEngine.getCashBalanceInPennies(customerID);
+      overdraftBalanceInPennies = balanceEngine.getOverdraftBalanceInPennies(customerID);
+    } else {
+      Map<String,Object> balances = TestudoBankRepository.getCustomerBalances(jdbcTemplate, customerID)
+        .orElseThrow(() -> new IllegalArgumentException("No customer with ID " + customerID));
+      balanceInPennies = (int) balances.get("Balance");
+      overdraftBalanceInPennies = (int) balances.get("OverdraftBalance");
+    }
+    return new AccountView(customerID, profile.getFirstName(), profile.getLastName(), balanceInPennies, overdraftBalanceInPennies,
+                           TestudoBankRepository.getCustomerCryptoBalance(jdbcTemplate, customerID, "ETH").orElse(0.0),
+                           TestudoBankRepository.getCustomerCryptoBalance(jdbcTemplate, customerID, "SOL").orElse(0.0),
+                           overdraftLogs, transactionHist, transferHist, cryptoHist, lastEventID);
+  }
+
+  // History rows as the page shows them, each followed by a line break
+  private static String render(List<Map<String,Object>> rows) {
+    StringBuilder lines = new StringBuilder(MvcController.HTML_LINE_BREAK);
+    for (Map<String,Object> row : rows) {
+      lines.append(row).append(MvcController.HTML_LINE_BREAK);
+    }
+    return lines.toString();
+  }
+
+  // The OverdraftLogs row a deposit that repaid overdraft wrote, as getOverdraftLogs returns it
+  private static Map<String,Object> overdraftLog(BalanceMutation deposit) {
+    Map<String,Object> overdraftLog = new LinkedCaseInsensitiveMap<>();
+    overdraftLog.put("CustomerID", deposit.customerID);
+    overdraftLog.put("Timestamp", LocalDateTime.ofInstant(Instant.ofEpochMilli(deposit.timestampMillis), ZoneId.systemDefault()).withNano(0));
+    overdraftLog.put("DepositAmt", deposit.amountInPennies);
+    overdraftLog.put("OldOverBalance", deposit.oldOverdraftBalanceInPennies);
+    overdraftLog.put("NewOverBalance", deposit.newOverdraftBalanceInPennies);
+    return overdraftLog;
+  }
+}
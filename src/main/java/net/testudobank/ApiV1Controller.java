@@ -0,0 +1,484 @@
+package net.testudobank;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Versioned JSON API for the same accounts and operations as the JSP forms, for clients that only need the
+ * numbers instead of a rendered "account_info" page.
+ * <p>
+ * Customers authenticate every request with HTTP Basic, using their CustomerID as the user name. Mutations run
+ * through the same {@link MvcController} handlers as the forms, including velocity limits, frozen accounts and
+ * idempotency keys (sent in the `Idempotency-Key` header), but skip rebuilding the page: the customer's stored
+ * {@link AccountView} is dropped instead, and the response is just the balances after the change. A request the
+ * handler turns down gets a 422, since the handlers don't say why. Amounts of money are whole pennies.
+ * <p>
+ * History is paged newest first with an opaque cursor, so each page is one indexed query no matter how deep it is.
+ * Responses are small DTOs that Jackson writes straight to the response stream.
+ */
+@Controller
+public class ApiV1Controller {
+  //// CONSTANT LITERALS ////
+  private static int MAX_PAGE_SIZE = 100;
+  public static String BUY_SIDE = "buy";
+  public static String SELL_SIDE = "sell";
+  private static String BASIC_AUTH_PREFIX = "Basic ";
+  private static String CURSOR_SEPARATOR = "_";
+  private static DateTimeFormatter SQL_DATETIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+  private static DateTimeFormatter CURSOR_TIMESTAMP_FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+
+  private final MvcController mvcController;
+  private final ShardRouter shardRouter;
+  private final BalanceEngine balanceEngine;
+  private final CryptoPriceClient cryptoPriceClient;
+
+  @Autowired
+  public ApiV1Controller(MvcController mvcController, ShardRouter shardRouter, BalanceEngine balanceEngine, CryptoPriceClient cryptoPriceClient) {
+    this.mvcController = mvcController;
+    this.shardRouter = shardRouter;
+    this.balanceEngine = balanceEngine;
+    this.cryptoPriceClient = cryptoPriceClient;
+  }
+
+  //// JSON GET HANDLERS ////
+
+  /**
+   * JSON GET request handler for the customer's cash, overdraft and crypto balances.
+   */
+  @GetMapping("/api/v1/accounts/{id}/balance")
+  @ResponseBody
+  public ResponseEntity<Object> getBalance(@PathVariable("id") String id,
+                                           @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorization) {
+    if (authenticate(id, authorization) == null) {
+      return unauthorized();
+    }
+    return ResponseEntity.ok(accountState(id, null, true));
+  }
+
+  /**
+   * JSON GET request handler for a page of the customer's TransactionHistory, newest first.
+   *
+   * @param limit most entries to return, capped at MAX_PAGE_SIZE
+   * @param cursor nextCursor of the previous page, or omitted for the newest entries
+   */
+  @GetMapping("/api/v1/accounts/{id}/transactions")
+  @ResponseBody
+  public ResponseEntity<Object> getTransactions(@PathVariable("id") String id,
+                                                @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorization,
+                                                @RequestParam(value = "limit", defaultValue = "20") int limit,
+                                                @RequestParam(value = "cursor", required = false) String cursor) {
+    if (authenticate(id, authorization) == null) {
+      return unauthorized();
+    }
+    return historyPage(cursor, limit, (atOrBeforeTimestamp, numToSkip, numToFetch) ->
+      TestudoBankRepository.getTransactionHistoryPage(shardRouter.jdbcTemplateFor(id), id, atOrBeforeTimestamp, numToSkip, numToFetch),
+      row -> new TransactionEntry((String) row.get("Timestamp"), (String) row.get("Action"), ((Number) row.get("Amount")).intValue()));
+  }
+
+  /**
+   * JSON GET request handler for a page of the transfers the customer sent or received, newest first.
+   *
+   * @param limit most entries to return, capped at MAX_PAGE_SIZE
+   * @param cursor nextCursor of the previous page, or omitted for the newest entries
+   */
+  @GetMapping("/api/v1/accounts/{id}/transfers")
+  @ResponseBody
+  public ResponseEntity<Object> getTransfers(@PathVariable("id") String id,
+                                             @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorization,
+                                             @RequestParam(value = "limit", defaultValue = "20") int limit,
+                                             @RequestParam(value = "cursor", required = false) String cursor) {
+    if (authenticate(id, authorization) == null) {
+      return unauthorized();
+    }
+    return historyPage(cursor, limit, (atOrBeforeTimestamp, numToSkip, numToFetch) ->
+      TestudoBankRepository.getTransferHistoryPage(shardRouter.jdbcTemplateFor(id), id, atOrBeforeTimestamp, numToSkip, numToFetch),
+      row -> new TransferEntry((String) row.get("Timestamp"), (String) row.get("TransferFrom"), (String) row.get("TransferTo"),
+                               ((Number) row.get("Amount")).intValue()));
+  }
+
+  /**
+   * JSON GET request handler for what buying or selling an amount of a cryptocurrency is worth at the current price.
+   * valueInPennies is what a buy would take out of the cash balance right now.
+   */
+  @GetMapping("/api/v1/crypto/quote")
+  @ResponseBody
+  public ResponseEntity<Object> getCryptoQuote(@RequestParam("cryptoName") String cryptoName, @RequestParam("amount") double amount) {
+    if (!MvcController.SUPPORTED_CRYPTOCURRENCIES.contains(cryptoName) || amount <= 0) {
+      return error(HttpStatus.BAD_REQUEST, "cryptoName must be one of " + MvcController.SUPPORTED_CRYPTOCURRENCIES + " and amount must be positive");
+    }
+    double priceInDollars = cryptoPriceClient.getCurrentCryptoValue(cryptoName);
+    // the price scraper returns a negative value when it fails
+    if (priceInDollars < 0) {
+      return error(HttpStatus.SERVICE_UNAVAILABLE, "no current price for " + cryptoName);
+    }
+    return ResponseEntity.ok(new CryptoQuote(cryptoName, amount, priceInDollars, MvcController.convertDollarsToPennies(priceInDollars * amount)));
+  }
+
+  //// JSON POST HANDLERS ////
+
+  @PostMapping("/api/v1/accounts/{id}/deposits")
+  @ResponseBody
+  public ResponseEntity<Object> deposit(@PathVariable("id") String id,
+                                        @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorization,
+                                        @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+                                        @RequestBody AmountRequest request) {
+    if (request.getAmountInPennies() < 0) {
+      return error(HttpStatus.BAD_REQUEST, "amountInPennies must not be negative");
+    }
+    return mutate(id, authorization, idempotencyKey, false,
+                  user -> user.setAmountToDeposit(MvcController.convertPenniesToDollars(request.getAmountInPennies())), mvcController::submitDeposit);
+  }
+
+  @PostMapping("/api/v1/accounts/{id}/withdrawals")
+  @ResponseBody
+  public ResponseEntity<Object> withdraw(@PathVariable("id") String id,
+                                         @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorization,
+                                         @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+                                         @RequestBody AmountRequest request) {
+    if (request.getAmountInPennies() < 0) {
+      return error(HttpStatus.BAD_REQUEST, "amountInPennies must not be negative");
+    }
+    return mutate(id, authorization, idempotencyKey, false,
+                  user -> user.setAmountToWithdraw(MvcController.convertPenniesToDollars(request.getAmountInPennies())), mvcController::submitWithdraw);
+  }
+
+  /**
+   * JSON POST request handler for a transfer to another customer. The response holds the sender's balances only.
+   */
+  @PostMapping("/api/v1/accounts/{id}/transfers")
+  @ResponseBody
+  public ResponseEntity<Object> transfer(@PathVariable("id") String id,
+                                         @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorization,
+                                         @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+                                         @RequestBody TransferRequest request) {
+    if (request.getRecipientID() == null || request.getAmountInPennies() < 0) {
+      return error(HttpStatus.BAD_REQUEST, "recipientID is required and amountInPennies must not be negative");
+    }
+    return mutate(id, authorization, idempotencyKey, false, user -> {
+      user.setTransferRecipientID(request.getRecipientID());
+      user.setAmountToTransfer(MvcController.convertPenniesToDollars(request.getAmountInPennies()));
+    }, mvcController::submitTransfer);
+  }
+
+  /**
+   * JSON POST request handler for buying ("buy" side) or selling ("sell" side) an amount of a cryptocurrency at the
+   * current price.
+   */
+  @PostMapping("/api/v1/accounts/{id}/crypto-trades")
+  @ResponseBody
+  public ResponseEntity<Object> tradeCrypto(@PathVariable("id") String id,
+                                            @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorization,
+                                            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+                                            @RequestBody CryptoTradeRequest request) {
+    boolean isBuy = BUY_SIDE.equals(request.getSide());
+    if (!isBuy && !SELL_SIDE.equals(request.getSide())) {
+      return error(HttpStatus.BAD_REQUEST, "side must be " + BUY_SIDE + " or " + SELL_SIDE);
+    }
+    return mutate(id, authorization, idempotencyKey, true, user -> {
+      user.setWhichCryptoToBuy(request.getCryptoName());
+      if (isBuy) {
+        user.setAmountToBuyCrypto(request.getAmount());
+      } else {
+        user.setAmountToSellCrypto(request.getAmount());
+      }
+    }, isBuy ? mvcController::buyCrypto : mvcController::sellCrypto);
+  }
+
+  /**
+   * JSON POST request handler for reversing one of the customer's most recent transactions.
+   */
+  @PostMapping("/api/v1/accounts/{id}/disputes")
+  @ResponseBody
+  public ResponseEntity<Object> dispute(@PathVariable("id") String id,
+                                        @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorization,
+                                        @RequestBody DisputeRequest request) {
+    return mutate(id, authorization, null, false, user -> user.setNumTransactionsAgo(request.getNumTransactionsAgo()), mvcController::submitDispute);
+  }
+
+  //// HELPER METHODS ////
+
+  // Runs a form handler for the authenticated customer, and answers with their balances after it
+  private ResponseEntity<Object> mutate(String id, String authorization, String idempotencyKey, boolean withCryptoBalances,
+                                        Consumer<User> fillIn, Function<User,String> handler) {
+    User user = authenticate(id, authorization);
+    if (user == null) {
+      return unauthorized();
+    }
+    user.setIdempotencyKey(idempotencyKey);
+    fillIn.accept(user);
+    if (!handler.apply(user).equals("account_info")) {
+      return error(HttpStatus.UNPROCESSABLE_ENTITY, "request was rejected");
+    }
+    return ResponseEntity.ok(accountState(id, user.getBalanceMutation(), withCryptoBalances));
+  }
+
+  // Customer the Basic credentials belong to, if they are the customer's and the password is right; null otherwise
+  private User authenticate(String id, String authorization) {
+    if (authorization == null || !authorization.startsWith(BASIC_AUTH_PREFIX)) {
+      return null;
+    }
+    String credentials;
+    try {
+      credentials = new String(Base64.getDecoder().decode(authorization.substring(BASIC_AUTH_PREFIX.length()).trim()), StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    int separator = credentials.indexOf(':');
+    if (separator < 0 || !credentials.substring(0, separator).equals(id)) {
+      return null;
+    }
+    String password = credentials.substring(separator + 1);
+    if (!TestudoBankRepository.isCorrectPassword(shardRouter.jdbcTemplateFor(id), id, password)) {
+      return null;
+    }
+    User user = new User();
+    user.setUsername(id);
+    user.setPassword(password);
+    user.setApiRequest(true);
+    return user;
+  }
+
+  /**
+   * The customer's balances. A handler's own balance mutation already holds the balances it left, so they are only
+   * read when there is none (a replayed request, or a dispute, whose overdraft correction comes after it).
+   */
+  private AccountState accountState(String customerID, BalanceMutation mutation, boolean withCryptoBalances) {
+    JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(customerID);
+    int balanceInPennies;
+    int overdraftBalanceInPennies;
+    if (mutation != null) {
+      balanceInPennies = mutation.newCashBalanceInPennies;
+      overdraftBalanceInPennies = mutation.newOverdraftBalanceInPennies;
+    } else if (balanceEngine.isEnabled()) {
+      // the balance engine holds the latest balances when it is enabled, since MySQL is only updated at checkpoints
+      balanceInPennies = balanceEngine.getCashBalanceInPennies(customerID);
+      overdraftBalanceInPennies = balanceEngine.getOverdraftBalanceInPennies(customerID);
+    } else {
+      Map<String,Object> balances = TestudoBankRepository.getCustomerBalances(jdbcTemplate, customerID)
+        .orElseThrow(() -> new IllegalArgumentException("No customer with ID " + customerID));
+      balanceInPennies = (int) balances.get("Balance");
+      overdraftBalanceInPennies = (int) balances.get("OverdraftBalance");
+    }
+    Map<String,Double> cryptoBalances = null;
+    if (withCryptoBalances) {
+      cryptoBalances = new LinkedHashMap<>();
+      for (String cryptoName : MvcController.SUPPORTED_CRYPTOCURRENCIES) {
+        cryptoBalances.put(cryptoName, TestudoBankRepository.getCustomerCryptoBalance(jdbcTemplate, customerID, cryptoName).orElse(0.0));
+      }
+    }
+    return new AccountState(balanceInPennies, overdraftBalanceInPennies, cryptoBalances);
+  }
+
+  /**
+   * Fetches one page of history through pageQuery, one row more than asked for to tell whether there is another
+   * page. The cursor is the Timestamp of the page's last entry, and how many entries with that Timestamp were
+   * already returned, since several entries can share a second.
+   */
+  private static <T> ResponseEntity<Object> historyPage(String cursor, int limit, PageQuery pageQuery, Function<Map<String,Object>,T> toEntry) {
+    if (limit <= 0) {
+      return error(HttpStatus.BAD_REQUEST, "limit must be positive");
+    }
+    int pageSize = Math.min(limit, MAX_PAGE_SIZE);
+    String atOrBeforeTimestamp = null;
+    int numToSkip = 0;
+    if (cursor != null) {
+      try {
+        int separator = cursor.lastIndexOf(CURSOR_SEPARATOR);
+        atOrBeforeTimestamp = LocalDateTime.parse(cursor.substring(0, separator), CURSOR_TIMESTAMP_FORMATTER).format(SQL_DATETIME_FORMATTER);
+        numToSkip = Integer.parseInt(cursor.substring(separator + 1));
+      } catch (DateTimeParseException | IndexOutOfBoundsException | NumberFormatException e) {
+        return error(HttpStatus.BAD_REQUEST, "cursor is not one returned by this endpoint");
+      }
+      if (numToSkip < 0) {
+        return error(HttpStatus.BAD_REQUEST, "cursor is not one returned by this endpoint");
+      }
+    }
+
+    List<Map<String,Object>> rows = pageQuery.fetch(atOrBeforeTimestamp, numToSkip, pageSize + 1);
+    List<T> entries = new ArrayList<>(Math.min(rows.size(), pageSize));
+    for (int i = 0; i < rows.size() && i < pageSize; i++) {
+      entries.add(toEntry.apply(rows.get(i)));
+    }
+    String nextCursor = null;
+    if (rows.size() > pageSize) {
+      String lastTimestamp = (String) rows.get(pageSize - 1).get("Timestamp");
+      int numAtLastTimestamp = 0;
+      for (int i = pageSize - 1; i >= 0 && lastTimestamp.equals(rows.get(i).get("Timestamp")); i--) {
+        numAtLastTimestamp++;
+      }
+      // a page that is all one second, the same one the cursor was in, continues past the cursor's skipped entries
+      if (lastTimestamp.equals(atOrBeforeTimestamp)) {
+        numAtLastTimestamp += numToSkip;
+      }
+      nextCursor = LocalDateTime.parse(lastTimestamp, SQL_DATETIME_FORMATTER).format(CURSOR_TIMESTAMP_FORMATTER) + CURSOR_SEPARATOR + numAtLastTimestamp;
+    }
+    return ResponseEntity.ok(new HistoryPage<>(entries, nextCursor));
+  }
+
+  private static ResponseEntity<Object> unauthorized() {
+    return ResponseEntity.status(HttpStatus.UNAUTHORIZED).header(HttpHeaders.WWW_AUTHENTICATE, "Basic realm=\"testudobank\"")
+                         .body(new ApiError("CustomerID or password is incorrect"));
+  }
+
+  private static ResponseEntity<Object> error(HttpStatus status, String message) {
+    return ResponseEntity.status(status).body(new ApiError(message));
+  }
+
+  // Rows of one history page, newest first
+  private interface PageQuery {
+    List<Map<String,Object>> fetch(String atOrBeforeTimestamp, int numToSkip, int limit);
+  }
+
+  //// REQUESTS ////
+
+  public static class AmountRequest {
+    @Setter @Getter
+    private int amountInPennies;
+  }
+
+  public static class TransferRequest {
+    @Setter @Getter
+    private String recipientID;
+
+    @Setter @Getter
+    private int amountInPennies;
+  }
+
+  public static class CryptoTradeRequest {
+    @Setter @Getter
+    private String cryptoName;
+
+    // "buy" or "sell"
+    @Setter @Getter
+    private String side;
+
+    @Setter @Getter
+    private double amount;
+  }
+
+  public static class DisputeRequest {
+    @Setter @Getter
+    private int numTransactionsAgo;
+  }
+
+  //// RESPONSES ////
+
+  // Balances after a request; cryptoBalances is left out of responses to requests that can't change them
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public static class AccountState {
+    @Getter
+    private final int balanceInPennies;
+    @Getter
+    private final int overdraftBalanceInPennies;
+    @Getter
+    private final Map<String,Double> cryptoBalances;
+
+    public AccountState(int balanceInPennies, int overdraftBalanceInPennies, Map<String,Double> cryptoBalances) {
+      this.balanceInPennies = balanceInPennies;
+      this.overdraftBalanceInPennies = overdraftBalanceInPennies;
+      this.cryptoBalances = cryptoBalances;
+    }
+  }
+
+  // nextCursor is left out of the last page
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public static class HistoryPage<T> {
+    @Getter
+    private final List<T> entries;
+    @Getter
+    private final String nextCursor;
+
+    public HistoryPage(List<T> entries, String nextCursor) {
+      this.entries = entries;
+      this.nextCursor = nextCursor;
+    }
+  }
+
+  public static class TransactionEntry {
+    @Getter
+    private final String timestamp;
+    @Getter
+    private final String action;
+    @Getter
+    private final int amountInPennies;
+
+    public TransactionEntry(String timestamp, String action, int amountInPennies) {
+      this.timestamp = timestamp;
+      this.action = action;
+      this.amountInPennies = amountInPennies;
+    }
+  }
+
+  public static class TransferEntry {
+    @Getter
+    private final String timestamp;
+    @Getter
+    private final String from;
+    @Getter
+    private final String to;
+    @Getter
+    private final int amountInPennies;
+
+    public TransferEntry(String timestamp, String from, String to, int amountInPennies) {
+      this.timestamp = timestamp;
+      this.from = from;
+      this.to = to;
+      this.amountInPennies = amountInPennies;
+    }
+  }
+
+  public static class CryptoQuote {
+    @Getter
+    private final String cryptoName;
+    @Getter
+    private final double amount;
+    @Getter
+    private final double priceInDollars;
+    @Getter
+    private final int valueInPennies;
+
+    public CryptoQuote(String cryptoName, double amount, double priceInDollars, int valueInPennies) {
+      this.cryptoName = cryptoName;
+      this.amount = amount;
+      this.priceInDollars = priceInDollars;
+      this.valueInPennies = valueInPennies;
+    }
+  }
+
+  public static class ApiError {
+    @Getter
+    private final String error;
+
+    public ApiError(String error) {
+      this.error = error;
+    }
+  }
+}
@@ -0,0 +1,293 @@
+package net.testudobank;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Optional engine that keeps every customer's main and overdraft balance in memory, so deposits and withdraws
+ * don't need a MySQL round trip. Enable it with `testudobank.balance-engine.enabled=true`.
+ * <p>
+ * Each mutation is applied in memory and appended to a {@link WriteAheadLog} before it is acknowledged.
+ * A scheduled checkpoint then writes the logged mutations to MySQL in bulk, per shard and per WAL segment:
+ * the new Customers balances, plus the TransactionHistory, OverdraftLogs and ledger rows the DB path would
+ * have written. Each segment is checkpointed in one transaction per shard together with a BalanceEngineCheckpoints
+ * marker row, so after a crash the remaining segments are checkpointed at startup exactly once. The rows of a
+ * transfer saga leg are written by the same checkpoint as its mutation (see {@link BalanceMutation#writeTransferSagaRows}).
+ * <p>
+ * Customers are loaded from MySQL the first time they are touched. The engine must be the only writer of
+ * the Balance and OverdraftBalance columns, so only one app instance may run with it enabled.
+ */
+@Component
+public class BalanceEngine {
+  //// CONSTANT LITERALS ////
+  private static int INITIAL_CAPACITY = 1024;
+  private static int WAL_SEGMENT_CAPACITY = 64 * 1024 * 1024;
+  private final ShardRouter shardRouter;
+  private final boolean isEnabled;
+  private final File walDirectory;
+  private final boolean isFsyncEnabled;
+  private WriteAheadLog writeAheadLog;
+
+  // In-memory account state, indexed by the customer's position in the engine
+  private final CustomerIndexMap customerIndexes = new CustomerIndexMap(INITIAL_CAPACITY);
+  private String[] customerIDs = new String[INITIAL_CAPACITY];
+  private int[] cashBalancesInPennies = new int[INITIAL_CAPACITY];
+  private int[] overdraftBalancesInPennies = new int[INITIAL_CAPACITY];
+  private int numCustomers = 0;
+
+  private final Object checkpointLock = new Object();
+
+  @Autowired
+  public BalanceEngine(ShardRouter shardRouter,
+                       @Value("${testudobank.balance-engine.enabled:false}") boolean isEnabled,
+                       @Value("${testudobank.balance-engine.wal-dir:wal}") String walDirectory,
+                       @Value("${testudobank.balance-engine.fsync:true}") boolean isFsyncEnabled) {
+    this.shardRouter = shardRouter;
+    this.isEnabled = isEnabled;
+    this.walDirectory = new File(walDirectory);
+    this.isFsyncEnabled = isFsyncEnabled;
+  }
+
+  // Engine that is switched off, so every balance change goes straight to MySQL
+  public static BalanceEngine disabled(ShardRouter shardRouter) {
+    return new BalanceEngine(shardRouter, false, "", false);
+  }
+
+  public boolean isEnabled() {
+    return isEnabled;
+  }
+
+  /**
+   * Checkpoints any WAL segments left behind by a previous run, then opens a new segment for this run.
+   */
+  @PostConstruct
+  public void start() {
+    if (!isEnabled) {
+      return;
+    }
+    if (!walDirectory.isDirectory() && !walDirectory.mkdirs()) {
+      throw new IllegalStateException("Could not create write-ahead log directory " + walDirectory);
+    }
+
+    long lastSegmentNumber = 0;
+    for (JdbcTemplate shard : shardRouter.getShards()) {
+      lastSegmentNumber = Math.max(lastSegmentNumber, TestudoBankRepository.getLatestBalanceEngineCheckpoint(shard));
+    }
+    for (long segmentNumber : WriteAheadLog.listSegmentNumbers(walDirectory)) {
+      checkpointSegment(segmentNumber);
+      lastSegmentNumber = Math.max(lastSegmentNumber, segmentNumber);
+    }
+    writeAheadLog = new WriteAheadLog(walDirectory, WAL_SEGMENT_CAPACITY, isFsyncEnabled, lastSegmentNumber + 1);
+  }
+
+  /**
+   * Loads every customer on every shard into memory up front, instead of on first use.
+   *
+   * @return number of customers loaded
+   */
+  public int preload() {
+    int numCustomersLoaded = 0;
+    for (JdbcTemplate shard : shardRouter.getShards()) {
+      List<Map<String,Object>> customers = shard.queryForList("SELECT CustomerID, Balance, OverdraftBalance FROM Customers");
+      synchronized (this) {
+        for (Map<String,Object> customer : customers) {
+          String customerID = (String) customer.get("CustomerID");
+          if (findIndex(customerID) < 0) {
+            addCustomer(customerID, (int) customer.get("Balance"), (int) customer.get("OverdraftBalance"));
+            numCustomersLoaded++;
+          }
+        }
+      }
+    }
+    return numCustomersLoaded;
+  }
+
+  //// BALANCE OPERATIONS ////
+
+  public int getCashBalanceInPennies(String customerID) {
+    int index = indexFor(customerID);
+    synchronized (this) {
+      return cashBalancesInPennies[index];
+    }
+  }
+
+  public int getOverdraftBalanceInPennies(String customerID) {
+    int index = indexFor(customerID);
+    synchronized (this) {
+      return overdraftBalancesInPennies[index];
+    }
+  }
+
+  /**
+   * Deposits into the customer's account, with the same rules as {@link BalanceMutation#deposit}.
+   *
+   * @return the deposit, with the balances it left
+   */
+  public BalanceMutation deposit(String customerID, int depositAmtInPennies, String transactionHistoryAction) {
+    return deposit(customerID, depositAmtInPennies, transactionHistoryAction, null, null);
+  }
+
+  /**
+   * Deposits as a leg of a transfer saga, whose rows are checkpointed together with the deposit.
+   *
+   * @return the deposit, with the balances it left
+   */
+  public BalanceMutation deposit(String customerID, int depositAmtInPennies, String transactionHistoryAction, String transferSagaID, String counterpartyID) {
+    int index = indexFor(customerID);
+    BalanceMutation deposit;
+    long sequence;
+    synchronized (this) {
+      deposit = BalanceMutation.deposit(customerID, cashBalancesInPennies[index], overdraftBalancesInPennies[index], depositAmtInPennies, transactionHistoryAction)
+                               .forTransferSaga(transferSagaID, counterpartyID);
+      sequence = apply(index, deposit);
+    }
+    writeAheadLog.awaitDurable(sequence);
+    return deposit;
+  }
+
+  /**
+   * Withdraws from the customer's account, with the same rules as {@link BalanceMutation#withdraw}.
+   *
+   * @return the withdraw, with the balances it left, or null if it would exceed the max overdraft limit
+   */
+  public BalanceMutation withdraw(String customerID, int withdrawAmtInPennies, String transactionHistoryAction) {
+    return withdraw(customerID, withdrawAmtInPennies, transactionHistoryAction, null, null);
+  }
+
+  /**
+   * Withdraws as a leg of a transfer saga, whose rows are checkpointed together with the withdraw.
+   *
+   * @return the withdraw, with the balances it left, or null if it would exceed the max overdraft limit
+   */
+  public BalanceMutation withdraw(String customerID, int withdrawAmtInPennies, String transactionHistoryAction, String transferSagaID, String counterpartyID) {
+    int index = indexFor(customerID);
+    BalanceMutation withdraw;
+    long sequence;
+    synchronized (this) {
+      withdraw = BalanceMutation.withdraw(customerID, cashBalancesInPennies[index], overdraftBalancesInPennies[index], withdrawAmtInPennies, transactionHistoryAction);
+      if (withdraw == null) {
+        return null;
+      }
+      withdraw = withdraw.forTransferSaga(transferSagaID, counterpartyID);
+      sequence = apply(index, withdraw);
+    }
+    writeAheadLog.awaitDurable(sequence);
+    return withdraw;
+  }
+
+  /**
+   * Overwrites the customer's overdraft balance, with the same rules as {@link BalanceMutation#correctOverdraftBalance}.
+   */
+  public void correctOverdraftBalance(String customerID, int newOverdraftBalanceInPennies) {
+    int index = indexFor(customerID);
+    long sequence;
+    synchronized (this) {
+      sequence = apply(index, BalanceMutation.correctOverdraftBalance(customerID, cashBalancesInPennies[index], overdraftBalancesInPennies[index], newOverdraftBalanceInPennies));
+    }
+    writeAheadLog.awaitDurable(sequence);
+  }
+
+  // Logs the mutation and applies it in memory. Must hold the engine lock.
+  private long apply(int index, BalanceMutation mutation) {
+    long sequence = writeAheadLog.append(mutation);
+    cashBalancesInPennies[index] = mutation.newCashBalanceInPennies;
+    overdraftBalancesInPennies[index] = mutation.newOverdraftBalanceInPennies;
+    return sequence;
+  }
+
+  //// CUSTOMER INDEX ////
+
+  // Returns the customer's index in the engine, loading their balances from MySQL on first use
+  private int indexFor(String customerID) {
+    synchronized (this) {
+      int index = findIndex(customerID);
+      if (index >= 0) {
+        return index;
+      }
+    }
+
+    // load outside the engine lock so other customers' mutations aren't blocked on the DB.
+    // Nothing else writes this customer's balances, so the loaded values can't go stale before they are added.
+    JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(customerID);
+    int cashBalanceInPennies = TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, customerID);
+    int overdraftBalanceInPennies = TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, customerID);
+
+    synchronized (this) {
+      int index = findIndex(customerID);
+      if (index >= 0) {
+        return index;
+      }
+      return addCustomer(customerID, cashBalanceInPennies, overdraftBalanceInPennies);
+    }
+  }
+
+  private int findIndex(String customerID) {
+    return customerIndexes.get(ShardRouter.fnv1a64(customerID), index -> customerIDs[index].equals(customerID));
+  }
+
+  private int addCustomer(String customerID, int cashBalanceInPennies, int overdraftBalanceInPennies) {
+    if (numCustomers == customerIDs.length) {
+      customerIDs = Arrays.copyOf(customerIDs, numCustomers * 2);
+      cashBalancesInPennies = Arrays.copyOf(cashBalancesInPennies, numCustomers * 2);
+      overdraftBalancesInPennies = Arrays.copyOf(overdraftBalancesInPennies, numCustomers * 2);
+    }
+    int index = numCustomers++;
+    customerIDs[index] = customerID;
+    cashBalancesInPennies[index] = cashBalanceInPennies;
+    overdraftBalancesInPennies[index] = overdraftBalanceInPennies;
+    customerIndexes.add(ShardRouter.fnv1a64(customerID), index);
+    return index;
+  }
+
+  //// CHECKPOINTING ////
+
+  /**
+   * Writes every mutation logged so far to MySQL, and deletes the WAL segments that held them.
+   * <p>
+   * This method is scheduled to run every second by default.
+   */
+  @Scheduled(fixedDelayString = "${testudobank.balance-engine.checkpoint-interval-millis:1000}")
+  public void checkpoint() {
+    if (!isEnabled) {
+      return;
+    }
+    synchronized (checkpointLock) {
+      for (long segmentNumber : writeAheadLog.sealSegments()) {
+        checkpointSegment(segmentNumber);
+      }
+    }
+  }
+
+  private void checkpointSegment(long segmentNumber) {
+    Map<Integer,List<BalanceMutation>> recordsByShard = new HashMap<>();
+    for (BalanceMutation record : WriteAheadLog.readSegment(walDirectory, segmentNumber)) {
+      recordsByShard.computeIfAbsent(shardRouter.shardIndexFor(record.customerID), shardIndex -> new ArrayList<>()).add(record);
+    }
+
+    String currentTime = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new java.util.Date());
+    for (Map.Entry<Integer,List<BalanceMutation>> shardRecords : recordsByShard.entrySet()) {
+      JdbcTemplate jdbcTemplate = shardRouter.getShard(shardRecords.getKey());
+      shardRouter.getShardTransactionTemplate(shardRecords.getKey()).executeWithoutResult(status -> {
+        // the segment was already checkpointed on this shard before a crash
+        if (TestudoBankRepository.doesBalanceEngineCheckpointExist(jdbcTemplate, segmentNumber)) {
+          return;
+        }
+        BalanceMutation.writeAll(jdbcTemplate, shardRouter.getRecentActivityCache(), shardRecords.getValue());
+        TestudoBankRepository.insertRowToBalanceEngineCheckpointsTable(jdbcTemplate, segmentNumber, currentTime);
+      });
+    }
+    WriteAheadLog.deleteSegment(walDirectory, segmentNumber);
+  }
+}
@@ -0,0 +1,199 @@
+package net.testudobank;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * One change to a customer's main and overdraft balances, made outside of MySQL by the {@link BalanceEngine}
+ * or the {@link MutationSequencer}. It records the balances before and after the change, plus what is needed
+ * to log it, so a batch of mutations can later be written to MySQL with the same rows as the DB path.
+ * <p>
+ * A mutation that is a leg of a transfer saga also carries the saga's ID and the other customer of the transfer,
+ * so the saga's rows for that leg are written in the same MySQL transaction as the balance change.
+ */
+public class BalanceMutation {
+  // A mutation stores its action as an index into this list, and write-ahead log segments keep those indexes,
+  // so new actions are only ever added at the end.
+  private static List<String> ACTIONS = Collections.unmodifiableList(Arrays.asList(
+    MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, MvcController.TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION, MvcController.TRANSACTION_HISTORY_CRYPTO_SELL_ACTION,
+    MvcController.TRANSACTION_HISTORY_WITHDRAW_ACTION, MvcController.TRANSACTION_HISTORY_TRANSFER_SEND_ACTION, MvcController.TRANSACTION_HISTORY_CRYPTO_BUY_ACTION,
+    LedgerJournal.OVERDRAFT_CORRECTION_ACTION, MvcController.TRANSACTION_HISTORY_TRANSFER_REFUND_ACTION
+  ));
+  private static Set<String> DEPOSIT_ACTIONS = new HashSet<>(Arrays.asList(
+    MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, MvcController.TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION, MvcController.TRANSACTION_HISTORY_CRYPTO_SELL_ACTION,
+    MvcController.TRANSACTION_HISTORY_TRANSFER_REFUND_ACTION
+  ));
+
+  public final String customerID;
+  public final byte actionCode;
+  public final int amountInPennies;
+  public final int oldCashBalanceInPennies;
+  public final int oldOverdraftBalanceInPennies;
+  public final int newCashBalanceInPennies;
+  public final int newOverdraftBalanceInPennies;
+  public final long timestampMillis;
+  // set only for legs of a transfer saga
+  public final String transferSagaID;
+  public final String counterpartyID;
+
+  public BalanceMutation(String customerID, byte actionCode, int amountInPennies, int oldCashBalanceInPennies, int oldOverdraftBalanceInPennies,
+                         int newCashBalanceInPennies, int newOverdraftBalanceInPennies, long timestampMillis) {
+    this(customerID, actionCode, amountInPennies, oldCashBalanceInPennies, oldOverdraftBalanceInPennies,
+         newCashBalanceInPennies, newOverdraftBalanceInPennies, timestampMillis, null, null);
+  }
+
+  public BalanceMutation(String customerID, byte actionCode, int amountInPennies, int oldCashBalanceInPennies, int oldOverdraftBalanceInPennies,
+                         int newCashBalanceInPennies, int newOverdraftBalanceInPennies, long timestampMillis, String transferSagaID, String counterpartyID) {
+    this.customerID = customerID;
+    this.actionCode = actionCode;
+    this.amountInPennies = amountInPennies;
+    this.oldCashBalanceInPennies = oldCashBalanceInPennies;
+    this.oldOverdraftBalanceInPennies = oldOverdraftBalanceInPennies;
+    this.newCashBalanceInPennies = newCashBalanceInPennies;
+    this.newOverdraftBalanceInPennies = newOverdraftBalanceInPennies;
+    this.timestampMillis = timestampMillis;
+    this.transferSagaID = transferSagaID;
+    this.counterpartyID = counterpartyID;
+  }
+
+  public String getAction() {
+    return ACTIONS.get(actionCode);
+  }
+
+  public boolean isDeposit() {
+    return DEPOSIT_ACTIONS.contains(getAction());
+  }
+
+  // Same mutation, logged at the given time instead of when it was computed
+  public BalanceMutation loggedAt(long timestampMillis) {
+    return new BalanceMutation(customerID, actionCode, amountInPennies, oldCashBalanceInPennies, oldOverdraftBalanceInPennies,
+                               newCashBalanceInPennies, newOverdraftBalanceInPennies, timestampMillis, transferSagaID, counterpartyID);
+  }
+
+  // Same mutation, as the leg of the given transfer saga (or of no saga, if transferSagaID is null)
+  public BalanceMutation forTransferSaga(String transferSagaID, String counterpartyID) {
+    return new BalanceMutation(customerID, actionCode, amountInPennies, oldCashBalanceInPennies, oldOverdraftBalanceInPennies,
+                               newCashBalanceInPennies, newOverdraftBalanceInPennies, timestampMillis, transferSagaID, counterpartyID);
+  }
+
+  //// BALANCE RULES ////
+
+  /**
+   * Same rules as a deposit through MySQL: the deposit pays off any overdraft balance first,
+   * and the excess is added to the main balance.
+   */
+  public static BalanceMutation deposit(String customerID, int cashBalanceInPennies, int overdraftBalanceInPennies, int depositAmtInPennies, String transactionHistoryAction) {
+    int newOverdraftBalanceInPennies = Math.max(overdraftBalanceInPennies - depositAmtInPennies, 0);
+    int newCashBalanceInPennies = cashBalanceInPennies + Math.max(depositAmtInPennies - overdraftBalanceInPennies, 0);
+    return new BalanceMutation(customerID, (byte) ACTIONS.indexOf(transactionHistoryAction), depositAmtInPennies, cashBalanceInPennies, overdraftBalanceInPennies,
+                               newCashBalanceInPennies, newOverdraftBalanceInPennies, System.currentTimeMillis());
+  }
+
+  /**
+   * Same rules as a withdraw through MySQL: any amount beyond the main balance is added to the overdraft
+   * balance with interest.
+   *
+   * @return the withdraw, or null if it would push the overdraft balance over the max overdraft limit
+   */
+  public static BalanceMutation withdraw(String customerID, int cashBalanceInPennies, int overdraftBalanceInPennies, int withdrawAmtInPennies, String transactionHistoryAction) {
+    int newCashBalanceInPennies = cashBalanceInPennies - withdrawAmtInPennies;
+    int newOverdraftBalanceInPennies = overdraftBalanceInPennies;
+    if (withdrawAmtInPennies > cashBalanceInPennies) {
+      int excessWithdrawAmtInPennies = withdrawAmtInPennies - cashBalanceInPennies;
+      newCashBalanceInPennies = 0;
+      newOverdraftBalanceInPennies = overdraftBalanceInPennies + (int)(excessWithdrawAmtInPennies * MvcController.INTEREST_RATE);
+      if (newOverdraftBalanceInPennies > MvcController.MAX_OVERDRAFT_IN_PENNIES) {
+        return null;
+      }
+    }
+    return new BalanceMutation(customerID, (byte) ACTIONS.indexOf(transactionHistoryAction), withdrawAmtInPennies, cashBalanceInPennies, overdraftBalanceInPennies,
+                               newCashBalanceInPennies, newOverdraftBalanceInPennies, System.currentTimeMillis());
+  }
+
+  /**
+   * Overwrites the overdraft balance, refunding the difference from the bank's overdraft fees.
+   * Used to take back extra overdraft interest when a dispute reverses a deposit.
+   */
+  public static BalanceMutation correctOverdraftBalance(String customerID, int cashBalanceInPennies, int overdraftBalanceInPennies, int newOverdraftBalanceInPennies) {
+    return new BalanceMutation(customerID, (byte) ACTIONS.indexOf(LedgerJournal.OVERDRAFT_CORRECTION_ACTION), overdraftBalanceInPennies - newOverdraftBalanceInPennies,
+                               cashBalanceInPennies, overdraftBalanceInPennies, cashBalanceInPennies, newOverdraftBalanceInPennies, System.currentTimeMillis());
+  }
+
+  //// WRITING TO MYSQL ////
+
+  /**
+   * Writes the same rows as the MySQL deposit/withdraw path for a batch of mutations, in order:
+   * the latest Customers balances, plus the TransactionHistory, OverdraftLogs, ledger, and transfer saga rows.
+   * All of the mutations must belong to customers on the given shard.
+   */
+  public static void writeAll(JdbcTemplate jdbcTemplate, RecentActivityCache recentActivityCache, List<BalanceMutation> mutations) {
+    java.text.SimpleDateFormat sqlDatetimeFormatter = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    Map<String,Object[]> latestCustomerBalances = new LinkedHashMap<>();
+    List<Object[]> transactionLogs = new ArrayList<>();
+    List<Object[]> overdraftLogs = new ArrayList<>();
+    List<LedgerJournal> journals = new ArrayList<>();
+    for (BalanceMutation mutation : mutations) {
+      String action = mutation.getAction();
+      String timestamp = sqlDatetimeFormatter.format(new java.util.Date(mutation.timestampMillis));
+      boolean isOverdraftCorrection = action.equals(LedgerJournal.OVERDRAFT_CORRECTION_ACTION);
+
+      latestCustomerBalances.put(mutation.customerID, new Object[] {mutation.newCashBalanceInPennies, mutation.newOverdraftBalanceInPennies, mutation.customerID});
+      if (!isOverdraftCorrection) {
+        transactionLogs.add(new Object[] {mutation.customerID, timestamp, action, mutation.amountInPennies});
+      }
+      if (mutation.isDeposit() && mutation.oldOverdraftBalanceInPennies > 0) {
+        overdraftLogs.add(new Object[] {mutation.customerID, timestamp, mutation.amountInPennies, mutation.oldOverdraftBalanceInPennies, mutation.newOverdraftBalanceInPennies});
+      }
+
+      // the counterparty account takes the other side of the deposit or withdraw, and any remainder is overdraft fees
+      long cashChangeInPennies = mutation.newCashBalanceInPennies - mutation.oldCashBalanceInPennies;
+      long overdraftChangeInPennies = mutation.oldOverdraftBalanceInPennies - mutation.newOverdraftBalanceInPennies;
+      long counterpartyAmountInPennies = isOverdraftCorrection ? 0 : (mutation.isDeposit() ? -mutation.amountInPennies : mutation.amountInPennies);
+      journals.add(new LedgerJournal(action, timestamp)
+        .post(mutation.customerID, LedgerJournal.CASH_ACCOUNT, cashChangeInPennies)
+        .post(mutation.customerID, LedgerJournal.OVERDRAFT_ACCOUNT, overdraftChangeInPennies)
+        .post(LedgerJournal.BANK_ID, LedgerJournal.counterpartyAccountFor(action), counterpartyAmountInPennies)
+        .post(LedgerJournal.BANK_ID, LedgerJournal.OVERDRAFT_FEES_ACCOUNT, -(cashChangeInPennies + overdraftChangeInPennies + counterpartyAmountInPennies)));
+    }
+
+    TestudoBankRepository.setCustomerBalances(jdbcTemplate, new ArrayList<>(latestCustomerBalances.values()));
+    TestudoBankRepository.insertRowsToTransactionHistoryTable(jdbcTemplate, recentActivityCache, transactionLogs);
+    TestudoBankRepository.insertRowsToOverdraftLogsTable(jdbcTemplate, overdraftLogs);
+    TestudoBankRepository.insertLedgerJournals(jdbcTemplate, journals);
+    writeTransferSagaRows(jdbcTemplate, recentActivityCache, mutations);
+  }
+
+  /**
+   * Writes the transfer saga rows of the saga legs in a batch of mutations: the sender's withdraw records the saga
+   * as 'Debited', the recipient's deposit records the credit marker and the recipient's transfer log, and a refund
+   * marks the saga 'Compensated'. Mutations that aren't saga legs are skipped.
+   */
+  public static void writeTransferSagaRows(JdbcTemplate jdbcTemplate, RecentActivityCache recentActivityCache, List<BalanceMutation> mutations) {
+    java.text.SimpleDateFormat sqlDatetimeFormatter = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    for (BalanceMutation mutation : mutations) {
+      if (mutation.transferSagaID == null) {
+        continue;
+      }
+      String action = mutation.getAction();
+      String timestamp = sqlDatetimeFormatter.format(new java.util.Date(mutation.timestampMillis));
+      if (action.equals(MvcController.TRANSACTION_HISTORY_TRANSFER_SEND_ACTION)) {
+        TestudoBankRepository.insertRowToTransferSagasTable(jdbcTemplate, mutation.transferSagaID, mutation.customerID, mutation.counterpartyID,
+                                                            timestamp, mutation.amountInPennies, MvcController.TRANSFER_SAGA_DEBITED_STATUS);
+      } else if (action.equals(MvcController.TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION)) {
+        // the credit marker's primary key makes a repeated credit for the same saga fail instead of paying twice
+        TestudoBankRepository.insertRowToTransferSagaCreditsTable(jdbcTemplate, mutation.transferSagaID, mutation.customerID);
+        TestudoBankRepository.insertRowToTransferLogsTable(jdbcTemplate, recentActivityCache, mutation.counterpartyID, mutation.customerID, timestamp, mutation.amountInPennies);
+      } else if (action.equals(MvcController.TRANSACTION_HISTORY_TRANSFER_REFUND_ACTION)) {
+        TestudoBankRepository.setTransferSagaStatus(jdbcTemplate, mutation.transferSagaID, MvcController.TRANSFER_SAGA_COMPENSATED_STATUS);
+      }
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package net.testudobank;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size Bloom filter of strings: {@link #mightContain(String)} never returns false for a string that was put,
+ * and returns true for a string that wasn't with about the false positive rate it was sized for, as long as no more
+ * than the expected number of strings are put.
+ * <p>
+ * Bits live in an AtomicLongArray, so strings can be put while other threads look them up. The k bit positions
+ * of a string are derived from one 64-bit hash by double hashing.
+ */
+public class BloomFilter {
+  private final AtomicLongArray words;
+  private final long numBits;
+  private final int numHashFunctions;
+
+  /**
+   * @param expectedInsertions number of strings the filter is sized for
+   * @param falsePositiveRate wanted probability that a string that wasn't put is reported as present, in (0, 1)
+   */
+  public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+    if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+      throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+    }
+    long n = Math.max(1, expectedInsertions);
+    long wantedBits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    long numWords = Math.max(1, (wantedBits + 63) / 64);
+    if (numWords > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Bloom filter for " + expectedInsertions + " strings would be too large");
+    }
+    this.words = new AtomicLongArray((int) numWords);
+    this.numBits = numWords * 64;
+    this.numHashFunctions = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+  }
+
+  public void put(String value) {
+    long hash = hash(value);
+    long h1 = hash;
+    long h2 = (hash >>> 32) | 1;
+    for (int i = 0; i < numHashFunctions; i++) {
+      long bit = Math.floorMod(h1 + i * h2, numBits);
+      int wordIndex = (int) (bit >>> 6);
+      long mask = 1L << bit;
+      long word = words.get(wordIndex);
+      while ((word & mask) == 0 && !words.compareAndSet(wordIndex, word, word | mask)) {
+        word = words.get(wordIndex);
+      }
+    }
+  }
+
+  public boolean mightContain(String value) {
+    long hash = hash(value);
+    long h1 = hash;
+    long h2 = (hash >>> 32) | 1;
+    for (int i = 0; i < numHashFunctions; i++) {
+      long bit = Math.floorMod(h1 + i * h2, numBits);
+      if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public long getNumBits() {
+    return numBits;
+  }
+
+  public int getNumHashFunctions() {
+    return numHashFunctions;
+  }
+
+  // False positive rate once numInsertions distinct strings were put
+  public double expectedFalsePositiveRate(long numInsertions) {
+    return Math.pow(1 - Math.exp(-numHashFunctions * (double) numInsertions / numBits), numHashFunctions);
+  }
+
+  // FNV-1a over the string's chars, finished with MurmurHash3's fmix64 so both halves of the hash are well mixed
+  private static long hash(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
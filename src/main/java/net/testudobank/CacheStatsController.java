@@ -0,0 +1,36 @@
+package net.testudobank;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Serves the hit ratio and memory footprint of the in-memory caches to the ops dashboard as JSON.
+ */
+@Controller
+public class CacheStatsController {
+  private final ShardRouter shardRouter;
+
+  @Autowired
+  public CacheStatsController(ShardRouter shardRouter) {
+    this.shardRouter = shardRouter;
+  }
+
+  /**
+   * JSON GET request handler for the stats of every cache, keyed by cache name. estimatedBytes is an estimate of
+   * the heap the cache holds, not a measurement.
+   */
+  @GetMapping("/api/caches")
+  @ResponseBody
+  public Map<String,Object> getCacheStats() {
+    Map<String,Object> cacheStats = new LinkedHashMap<>();
+    cacheStats.put("recentActivity", shardRouter.getRecentActivityCache().stats());
+    cacheStats.put("customerProfiles", shardRouter.getCustomerProfileCache().stats());
+    cacheStats.put("customerIDFilter", shardRouter.getCustomerIDFilter().stats());
+    return cacheStats;
+  }
+}
@@ -0,0 +1,50 @@
+package net.testudobank;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Fills the ShardRouter's caches from its shards: the customer profiles once the app is up, and the CustomerID
+ * filter at startup and then periodically. The caches themselves don't know the router that holds them, so the scans
+ * that need every shard run from here.
+ */
+@Component
+public class CacheWarmUpJob {
+  private final ShardRouter shardRouter;
+  private final boolean isProfileWarmUpEnabled;
+  private final boolean isCustomerIDFilterEnabled;
+
+  @Autowired
+  public CacheWarmUpJob(ShardRouter shardRouter,
+                        @Value("${testudobank.customer-profiles.warm-up:false}") boolean isProfileWarmUpEnabled,
+                        @Value("${testudobank.customer-id-filter.enabled:true}") boolean isCustomerIDFilterEnabled) {
+    this.shardRouter = shardRouter;
+    this.isProfileWarmUpEnabled = isProfileWarmUpEnabled;
+    this.isCustomerIDFilterEnabled = isCustomerIDFilterEnabled;
+  }
+
+  // With `testudobank.customer-profiles.warm-up` set, every shard is scanned until the CustomerProfileCache is full
+  @EventListener(ApplicationReadyEvent.class)
+  public void warmUpCustomerProfiles() {
+    if (isProfileWarmUpEnabled) {
+      long startTime = System.currentTimeMillis();
+      int numLoaded = shardRouter.getCustomerProfileCache().warmUp(shardRouter);
+      System.out.println(String.format("Warmed up %d customer profiles in %dms", numLoaded, System.currentTimeMillis() - startTime));
+    }
+  }
+
+  // Builds the CustomerIDFilter right away, then rebuilds it so it keeps up with customers created behind its back.
+  // Left unbuilt when disabled, so every CustomerID might exist.
+  @Scheduled(initialDelay = 0, fixedDelayString = "${testudobank.customer-id-filter.rebuild-interval-millis:3600000}")
+  public void rebuildCustomerIDFilter() {
+    if (isCustomerIDFilterEnabled) {
+      long startTime = System.currentTimeMillis();
+      long numCustomers = shardRouter.getCustomerIDFilter().rebuild(shardRouter);
+      System.out.println(String.format("Built CustomerID filter of %d customers in %dms", numCustomers, System.currentTimeMillis() - startTime));
+    }
+  }
+}
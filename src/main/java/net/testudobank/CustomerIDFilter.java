@@ -0,0 +1,158 @@
+package net.testudobank;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import lombok.Getter;
+
+/**
+ * {@link BloomFilter} over every CustomerID on every shard, so {@link TestudoBankRepository#doesCustomerExist} can
+ * turn away transfers to typo'd or made up recipients without querying MySQL. A CustomerID the filter has never
+ * seen definitely doesn't exist; any other CustomerID is looked up as before.
+ * <p>
+ * {@link CacheWarmUpJob} builds the filter by streaming CustomerIDs from every shard at startup, and rebuilds it every
+ * `testudobank.customer-id-filter.rebuild-interval-millis`, sized for the customers found plus room to grow. The app
+ * itself doesn't create customers: python-sql-scripts/addCustomers.py creates them together with the tables, before
+ * the app is started, so the startup build sees them. Code that creates a customer while the app runs must call
+ * {@link #add(String)} once the customer is committed, or the customer is turned away until the next rebuild. Until
+ * the first build finishes, or when disabled, every CustomerID might exist.
+ * <p>
+ * A filter only answers for the shards it was built from, so each {@link ShardRouter} holds its own, and a router
+ * built for a different shard layout starts out letting every CustomerID through.
+ */
+@Component
+public class CustomerIDFilter {
+  //// CONSTANT LITERALS ////
+  // room for customers created between rebuilds, as a fraction of the customers found by a rebuild
+  private static double GROWTH_HEADROOM = 0.1;
+  private static int MIN_EXPECTED_CUSTOMERS = 10000;
+
+  private volatile BloomFilter filter = null;
+  // filter being built by a rebuild, which customers added during the rebuild must also go into
+  private volatile BloomFilter pendingFilter = null;
+  private volatile long numCustomersInFilter = 0;
+  private final double falsePositiveRate;
+  private final LongAdder numCustomersAdded = new LongAdder();
+  private final LongAdder numLookups = new LongAdder();
+  private final LongAdder numRejected = new LongAdder();
+
+  @Autowired
+  public CustomerIDFilter(@Value("${testudobank.customer-id-filter.false-positive-rate:0.01}") double falsePositiveRate) {
+    this.falsePositiveRate = falsePositiveRate;
+  }
+
+  // Filter with the default false positive rate, for routers built outside of Spring
+  public CustomerIDFilter() {
+    this(0.01);
+  }
+
+  /**
+   * Returns false only if the customer definitely doesn't exist on any shard.
+   */
+  boolean mightExist(String customerID) {
+    BloomFilter currentFilter = filter;
+    if (currentFilter == null) {
+      return true;
+    }
+    numLookups.increment();
+    if (currentFilter.mightContain(customerID)) {
+      return true;
+    }
+    numRejected.increment();
+    return false;
+  }
+
+  // Account creation hook: call once the new customer is committed
+  public void add(String customerID) {
+    BloomFilter currentFilter = filter;
+    if (currentFilter != null) {
+      currentFilter.put(customerID);
+      numCustomersAdded.increment();
+    }
+    BloomFilter rebuildingFilter = pendingFilter;
+    if (rebuildingFilter != null) {
+      rebuildingFilter.put(customerID);
+    }
+  }
+
+  /**
+   * Builds a new filter from every CustomerID on the router's shards, and swaps it in.
+   *
+   * @return number of customers in the new filter
+   */
+  public synchronized long rebuild(ShardRouter shardRouter) {
+    long numCustomers = 0;
+    for (JdbcTemplate shard : shardRouter.getShards()) {
+      numCustomers += TestudoBankRepository.getNumCustomers(shard, false);
+    }
+    long expectedCustomers = Math.max(MIN_EXPECTED_CUSTOMERS, (long) (numCustomers * (1 + GROWTH_HEADROOM)));
+    BloomFilter newFilter = new BloomFilter(expectedCustomers, falsePositiveRate);
+
+    // customers added from here on go into the new filter too, and the scan sees every customer added before
+    pendingFilter = newFilter;
+    long[] numScanned = {0};
+    try {
+      for (JdbcTemplate shard : shardRouter.getShards()) {
+        TestudoBankRepository.streamCustomerIDs(shard, resultSet -> {
+          newFilter.put(resultSet.getString(1));
+          numScanned[0]++;
+        });
+      }
+    } finally {
+      pendingFilter = null;
+    }
+    filter = newFilter;
+    numCustomersInFilter = numScanned[0];
+    numCustomersAdded.reset();
+    return numScanned[0];
+  }
+
+  // Drops the filter, so every CustomerID might exist until the next rebuild
+  public synchronized void clear() {
+    filter = null;
+    numCustomersInFilter = 0;
+    numCustomersAdded.reset();
+  }
+
+  //// STATS ////
+
+  public Stats stats() {
+    BloomFilter currentFilter = filter;
+    if (currentFilter == null) {
+      return new Stats(numLookups.sum(), numRejected.sum(), 0, 0, 0, 0);
+    }
+    long numCustomers = numCustomersInFilter + numCustomersAdded.sum();
+    return new Stats(numLookups.sum(), numRejected.sum(), numCustomers, currentFilter.getNumHashFunctions(),
+                     currentFilter.expectedFalsePositiveRate(numCustomers), currentFilter.getNumBits() / 8);
+  }
+
+  public static class Stats {
+    @Getter
+    private final long numLookups;
+    // lookups answered "doesn't exist" without querying MySQL
+    @Getter
+    private final long numRejected;
+    @Getter
+    private final long numCustomers;
+    @Getter
+    private final int numHashFunctions;
+    // false positive rate at the current number of customers
+    @Getter
+    private final double expectedFalsePositiveRate;
+    @Getter
+    private final long estimatedBytes;
+
+    private Stats(long numLookups, long numRejected, long numCustomers, int numHashFunctions, double expectedFalsePositiveRate, long estimatedBytes) {
+      this.numLookups = numLookups;
+      this.numRejected = numRejected;
+      this.numCustomers = numCustomers;
+      this.numHashFunctions = numHashFunctions;
+      this.expectedFalsePositiveRate = expectedFalsePositiveRate;
+      this.estimatedBytes = estimatedBytes;
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package net.testudobank;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Open-addressing hash map from a 64-bit customer key to a dense int index, with no boxing and no per-entry objects.
+ * <p>
+ * Keys are probed linearly in a power-of-two table that is kept at most half full. Callers that hash
+ * CustomerIDs down to keys pass a predicate that confirms the ID stored at an index, since two IDs can share a key.
+ * Not thread-safe.
+ */
+public class CustomerIndexMap {
+  private static int NO_INDEX = -1;
+
+  private long[] keys;
+  private int[] indexes;
+  private int size = 0;
+
+  public CustomerIndexMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+    keys = new long[capacity];
+    indexes = new int[capacity];
+    Arrays.fill(indexes, NO_INDEX);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the first index stored under the key that the predicate accepts, or -1 if there is none.
+   */
+  public int get(long key, IntPredicate isMatch) {
+    int mask = keys.length - 1;
+    for (int slot = mix(key) & mask; indexes[slot] != NO_INDEX; slot = (slot + 1) & mask) {
+      if (keys[slot] == key && isMatch.test(indexes[slot])) {
+        return indexes[slot];
+      }
+    }
+    return NO_INDEX;
+  }
+
+  /**
+   * Adds an entry for the key. An existing entry with the same key is kept alongside the new one.
+   */
+  public void add(long key, int index) {
+    if ((size + 1) * 2 > keys.length) {
+      resize(keys.length * 2);
+    }
+    insert(keys, indexes, key, index);
+    size++;
+  }
+
+  private void resize(int newCapacity) {
+    long[] newKeys = new long[newCapacity];
+    int[] newIndexes = new int[newCapacity];
+    Arrays.fill(newIndexes, NO_INDEX);
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (indexes[slot] != NO_INDEX) {
+        insert(newKeys, newIndexes, keys[slot], indexes[slot]);
+      }
+    }
+    keys = newKeys;
+    indexes = newIndexes;
+  }
+
+  private static void insert(long[] keys, int[] indexes, long key, int index) {
+    int mask = keys.length - 1;
+    int slot = mix(key) & mask;
+    while (indexes[slot] != NO_INDEX) {
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    indexes[slot] = index;
+  }
+
+  // Spreads the key's bits so that keys differing only in their high bits land in different slots
+  private static int mix(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
@@ -0,0 +1,251 @@
+package net.testudobank;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import lombok.Getter;
+
+/**
+ * Bounded read-through cache of the parts of a customer that don't change once they are created: that they exist,
+ * and their first and last name. Transfers check that the recipient exists and account pages show the name without
+ * querying Customers for them, once the customer was read.
+ * <p>
+ * Only customers that exist are cached, so a customer created after a lookup missed is found by the next lookup.
+ * Nothing in the app renames customers; code that removes a customer from a shard or changes their name must call
+ * {@link #invalidate(JdbcTemplate, String)} or {@link #clear()}. A load that overlapped an invalidation of its segment
+ * is not cached. Reads inside a transaction go to MySQL.
+ * <p>
+ * Customers are kept in {@link #NUM_SEGMENTS} access-ordered segments, and the least recently used ones are evicted
+ * once a segment is full. Each {@link ShardRouter} holds the cache of its shards, which
+ * {@link TestudoBankRepository#getCustomerProfile} is handed; entries are keyed by DataSource as well as CustomerID,
+ * since the same CustomerID can be looked up on more than one shard. {@link CacheWarmUpJob} fills the cache at startup.
+ */
+@Component
+public class CustomerProfileCache {
+  //// CONSTANT LITERALS ////
+  private static int NUM_SEGMENTS = 16;
+  private static int WARM_UP_PAGE_SIZE = 10000;
+  // rough heap use of a cached customer (key, map node, profile, two short names)
+  private static int ESTIMATED_BYTES_PER_CUSTOMER = 240;
+
+  private final Segment[] segments = new Segment[NUM_SEGMENTS];
+  private final LongAdder numHits = new LongAdder();
+  private final LongAdder numMisses = new LongAdder();
+  private final int maxCustomersPerSegment;
+
+  @Autowired
+  public CustomerProfileCache(@Value("${testudobank.customer-profiles.max-customers:200000}") int maxCustomers) {
+    this.maxCustomersPerSegment = Math.max(1, maxCustomers / NUM_SEGMENTS);
+    for (int i = 0; i < NUM_SEGMENTS; i++) {
+      segments[i] = new Segment(maxCustomersPerSegment);
+    }
+  }
+
+  // Cache of the default size, for routers built outside of Spring
+  public CustomerProfileCache() {
+    this(200000);
+  }
+
+  /**
+   * Returns the customer's profile, or empty if they don't exist on the given shard.
+   *
+   * @param loader queries MySQL for the customer's FirstName and LastName
+   */
+  Optional<Profile> get(JdbcTemplate jdbcTemplate, String customerID, Supplier<Optional<Map<String,Object>>> loader) {
+    if (TransactionSynchronizationManager.isActualTransactionActive()) {
+      return loader.get().map(Profile::fromRow);
+    }
+
+    Key key = new Key(jdbcTemplate.getDataSource(), customerID);
+    Segment segment = segmentFor(key);
+    long epoch;
+    synchronized (segment) {
+      Profile profile = segment.profiles.get(key);
+      if (profile != null) {
+        numHits.increment();
+        return Optional.of(profile);
+      }
+      epoch = segment.epoch;
+    }
+
+    numMisses.increment();
+    Optional<Profile> profile = loader.get().map(Profile::fromRow);
+    profile.ifPresent(p -> put(key, p, epoch));
+    return profile;
+  }
+
+  //// INVALIDATION ////
+
+  // Drops the customer's profile on the given shard. Call after the customer was removed from it or renamed.
+  public void invalidate(JdbcTemplate jdbcTemplate, String customerID) {
+    Key key = new Key(jdbcTemplate.getDataSource(), customerID);
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      segment.profiles.remove(key);
+      segment.epoch++;
+    }
+  }
+
+  // Drops every cached profile
+  public void clear() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.profiles.clear();
+        segment.epoch++;
+      }
+    }
+  }
+
+  //// WARM-UP ////
+
+  /**
+   * Loads profiles from a scan of every shard's Customers table, in CustomerID order, until the cache holds as many
+   * customers as it can.
+   *
+   * @return number of profiles loaded
+   */
+  public int warmUp(ShardRouter shardRouter) {
+    int maxCustomers = maxCustomersPerSegment * NUM_SEGMENTS;
+    int numLoaded = 0;
+    for (JdbcTemplate shard : shardRouter.getShards()) {
+      String afterCustomerID = "";
+      while (numLoaded < maxCustomers) {
+        long[] epochs = new long[NUM_SEGMENTS];
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+          synchronized (segments[i]) {
+            epochs[i] = segments[i].epoch;
+          }
+        }
+        List<Map<String,Object>> rows = TestudoBankRepository.getCustomerProfiles(shard, afterCustomerID, Math.min(WARM_UP_PAGE_SIZE, maxCustomers - numLoaded));
+        for (Map<String,Object> row : rows) {
+          Key key = new Key(shard.getDataSource(), (String) row.get("CustomerID"));
+          put(key, Profile.fromRow(row), epochs[segmentIndexFor(key)]);
+        }
+        numLoaded += rows.size();
+        if (rows.size() < WARM_UP_PAGE_SIZE) {
+          break;
+        }
+        afterCustomerID = (String) rows.get(rows.size() - 1).get("CustomerID");
+      }
+    }
+    return numLoaded;
+  }
+
+  //// STATS ////
+
+  public Stats stats() {
+    long numCustomers = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        numCustomers += segment.profiles.size();
+      }
+    }
+    return new Stats(numHits.sum(), numMisses.sum(), numCustomers, numCustomers * ESTIMATED_BYTES_PER_CUSTOMER);
+  }
+
+  public static class Stats {
+    @Getter
+    private final long numHits;
+    @Getter
+    private final long numMisses;
+    @Getter
+    private final long numCustomers;
+    // estimate of the heap held by cached profiles
+    @Getter
+    private final long estimatedBytes;
+
+    private Stats(long numHits, long numMisses, long numCustomers, long estimatedBytes) {
+      this.numHits = numHits;
+      this.numMisses = numMisses;
+      this.numCustomers = numCustomers;
+      this.estimatedBytes = estimatedBytes;
+    }
+
+    public double getHitRatio() {
+      return numHits + numMisses == 0 ? 0 : (double) numHits / (numHits + numMisses);
+    }
+  }
+
+  public static class Profile {
+    @Getter
+    private final String firstName;
+    @Getter
+    private final String lastName;
+
+    private Profile(String firstName, String lastName) {
+      this.firstName = firstName;
+      this.lastName = lastName;
+    }
+
+    private static Profile fromRow(Map<String,Object> row) {
+      return new Profile((String) row.get("FirstName"), (String) row.get("LastName"));
+    }
+  }
+
+  //// INTERNALS ////
+
+  // Caches the profile unless its segment was invalidated since the profile was read at the given epoch
+  private void put(Key key, Profile profile, long epoch) {
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      if (segment.epoch == epoch) {
+        segment.profiles.put(key, profile);
+      }
+    }
+  }
+
+  private Segment segmentFor(Key key) {
+    return segments[segmentIndexFor(key)];
+  }
+
+  private static int segmentIndexFor(Key key) {
+    return (int) (ShardRouter.fnv1a64(key.customerID) & (NUM_SEGMENTS - 1));
+  }
+
+  private static class Segment {
+    private final LinkedHashMap<Key,Profile> profiles;
+    // bumped by every invalidation, so a load that overlapped one is thrown away
+    private long epoch = 0;
+
+    private Segment(int maxCustomers) {
+      this.profiles = new LinkedHashMap<Key,Profile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key,Profile> eldest) {
+          return size() > maxCustomers;
+        }
+      };
+    }
+  }
+
+  private static class Key {
+    private final DataSource dataSource;
+    private final String customerID;
+
+    private Key(DataSource dataSource, String customerID) {
+      this.dataSource = dataSource;
+      this.customerID = customerID;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Key && ((Key) other).dataSource == dataSource && ((Key) other).customerID.equals(customerID);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(dataSource) + customerID.hashCode();
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package net.testudobank;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import lombok.Getter;
+
+/**
+ * Live bank-wide totals of deposits held, outstanding overdraft, frozen accounts and crypto holdings per asset,
+ * so the ops dashboard never has to SUM() over Customers or CryptoHoldings.
+ * <p>
+ * The totals are striped {@link LongAdder}/{@link DoubleAdder} counters, updated by {@link TestudoBankRepository}
+ * as it writes ledger journals, fraud reversal counts and crypto holdings. A change made inside a transaction is
+ * only counted once the transaction commits. Every few minutes the counters are replaced with fresh totals from
+ * every shard, which corrects writes made by other app instances, by SQL-only batch jobs (interest credits, the
+ * {@link LedgerReplayer}), and by transactions that committed while the totals were being read.
+ */
+@Component
+public class ExposureAggregates {
+  // Counters are static because the repository's static write methods feed them
+  private static final LongAdder depositsHeldInPennies = new LongAdder();
+  private static final LongAdder overdraftOutstandingInPennies = new LongAdder();
+  private static final LongAdder numFrozenAccounts = new LongAdder();
+  private static final Map<String,DoubleAdder> cryptoHoldings = new ConcurrentHashMap<>();
+  private static volatile long numCustomers = 0;
+  private static volatile long lastReconciledMillis = 0;
+
+  private final ShardRouter shardRouter;
+
+  @Autowired
+  public ExposureAggregates(ShardRouter shardRouter) {
+    this.shardRouter = shardRouter;
+  }
+
+  // Reads every counter, which is O(1) in the number of customers
+  public static Snapshot snapshot() {
+    Map<String,Double> cryptoHoldingsSnapshot = new TreeMap<>();
+    cryptoHoldings.forEach((cryptoName, amount) -> cryptoHoldingsSnapshot.put(cryptoName, amount.sum()));
+    return new Snapshot(depositsHeldInPennies.sum(), overdraftOutstandingInPennies.sum(), numCustomers * MvcController.MAX_OVERDRAFT_IN_PENNIES,
+                        numCustomers, numFrozenAccounts.sum(), cryptoHoldingsSnapshot, lastReconciledMillis);
+  }
+
+  public static class Snapshot {
+    @Getter
+    private final long depositsHeldInPennies;
+    @Getter
+    private final long overdraftOutstandingInPennies;
+    // the combined MAX_OVERDRAFT_IN_PENNIES limit of every customer
+    @Getter
+    private final long overdraftLimitInPennies;
+    @Getter
+    private final long numCustomers;
+    @Getter
+    private final long numFrozenAccounts;
+    @Getter
+    private final Map<String,Double> cryptoHoldings;
+    @Getter
+    private final long lastReconciledMillis;
+
+    private Snapshot(long depositsHeldInPennies, long overdraftOutstandingInPennies, long overdraftLimitInPennies, long numCustomers,
+                     long numFrozenAccounts, Map<String,Double> cryptoHoldings, long lastReconciledMillis) {
+      this.depositsHeldInPennies = depositsHeldInPennies;
+      this.overdraftOutstandingInPennies = overdraftOutstandingInPennies;
+      this.overdraftLimitInPennies = overdraftLimitInPennies;
+      this.numCustomers = numCustomers;
+      this.numFrozenAccounts = numFrozenAccounts;
+      this.cryptoHoldings = cryptoHoldings;
+      this.lastReconciledMillis = lastReconciledMillis;
+    }
+  }
+
+  //// UPDATES ////
+
+  // Customers' Cash postings change deposits held, and their Overdraft postings change the outstanding overdraft by the negated amount
+  static void recordLedgerJournals(List<LedgerJournal> journals) {
+    long depositsChangeInPennies = 0;
+    long overdraftChangeInPennies = 0;
+    for (LedgerJournal journal : journals) {
+      for (LedgerJournal.Posting posting : journal.getPostings()) {
+        if (posting.customerID.equals(LedgerJournal.BANK_ID)) {
+          continue;
+        }
+        if (posting.account.equals(LedgerJournal.CASH_ACCOUNT)) {
+          depositsChangeInPennies += posting.amountInPennies;
+        } else if (posting.account.equals(LedgerJournal.OVERDRAFT_ACCOUNT)) {
+          overdraftChangeInPennies -= posting.amountInPennies;
+        }
+      }
+    }
+    long finalDepositsChangeInPennies = depositsChangeInPennies;
+    long finalOverdraftChangeInPennies = overdraftChangeInPennies;
+    afterCommit(() -> {
+      depositsHeldInPennies.add(finalDepositsChangeInPennies);
+      overdraftOutstandingInPennies.add(finalOverdraftChangeInPennies);
+    });
+  }
+
+  // Reversal counts only ever go up by one, so an account freezes when its count is set to exactly MAX_DISPUTES
+  static void recordNumFraudReversals(int newNumFraudReversals) {
+    if (newNumFraudReversals == MvcController.MAX_DISPUTES) {
+      afterCommit(numFrozenAccounts::increment);
+    }
+  }
+
+  static void recordCryptoHoldingChange(String cryptoName, double amountChange) {
+    afterCommit(() -> cryptoHoldings.computeIfAbsent(cryptoName, name -> new DoubleAdder()).add(amountChange));
+  }
+
+  // Runs the update once the surrounding transaction commits, or right away outside of a transaction
+  private static void afterCommit(Runnable update) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      update.run();
+      return;
+    }
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+      @Override
+      public void afterCommit() {
+        update.run();
+      }
+    });
+  }
+
+  //// RECONCILIATION ////
+
+  @Scheduled(initialDelay = 0, fixedDelayString = "${testudobank.exposure.reconcile-interval-millis:300000}")
+  public void reconcile() {
+    reconcile(shardRouter.getShards());
+  }
+
+  /**
+   * Replaces every counter with totals read from the given shards.
+   *
+   * @return how far deposits held had drifted from MySQL, in pennies
+   */
+  public static long reconcile(List<JdbcTemplate> shards) {
+    long dbDepositsHeldInPennies = 0;
+    long dbOverdraftOutstandingInPennies = 0;
+    long dbNumCustomers = 0;
+    long dbNumFrozenAccounts = 0;
+    Map<String,Double> dbCryptoHoldings = new TreeMap<>();
+    for (JdbcTemplate shard : shards) {
+      Map<String,Object> customerTotals = TestudoBankRepository.getCustomerExposureTotals(shard, MvcController.MAX_DISPUTES);
+      dbDepositsHeldInPennies += ((Number) customerTotals.get("Balance")).longValue();
+      dbOverdraftOutstandingInPennies += ((Number) customerTotals.get("OverdraftBalance")).longValue();
+      dbNumCustomers += ((Number) customerTotals.get("NumCustomers")).longValue();
+      dbNumFrozenAccounts += ((Number) customerTotals.get("NumFrozenAccounts")).longValue();
+      TestudoBankRepository.getCryptoHoldingTotals(shard).forEach((cryptoName, amount) -> dbCryptoHoldings.merge(cryptoName, amount, Double::sum));
+    }
+
+    long depositsDriftInPennies = depositsHeldInPennies.sum() - dbDepositsHeldInPennies;
+    // adding the difference instead of resetting keeps updates made during the swap
+    depositsHeldInPennies.add(-depositsDriftInPennies);
+    overdraftOutstandingInPennies.add(dbOverdraftOutstandingInPennies - overdraftOutstandingInPennies.sum());
+    numFrozenAccounts.add(dbNumFrozenAccounts - numFrozenAccounts.sum());
+    for (Map.Entry<String,DoubleAdder> cryptoHolding : cryptoHoldings.entrySet()) {
+      if (!dbCryptoHoldings.containsKey(cryptoHolding.getKey())) {
+        cryptoHolding.getValue().add(-cryptoHolding.getValue().sum());
+      }
+    }
+    dbCryptoHoldings.forEach((cryptoName, amount) -> {
+      DoubleAdder cryptoHolding = cryptoHoldings.computeIfAbsent(cryptoName, name -> new DoubleAdder());
+      cryptoHolding.add(amount - cryptoHolding.sum());
+    });
+    numCustomers = dbNumCustomers;
+    lastReconciledMillis = System.currentTimeMillis();
+    return depositsDriftInPennies;
+  }
+}
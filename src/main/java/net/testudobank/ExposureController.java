@@ -0,0 +1,22 @@
+package net.testudobank;
+
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Serves the live {@link ExposureAggregates} totals to the ops dashboard as JSON. A request only reads the
+ * in-memory counters, so refreshing the dashboard never touches MySQL.
+ */
+@Controller
+public class ExposureController {
+  /**
+   * JSON GET request handler for the bank-wide exposure totals. Amounts of money are in pennies, crypto holdings
+   * are keyed by asset name, and lastReconciledMillis is when the totals were last checked against MySQL.
+   */
+  @GetMapping("/api/exposure")
+  @ResponseBody
+  public ExposureAggregates.Snapshot getExposure() {
+    return ExposureAggregates.snapshot();
+  }
+}
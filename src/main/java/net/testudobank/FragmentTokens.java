@@ -0,0 +1,83 @@
+package net.testudobank;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Short-lived tokens that let an "account_info" page fetch its own history fragments without posting the customer's
+ * password again. A token names one customer and when it expires, and is signed with HMAC-SHA256, so checking it
+ * takes no database read.
+ * <p>
+ * Every app instance that serves fragments must be given the same signing key. Without one, a random key is made at
+ * startup, and pages rendered before a restart have to be reloaded to fetch their fragments again.
+ */
+public class FragmentTokens {
+  //// CONSTANT LITERALS ////
+  private static String HMAC_ALGORITHM = "HmacSHA256";
+  private static int RANDOM_KEY_LENGTH = 32;
+  private static String SEPARATOR = ".";
+
+  private final SecretKeySpec key;
+  private final long ttlMillis;
+
+  /**
+   * @param signingKey secret shared by every app instance, or empty for a random one
+   * @param ttlMillis how long a token is accepted after it was issued
+   */
+  public FragmentTokens(String signingKey, long ttlMillis) {
+    byte[] keyBytes;
+    if (signingKey == null || signingKey.isEmpty()) {
+      keyBytes = new byte[RANDOM_KEY_LENGTH];
+      new SecureRandom().nextBytes(keyBytes);
+    } else {
+      keyBytes = signingKey.getBytes(StandardCharsets.UTF_8);
+    }
+    this.key = new SecretKeySpec(keyBytes, HMAC_ALGORITHM);
+    this.ttlMillis = ttlMillis;
+  }
+
+  // Token for the customer's fragments, accepted until ttlMillis from now
+  public String issue(String customerID) {
+    String payload = customerID + SEPARATOR + (System.currentTimeMillis() + ttlMillis);
+    return payload + SEPARATOR + Base64.getUrlEncoder().withoutPadding().encodeToString(sign(payload));
+  }
+
+  // True if the token was issued by this (or an identically keyed) instance for the customer, and hasn't expired
+  public boolean isValid(String token, String customerID) {
+    if (token == null) {
+      return false;
+    }
+    int signatureStart = token.lastIndexOf(SEPARATOR);
+    int expiryStart = signatureStart < 0 ? -1 : token.lastIndexOf(SEPARATOR, signatureStart - 1);
+    if (expiryStart < 0 || !token.substring(0, expiryStart).equals(customerID)) {
+      return false;
+    }
+    String payload = token.substring(0, signatureStart);
+    byte[] signature;
+    long expiresMillis;
+    try {
+      signature = Base64.getUrlDecoder().decode(token.substring(signatureStart + 1));
+      expiresMillis = Long.parseLong(token.substring(expiryStart + 1, signatureStart));
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+    return MessageDigest.isEqual(signature, sign(payload)) && System.currentTimeMillis() < expiresMillis;
+  }
+
+  private byte[] sign(String payload) {
+    try {
+      // Mac instances aren't thread safe, and making one is cheap next to a request
+      Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+      mac.init(key);
+      return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(HMAC_ALGORITHM + " is not available", e);
+    }
+  }
+}
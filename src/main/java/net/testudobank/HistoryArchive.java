@@ -0,0 +1,161 @@
+package net.testudobank;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import lombok.Getter;
+
+/**
+ * Compressed files holding the history rows of one shard that were moved out of MySQL, one file per table and
+ * month at `<archive dir>/<table>/<yyyy-MM>.gz`.
+ * <p>
+ * Files are written in blocks of {@link #ROWS_PER_BLOCK} rows. Within a block the values are stored column by
+ * column, so similar values (CustomerIDs, timestamps of the same month, action names) sit next to each other and
+ * gzip well. A month is read back one block at a time, so reading an archived month never holds more than a block.
+ */
+public class HistoryArchive {
+  //// CONSTANT LITERALS ////
+  private static int ROWS_PER_BLOCK = 4096;
+  private static String ARCHIVE_FILE_SUFFIX = ".gz";
+
+  @Getter
+  private final Path archiveDir;
+
+  public HistoryArchive(Path archiveDir) {
+    this.archiveDir = archiveDir;
+  }
+
+  private Path archiveFile(String table, YearMonth month) {
+    return archiveDir.resolve(table).resolve(month + ARCHIVE_FILE_SUFFIX);
+  }
+
+  public boolean isArchived(String table, YearMonth month) {
+    return Files.exists(archiveFile(table, month));
+  }
+
+  // Months of the table that have been archived, oldest first
+  public List<YearMonth> getArchivedMonths(String table) {
+    List<YearMonth> archivedMonths = new ArrayList<>();
+    Path tableDir = archiveDir.resolve(table);
+    if (!Files.isDirectory(tableDir)) {
+      return archivedMonths;
+    }
+    try (DirectoryStream<Path> archiveFiles = Files.newDirectoryStream(tableDir, "*" + ARCHIVE_FILE_SUFFIX)) {
+      for (Path archiveFile : archiveFiles) {
+        String fileName = archiveFile.getFileName().toString();
+        archivedMonths.add(YearMonth.parse(fileName.substring(0, fileName.length() - ARCHIVE_FILE_SUFFIX.length())));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    Collections.sort(archivedMonths);
+    return archivedMonths;
+  }
+
+  /**
+   * Streams every row of one partition of a history table into the table's archive file for that month.
+   * The file only appears once it is complete, and an existing file for the month is replaced.
+   *
+   * @return number of rows archived
+   */
+  public long archivePartition(JdbcTemplate jdbcTemplate, String table, String partitionName, YearMonth month) throws IOException {
+    Path archiveFile = archiveFile(table, month);
+    Files.createDirectories(archiveFile.getParent());
+    Path tempFile = archiveFile.resolveSibling(archiveFile.getFileName() + ".tmp");
+    long[] numRowsArchived = {0};
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tempFile))))) {
+      List<String[]> block = new ArrayList<>(ROWS_PER_BLOCK);
+      String[][] columnNames = {null};
+      TestudoBankRepository.streamHistoryPartition(jdbcTemplate, table, partitionName, resultSet -> {
+        if (columnNames[0] == null) {
+          columnNames[0] = new String[resultSet.getMetaData().getColumnCount()];
+          for (int i = 0; i < columnNames[0].length; i++) {
+            columnNames[0][i] = resultSet.getMetaData().getColumnLabel(i + 1);
+          }
+        }
+        String[] row = new String[columnNames[0].length];
+        for (int i = 0; i < row.length; i++) {
+          row[i] = resultSet.getString(i + 1);
+        }
+        block.add(row);
+        numRowsArchived[0]++;
+        if (block.size() == ROWS_PER_BLOCK) {
+          writeBlock(out, block);
+        }
+      });
+      writeBlock(out, block);
+      out.writeInt(0);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    Files.move(tempFile, archiveFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return numRowsArchived[0];
+  }
+
+  // Writes the rows column by column, with a null flag before each value, and clears the block
+  private static void writeBlock(DataOutputStream out, List<String[]> block) {
+    if (block.isEmpty()) {
+      return;
+    }
+    try {
+      int numColumns = block.get(0).length;
+      out.writeInt(block.size());
+      out.writeInt(numColumns);
+      for (int column = 0; column < numColumns; column++) {
+        for (String[] row : block) {
+          out.writeBoolean(row[column] == null);
+          if (row[column] != null) {
+            out.writeUTF(row[column]);
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    block.clear();
+  }
+
+  /**
+   * Reads back every row of an archived month in the order it was archived, with the columns in table order.
+   * Does nothing if the month isn't archived.
+   */
+  public void forEachRow(String table, YearMonth month, Consumer<String[]> rowHandler) {
+    Path archiveFile = archiveFile(table, month);
+    if (!Files.exists(archiveFile)) {
+      return;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(archiveFile))))) {
+      int numRows;
+      while ((numRows = in.readInt()) > 0) {
+        String[][] block = new String[numRows][in.readInt()];
+        for (int column = 0; column < block[0].length; column++) {
+          for (String[] row : block) {
+            row[column] = in.readBoolean() ? null : in.readUTF();
+          }
+        }
+        for (String[] row : block) {
+          rowHandler.accept(row);
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package net.testudobank;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the TransactionHistory, TransferHistory and CryptoHistory tables small enough to stay in the buffer pool.
+ * <p>
+ * The tables are range partitioned by month on Timestamp, with a catch-all `pFuture` partition at the end. Every
+ * night this job splits the next month's partition off pFuture ahead of time, so pFuture is normally empty and
+ * the split is instant. Partitions older than the retention window are then streamed into the shard's
+ * {@link HistoryArchive} and dropped, which frees their pages without a row-by-row DELETE.
+ * <p>
+ * Archived rows stay readable through {@link TestudoBankRepository#getTransactionHistory}, and are not moved
+ * by the {@link ShardRebalancer}. Tables created before partitioning are skipped until they are migrated with
+ * `ALTER TABLE <table> PARTITION BY RANGE (TO_DAYS(Timestamp)) (PARTITION pFuture VALUES LESS THAN MAXVALUE)`.
+ */
+@Component
+public class HistoryArchiveJob {
+  //// CONSTANT LITERALS ////
+  public static String TRANSACTION_HISTORY_TABLE = "TransactionHistory";
+  public static String TRANSFER_HISTORY_TABLE = "TransferHistory";
+  public static String CRYPTO_HISTORY_TABLE = "CryptoHistory";
+  public static List<String> HISTORY_TABLES = Arrays.asList(TRANSACTION_HISTORY_TABLE, TRANSFER_HISTORY_TABLE, CRYPTO_HISTORY_TABLE);
+  private static String FUTURE_PARTITION_NAME = "pFuture";
+  private static DateTimeFormatter PARTITION_NAME_FORMATTER = DateTimeFormatter.ofPattern("'p'yyyyMM");
+
+  private final ShardRouter shardRouter;
+  private final List<HistoryArchive> archives = new ArrayList<>();
+  private final int retentionMonths;
+
+  @Autowired
+  public HistoryArchiveJob(ShardRouter shardRouter,
+                           @Value("${testudobank.archive.dir:archive}") String archiveDir,
+                           @Value("${testudobank.archive.retention-months:13}") int retentionMonths) {
+    this.shardRouter = shardRouter;
+    this.retentionMonths = retentionMonths;
+    for (int shardIndex = 0; shardIndex < shardRouter.getNumShards(); shardIndex++) {
+      archives.add(new HistoryArchive(Paths.get(archiveDir, "shard-" + shardIndex)));
+    }
+  }
+
+  // Archive of the shard that owns the given customer
+  public HistoryArchive archiveFor(String customerID) {
+    return archives.get(shardRouter.shardIndexFor(customerID));
+  }
+
+  /**
+   * Adds upcoming monthly partitions and archives expired ones on every shard.
+   * <p>
+   * This method is scheduled to run at 5am by default.
+   */
+  @Scheduled(cron = "${testudobank.archive.cron:0 0 5 * * *}")
+  public void maintainPartitions() {
+    for (int shardIndex = 0; shardIndex < shardRouter.getNumShards(); shardIndex++) {
+      try {
+        maintainPartitions(shardRouter.getShard(shardIndex), shardRouter.getRecentActivityCache(), archives.get(shardIndex), YearMonth.now(), retentionMonths);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * Makes sure every history table on the shard has a partition for each month up to the one after currentMonth,
+   * then archives and drops the partitions of months more than retentionMonths before currentMonth.
+   * A partition is only dropped once its archive file is complete, so a crash at any point is fixed by running again.
+   *
+   * @return number of partitions archived
+   */
+  public static int maintainPartitions(JdbcTemplate jdbcTemplate, RecentActivityCache recentActivityCache, HistoryArchive historyArchive, YearMonth currentMonth, int retentionMonths) throws IOException {
+    int numPartitionsArchived = 0;
+    for (String table : HISTORY_TABLES) {
+      List<String> partitionNames = TestudoBankRepository.getHistoryPartitionNames(jdbcTemplate, table);
+      if (!partitionNames.contains(FUTURE_PARTITION_NAME)) {
+        continue;
+      }
+      List<YearMonth> partitionMonths = new ArrayList<>();
+      for (String partitionName : partitionNames) {
+        if (!partitionName.equals(FUTURE_PARTITION_NAME)) {
+          partitionMonths.add(YearMonth.parse(partitionName, PARTITION_NAME_FORMATTER));
+        }
+      }
+
+      // the first run splits every month that already has rows off pFuture, later runs only add the months to come
+      YearMonth firstNewMonth;
+      if (partitionMonths.isEmpty()) {
+        Optional<String> oldestMonth = TestudoBankRepository.getOldestHistoryMonth(jdbcTemplate, table);
+        firstNewMonth = oldestMonth.isPresent() && YearMonth.parse(oldestMonth.get()).isBefore(currentMonth) ? YearMonth.parse(oldestMonth.get()) : currentMonth;
+      } else {
+        firstNewMonth = partitionMonths.get(partitionMonths.size() - 1).plusMonths(1);
+      }
+      List<String[]> newPartitions = new ArrayList<>();
+      for (YearMonth month = firstNewMonth; !month.isAfter(currentMonth.plusMonths(1)); month = month.plusMonths(1)) {
+        newPartitions.add(new String[] {month.format(PARTITION_NAME_FORMATTER), month.plusMonths(1).atDay(1).toString()});
+        partitionMonths.add(month);
+      }
+      if (!newPartitions.isEmpty()) {
+        TestudoBankRepository.addHistoryPartitions(jdbcTemplate, table, newPartitions);
+      }
+
+      YearMonth oldestRetainedMonth = currentMonth.minusMonths(retentionMonths);
+      for (YearMonth month : partitionMonths) {
+        if (month.isBefore(oldestRetainedMonth)) {
+          String partitionName = month.format(PARTITION_NAME_FORMATTER);
+          historyArchive.archivePartition(jdbcTemplate, table, partitionName, month);
+          TestudoBankRepository.dropHistoryPartition(jdbcTemplate, table, partitionName);
+          numPartitionsArchived++;
+        }
+      }
+    }
+    if (numPartitionsArchived > 0) {
+      // an idle customer's newest rows may have been archived
+      recentActivityCache.clear();
+    }
+    return numPartitionsArchived;
+  }
+}
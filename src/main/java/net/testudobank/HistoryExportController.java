@@ -0,0 +1,144 @@
+package net.testudobank;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * Lets customers download their full TransactionHistory as CSV or NDJSON.
+ * <p>
+ * Rows are streamed from a forward-only MySQL result set straight into the response, through a small write
+ * buffer and optional gzip, so an export of any size only needs a constant amount of heap. The optional date
+ * range is served by the TransactionHistory (CustomerID, Timestamp) index. Months that were moved to the shard's
+ * {@link HistoryArchive} are read back from it first, one block at a time.
+ */
+@Controller
+public class HistoryExportController {
+  //// CONSTANT LITERALS ////
+  public static String CSV_FORMAT = "csv";
+  public static String NDJSON_FORMAT = "ndjson";
+  private static String CSV_HEADER = "timestamp,action,amount\n";
+  private static int WRITE_BUFFER_SIZE = 64 * 1024;
+
+  private final ShardRouter shardRouter;
+  private final HistoryArchiveJob historyArchiveJob;
+
+  @Autowired
+  public HistoryExportController(ShardRouter shardRouter, HistoryArchiveJob historyArchiveJob) {
+    this.shardRouter = shardRouter;
+    this.historyArchiveJob = historyArchiveJob;
+  }
+
+  /**
+   * HTML POST request handler that streams the customer's history as an attachment.
+   * The password is posted like the other forms, so it never ends up in a URL.
+   *
+   * @param id CustomerID
+   * @param password the customer's password
+   * @param format "csv" (default) or "ndjson"
+   * @param gzip if true, the file is gzipped
+   * @param from first day to export (yyyy-MM-dd, inclusive), or omitted for no lower bound
+   * @param to last day to export (yyyy-MM-dd, inclusive), or omitted for no upper bound
+   */
+  @PostMapping("/api/accounts/{id}/history/export")
+  public void exportHistory(@PathVariable("id") String id,
+                            @RequestParam("password") String password,
+                            @RequestParam(value = "format", defaultValue = "csv") String format,
+                            @RequestParam(value = "gzip", defaultValue = "false") boolean gzip,
+                            @RequestParam(value = "from", required = false) String from,
+                            @RequestParam(value = "to", required = false) String to,
+                            HttpServletResponse response) throws IOException {
+    JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(id);
+    if (!TestudoBankRepository.isCorrectPassword(jdbcTemplate, id, password)) {
+      response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+      return;
+    }
+    if (!format.equals(CSV_FORMAT) && !format.equals(NDJSON_FORMAT)) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "format must be csv or ndjson");
+      return;
+    }
+    String fromTimestamp;
+    String toTimestamp;
+    try {
+      fromTimestamp = from == null ? null : LocalDate.parse(from) + " 00:00:00";
+      toTimestamp = to == null ? null : LocalDate.parse(to).plusDays(1) + " 00:00:00";
+    } catch (DateTimeParseException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "from and to must be yyyy-MM-dd dates");
+      return;
+    }
+
+    String fileName = "history." + format + (gzip ? ".gz" : "");
+    response.setContentType(gzip ? "application/gzip" : format.equals(CSV_FORMAT) ? "text/csv" : "application/x-ndjson");
+    response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    response.setHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+    exportTransactionHistory(jdbcTemplate, historyArchiveJob.archiveFor(id), id, fromTimestamp, toTimestamp, format, gzip, response.getOutputStream());
+  }
+
+  /**
+   * Streams the customer's TransactionHistory rows in Timestamp order to out, and flushes it.
+   * fromTimestamp is inclusive and toTimestamp is exclusive, and either can be null for no bound.
+   *
+   * @return number of rows exported
+   */
+  public static long exportTransactionHistory(JdbcTemplate jdbcTemplate, HistoryArchive historyArchive, String customerID, String fromTimestamp,
+                                              String toTimestamp, String format, boolean gzip, OutputStream out) throws IOException {
+    boolean isCsv = format.equals(CSV_FORMAT);
+    GZIPOutputStream gzipOut = gzip ? new GZIPOutputStream(out, WRITE_BUFFER_SIZE) : null;
+    Writer writer = new BufferedWriter(new OutputStreamWriter(gzip ? gzipOut : out, StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+    long[] numRowsExported = {0};
+    if (isCsv) {
+      writer.write(CSV_HEADER);
+    }
+    try {
+      // archived months are older than every month still in MySQL, so they go first
+      TestudoBankRepository.forEachArchivedTransaction(historyArchive, customerID, fromTimestamp, toTimestamp, row -> {
+        writeRow(writer, isCsv, row[1], row[2], Long.parseLong(row[3]));
+        numRowsExported[0]++;
+      });
+      TestudoBankRepository.streamTransactionHistory(jdbcTemplate, customerID, fromTimestamp, toTimestamp, resultSet -> {
+        writeRow(writer, isCsv, resultSet.getString(1), resultSet.getString(2), resultSet.getLong(3));
+        numRowsExported[0]++;
+      });
+    } catch (UncheckedIOException e) {
+      // the client went away mid-export
+      throw e.getCause();
+    }
+    writer.flush();
+    if (gzipOut != null) {
+      gzipOut.finish();
+    }
+    out.flush();
+    return numRowsExported[0];
+  }
+
+  // Timestamp and Action are never quoted, since neither can contain a comma or a quote
+  private static void writeRow(Writer writer, boolean isCsv, String timestamp, String action, long amountInPennies) {
+    String amount = BigDecimal.valueOf(amountInPennies, 2).toPlainString();
+    try {
+      if (isCsv) {
+        writer.write(timestamp + "," + action + "," + amount + "\n");
+      } else {
+        writer.write("{\"timestamp\":\"" + timestamp + "\",\"action\":\"" + action + "\",\"amount\":" + amount + "}\n");
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package net.testudobank;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Makes money-moving POST requests safe to retry. The form pages hand out a fresh idempotency key with every
+ * form, and a request is claimed by inserting its key into the customer's IdempotencyKeys table before any
+ * money moves. A retry or double-click of the same form hits the primary key and gets the stored result back
+ * instead of running again.
+ * <p>
+ * Only completed requests are stored. A request that is rejected gives its key back, since it moved no money
+ * and the customer should be able to resubmit the form. A request that fails part way keeps its key without a
+ * result, so its retries are rejected until the key expires.
+ * <p>
+ * Recently completed keys are also cached in memory, and a duplicate of a request still in flight on this app
+ * instance waits for it to finish. A new request costs one insert and one update, and no extra reads.
+ */
+public class IdempotencyKeys {
+  //// CONSTANT LITERALS ////
+  private static int MAX_CACHED_KEYS = 10000;
+  private static int PURGE_BATCH_SIZE = 10000;
+  private static DateTimeFormatter SQL_DATETIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+  public enum ClaimResult {
+    // the request owns the key and must call complete(), release() or abandon() once it is done
+    CLAIMED,
+    // the request already completed, so its stored result should be returned
+    REPLAYED,
+    // the key is in use by an unfinished request on another app instance, or was used for a different endpoint
+    REJECTED
+  }
+
+  private final ShardRouter shardRouter;
+
+  // endpoint of each recently completed request, by "<CustomerID>/<IdempotencyKey>"
+  private final Map<String,String> recentlyCompletedEndpoints = Collections.synchronizedMap(new LinkedHashMap<String,String>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+      return size() > MAX_CACHED_KEYS;
+    }
+  });
+  private final Map<String,CompletableFuture<Void>> inFlightRequests = new ConcurrentHashMap<>();
+
+  public IdempotencyKeys(ShardRouter shardRouter) {
+    this.shardRouter = shardRouter;
+  }
+
+  public ClaimResult claim(String customerID, String idempotencyKey, String endpoint) {
+    String cacheKey = customerID + "/" + idempotencyKey;
+    CompletableFuture<Void> inFlightRequest = new CompletableFuture<>();
+    while (true) {
+      String completedEndpoint = recentlyCompletedEndpoints.get(cacheKey);
+      if (completedEndpoint != null) {
+        return completedEndpoint.equals(endpoint) ? ClaimResult.REPLAYED : ClaimResult.REJECTED;
+      }
+      CompletableFuture<Void> otherRequest = inFlightRequests.putIfAbsent(cacheKey, inFlightRequest);
+      if (otherRequest == null) {
+        break;
+      }
+      // wait for the first of the duplicate requests, then replay its result (or claim the key if it gave it back)
+      otherRequest.join();
+    }
+
+    JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(customerID);
+    try {
+      TestudoBankRepository.insertRowToIdempotencyKeysTable(jdbcTemplate, customerID, idempotencyKey, endpoint, LocalDateTime.now().format(SQL_DATETIME_FORMATTER));
+      return ClaimResult.CLAIMED;
+    } catch (DuplicateKeyException e) {
+      finishInFlightRequest(cacheKey);
+      Optional<Map<String,Object>> storedKey = TestudoBankRepository.getIdempotencyKey(jdbcTemplate, customerID, idempotencyKey);
+      if (storedKey.isPresent() && storedKey.get().get("Response") != null && endpoint.equals(storedKey.get().get("Endpoint"))) {
+        recentlyCompletedEndpoints.put(cacheKey, endpoint);
+        return ClaimResult.REPLAYED;
+      }
+      return ClaimResult.REJECTED;
+    } catch (RuntimeException e) {
+      finishInFlightRequest(cacheKey);
+      throw e;
+    }
+  }
+
+  // Stores the result of a claimed request that completed
+  public void complete(String customerID, String idempotencyKey, String endpoint, String response) {
+    String cacheKey = customerID + "/" + idempotencyKey;
+    try {
+      TestudoBankRepository.setIdempotencyKeyResponse(shardRouter.jdbcTemplateFor(customerID), customerID, idempotencyKey, response);
+      recentlyCompletedEndpoints.put(cacheKey, endpoint);
+    } finally {
+      finishInFlightRequest(cacheKey);
+    }
+  }
+
+  // Gives back the key of a claimed request that moved no money
+  public void release(String customerID, String idempotencyKey) {
+    try {
+      TestudoBankRepository.deleteRowFromIdempotencyKeysTable(shardRouter.jdbcTemplateFor(customerID), customerID, idempotencyKey);
+    } finally {
+      finishInFlightRequest(customerID + "/" + idempotencyKey);
+    }
+  }
+
+  // Leaves the key of a claimed request that failed part way claimed, without a stored result
+  public void abandon(String customerID, String idempotencyKey) {
+    finishInFlightRequest(customerID + "/" + idempotencyKey);
+  }
+
+  private void finishInFlightRequest(String cacheKey) {
+    CompletableFuture<Void> inFlightRequest = inFlightRequests.remove(cacheKey);
+    if (inFlightRequest != null) {
+      inFlightRequest.complete(null);
+    }
+  }
+
+  /**
+   * Deletes every idempotency key created before the cutoff on every shard, in batches.
+   *
+   * @return number of keys deleted
+   */
+  public static int purgeExpiredKeys(ShardRouter shardRouter, String cutoffTimestamp) {
+    int numKeysDeleted = 0;
+    for (JdbcTemplate shard : shardRouter.getShards()) {
+      int numKeysDeletedInBatch;
+      do {
+        numKeysDeletedInBatch = TestudoBankRepository.deleteExpiredIdempotencyKeys(shard, cutoffTimestamp, PURGE_BATCH_SIZE);
+        numKeysDeleted += numKeysDeletedInBatch;
+      } while (numKeysDeletedInBatch == PURGE_BATCH_SIZE);
+    }
+    return numKeysDeleted;
+  }
+}
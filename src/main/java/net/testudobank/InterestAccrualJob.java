@@ -0,0 +1,253 @@
+package net.testudobank;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Nightly batch that adds a day's interest to the main balance of every customer whose account is not frozen,
+ * instead of paying interest on the deposit path. {@link MvcController#BALANCE_INTEREST_RATE} is the annual rate, so
+ * each night pays the daily rate that compounds to it over a year, and interest under a penny is not paid. It also
+ * charges {@link MvcController#DAILY_OVERDRAFT_INTEREST_RATE} daily interest on every overdraft balance. Overdraft
+ * interest is rounded up to the penny, so every overdraft is charged at least a penny a day however small it is. It
+ * is never charged past {@link MvcController#MAX_OVERDRAFT_IN_PENNIES}: like a withdraw, interest can't push an
+ * overdraft over the limit, so the charge that reaches the limit is cut down to it and an overdraft at the limit
+ * is not charged at all.
+ * <p>
+ * Each shard's customers are split into contiguous CustomerID ranges that are accrued in parallel, by at most
+ * `max-db-concurrency` workers per shard so the batch can't take every pooled connection from interactive traffic.
+ * A worker walks its range in chunks in CustomerID order (keyset pagination on the Customers primary key), and
+ * each chunk is one transaction: a set-based UPDATE credits the chunk, an INSERT ... SELECT posts one interest
+ * journal per credited customer, and the range's InterestAccruals row records the last CustomerID done. A crashed
+ * run resumes from those rows, and a chunk can never be credited twice.
+ * <p>
+ * The overdraft accrual only plans and walks overdrawn customers, read off the OverdraftBalance index. Its chunks
+ * span a fixed number of overdrawn customers, and are charged the same set-based way: INSERT ... SELECT statements
+ * post the journals and log the charges in OverdraftLogs, and an UPDATE adds them to the overdraft balances.
+ * <p>
+ * The job writes balances straight to MySQL, so it is skipped while the {@link BalanceEngine} or the
+ * {@link MutationSequencer} is enabled. DBs created before this job need `ALTER TABLE Customers ADD PRIMARY KEY (CustomerID)`
+ * and `ALTER TABLE Customers ADD INDEX (OverdraftBalance)`.
+ */
+@Component
+public class InterestAccrualJob {
+  //// CONSTANT LITERALS ////
+  private static java.text.SimpleDateFormat SQL_DATE_FORMATTER = new java.text.SimpleDateFormat("yyyy-MM-dd");
+  private static java.text.SimpleDateFormat SQL_DATETIME_FORMATTER = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+  private static int DAYS_PER_YEAR = 365;
+  private static BigDecimal DAILY_INTEREST_RATE = BigDecimal.valueOf(Math.pow(MvcController.BALANCE_INTEREST_RATE, 1.0 / DAYS_PER_YEAR) - 1)
+                                                            .setScale(12, RoundingMode.HALF_UP);
+  private static BigDecimal DAILY_OVERDRAFT_INTEREST = BigDecimal.valueOf(MvcController.DAILY_OVERDRAFT_INTEREST_RATE).subtract(BigDecimal.ONE);
+  public static String BALANCE_ACCRUAL = "Balance";
+  public static String OVERDRAFT_ACCRUAL = "Overdraft";
+
+  private final ShardRouter shardRouter;
+  private final BalanceEngine balanceEngine;
+  private final MutationSequencer mutationSequencer;
+  private final int numPartitions;
+  private final int maxDBConcurrency;
+  private final int chunkSize;
+
+  @Autowired
+  public InterestAccrualJob(ShardRouter shardRouter, BalanceEngine balanceEngine, MutationSequencer mutationSequencer,
+                            @Value("${testudobank.interest.partitions:8}") int numPartitions,
+                            @Value("${testudobank.interest.max-db-concurrency:2}") int maxDBConcurrency,
+                            @Value("${testudobank.interest.chunk-size:5000}") int chunkSize) {
+    this.shardRouter = shardRouter;
+    this.balanceEngine = balanceEngine;
+    this.mutationSequencer = mutationSequencer;
+    this.numPartitions = numPartitions;
+    this.maxDBConcurrency = maxDBConcurrency;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Finishes any accrual left behind by a crash, then accrues today's balance and overdraft interest.
+   * <p>
+   * This method is scheduled to run at 2am by default.
+   */
+  @Scheduled(cron = "${testudobank.interest.cron:0 0 2 * * *}")
+  public void accrueInterest() {
+    if (!isBalanceWriter()) {
+      return;
+    }
+    resumeUnfinishedAccruals();
+    String today = SQL_DATE_FORMATTER.format(new java.util.Date());
+    for (int shardIndex = 0; shardIndex < shardRouter.getNumShards(); shardIndex++) {
+      JdbcTemplate shard = shardRouter.getShard(shardIndex);
+      TransactionTemplate transactionTemplate = shardRouter.getShardTransactionTemplate(shardIndex);
+      accrueInterest(shard, transactionTemplate, today, numPartitions, maxDBConcurrency, chunkSize);
+      accrueOverdraftInterest(shard, transactionTemplate, today, numPartitions, maxDBConcurrency, chunkSize);
+    }
+  }
+
+  // Picks up accruals that were interrupted by the app stopping, without waiting for the next night
+  @EventListener(ApplicationReadyEvent.class)
+  public void resumeUnfinishedAccruals() {
+    if (!isBalanceWriter()) {
+      return;
+    }
+    for (int shardIndex = 0; shardIndex < shardRouter.getNumShards(); shardIndex++) {
+      JdbcTemplate shard = shardRouter.getShard(shardIndex);
+      TransactionTemplate transactionTemplate = shardRouter.getShardTransactionTemplate(shardIndex);
+      for (String accrualDate : TestudoBankRepository.getUnfinishedInterestAccrualDates(shard, BALANCE_ACCRUAL)) {
+        accrueInterest(shard, transactionTemplate, accrualDate, numPartitions, maxDBConcurrency, chunkSize);
+      }
+      for (String accrualDate : TestudoBankRepository.getUnfinishedInterestAccrualDates(shard, OVERDRAFT_ACCRUAL)) {
+        accrueOverdraftInterest(shard, transactionTemplate, accrualDate, numPartitions, maxDBConcurrency, chunkSize);
+      }
+    }
+  }
+
+  private boolean isBalanceWriter() {
+    return !balanceEngine.isEnabled() && !mutationSequencer.isEnabled();
+  }
+
+  /**
+   * Accrues one day's balance interest on a single shard, given the shard's JdbcTemplate and a TransactionTemplate
+   * bound to the same DB. Running it again for the same day only finishes the ranges that are not done yet.
+   *
+   * @return number of customers credited by this call
+   */
+  public static int accrueInterest(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate, String accrualDate,
+                                   int numPartitions, int maxDBConcurrency, int chunkSize) {
+    return accrue(jdbcTemplate, transactionTemplate, BALANCE_ACCRUAL, accrualDate, numPartitions, maxDBConcurrency, chunkSize);
+  }
+
+  /**
+   * Charges one day's overdraft interest on a single shard, the same way as {@link #accrueInterest(JdbcTemplate, TransactionTemplate, String, int, int, int)}.
+   *
+   * @return number of overdraft balances charged by this call
+   */
+  public static int accrueOverdraftInterest(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate, String accrualDate,
+                                            int numPartitions, int maxDBConcurrency, int chunkSize) {
+    return accrue(jdbcTemplate, transactionTemplate, OVERDRAFT_ACCRUAL, accrualDate, numPartitions, maxDBConcurrency, chunkSize);
+  }
+
+  private static int accrue(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate, String accrualType, String accrualDate,
+                            int numPartitions, int maxDBConcurrency, int chunkSize) {
+    if (!TestudoBankRepository.doesInterestAccrualExist(jdbcTemplate, accrualType, accrualDate)) {
+      planRanges(jdbcTemplate, accrualType, accrualDate, numPartitions);
+    }
+
+    // every journal posted by this call shares one timestamp
+    String currentTime = SQL_DATETIME_FORMATTER.format(new java.util.Date());
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(numPartitions, maxDBConcurrency)));
+    try {
+      List<Future<Integer>> rangeResults = new ArrayList<>();
+      for (int rangeIndex : TestudoBankRepository.getUnfinishedInterestAccrualRanges(jdbcTemplate, accrualType, accrualDate)) {
+        rangeResults.add(executor.submit(() -> accrualType.equals(OVERDRAFT_ACCRUAL)
+            ? accrueOverdraftRange(jdbcTemplate, transactionTemplate, accrualDate, rangeIndex, chunkSize, currentTime)
+            : accrueRange(jdbcTemplate, transactionTemplate, accrualDate, rangeIndex, chunkSize, currentTime)));
+      }
+      int numCustomersCredited = 0;
+      for (Future<Integer> rangeResult : rangeResults) {
+        numCustomersCredited += rangeResult.get();
+      }
+      return numCustomersCredited;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while accruing interest", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  // Records numRanges CustomerID ranges of about the same size, over every customer or only the overdrawn ones
+  private static void planRanges(JdbcTemplate jdbcTemplate, String accrualType, String accrualDate, int numRanges) {
+    List<String> rangeBoundaries = TestudoBankRepository.getCustomerIDRangeBoundaries(jdbcTemplate, numRanges, accrualType.equals(OVERDRAFT_ACCRUAL));
+
+    List<Object[]> ranges = new ArrayList<>();
+    for (int i = 0; i < rangeBoundaries.size(); i++) {
+      String rangeEnd = i + 1 < rangeBoundaries.size() ? rangeBoundaries.get(i + 1) : null;
+      ranges.add(new Object[] {accrualType, accrualDate, i, rangeBoundaries.get(i), rangeEnd, rangeBoundaries.get(i)});
+    }
+    TestudoBankRepository.insertRowsToInterestAccrualsTable(jdbcTemplate, ranges);
+  }
+
+  // Accrues a range chunk by chunk until it is done, and returns the number of customers credited
+  private static int accrueRange(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate, String accrualDate, int rangeIndex, int chunkSize, String currentTime) {
+    String journalIDPrefix = String.format("%s-%s-", LedgerJournal.INTEREST_ACTION, accrualDate);
+    int numCustomersCredited = 0;
+    while (true) {
+      Integer numCustomersCreditedInChunk = transactionTemplate.execute(status -> {
+        // re-read the progress under the row lock, in case another app instance is accruing the same range
+        Map<String,Object> range = TestudoBankRepository.lockInterestAccrualRange(jdbcTemplate, BALANCE_ACCRUAL, accrualDate, rangeIndex);
+        if ((boolean) range.get("IsComplete")) {
+          return null;
+        }
+        String lastCustomerID = (String) range.get("LastCustomerID");
+        Optional<String> chunkEnd = TestudoBankRepository.getInterestAccrualChunkEnd(jdbcTemplate, lastCustomerID, (String) range.get("RangeEnd"), chunkSize);
+        if (!chunkEnd.isPresent()) {
+          TestudoBankRepository.setInterestAccrualProgress(jdbcTemplate, BALANCE_ACCRUAL, accrualDate, rangeIndex, lastCustomerID, true);
+          return null;
+        }
+
+        TestudoBankRepository.lockCustomers(jdbcTemplate, lastCustomerID, chunkEnd.get());
+        TestudoBankRepository.insertInterestLedgerEntries(jdbcTemplate, lastCustomerID, chunkEnd.get(), DAILY_INTEREST_RATE, MvcController.MAX_DISPUTES, journalIDPrefix, currentTime);
+        int numCredited = TestudoBankRepository.creditInterest(jdbcTemplate, lastCustomerID, chunkEnd.get(), DAILY_INTEREST_RATE, MvcController.MAX_DISPUTES);
+        TestudoBankRepository.setInterestAccrualProgress(jdbcTemplate, BALANCE_ACCRUAL, accrualDate, rangeIndex, chunkEnd.get(), false);
+        return numCredited;
+      });
+      if (numCustomersCreditedInChunk == null) {
+        return numCustomersCredited;
+      }
+      numCustomersCredited += numCustomersCreditedInChunk;
+    }
+  }
+
+  // Charges overdraft interest on a range chunk by chunk until it is done, and returns the number of overdraft balances charged
+  private static int accrueOverdraftRange(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate, String accrualDate, int rangeIndex, int chunkSize, String currentTime) {
+    String journalIDPrefix = String.format("%s-%s-", LedgerJournal.OVERDRAFT_INTEREST_ACTION, accrualDate);
+    int numCustomersCharged = 0;
+    while (true) {
+      Integer numCustomersChargedInChunk = transactionTemplate.execute(status -> {
+        Map<String,Object> range = TestudoBankRepository.lockInterestAccrualRange(jdbcTemplate, OVERDRAFT_ACCRUAL, accrualDate, rangeIndex);
+        if ((boolean) range.get("IsComplete")) {
+          return null;
+        }
+        String lastCustomerID = (String) range.get("LastCustomerID");
+        List<String> customerIDs = TestudoBankRepository.getOverdrawnCustomerIDs(jdbcTemplate, lastCustomerID, (String) range.get("RangeEnd"), chunkSize);
+        if (customerIDs.isEmpty()) {
+          TestudoBankRepository.setInterestAccrualProgress(jdbcTemplate, OVERDRAFT_ACCRUAL, accrualDate, rangeIndex, lastCustomerID, true);
+          return null;
+        }
+
+        // the statements re-check the balances under the row locks, since a deposit may have paid an overdraft off since the index scan
+        String chunkEnd = customerIDs.get(customerIDs.size() - 1);
+        TestudoBankRepository.lockCustomers(jdbcTemplate, lastCustomerID, chunkEnd);
+        TestudoBankRepository.insertOverdraftInterestLedgerEntries(jdbcTemplate, lastCustomerID, chunkEnd, DAILY_OVERDRAFT_INTEREST, MvcController.MAX_OVERDRAFT_IN_PENNIES,
+                                                                   journalIDPrefix, currentTime);
+        TestudoBankRepository.insertOverdraftInterestLogs(jdbcTemplate, lastCustomerID, chunkEnd, DAILY_OVERDRAFT_INTEREST, MvcController.MAX_OVERDRAFT_IN_PENNIES, currentTime);
+        int numCharged = TestudoBankRepository.chargeOverdraftInterest(jdbcTemplate, lastCustomerID, chunkEnd, DAILY_OVERDRAFT_INTEREST, MvcController.MAX_OVERDRAFT_IN_PENNIES);
+        TestudoBankRepository.setInterestAccrualProgress(jdbcTemplate, OVERDRAFT_ACCRUAL, accrualDate, rangeIndex, chunkEnd, false);
+        return numCharged;
+      });
+      if (numCustomersChargedInChunk == null) {
+        return numCustomersCharged;
+      }
+      numCustomersCharged += numCustomersChargedInChunk;
+    }
+  }
+}
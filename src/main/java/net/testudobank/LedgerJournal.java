@@ -0,0 +1,105 @@
+package net.testudobank;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import lombok.Getter;
+
+/**
+ * One balanced double-entry journal (a group of LedgerEntries rows) describing a single money movement.
+ * <p>
+ * Every posting credits or debits one account. Amounts are signed pennies from the bank's point of view:
+ * a positive amount increases what the bank owes the account holder. So a customer's main balance is the sum
+ * of their `Cash` postings, and their overdraft balance is the negated sum of their `Overdraft` postings.
+ * Money entering or leaving a customer's accounts is always posted against one of the bank's own accounts
+ * (held under {@link #BANK_ID}), so the postings of every journal sum to zero.
+ */
+public class LedgerJournal {
+  //// CONSTANT LITERALS ////
+  public static String BANK_ID = "TestudoBank";
+  public static String CASH_ACCOUNT = "Cash";
+  public static String OVERDRAFT_ACCOUNT = "Overdraft";
+  public static String EXTERNAL_ACCOUNT = "External";
+  public static String TRANSFER_CLEARING_ACCOUNT = "TransferClearing";
+  public static String CRYPTO_CLEARING_ACCOUNT = "CryptoClearing";
+  public static String OVERDRAFT_FEES_ACCOUNT = "OverdraftFees";
+  public static String INTEREST_EXPENSE_ACCOUNT = "InterestExpense";
+  public static List<String> ACCOUNTS = Collections.unmodifiableList(Arrays.asList(
+    CASH_ACCOUNT, OVERDRAFT_ACCOUNT, EXTERNAL_ACCOUNT, TRANSFER_CLEARING_ACCOUNT, CRYPTO_CLEARING_ACCOUNT, OVERDRAFT_FEES_ACCOUNT, INTEREST_EXPENSE_ACCOUNT
+  ));
+  public static String OPENING_BALANCE_ACTION = "OpeningBalance";
+  public static String OVERDRAFT_CORRECTION_ACTION = "OverdraftCorrection";
+  public static String INTEREST_ACTION = "Interest";
+  public static String OVERDRAFT_INTEREST_ACTION = "OverdraftInterest";
+
+  @Getter
+  private final String journalID;
+
+  @Getter
+  private final String action;
+
+  @Getter
+  private final String timestamp;
+
+  private final List<Posting> postings = new ArrayList<>();
+
+  public LedgerJournal(String action, String timestamp) {
+    this.journalID = UUID.randomUUID().toString();
+    this.action = action;
+    this.timestamp = timestamp;
+  }
+
+  public static class Posting {
+    public final String customerID;
+    public final String account;
+    public final long amountInPennies;
+
+    private Posting(String customerID, String account, long amountInPennies) {
+      this.customerID = customerID;
+      this.account = account;
+      this.amountInPennies = amountInPennies;
+    }
+  }
+
+  /**
+   * Adds a posting to this journal. Zero amounts are skipped.
+   */
+  public LedgerJournal post(String customerID, String account, long amountInPennies) {
+    if (amountInPennies != 0) {
+      postings.add(new Posting(customerID, account, amountInPennies));
+    }
+    return this;
+  }
+
+  public boolean isBalanced() {
+    long total = 0;
+    for (Posting posting : postings) {
+      total += posting.amountInPennies;
+    }
+    return total == 0;
+  }
+
+  /**
+   * Returns the bank account that the other side of a customer's deposit or withdraw is posted to,
+   * based on the TransactionHistory action the money movement is logged under.
+   */
+  public static String counterpartyAccountFor(String transactionHistoryAction) {
+    if (transactionHistoryAction.equals(MvcController.TRANSACTION_HISTORY_TRANSFER_SEND_ACTION)
+        || transactionHistoryAction.equals(MvcController.TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION)
+        || transactionHistoryAction.equals(MvcController.TRANSACTION_HISTORY_TRANSFER_REFUND_ACTION)) {
+      return TRANSFER_CLEARING_ACCOUNT;
+    } else if (transactionHistoryAction.equals(MvcController.TRANSACTION_HISTORY_CRYPTO_BUY_ACTION)
+        || transactionHistoryAction.equals(MvcController.TRANSACTION_HISTORY_CRYPTO_SELL_ACTION)) {
+      return CRYPTO_CLEARING_ACCOUNT;
+    } else {
+      return EXTERNAL_ACCOUNT;
+    }
+  }
+
+  public List<Posting> getPostings() {
+    return Collections.unmodifiableList(postings);
+  }
+}
@@ -0,0 +1,73 @@
+package net.testudobank;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import lombok.Getter;
+
+/**
+ * Rebuilds every account balance on a shard by replaying its LedgerEntries from the beginning, in EntryID order.
+ * <p>
+ * Entries are streamed from MySQL row by row, so replaying a shard only needs memory for the balances
+ * themselves, not for the journal. Used to audit or rebuild the Customers balance columns, which are kept
+ * as a projection of the ledger.
+ */
+public class LedgerReplayer {
+  private final Map<String,long[]> balancesByCustomerID = new HashMap<>();
+
+  @Getter
+  private long numEntriesReplayed = 0;
+
+  @Getter
+  private long lastEntryID = 0;
+
+  /**
+   * Replays every ledger entry on the shard.
+   */
+  public static LedgerReplayer replay(JdbcTemplate jdbcTemplate) {
+    LedgerReplayer replayer = new LedgerReplayer();
+    String getLedgerEntriesSql = "SELECT EntryID, CustomerID, Account, Amount FROM LedgerEntries ORDER BY EntryID";
+    TestudoBankRepository.streamingJdbcTemplate(jdbcTemplate).query(getLedgerEntriesSql, resultSet -> {
+      replayer.apply(resultSet.getLong(1), resultSet.getString(2), resultSet.getString(3), resultSet.getLong(4));
+    });
+    return replayer;
+  }
+
+  private void apply(long entryID, String customerID, String account, long amountInPennies) {
+    long[] balances = balancesByCustomerID.computeIfAbsent(customerID, id -> new long[LedgerJournal.ACCOUNTS.size()]);
+    balances[LedgerJournal.ACCOUNTS.indexOf(account)] += amountInPennies;
+    numEntriesReplayed++;
+    lastEntryID = entryID;
+  }
+
+  public long getBalanceInPennies(String customerID, String account) {
+    long[] balances = balancesByCustomerID.get(customerID);
+    return balances == null ? 0 : balances[LedgerJournal.ACCOUNTS.indexOf(account)];
+  }
+
+  public int getNumCustomers() {
+    return balancesByCustomerID.size();
+  }
+
+  /**
+   * Overwrites the Balance and OverdraftBalance columns of every replayed customer with the balances derived
+   * from the ledger. Customers with no ledger entries are left untouched.
+   *
+   * @return number of Customers rows updated
+   */
+  public int writeBalancesToCustomers(JdbcTemplate jdbcTemplate) {
+    String setCustomerBalancesSql = "UPDATE Customers SET Balance = ?, OverdraftBalance = ? WHERE CustomerID = ?";
+    int numCustomersUpdated = 0;
+    for (String customerID : balancesByCustomerID.keySet()) {
+      if (customerID.equals(LedgerJournal.BANK_ID)) {
+        continue;
+      }
+      long cashBalanceInPennies = getBalanceInPennies(customerID, LedgerJournal.CASH_ACCOUNT);
+      long overdraftBalanceInPennies = -getBalanceInPennies(customerID, LedgerJournal.OVERDRAFT_ACCOUNT);
+      numCustomersUpdated += jdbcTemplate.update(setCustomerBalancesSql, cashBalanceInPennies, overdraftBalanceInPennies, customerID);
+    }
+    return numCustomersUpdated;
+  }
+}
@@ -0,0 +1,87 @@
+package net.testudobank;
+
+import java.util.Map;
+import java.util.Optional;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Periodically folds new LedgerEntries into the per-account LedgerSnapshots of every shard, so that
+ * deriving a balance from the ledger only needs to sum the journal entries appended since the last run.
+ * <p>
+ * EntryIDs are handed out when a row is inserted, not when its transaction commits, so a run can't trust
+ * that every entry below the current max EntryID is visible yet. Each run therefore records the max EntryID
+ * it observed, and only folds entries up to the max observed by the previous run, which have had a full
+ * snapshot interval to commit.
+ */
+@Component
+public class LedgerSnapshotJob {
+  //// CONSTANT LITERALS ////
+  private static String SNAPSHOT_LOCK_NAME = "testudobank_ledger_snapshot";
+  private static java.text.SimpleDateFormat SQL_DATETIME_FORMATTER = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+  private ShardRouter shardRouter;
+
+  @Autowired
+  public LedgerSnapshotJob(ShardRouter shardRouter) {
+    this.shardRouter = shardRouter;
+  }
+
+  @Scheduled(fixedDelayString = "${testudobank.ledger.snapshot-interval-millis:300000}")
+  public void snapshotLedgers() {
+    for (int shardIndex = 0; shardIndex < shardRouter.getNumShards(); shardIndex++) {
+      snapshotLedger(shardRouter.getShard(shardIndex), shardRouter.getShardTransactionTemplate(shardIndex));
+    }
+  }
+
+  /**
+   * Runs one snapshot pass over a single shard, given the shard's JdbcTemplate and a TransactionTemplate
+   * bound to the same DB. The run is skipped if another app instance holds the snapshot lock.
+   *
+   * @return true if the snapshot run was recorded
+   */
+  public static boolean snapshotLedger(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate) {
+    // the named lock and all snapshot writes use the connection bound to this shard's transaction
+    return transactionTemplate.execute(status -> {
+      Integer isLockAcquired = jdbcTemplate.queryForObject("SELECT GET_LOCK(?, 0)", Integer.class, SNAPSHOT_LOCK_NAME);
+      if (isLockAcquired == null || isLockAcquired != 1) {
+        return false;
+      }
+      try {
+        Optional<Map<String,Object>> previousRun = TestudoBankRepository.getLatestLedgerSnapshotRun(jdbcTemplate);
+        long lastEntryID = previousRun.map(run -> ((Number) run.get("LastEntryID")).longValue()).orElse(0L);
+        long safeEntryID = previousRun.map(run -> ((Number) run.get("ObservedEntryID")).longValue()).orElse(0L);
+        long observedEntryID = TestudoBankRepository.getLatestLedgerEntryID(jdbcTemplate);
+
+        if (safeEntryID > lastEntryID) {
+          TestudoBankRepository.addLedgerEntriesToSnapshots(jdbcTemplate, lastEntryID, safeEntryID);
+        }
+        String currentTime = SQL_DATETIME_FORMATTER.format(new java.util.Date());
+        TestudoBankRepository.insertRowToLedgerSnapshotRunsTable(jdbcTemplate, safeEntryID, observedEntryID, currentTime);
+        return true;
+      } finally {
+        jdbcTemplate.queryForObject("SELECT RELEASE_LOCK(?)", Integer.class, SNAPSHOT_LOCK_NAME);
+      }
+    });
+  }
+
+  /**
+   * One-off migration for DBs created before the ledger existed: posts an opening balance journal for every
+   * customer on each shard who has no ledger entries yet, so that balances derived from the ledger match
+   * the Customers table. Run it once before the app starts writing ledger entries.
+   *
+   * @return number of ledger entries posted
+   */
+  public static int postOpeningBalances(ShardRouter shardRouter) {
+    String currentTime = SQL_DATETIME_FORMATTER.format(new java.util.Date());
+    int numLedgerEntriesPosted = 0;
+    for (JdbcTemplate shard : shardRouter.getShards()) {
+      numLedgerEntriesPosted += TestudoBankRepository.insertOpeningBalanceLedgerEntries(shard, currentTime);
+    }
+    return numLedgerEntriesPosted;
+  }
+}
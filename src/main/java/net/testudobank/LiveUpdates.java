@@ -0,0 +1,375 @@
+package net.testudobank;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import lombok.Getter;
+
+/**
+ * Pushes crypto price snapshots to every connected page, and balance changes to the pages of the customer they
+ * belong to, over the Server-Sent Events streams of {@link LiveUpdatesController}.
+ * <p>
+ * Price snapshots come from {@link #refreshPrices()}, which publishes whenever {@link CryptoPriceClient}'s cached
+ * prices change. Balance changes come from ledger events on the {@link OutboxEventBus}, so transfers received,
+ * interest and every other change show up too; the new balances are read once per batch, and only for customers
+ * that have a connection.
+ * <p>
+ * One fan-out thread takes published events and appends them to the queue of every connection they are for. A
+ * queue holds at most `testudobank.live.queue-capacity` events, and the oldest one is dropped to make room, so a
+ * slow client only ever misses stale prices and balances, never holds up other clients, and costs a fixed amount of
+ * memory. Queues are written to their clients by a small pool of writer threads, at most one at a time per
+ * connection, and an idle connection holds no thread at all. Every connection gets a heartbeat event after
+ * `testudobank.live.heartbeat-interval-millis` without one, so dead connections are noticed and closed.
+ */
+@Component
+public class LiveUpdates {
+  //// CONSTANT LITERALS ////
+  private static String CONSUMER_NAME = "live-updates";
+  public static String PRICES_EVENT = "prices";
+  public static String BALANCE_EVENT = "balance";
+  public static String HEARTBEAT_EVENT = "heartbeat";
+  private static int MAX_PENDING_EVENTS = 10000;
+
+  private final ShardRouter shardRouter;
+  private final BalanceEngine balanceEngine;
+  private final CryptoPriceClient cryptoPriceClient;
+  private final int queueCapacity;
+  private final long heartbeatIntervalMillis;
+
+  // published events the fan-out thread hasn't taken yet
+  private final BlockingQueue<Event> pendingEvents = new LinkedBlockingQueue<>(MAX_PENDING_EVENTS);
+  private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+  private final Map<String,Set<Connection>> connectionsByCustomer = new ConcurrentHashMap<>();
+  private final Thread fanOutThread;
+  private final ExecutorService writers;
+  // sent to new connections right away, so they don't wait for the next change
+  private volatile Event lastPrices;
+  private volatile boolean isClosed = false;
+
+  private final AtomicInteger numConnections = new AtomicInteger();
+  private final AtomicLong numEventsSent = new AtomicLong();
+  private final AtomicLong numEventsDropped = new AtomicLong();
+
+  @Autowired
+  public LiveUpdates(ShardRouter shardRouter, BalanceEngine balanceEngine, CryptoPriceClient cryptoPriceClient, OutboxEventBus eventBus,
+                     @Value("${testudobank.live.queue-capacity:16}") int queueCapacity,
+                     @Value("${testudobank.live.writer-threads:4}") int numWriterThreads,
+                     @Value("${testudobank.live.heartbeat-interval-millis:30000}") long heartbeatIntervalMillis) {
+    this.shardRouter = shardRouter;
+    this.balanceEngine = balanceEngine;
+    this.cryptoPriceClient = cryptoPriceClient;
+    this.queueCapacity = queueCapacity;
+    this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+    this.writers = Executors.newFixedThreadPool(numWriterThreads, runnable -> {
+      Thread writerThread = new Thread(runnable, "live-updates-writer");
+      writerThread.setDaemon(true);
+      return writerThread;
+    });
+    this.fanOutThread = new Thread(this::fanOut, "live-updates-fan-out");
+    fanOutThread.setDaemon(true);
+    fanOutThread.start();
+    if (eventBus != null) {
+      eventBus.subscribe(CONSUMER_NAME, this::applyEvents);
+    }
+  }
+
+  @PreDestroy
+  public void close() throws InterruptedException {
+    isClosed = true;
+    fanOutThread.interrupt();
+    fanOutThread.join();
+    writers.shutdownNow();
+    for (Connection connection : connections) {
+      connection.sink.close();
+    }
+  }
+
+  /**
+   * Where a connection's events are written to its client, like an SseEmitter. send may block until the client
+   * has room, and throws once the client is gone.
+   */
+  public interface EventSink {
+    void send(String eventName, String data) throws IOException;
+    void close();
+  }
+
+  /**
+   * Starts sending price snapshots to the sink, and the customer's balance changes if customerID isn't null. The
+   * caller must {@link #unsubscribe(Connection)} the connection once its client is gone.
+   */
+  public Connection subscribe(String customerID, EventSink sink) {
+    Connection connection = new Connection(customerID, sink);
+    connections.add(connection);
+    if (customerID != null) {
+      // added inside compute, so a concurrent unsubscribe can't drop the set this connection was just added to
+      connectionsByCustomer.compute(customerID, (id, customerConnections) -> {
+        Set<Connection> updatedConnections = customerConnections == null ? ConcurrentHashMap.newKeySet() : customerConnections;
+        updatedConnections.add(connection);
+        return updatedConnections;
+      });
+    }
+    numConnections.incrementAndGet();
+    Event prices = lastPrices;
+    if (prices != null) {
+      enqueue(connection, prices);
+    }
+    return connection;
+  }
+
+  public void unsubscribe(Connection connection) {
+    if (!connections.remove(connection)) {
+      return;
+    }
+    if (connection.customerID != null) {
+      connectionsByCustomer.computeIfPresent(connection.customerID, (id, customerConnections) -> {
+        customerConnections.remove(connection);
+        return customerConnections.isEmpty() ? null : customerConnections;
+      });
+    }
+    synchronized (connection) {
+      connection.isClosed = true;
+      connection.queue.clear();
+    }
+    numConnections.decrementAndGet();
+  }
+
+  /**
+   * Sends an event to every connection. Waits if the fan-out thread is MAX_PENDING_EVENTS events behind.
+   */
+  public void broadcast(String eventName, String data) throws InterruptedException {
+    pendingEvents.put(new Event(null, eventName, data));
+  }
+
+  /**
+   * Sends an event to every connection of the customer. Waits if the fan-out thread is MAX_PENDING_EVENTS events behind.
+   */
+  public void publish(String customerID, String eventName, String data) throws InterruptedException {
+    pendingEvents.put(new Event(customerID, eventName, data));
+  }
+
+  /**
+   * Broadcasts the current ETH and SOL prices if they changed since the last snapshot. The prices are the ones
+   * {@link CryptoPriceClient} caches, so this costs no request to Yahoo Finance unless the cache was just cleared.
+   */
+  @Scheduled(initialDelay = 0, fixedDelayString = "${testudobank.live.price-interval-millis:5000}")
+  public void refreshPrices() throws InterruptedException {
+    double ethPrice = cryptoPriceClient.getCurrentEthValue();
+    double solPrice = cryptoPriceClient.getCurrentSolValue();
+    // a negative price means Yahoo Finance couldn't be reached, so clients keep the last good snapshot
+    if (ethPrice < 0 || solPrice < 0) {
+      return;
+    }
+    String data = String.format("{\"ETH\":%s,\"SOL\":%s}", ethPrice, solPrice);
+    Event prices = lastPrices;
+    if (prices == null || !prices.data.equals(data)) {
+      lastPrices = new Event(null, PRICES_EVENT, data);
+      broadcast(PRICES_EVENT, data);
+    }
+  }
+
+  public Stats getStats() {
+    return new Stats(numConnections.get(), connectionsByCustomer.size(), numEventsSent.get(), numEventsDropped.get());
+  }
+
+  /**
+   * Totals since startup. numEventsDropped counts events pushed out of a full connection queue by newer ones.
+   */
+  public static class Stats {
+    @Getter
+    private final int numConnections;
+    @Getter
+    private final int numCustomersConnected;
+    @Getter
+    private final long numEventsSent;
+    @Getter
+    private final long numEventsDropped;
+
+    private Stats(int numConnections, int numCustomersConnected, long numEventsSent, long numEventsDropped) {
+      this.numConnections = numConnections;
+      this.numCustomersConnected = numCustomersConnected;
+      this.numEventsSent = numEventsSent;
+      this.numEventsDropped = numEventsDropped;
+    }
+  }
+
+  // One client's stream. Its queue and scheduling are guarded by the connection itself.
+  public static class Connection {
+    private final String customerID;
+    private final EventSink sink;
+    private final ArrayDeque<Event> queue = new ArrayDeque<>();
+    // true while a writer owns the connection
+    private boolean isScheduled = false;
+    private boolean isClosed = false;
+    private volatile long lastEnqueuedMillis = System.currentTimeMillis();
+
+    private Connection(String customerID, EventSink sink) {
+      this.customerID = customerID;
+      this.sink = sink;
+    }
+  }
+
+  private static class Event {
+    // null for events that go to every connection
+    private final String customerID;
+    private final String name;
+    private final String data;
+
+    private Event(String customerID, String name, String data) {
+      this.customerID = customerID;
+      this.name = name;
+      this.data = data;
+    }
+  }
+
+  //// INTERNALS ////
+
+  // Fan-out thread: routes each published event to the queues of its connections, and sends heartbeats in between
+  private void fanOut() {
+    long nextHeartbeatMillis = System.currentTimeMillis() + heartbeatIntervalMillis;
+    while (!isClosed) {
+      Event event;
+      try {
+        event = pendingEvents.poll(Math.max(1, nextHeartbeatMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (event != null && event.customerID == null) {
+        for (Connection connection : connections) {
+          enqueue(connection, event);
+        }
+      } else if (event != null) {
+        for (Connection connection : connectionsByCustomer.getOrDefault(event.customerID, Collections.emptySet())) {
+          enqueue(connection, event);
+        }
+      }
+
+      long nowMillis = System.currentTimeMillis();
+      if (nowMillis >= nextHeartbeatMillis) {
+        Event heartbeat = new Event(null, HEARTBEAT_EVENT, "");
+        for (Connection connection : connections) {
+          if (nowMillis - connection.lastEnqueuedMillis >= heartbeatIntervalMillis) {
+            enqueue(connection, heartbeat);
+          }
+        }
+        nextHeartbeatMillis = nowMillis + heartbeatIntervalMillis;
+      }
+    }
+  }
+
+  // Appends the event to the connection's queue, dropping its oldest event if the queue is full
+  private void enqueue(Connection connection, Event event) {
+    boolean needsWriter = false;
+    synchronized (connection) {
+      if (connection.isClosed) {
+        return;
+      }
+      if (connection.queue.size() == queueCapacity) {
+        connection.queue.pollFirst();
+        numEventsDropped.incrementAndGet();
+      }
+      connection.queue.addLast(event);
+      connection.lastEnqueuedMillis = System.currentTimeMillis();
+      if (!connection.isScheduled) {
+        connection.isScheduled = true;
+        needsWriter = true;
+      }
+    }
+    if (needsWriter) {
+      try {
+        writers.execute(() -> write(connection));
+      } catch (RejectedExecutionException e) {
+        // only once closed, and close() closes every connection
+      }
+    }
+  }
+
+  // Writer task: sends the connection's queued events until its queue is empty
+  private void write(Connection connection) {
+    while (true) {
+      Event event;
+      synchronized (connection) {
+        event = connection.queue.pollFirst();
+        if (event == null) {
+          connection.isScheduled = false;
+          return;
+        }
+      }
+      try {
+        connection.sink.send(event.name, event.data);
+        numEventsSent.incrementAndGet();
+      } catch (IOException | RuntimeException e) {
+        unsubscribe(connection);
+        connection.sink.close();
+        return;
+      }
+    }
+  }
+
+  // Outbox consumer: sends the new balances of every connected customer in the batch once
+  private void applyEvents(List<OutboxEvent> events) {
+    Set<String> customerIDs = new LinkedHashSet<>();
+    for (OutboxEvent event : events) {
+      if (connectionsByCustomer.containsKey(event.getCustomerID())) {
+        customerIDs.add(event.getCustomerID());
+      }
+    }
+    List<Event> balanceEvents = new ArrayList<>();
+    for (String customerID : customerIDs) {
+      Optional<String> balances = readBalances(customerID);
+      if (balances.isPresent()) {
+        balanceEvents.add(new Event(customerID, BALANCE_EVENT, balances.get()));
+      }
+    }
+    try {
+      for (Event balanceEvent : balanceEvents) {
+        pendingEvents.put(balanceEvent);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // The customer's cash and overdraft balances as JSON, or empty if they were moved to another shard or removed
+  private Optional<String> readBalances(String customerID) {
+    int balanceInPennies;
+    int overdraftBalanceInPennies;
+    if (balanceEngine.isEnabled()) {
+      // the balance engine holds the latest balances when it is enabled, since MySQL is only updated at checkpoints
+      balanceInPennies = balanceEngine.getCashBalanceInPennies(customerID);
+      overdraftBalanceInPennies = balanceEngine.getOverdraftBalanceInPennies(customerID);
+    } else {
+      JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(customerID);
+      Optional<Map<String,Object>> balances = TestudoBankRepository.getCustomerBalances(jdbcTemplate, customerID);
+      if (!balances.isPresent()) {
+        return Optional.empty();
+      }
+      balanceInPennies = (int) balances.get().get("Balance");
+      overdraftBalanceInPennies = (int) balances.get().get("OverdraftBalance");
+    }
+    return Optional.of(String.format("{\"balanceInPennies\":%d,\"overdraftBalanceInPennies\":%d}", balanceInPennies, overdraftBalanceInPennies));
+  }
+}
@@ -0,0 +1,81 @@
+package net.testudobank;
+
+import java.io.IOException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * Serves {@link LiveUpdates} as Server-Sent Events streams, so pages show new crypto prices and balances without
+ * being reloaded.
+ * <p>
+ * Every stream gets "prices" events. A stream opened with a customer's fragment token (the one their
+ * "account_info" page was rendered with, see {@link FragmentTokens}) also gets their "balance" events. The token is
+ * sent as a query parameter, since EventSource can't set headers, and is only checked when the stream is opened.
+ * Streams are closed after `testudobank.live.connection-timeout-millis`, and EventSource reopens them on its own.
+ */
+@Controller
+public class LiveUpdatesController {
+  private final LiveUpdates liveUpdates;
+  private final AccountViews accountViews;
+  private final long connectionTimeoutMillis;
+
+  @Autowired
+  public LiveUpdatesController(LiveUpdates liveUpdates, AccountViews accountViews,
+                               @Value("${testudobank.live.connection-timeout-millis:1800000}") long connectionTimeoutMillis) {
+    this.liveUpdates = liveUpdates;
+    this.accountViews = accountViews;
+    this.connectionTimeoutMillis = connectionTimeoutMillis;
+  }
+
+  /**
+   * Server-Sent Events GET request handler for price snapshots, and the customer's balance changes if a customer
+   * and their fragment token are given.
+   *
+   * @param customerID CustomerID whose balance changes to send, or omitted for prices only
+   * @param token fragment token of the customer's page
+   */
+  @GetMapping("/api/live")
+  @ResponseBody
+  public ResponseEntity<SseEmitter> stream(@RequestParam(value = "customerID", required = false) String customerID,
+                                           @RequestParam(value = "token", required = false) String token) {
+    if (customerID != null && !accountViews.getFragmentTokens().isValid(token, customerID)) {
+      return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+    }
+    SseEmitter emitter = new SseEmitter(connectionTimeoutMillis);
+    LiveUpdates.Connection connection = liveUpdates.subscribe(customerID, new LiveUpdates.EventSink() {
+      @Override
+      public void send(String eventName, String data) throws IOException {
+        emitter.send(SseEmitter.event().name(eventName).data(data));
+      }
+
+      @Override
+      public void close() {
+        emitter.complete();
+      }
+    });
+    emitter.onCompletion(() -> liveUpdates.unsubscribe(connection));
+    emitter.onTimeout(() -> {
+      liveUpdates.unsubscribe(connection);
+      emitter.complete();
+    });
+    emitter.onError(error -> liveUpdates.unsubscribe(connection));
+    return ResponseEntity.ok(emitter);
+  }
+
+  /**
+   * JSON GET request handler for how many streams are open, and how many events were sent and dropped.
+   */
+  @GetMapping("/api/live/stats")
+  @ResponseBody
+  public LiveUpdates.Stats getStats() {
+    return liveUpdates.getStats();
+  }
+}
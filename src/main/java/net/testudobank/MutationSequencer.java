@@ -0,0 +1,323 @@
+package net.testudobank;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Optional single-writer pipeline for balance changes. Enable it with `testudobank.sequencer.enabled=true`.
+ * <p>
+ * Customers are split by CustomerID hash into partitions, and each partition is owned by one processor thread.
+ * Request threads publish mutations into the partition's pre-allocated ring buffer and wait for the result.
+ * The processor drains whatever has been published, applies the business rules (frozen accounts, overdraft
+ * interest and the max overdraft limit) against account state only it touches, and writes the whole batch to
+ * MySQL in one transaction per shard before completing the waiting requests. Hot accounts never contend on
+ * row locks, and busier partitions naturally get bigger batches. The rows of a transfer saga leg are written in
+ * the same transaction as its mutation (see {@link BalanceMutation#writeTransferSagaRows}).
+ * <p>
+ * Each processor caches the balances and reversal count of the accounts it has seen, so it must be the only
+ * writer of those columns: only one app instance may run with the sequencer enabled, and it can't be combined
+ * with the {@link BalanceEngine}.
+ */
+@Component
+public class MutationSequencer {
+  //// CONSTANT LITERALS ////
+  private static int MAX_BATCH_SIZE = 512;
+  private static int IDLE_SPINS = 1000;
+  private static long IDLE_PARK_NANOS = 100000;
+
+  private enum MutationType { DEPOSIT, WITHDRAW, CORRECT_OVERDRAFT, RECORD_REVERSAL }
+
+  private final ShardRouter shardRouter;
+  private final boolean isEnabled;
+  private final Partition[] partitions;
+
+  @Autowired
+  public MutationSequencer(ShardRouter shardRouter,
+                           @Value("${testudobank.sequencer.enabled:false}") boolean isEnabled,
+                           @Value("${testudobank.sequencer.partitions:0}") int numPartitions,
+                           @Value("${testudobank.sequencer.ring-size:1024}") int ringSize) {
+    this.shardRouter = shardRouter;
+    this.isEnabled = isEnabled;
+    if (numPartitions <= 0) {
+      numPartitions = Runtime.getRuntime().availableProcessors();
+    }
+    if (Integer.bitCount(ringSize) != 1) {
+      throw new IllegalArgumentException("Sequencer ring size must be a power of 2");
+    }
+    this.partitions = new Partition[isEnabled ? numPartitions : 0];
+    for (int i = 0; i < partitions.length; i++) {
+      partitions[i] = new Partition(i, ringSize);
+    }
+  }
+
+  // Sequencer that is switched off, so every balance change goes straight to MySQL
+  public static MutationSequencer disabled(ShardRouter shardRouter) {
+    return new MutationSequencer(shardRouter, false, 1, 1);
+  }
+
+  public boolean isEnabled() {
+    return isEnabled;
+  }
+
+  @PostConstruct
+  public void start() {
+    for (Partition partition : partitions) {
+      partition.processorThread.start();
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    for (Partition partition : partitions) {
+      partition.isRunning = false;
+      LockSupport.unpark(partition.processorThread);
+    }
+  }
+
+  //// BALANCE OPERATIONS ////
+
+  /**
+   * Deposits with the same rules as {@link BalanceMutation#deposit}. Deposits into frozen accounts are rejected,
+   * except incoming and refunded transfers, since the money was already debited.
+   *
+   * @return the deposit, with the balances it left, or null if the account is frozen
+   */
+  public BalanceMutation deposit(String customerID, int depositAmtInPennies, String transactionHistoryAction) {
+    return deposit(customerID, depositAmtInPennies, transactionHistoryAction, null, null);
+  }
+
+  /**
+   * Deposits as a leg of a transfer saga, whose rows are written in the same batch transaction as the deposit.
+   *
+   * @return the deposit, with the balances it left, or null if the account is frozen
+   */
+  public BalanceMutation deposit(String customerID, int depositAmtInPennies, String transactionHistoryAction, String transferSagaID, String counterpartyID) {
+    return submit(MutationType.DEPOSIT, customerID, depositAmtInPennies, transactionHistoryAction, transferSagaID, counterpartyID);
+  }
+
+  /**
+   * Withdraws with the same rules as {@link BalanceMutation#withdraw}. Withdraws from frozen accounts are rejected.
+   *
+   * @return the withdraw, with the balances it left, or null if the account is frozen or it would exceed the max overdraft limit
+   */
+  public BalanceMutation withdraw(String customerID, int withdrawAmtInPennies, String transactionHistoryAction) {
+    return withdraw(customerID, withdrawAmtInPennies, transactionHistoryAction, null, null);
+  }
+
+  /**
+   * Withdraws as a leg of a transfer saga, whose rows are written in the same batch transaction as the withdraw.
+   *
+   * @return the withdraw, with the balances it left, or null if the account is frozen or it would exceed the max overdraft limit
+   */
+  public BalanceMutation withdraw(String customerID, int withdrawAmtInPennies, String transactionHistoryAction, String transferSagaID, String counterpartyID) {
+    return submit(MutationType.WITHDRAW, customerID, withdrawAmtInPennies, transactionHistoryAction, transferSagaID, counterpartyID);
+  }
+
+  public void correctOverdraftBalance(String customerID, int newOverdraftBalanceInPennies) {
+    submit(MutationType.CORRECT_OVERDRAFT, customerID, newOverdraftBalanceInPennies, LedgerJournal.OVERDRAFT_CORRECTION_ACTION, null, null);
+  }
+
+  // Adds one to the customer's NumFraudReversals
+  public void recordReversal(String customerID) {
+    submit(MutationType.RECORD_REVERSAL, customerID, 0, null, null, null);
+  }
+
+  // Completes with the mutation that was applied, or null for rejected mutations and reversals
+  private BalanceMutation submit(MutationType type, String customerID, int amountInPennies, String action, String transferSagaID, String counterpartyID) {
+    Partition partition = partitions[ShardRouter.shardIndexFor(customerID, partitions.length)];
+    try {
+      return partition.publish(type, customerID, amountInPennies, action, transferSagaID, counterpartyID).join();
+    } catch (CompletionException e) {
+      // rethrow the DB error that failed the batch on the request thread
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  //// PARTITIONS ////
+
+  // A ring buffer entry. Its fields are published to the processor by the volatile write of publishedSequence.
+  private static class Slot {
+    private volatile long publishedSequence = -1;
+    private MutationType type;
+    private String customerID;
+    private int amountInPennies;
+    private String action;
+    private String transferSagaID;
+    private String counterpartyID;
+    private CompletableFuture<BalanceMutation> completion;
+  }
+
+  // Balances and reversal count of one account, only ever touched by its partition's processor thread
+  private static class Account {
+    private int cashBalanceInPennies;
+    private int overdraftBalanceInPennies;
+    private int numFraudReversals;
+  }
+
+  private class Partition {
+    private final Slot[] ring;
+    private final int mask;
+    private final AtomicLong claimedSequence = new AtomicLong();
+    private volatile long consumedSequence = 0;
+    private volatile boolean isProcessorIdle = false;
+    private volatile boolean isRunning = true;
+    private final Thread processorThread;
+    private final Map<String,Account> accounts = new HashMap<>();
+
+    private Partition(int partitionIndex, int ringSize) {
+      ring = new Slot[ringSize];
+      for (int i = 0; i < ringSize; i++) {
+        ring[i] = new Slot();
+      }
+      mask = ringSize - 1;
+      processorThread = new Thread(this::process, "mutation-sequencer-" + partitionIndex);
+      processorThread.setDaemon(true);
+    }
+
+    private CompletableFuture<BalanceMutation> publish(MutationType type, String customerID, int amountInPennies, String action,
+                                                       String transferSagaID, String counterpartyID) {
+      long sequence = claimedSequence.getAndIncrement();
+      // wait for the processor to free the slot if the ring is full
+      while (sequence - consumedSequence >= ring.length) {
+        Thread.yield();
+      }
+      Slot slot = ring[(int) sequence & mask];
+      slot.type = type;
+      slot.customerID = customerID;
+      slot.amountInPennies = amountInPennies;
+      slot.action = action;
+      slot.transferSagaID = transferSagaID;
+      slot.counterpartyID = counterpartyID;
+      slot.completion = new CompletableFuture<>();
+      CompletableFuture<BalanceMutation> completion = slot.completion;
+      slot.publishedSequence = sequence;
+      if (isProcessorIdle) {
+        LockSupport.unpark(processorThread);
+      }
+      return completion;
+    }
+
+    private void process() {
+      long nextSequence = 0;
+      int numIdleSpins = 0;
+      while (isRunning) {
+        int batchSize = 0;
+        while (batchSize < MAX_BATCH_SIZE && ring[(int) (nextSequence + batchSize) & mask].publishedSequence == nextSequence + batchSize) {
+          batchSize++;
+        }
+        if (batchSize == 0) {
+          if (++numIdleSpins > IDLE_SPINS) {
+            isProcessorIdle = true;
+            // re-check after announcing idleness, so a publish racing with it is never missed for long
+            if (ring[(int) nextSequence & mask].publishedSequence != nextSequence) {
+              LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            isProcessorIdle = false;
+          }
+          continue;
+        }
+        numIdleSpins = 0;
+        processBatch(nextSequence, batchSize);
+        nextSequence += batchSize;
+        consumedSequence = nextSequence;
+      }
+    }
+
+    private void processBatch(long firstSequence, int batchSize) {
+      Map<Integer,List<BalanceMutation>> mutationsByShard = new HashMap<>();
+      Map<Integer,List<Object[]>> reversalsByShard = new HashMap<>();
+      Map<Integer,List<Slot>> slotsByShard = new HashMap<>();
+      Map<Slot,BalanceMutation> results = new HashMap<>();
+
+      for (int i = 0; i < batchSize; i++) {
+        Slot slot = ring[(int) (firstSequence + i) & mask];
+        int shardIndex = shardRouter.shardIndexFor(slot.customerID);
+        try {
+          Account account = accounts.get(slot.customerID);
+          if (account == null) {
+            account = loadAccount(slot.customerID);
+            accounts.put(slot.customerID, account);
+          }
+          boolean isFrozen = account.numFraudReversals >= MvcController.MAX_DISPUTES;
+          BalanceMutation mutation = null;
+          switch (slot.type) {
+            case DEPOSIT:
+              if (!isFrozen || slot.action.equals(MvcController.TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION)
+                  || slot.action.equals(MvcController.TRANSACTION_HISTORY_TRANSFER_REFUND_ACTION)) {
+                mutation = BalanceMutation.deposit(slot.customerID, account.cashBalanceInPennies, account.overdraftBalanceInPennies, slot.amountInPennies, slot.action);
+              }
+              break;
+            case WITHDRAW:
+              if (!isFrozen) {
+                mutation = BalanceMutation.withdraw(slot.customerID, account.cashBalanceInPennies, account.overdraftBalanceInPennies, slot.amountInPennies, slot.action);
+              }
+              break;
+            case CORRECT_OVERDRAFT:
+              mutation = BalanceMutation.correctOverdraftBalance(slot.customerID, account.cashBalanceInPennies, account.overdraftBalanceInPennies, slot.amountInPennies);
+              break;
+            case RECORD_REVERSAL:
+              account.numFraudReversals++;
+              reversalsByShard.computeIfAbsent(shardIndex, s -> new ArrayList<>()).add(new Object[] {account.numFraudReversals, slot.customerID});
+              break;
+          }
+          if (mutation != null) {
+            mutation = mutation.forTransferSaga(slot.transferSagaID, slot.counterpartyID);
+            account.cashBalanceInPennies = mutation.newCashBalanceInPennies;
+            account.overdraftBalanceInPennies = mutation.newOverdraftBalanceInPennies;
+            mutationsByShard.computeIfAbsent(shardIndex, s -> new ArrayList<>()).add(mutation);
+          }
+          results.put(slot, mutation);
+          slotsByShard.computeIfAbsent(shardIndex, s -> new ArrayList<>()).add(slot);
+        } catch (RuntimeException e) {
+          slot.completion.completeExceptionally(e);
+        }
+      }
+
+      for (Map.Entry<Integer,List<Slot>> shardSlots : slotsByShard.entrySet()) {
+        int shardIndex = shardSlots.getKey();
+        try {
+          JdbcTemplate jdbcTemplate = shardRouter.getShard(shardIndex);
+          shardRouter.getShardTransactionTemplate(shardIndex).executeWithoutResult(status -> {
+            BalanceMutation.writeAll(jdbcTemplate, shardRouter.getRecentActivityCache(), mutationsByShard.getOrDefault(shardIndex, new ArrayList<>()));
+            TestudoBankRepository.setCustomerNumFraudReversals(jdbcTemplate, reversalsByShard.getOrDefault(shardIndex, new ArrayList<>()));
+          });
+          for (Slot slot : shardSlots.getValue()) {
+            slot.completion.complete(results.get(slot));
+          }
+        } catch (RuntimeException e) {
+          // the cached state of these accounts includes the rolled back writes, so reload it from MySQL next time
+          for (Slot slot : shardSlots.getValue()) {
+            accounts.remove(slot.customerID);
+            slot.completion.completeExceptionally(e);
+          }
+        }
+      }
+    }
+
+    private Account loadAccount(String customerID) {
+      JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(customerID);
+      Account account = new Account();
+      account.cashBalanceInPennies = TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, customerID);
+      account.overdraftBalanceInPennies = TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, customerID);
+      account.numFraudReversals = TestudoBankRepository.getCustomerNumberOfReversals(jdbcTemplate, customerID);
+      return account;
+    }
+  }
+}
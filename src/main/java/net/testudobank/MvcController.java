@@ -1,14 +1,22 @@
 package net.testudobank;
 
 import org.springframework.stereotype.Controller;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.util.StringUtils;
 
+import java.sql.Timestamp;
 import java.util.Map;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.time.LocalDateTime;
@@ -17,44 +25,100 @@ import java.util.List;
 
 import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
 @Controller
 public class MvcController {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MvcController.class);
   
-  // A simplified JDBC client that is injected with the login credentials
-  // specified in /src/main/resources/application.properties
-  private JdbcTemplate jdbcTemplate;
+  // Hands out the simplified JDBC client for the MySQL shard that owns a given customer.
+  // Shard 0 uses the login credentials specified in /src/main/resources/application.properties
+  private ShardRouter shardRouter;
 
   // Client to get crypto price
   private CryptoPriceClient cryptoPriceClient;
 
+  // Keeps balances in memory when enabled. Otherwise, every balance change goes straight to MySQL
+  private BalanceEngine balanceEngine;
+
+  // Funnels each customer's balance changes through a single writer thread when enabled
+  private MutationSequencer mutationSequencer;
+
+  // Rejects deposits and withdraws that exceed the configured per-customer velocity limits
+  private VelocityEngine velocityEngine;
+
+  // Stores what the "account_info" page shows for each customer, so rendering it is a single lookup
+  private AccountViews accountViews;
+
+  // Stores the results of money-moving requests, so retries of the same form are not run twice
+  private IdempotencyKeys idempotencyKeys;
+
   // Formatter for converting Java Dates to SQL-compatible DATETIME Strings
   private static java.text.SimpleDateFormat SQL_DATETIME_FORMATTER = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
   //// CONSTANT LITERALS ////
   public final static double INTEREST_RATE = 1.02;
-  private final static int MAX_OVERDRAFT_IN_PENNIES = 100000;
+  public final static int MAX_OVERDRAFT_IN_PENNIES = 100000;
   public final static int MAX_DISPUTES = 2;
-  private final static int MAX_NUM_TRANSACTIONS_DISPLAYED = 3;
-  private final static int MAX_NUM_TRANSFERS_DISPLAYED = 10;
-  private final static int MAX_REVERSABLE_TRANSACTIONS_AGO = 3;
-  private final static String HTML_LINE_BREAK = "<br/>";
+  final static int MAX_NUM_TRANSACTIONS_DISPLAYED = 3;
+  final static int MAX_NUM_TRANSFERS_DISPLAYED = 10;
+  final static int MAX_REVERSABLE_TRANSACTIONS_AGO = 3;
+  final static String HTML_LINE_BREAK = "<br/>";
   public static String TRANSACTION_HISTORY_DEPOSIT_ACTION = "Deposit";
   public static String TRANSACTION_HISTORY_WITHDRAW_ACTION = "Withdraw";
   public static String TRANSACTION_HISTORY_TRANSFER_SEND_ACTION = "TransferSend";
   public static String TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION = "TransferReceive";
+  public static String TRANSACTION_HISTORY_TRANSFER_REFUND_ACTION = "TransferRefund";
   public static String TRANSACTION_HISTORY_CRYPTO_SELL_ACTION = "CryptoSell";
   public static String TRANSACTION_HISTORY_CRYPTO_BUY_ACTION = "CryptoBuy";
   public static String CRYPTO_HISTORY_SELL_ACTION = "Sell";
   public static String CRYPTO_HISTORY_BUY_ACTION = "Buy";
   public static Set<String> SUPPORTED_CRYPTOCURRENCIES = new HashSet<>(Arrays.asList("ETH", "SOL"));
-  private static double BALANCE_INTEREST_RATE = 1.015;
+  public final static double BALANCE_INTEREST_RATE = 1.015;
+  public final static double DAILY_OVERDRAFT_INTEREST_RATE = 1.0005;
+  public static String TRANSFER_SAGA_DEBITED_STATUS = "Debited";
+  public static String TRANSFER_SAGA_COMPLETED_STATUS = "Completed";
+  public static String TRANSFER_SAGA_COMPENSATED_STATUS = "Compensated";
+  private final static long TRANSFER_SAGA_RECOVERY_DELAY_IN_MILLIS = 5 * 60 * 1000;
+  private final static long IDEMPOTENCY_KEY_TTL_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+  // Keeps every customer on a single DB
+  public MvcController(JdbcTemplate jdbcTemplate, CryptoPriceClient cryptoPriceClient) {
+    this(new ShardRouter(jdbcTemplate), cryptoPriceClient);
+  }
+
+  public MvcController(ShardRouter shardRouter, CryptoPriceClient cryptoPriceClient) {
+    this(shardRouter, cryptoPriceClient, BalanceEngine.disabled(shardRouter), MutationSequencer.disabled(shardRouter));
+  }
 
-  public MvcController(@Autowired JdbcTemplate jdbcTemplate, @Autowired CryptoPriceClient cryptoPriceClient) {
-    this.jdbcTemplate = jdbcTemplate;
+  public MvcController(ShardRouter shardRouter, CryptoPriceClient cryptoPriceClient, BalanceEngine balanceEngine, MutationSequencer mutationSequencer) {
+    this(shardRouter, cryptoPriceClient, balanceEngine, mutationSequencer, VelocityEngine.disabled());
+  }
+
+  public MvcController(ShardRouter shardRouter, CryptoPriceClient cryptoPriceClient, BalanceEngine balanceEngine, MutationSequencer mutationSequencer,
+                       VelocityEngine velocityEngine) {
+    this(shardRouter, cryptoPriceClient, balanceEngine, mutationSequencer, velocityEngine, AccountViews.disabled(shardRouter, balanceEngine));
+  }
+
+  @Autowired
+  public MvcController(ShardRouter shardRouter, CryptoPriceClient cryptoPriceClient, BalanceEngine balanceEngine, MutationSequencer mutationSequencer,
+                       VelocityEngine velocityEngine, AccountViews accountViews) {
+    if (balanceEngine.isEnabled() && mutationSequencer.isEnabled()) {
+      throw new IllegalStateException("The balance engine and the mutation sequencer can't both be enabled");
+    }
+    this.shardRouter = shardRouter;
     this.cryptoPriceClient = cryptoPriceClient;
+    this.balanceEngine = balanceEngine;
+    this.mutationSequencer = mutationSequencer;
+    this.velocityEngine = velocityEngine;
+    this.accountViews = accountViews;
+    this.idempotencyKeys = new IdempotencyKeys(shardRouter);
   }
 
   //// HTML GET HANDLERS ////
@@ -97,6 +161,7 @@ public class MvcController {
   @GetMapping("/deposit")
 	public String showDepositForm(Model model) {
     User user = new User();
+    user.setIdempotencyKey(UUID.randomUUID().toString());
 		model.addAttribute("user", user);
 		return "deposit_form";
 	}
@@ -112,6 +177,7 @@ public class MvcController {
   @GetMapping("/withdraw")
 	public String showWithdrawForm(Model model) {
     User user = new User();
+    user.setIdempotencyKey(UUID.randomUUID().toString());
 		model.addAttribute("user", user);
 		return "withdraw_form";
 	}
@@ -142,6 +208,7 @@ public class MvcController {
   @GetMapping("/transfer")
 	public String showTransferForm(Model model) {
     User user = new User();
+    user.setIdempotencyKey(UUID.randomUUID().toString());
 		model.addAttribute("user", user);
 		return "transfer_form";
 	}
@@ -157,6 +224,7 @@ public class MvcController {
   @GetMapping("/buycrypto")
 	public String showBuyCryptoForm(Model model) {
     User user = new User();
+    user.setIdempotencyKey(UUID.randomUUID().toString());
     user.setEthPrice(cryptoPriceClient.getCurrentEthValue());
     user.setSolPrice(cryptoPriceClient.getCurrentSolValue());
 		model.addAttribute("user", user);
@@ -174,6 +242,7 @@ public class MvcController {
   @GetMapping("/sellcrypto")
 	public String showSellCryptoForm(Model model) {
     User user = new User();
+    user.setIdempotencyKey(UUID.randomUUID().toString());
     user.setEthPrice(cryptoPriceClient.getCurrentEthValue());
     user.setSolPrice(cryptoPriceClient.getCurrentSolValue());
 		model.addAttribute("user", user);
@@ -183,74 +252,322 @@ public class MvcController {
   //// HELPER METHODS ////
 
   /**
-   * Helper method that queries the MySQL DB for the customer account info (First Name, Last Name, and Balance)
-   * and adds these values to the `user` Model Attribute so that they can be displayed in the "account_info" page.
+   * Helper method that rebuilds the customer's account view after their account changed, and adds its values
+   * to the `user` Model Attribute so that they can be displayed in the "account_info" page.
    * 
    * @param user
    */
   private void updateAccountInfo(User user) {
-    List<Map<String,Object>> overdraftLogs = TestudoBankRepository.getOverdraftLogs(jdbcTemplate, user.getUsername());
-    String logs = HTML_LINE_BREAK;
-    for(Map<String, Object> overdraftLog : overdraftLogs){
-      logs += overdraftLog + HTML_LINE_BREAK;
-    }
-
-    List<Map<String,Object>> transactionLogs = TestudoBankRepository.getRecentTransactions(jdbcTemplate, user.getUsername(), MAX_NUM_TRANSACTIONS_DISPLAYED);
-    String transactionHistoryOutput = HTML_LINE_BREAK;
-    for(Map<String, Object> transactionLog : transactionLogs){
-      transactionHistoryOutput += transactionLog + HTML_LINE_BREAK;
-    }
-
-    List<Map<String,Object>> transferLogs = TestudoBankRepository.getTransferLogs(jdbcTemplate, user.getUsername(), MAX_NUM_TRANSFERS_DISPLAYED);
-    String transferHistoryOutput = HTML_LINE_BREAK;
-    for(Map<String, Object> transferLog : transferLogs){
-      transferHistoryOutput += transferLog + HTML_LINE_BREAK;
+    // API requests return their own post-state, so the stored view is only dropped and rebuilt on the next page load
+    if (user.isApiRequest()) {
+      accountViews.invalidate(user.getUsername());
+      return;
     }
+    setAccountInfo(user, accountViews.refresh(user.getUsername()));
+  }
 
-    List<Map<String, Object>> cryptoLogs = TestudoBankRepository.getCryptoLogs(jdbcTemplate, user.getUsername());
-    StringBuilder cryptoHistoryOutput = new StringBuilder(HTML_LINE_BREAK);
-    for (Map<String, Object> cryptoLog : cryptoLogs) {
-      cryptoHistoryOutput.append(cryptoLog).append(HTML_LINE_BREAK);
+  /**
+   * Helper method that updates the customer's account view with the balances their last deposit or withdraw
+   * computed (the `user`'s balance mutation) instead of re-reading the whole account, and adds its values
+   * to the `user` Model Attribute so that they can be displayed in the "account_info" page.
+   * 
+   * @param user
+   * @param changedCryptoName cryptocurrency whose holdings the request changed, or null
+   */
+  private void updateAccountInfo(User user, String changedCryptoName) {
+    if (user.isApiRequest()) {
+      accountViews.invalidate(user.getUsername());
+      return;
     }
+    setAccountInfo(user, accountViews.update(user.getUsername(), user.getBalanceMutation(), changedCryptoName));
+  }
 
-    String getUserNameAndBalanceAndOverDraftBalanceSql = String.format("SELECT FirstName, LastName, Balance, OverdraftBalance, NumDepositsForInterest FROM Customers WHERE CustomerID='%s';", user.getUsername());
-    List<Map<String,Object>> queryResults = jdbcTemplate.queryForList(getUserNameAndBalanceAndOverDraftBalanceSql);
-    Map<String,Object> userData = queryResults.get(0);
+  /**
+   * Helper method that looks up the customer's stored account view (First Name, Last Name, Balance, logs, ...)
+   * and adds its values to the `user` Model Attribute so that they can be displayed in the "account_info" page.
+   * 
+   * @param user
+   */
+  private void showAccountInfo(User user) {
+    setAccountInfo(user, accountViews.get(user.getUsername()));
+  }
 
+  private void setAccountInfo(User user, AccountView accountView) {
     // calculate total Crypto holdings balance by summing balance of each supported cryptocurrency
     double cryptoBalanceInDollars = 0;
     for (String cryptoName : MvcController.SUPPORTED_CRYPTOCURRENCIES) {
-      cryptoBalanceInDollars += TestudoBankRepository.getCustomerCryptoBalance(jdbcTemplate, user.getUsername(), cryptoName).orElse(0.0) * cryptoPriceClient.getCurrentCryptoValue(cryptoName);
+      cryptoBalanceInDollars += accountView.getCryptoBalance(cryptoName) * cryptoPriceClient.getCurrentCryptoValue(cryptoName);
     }
 
-    user.setFirstName((String)userData.get("FirstName"));
-    user.setLastName((String)userData.get("LastName"));
-    user.setBalance((int)userData.get("Balance")/100.0);
-    double overDraftBalance = (int)userData.get("OverdraftBalance");
+    user.setFirstName(accountView.getFirstName());
+    user.setLastName(accountView.getLastName());
+    user.setBalance(accountView.getBalanceInPennies()/100.0);
+    double overDraftBalance = accountView.getOverdraftBalanceInPennies();
     user.setOverDraftBalance(overDraftBalance/100);
     user.setCryptoBalanceUSD(cryptoBalanceInDollars);
-    user.setLogs(logs);
-    user.setTransactionHist(transactionHistoryOutput);
-    user.setTransferHist(transferHistoryOutput);
-    user.setCryptoHist(cryptoHistoryOutput.toString());
-    user.setEthBalance(TestudoBankRepository.getCustomerCryptoBalance(jdbcTemplate, user.getUsername(), "ETH").orElse(0.0));
-    user.setSolBalance(TestudoBankRepository.getCustomerCryptoBalance(jdbcTemplate, user.getUsername(), "SOL").orElse(0.0));
+    user.setLogs(accountView.getOverdraftLogs());
+    user.setTransactionHist(accountView.getTransactionHist());
+    user.setTransferHist(accountView.getTransferHist());
+    user.setCryptoHist(accountView.getCryptoHist());
+    user.setEthBalance(accountView.getEthBalance());
+    user.setSolBalance(accountView.getSolBalance());
     user.setEthPrice(cryptoPriceClient.getCurrentEthValue());
     user.setSolPrice(cryptoPriceClient.getCurrentSolValue());
     user.setNumDepositsForInterest(user.getNumDepositsForInterest());
+    user.setFragmentToken(accountViews.getFragmentTokens().issue(user.getUsername()));
   }
 
   // Converts dollar amounts in frontend to penny representation in backend MySQL DB
-  private static int convertDollarsToPennies(double dollarAmount) {
+  static int convertDollarsToPennies(double dollarAmount) {
     return (int) (dollarAmount * 100);
   }
 
+  // Dollar amount that convertDollarsToPennies turns back into exactly pennyAmount.
+  // pennyAmount / 100.0 alone can land just below it (0.29 * 100 is 28.999...), which the truncation would lose a penny to.
+  static double convertPenniesToDollars(int pennyAmount) {
+    return pennyAmount <= 0 ? pennyAmount / 100.0 : Math.nextUp(pennyAmount / 100.0);
+  }
+
   // Converts LocalDateTime to Date variable
   private static Date convertLocalDateTimeToDate(LocalDateTime ldt){
     Date dateTime = Date.from(ldt.atZone(ZoneId.systemDefault()).toInstant());
     return dateTime;
   }
 
+  /**
+   * Helper method that moves a deposit amount into the customer's account and logs it in the
+   * TransactionHistory table under the given action.
+   * 
+   * If the customer is in overdraft, the deposit amount first pays off the overdraft balance,
+   * and any excess deposit amount is added to the main balance.
+   * 
+   * @param jdbcTemplate client for the shard that owns the customer
+   * @param recentActivityCache cache of the router that jdbcTemplate belongs to
+   * @param userID
+   * @param depositAmtInPennies
+   * @param transactionHistoryAction
+   * @param currentTime timestamp shared by all logs created by this deposit
+   * @return the deposit, with the balances it left
+   */
+  private static BalanceMutation applyDeposit(JdbcTemplate jdbcTemplate, RecentActivityCache recentActivityCache, String userID, int depositAmtInPennies, String transactionHistoryAction, String currentTime) {
+    LedgerJournal journal = new LedgerJournal(transactionHistoryAction, currentTime);
+    Map<String,Object> userBalances = TestudoBankRepository.lockCustomerBalances(jdbcTemplate, userID);
+    int userBalanceInPennies = (int) userBalances.get("Balance");
+    int userOverdraftBalanceInPennies = (int) userBalances.get("OverdraftBalance");
+    if (userOverdraftBalanceInPennies > 0) { // deposit will pay off overdraft first
+      // update overdraft balance in Customers table, and log the repayment in OverdraftLogs table.
+      int newOverdraftBalanceInPennies = Math.max(userOverdraftBalanceInPennies - depositAmtInPennies, 0);
+      TestudoBankRepository.setCustomerOverdraftBalance(jdbcTemplate, userID, newOverdraftBalanceInPennies);
+      TestudoBankRepository.insertRowToOverdraftLogsTable(jdbcTemplate, userID, currentTime, depositAmtInPennies, userOverdraftBalanceInPennies, newOverdraftBalanceInPennies);
+      journal.post(userID, LedgerJournal.OVERDRAFT_ACCOUNT, userOverdraftBalanceInPennies - newOverdraftBalanceInPennies);
+      
+      // add any excess deposit amount to main balance in Customers table
+      if (depositAmtInPennies > userOverdraftBalanceInPennies) {
+        int mainBalanceIncreaseAmtInPennies = depositAmtInPennies - userOverdraftBalanceInPennies;
+        TestudoBankRepository.increaseCustomerCashBalance(jdbcTemplate, userID, mainBalanceIncreaseAmtInPennies);
+        journal.post(userID, LedgerJournal.CASH_ACCOUNT, mainBalanceIncreaseAmtInPennies);
+      }
+
+    } else { // simple deposit case
+      TestudoBankRepository.increaseCustomerCashBalance(jdbcTemplate, userID, depositAmtInPennies);
+      journal.post(userID, LedgerJournal.CASH_ACCOUNT, depositAmtInPennies);
+    }
+
+    // the deposited money comes out of the bank account that funded it (outside world, transfer sender, or crypto sale)
+    journal.post(LedgerJournal.BANK_ID, LedgerJournal.counterpartyAccountFor(transactionHistoryAction), -depositAmtInPennies);
+    TestudoBankRepository.insertLedgerJournal(jdbcTemplate, journal);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, recentActivityCache, userID, currentTime, transactionHistoryAction, depositAmtInPennies);
+    return BalanceMutation.deposit(userID, userBalanceInPennies, userOverdraftBalanceInPennies, depositAmtInPennies, transactionHistoryAction)
+                          .loggedAt(Timestamp.valueOf(currentTime).getTime());
+  }
+
+  /**
+   * Helper method that takes a withdraw amount out of the customer's account and logs it in the
+   * TransactionHistory table under the given action.
+   * 
+   * If the withdraw amount exceeds the customer's main balance, the main balance is set to 0 and the
+   * excess withdraw amount with interest applied is added to the overdraft balance. The withdraw is
+   * aborted if that would push the overdraft balance over the max overdraft limit.
+   * 
+   * @param jdbcTemplate client for the shard that owns the customer
+   * @param recentActivityCache cache of the router that jdbcTemplate belongs to
+   * @param userID
+   * @param withdrawAmtInPennies
+   * @param transactionHistoryAction
+   * @param currentTime timestamp shared by all logs created by this withdraw
+   * @return the withdraw, with the balances it left, or null if it would exceed the max overdraft limit
+   */
+  private static BalanceMutation applyWithdraw(JdbcTemplate jdbcTemplate, RecentActivityCache recentActivityCache, String userID, int withdrawAmtInPennies, String transactionHistoryAction, String currentTime) {
+    LedgerJournal journal = new LedgerJournal(transactionHistoryAction, currentTime);
+    Map<String,Object> userBalances = TestudoBankRepository.lockCustomerBalances(jdbcTemplate, userID);
+    int userBalanceInPennies = (int) userBalances.get("Balance");
+    int userOverdraftBalanceInPennies = (int) userBalances.get("OverdraftBalance");
+    if (withdrawAmtInPennies > userBalanceInPennies) { // if withdraw amount exceeds main balance, withdraw into overdraft with interest fee
+      int excessWithdrawAmtInPennies = withdrawAmtInPennies - userBalanceInPennies;
+      int newOverdraftIncreaseAmtAfterInterestInPennies = (int)(excessWithdrawAmtInPennies * INTEREST_RATE);
+      int newOverdraftBalanceInPennies = userOverdraftBalanceInPennies + newOverdraftIncreaseAmtAfterInterestInPennies;
+
+      // abort withdraw transaction if new overdraft balance exceeds max overdraft limit
+      // IMPORTANT: Compare new overdraft balance to max overdraft limit AFTER applying the interest rate!
+      if (newOverdraftBalanceInPennies > MAX_OVERDRAFT_IN_PENNIES) {
+        return null;
+      }
+
+      // this is a valid withdraw into overdraft, so we can set Balance column to 0.
+      // OK to do this even if we were already in overdraft since main balance was already 0 anyways
+      TestudoBankRepository.setCustomerCashBalance(jdbcTemplate, userID, 0);
+
+      // increase overdraft balance by the withdraw amount after interest
+      TestudoBankRepository.setCustomerOverdraftBalance(jdbcTemplate, userID, newOverdraftBalanceInPennies);
+
+      // the interest charged on top of the excess withdraw amount is the bank's overdraft fee income
+      journal.post(userID, LedgerJournal.CASH_ACCOUNT, -userBalanceInPennies)
+             .post(userID, LedgerJournal.OVERDRAFT_ACCOUNT, -newOverdraftIncreaseAmtAfterInterestInPennies)
+             .post(LedgerJournal.BANK_ID, LedgerJournal.OVERDRAFT_FEES_ACCOUNT, newOverdraftIncreaseAmtAfterInterestInPennies - excessWithdrawAmtInPennies);
+
+    } else { // simple, non-overdraft withdraw case
+      TestudoBankRepository.decreaseCustomerCashBalance(jdbcTemplate, userID, withdrawAmtInPennies);
+      journal.post(userID, LedgerJournal.CASH_ACCOUNT, -withdrawAmtInPennies);
+    }
+
+    // the withdrawn money goes into the bank account that receives it (outside world, transfer recipient, or crypto purchase)
+    journal.post(LedgerJournal.BANK_ID, LedgerJournal.counterpartyAccountFor(transactionHistoryAction), withdrawAmtInPennies);
+    TestudoBankRepository.insertLedgerJournal(jdbcTemplate, journal);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, recentActivityCache, userID, currentTime, transactionHistoryAction, withdrawAmtInPennies);
+    return BalanceMutation.withdraw(userID, userBalanceInPennies, userOverdraftBalanceInPennies, withdrawAmtInPennies, transactionHistoryAction)
+                          .loggedAt(Timestamp.valueOf(currentTime).getTime());
+  }
+
+  // Runs a withdraw or deposit that the velocity engine counted at recordedAtMillis. The count is taken back if the leg
+  // is rejected or fails, or later if the transaction it runs in rolls back, so money that never moved doesn't count
+  // against the customer's limits.
+  private BalanceMutation runVelocityCountedLeg(String userID, boolean isMoneyIn, int amountInPennies, long recordedAtMillis, Supplier<BalanceMutation> leg) {
+    BalanceMutation mutation;
+    try {
+      mutation = leg.get();
+    } catch (RuntimeException e) {
+      velocityEngine.release(userID, isMoneyIn, amountInPennies, recordedAtMillis);
+      throw e;
+    }
+    if (mutation == null) {
+      velocityEngine.release(userID, isMoneyIn, amountInPennies, recordedAtMillis);
+    } else if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(int status) {
+          if (status != STATUS_COMMITTED) {
+            velocityEngine.release(userID, isMoneyIn, amountInPennies, recordedAtMillis);
+          }
+        }
+      });
+    }
+    return mutation;
+  }
+
+  // Deposits through the in-memory balance engine or the mutation sequencer if one is enabled. Otherwise, balance updates, ledger journal, and logs are committed together in MySQL.
+  // Returns the deposit with the balances it left, or null if the sequencer found the account frozen.
+  private BalanceMutation deposit(String userID, int depositAmtInPennies, String transactionHistoryAction, String currentTime) {
+    return deposit(userID, depositAmtInPennies, transactionHistoryAction, currentTime, null, null);
+  }
+
+  // Same, as a leg of a transfer saga if transferSagaID is set: the saga's rows for the leg are committed together with the deposit.
+  private BalanceMutation deposit(String userID, int depositAmtInPennies, String transactionHistoryAction, String currentTime, String transferSagaID, String counterpartyID) {
+    if (balanceEngine.isEnabled()) {
+      return balanceEngine.deposit(userID, depositAmtInPennies, transactionHistoryAction, transferSagaID, counterpartyID);
+    }
+    if (mutationSequencer.isEnabled()) {
+      return mutationSequencer.deposit(userID, depositAmtInPennies, transactionHistoryAction, transferSagaID, counterpartyID);
+    }
+    return shardRouter.transactionTemplateFor(userID).execute(status -> {
+      JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(userID);
+      BalanceMutation deposit = applyDeposit(jdbcTemplate, shardRouter.getRecentActivityCache(), userID, depositAmtInPennies, transactionHistoryAction, currentTime).forTransferSaga(transferSagaID, counterpartyID);
+      BalanceMutation.writeTransferSagaRows(jdbcTemplate, shardRouter.getRecentActivityCache(), Collections.singletonList(deposit));
+      return deposit;
+    });
+  }
+
+  // Withdraws through the in-memory balance engine or the mutation sequencer if one is enabled. Otherwise, balance updates, ledger journal, and logs are committed together in MySQL.
+  // Returns the withdraw with the balances it left, or null if it was rejected.
+  private BalanceMutation withdraw(String userID, int withdrawAmtInPennies, String transactionHistoryAction, String currentTime) {
+    return withdraw(userID, withdrawAmtInPennies, transactionHistoryAction, currentTime, null, null);
+  }
+
+  // Same, as a leg of a transfer saga if transferSagaID is set: the saga's rows for the leg are committed together with the withdraw.
+  private BalanceMutation withdraw(String userID, int withdrawAmtInPennies, String transactionHistoryAction, String currentTime, String transferSagaID, String counterpartyID) {
+    if (balanceEngine.isEnabled()) {
+      return balanceEngine.withdraw(userID, withdrawAmtInPennies, transactionHistoryAction, transferSagaID, counterpartyID);
+    }
+    if (mutationSequencer.isEnabled()) {
+      return mutationSequencer.withdraw(userID, withdrawAmtInPennies, transactionHistoryAction, transferSagaID, counterpartyID);
+    }
+    return shardRouter.transactionTemplateFor(userID).execute(status -> {
+      JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(userID);
+      BalanceMutation withdraw = applyWithdraw(jdbcTemplate, shardRouter.getRecentActivityCache(), userID, withdrawAmtInPennies, transactionHistoryAction, currentTime);
+      if (withdraw == null) {
+        return null;
+      }
+      withdraw = withdraw.forTransferSaga(transferSagaID, counterpartyID);
+      BalanceMutation.writeTransferSagaRows(jdbcTemplate, shardRouter.getRecentActivityCache(), Collections.singletonList(withdraw));
+      return withdraw;
+    });
+  }
+
+  /**
+   * Helper method that runs a money-moving POST handler at most once per idempotency key.
+   * A retry of a completed request only re-checks the password and reloads the account info.
+   * Requests without a key are run as-is.
+   * 
+   * @param user form input carrying the idempotency key
+   * @param endpoint path of the POST handler
+   * @param handler the POST handler
+   * @return the handler's page, or the stored page of the completed request
+   */
+  private String runIdempotently(User user, String endpoint, Function<User,String> handler) {
+    String userID = user.getUsername();
+    String idempotencyKey = user.getIdempotencyKey();
+    // handlers re-used inside this one (e.g. a transfer's withdraw) run under this request's key
+    user.setIdempotencyKey(null);
+
+    IdempotencyKeys.ClaimResult claimResult = idempotencyKeys.claim(userID, idempotencyKey, endpoint);
+    if (claimResult == IdempotencyKeys.ClaimResult.REJECTED) {
+      return "welcome";
+    }
+    if (claimResult == IdempotencyKeys.ClaimResult.REPLAYED) {
+      if (!TestudoBankRepository.isCorrectPassword(shardRouter.jdbcTemplateFor(userID), userID, user.getPassword())) {
+        return "welcome";
+      }
+      if (!user.isApiRequest()) {
+        showAccountInfo(user);
+      }
+      return "account_info";
+    }
+
+    String response;
+    try {
+      response = handler.apply(user);
+    } catch (RuntimeException e) {
+      // money may have moved before the failure, so the key stays claimed and retries are rejected
+      idempotencyKeys.abandon(userID, idempotencyKey);
+      throw e;
+    }
+    // a rejected request moved no money, so the customer may resubmit the same form
+    if (response.equals("account_info")) {
+      idempotencyKeys.complete(userID, idempotencyKey, endpoint, response);
+    } else {
+      idempotencyKeys.release(userID, idempotencyKey);
+    }
+    return response;
+  }
+
+  // The balance engine holds the latest balances when it is enabled, since MySQL is only updated at checkpoints
+  private int getCashBalanceInPennies(JdbcTemplate jdbcTemplate, String userID) {
+    return balanceEngine.isEnabled() ? balanceEngine.getCashBalanceInPennies(userID) : TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, userID);
+  }
+
+  private int getOverdraftBalanceInPennies(JdbcTemplate jdbcTemplate, String userID) {
+    return balanceEngine.isEnabled() ? balanceEngine.getOverdraftBalanceInPennies(userID) : TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, userID);
+  }
+
   // HTML POST HANDLERS ////
 
   /**
@@ -276,12 +593,10 @@ public class MvcController {
 
     String userID = user.getUsername();
     String userPasswordAttempt = user.getPassword();
+    JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(userID);
 
-    // Retrieve correct password for this customer.
-    String userPassword = TestudoBankRepository.getCustomerPassword(jdbcTemplate, userID);
-
-    if (userPasswordAttempt.equals(userPassword)) {
-      updateAccountInfo(user);
+    if (TestudoBankRepository.isCorrectPassword(jdbcTemplate, userID, userPasswordAttempt)) {
+      showAccountInfo(user);
 
       return "account_info";
     } else {
@@ -303,14 +618,18 @@ public class MvcController {
    */
   @PostMapping("/deposit")
   public String submitDeposit(@ModelAttribute("user") User user) {
+    if (StringUtils.hasText(user.getIdempotencyKey())) {
+      return runIdempotently(user, "/deposit", this::submitDeposit);
+    }
+
     String userID = user.getUsername();
     String userPasswordAttempt = user.getPassword();
-    String userPassword = TestudoBankRepository.getCustomerPassword(jdbcTemplate, userID);
+    JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(userID);
 
     //// Invalid Input/State Handling ////
 
     // unsuccessful login
-    if (userPasswordAttempt.equals(userPassword) == false) {
+    if (!TestudoBankRepository.isCorrectPassword(jdbcTemplate, userID, userPasswordAttempt)) {
       return "welcome";
     }
 
@@ -329,37 +648,37 @@ public class MvcController {
     //// Complete Deposit Transaction ////
     int userDepositAmtInPennies = convertDollarsToPennies(userDepositAmt); // dollar amounts stored as pennies to avoid floating point errors
     String currentTime = SQL_DATETIME_FORMATTER.format(new java.util.Date()); // use same timestamp for all logs created by this deposit
-    int userOverdraftBalanceInPennies = TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, userID);
-    if (userOverdraftBalanceInPennies > 0) { // deposit will pay off overdraft first
-      // update overdraft balance in Customers table, and log the repayment in OverdraftLogs table.
-      int newOverdraftBalanceInPennies = Math.max(userOverdraftBalanceInPennies - userDepositAmtInPennies, 0);
-      TestudoBankRepository.setCustomerOverdraftBalance(jdbcTemplate, userID, newOverdraftBalanceInPennies);
-      TestudoBankRepository.insertRowToOverdraftLogsTable(jdbcTemplate, userID, currentTime, userDepositAmtInPennies, userOverdraftBalanceInPennies, newOverdraftBalanceInPennies);
-      
-      // add any excess deposit amount to main balance in Customers table
-      if (userDepositAmtInPennies > userOverdraftBalanceInPennies) {
-        int mainBalanceIncreaseAmtInPennies = userDepositAmtInPennies - userOverdraftBalanceInPennies;
-        TestudoBankRepository.increaseCustomerCashBalance(jdbcTemplate, userID, mainBalanceIncreaseAmtInPennies);
-      }
-
-    } else { // simple deposit case
-      TestudoBankRepository.increaseCustomerCashBalance(jdbcTemplate, userID, userDepositAmtInPennies);
-    }
 
-    // only adds deposit to transaction history if is not transfer
+    // only logs a plain deposit in transaction history if it is not part of a transfer or crypto sale
+    String transactionHistoryAction;
     if (user.isTransfer()){
-      // Adds transaction recieve to transaction history
-      TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, userID, currentTime, TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION, userDepositAmtInPennies);
+      transactionHistoryAction = TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION;
     } else if (user.isCryptoTransaction()) {
-      TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, userID, currentTime, TRANSACTION_HISTORY_CRYPTO_SELL_ACTION, userDepositAmtInPennies);
+      transactionHistoryAction = TRANSACTION_HISTORY_CRYPTO_SELL_ACTION;
     } else {
-      // Adds deposit to transaction history
-      TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, userID, currentTime, TRANSACTION_HISTORY_DEPOSIT_ACTION, userDepositAmtInPennies);
+      transactionHistoryAction = TRANSACTION_HISTORY_DEPOSIT_ACTION;
     }
 
+    // The credit side of a transfer is counted but never rejected, since the sender has already been debited
+    long velocityRecordedAtMillis = System.currentTimeMillis();
+    if (user.isTransfer()) {
+      velocityEngine.forceRecord(userID, true, userDepositAmtInPennies, velocityRecordedAtMillis);
+    } else if (velocityEngine.tryRecord(userID, true, userDepositAmtInPennies, velocityRecordedAtMillis) != null) {
+      return "welcome";
+    }
+
+    BalanceMutation deposit = runVelocityCountedLeg(userID, true, userDepositAmtInPennies, velocityRecordedAtMillis,
+                                                    () -> deposit(userID, userDepositAmtInPennies, transactionHistoryAction, currentTime));
+    if (deposit == null) {
+      return "welcome";
+    }
+    user.setBalanceMutation(deposit);
+
     // update Model so that View can access new main balance, overdraft balance, and logs
-    applyInterest(user);
-    updateAccountInfo(user);
+    // (a transfer or crypto sale does that once it is done)
+    if (!user.isTransfer() && !user.isCryptoTransaction()) {
+      updateAccountInfo(user, null);
+    }
     return "account_info";
   }
 	
@@ -380,14 +699,18 @@ public class MvcController {
    */
   @PostMapping("/withdraw")
   public String submitWithdraw(@ModelAttribute("user") User user) {
+    if (StringUtils.hasText(user.getIdempotencyKey())) {
+      return runIdempotently(user, "/withdraw", this::submitWithdraw);
+    }
+
     String userID = user.getUsername();
     String userPasswordAttempt = user.getPassword();
-    String userPassword = TestudoBankRepository.getCustomerPassword(jdbcTemplate, userID);
+    JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(userID);
 
     //// Invalid Input/State Handling ////
 
     // unsuccessful login
-    if (userPasswordAttempt.equals(userPassword) == false) {
+    if (!TestudoBankRepository.isCorrectPassword(jdbcTemplate, userID, userPasswordAttempt)) {
       return "welcome";
     }
 
@@ -406,44 +729,35 @@ public class MvcController {
     //// Complete Withdraw Transaction ////
     int userWithdrawAmtInPennies = convertDollarsToPennies(userWithdrawAmt); // dollar amounts stored as pennies to avoid floating point errors
     String currentTime = SQL_DATETIME_FORMATTER.format(new java.util.Date()); // use same timestamp for all logs created by this deposit
-    int userBalanceInPennies = TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, userID);
-    int userOverdraftBalanceInPennies = TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, userID);
-    if (userWithdrawAmtInPennies > userBalanceInPennies) { // if withdraw amount exceeds main balance, withdraw into overdraft with interest fee
-      int excessWithdrawAmtInPennies = userWithdrawAmtInPennies - userBalanceInPennies;
-      int newOverdraftIncreaseAmtAfterInterestInPennies = (int)(excessWithdrawAmtInPennies * INTEREST_RATE);
-      int newOverdraftBalanceInPennies = userOverdraftBalanceInPennies + newOverdraftIncreaseAmtAfterInterestInPennies;
-
-      // abort withdraw transaction if new overdraft balance exceeds max overdraft limit
-      // IMPORTANT: Compare new overdraft balance to max overdraft limit AFTER applying the interest rate!
-      if (newOverdraftBalanceInPennies > MAX_OVERDRAFT_IN_PENNIES) {
-        return "welcome";
-      }
-
-      // this is a valid withdraw into overdraft, so we can set Balance column to 0.
-      // OK to do this even if we were already in overdraft since main balance was already 0 anyways
-      TestudoBankRepository.setCustomerCashBalance(jdbcTemplate, userID, 0);
-
-      // increase overdraft balance by the withdraw amount after interest
-      TestudoBankRepository.setCustomerOverdraftBalance(jdbcTemplate, userID, newOverdraftBalanceInPennies);
-
-    } else { // simple, non-overdraft withdraw case
-      TestudoBankRepository.decreaseCustomerCashBalance(jdbcTemplate, userID, userWithdrawAmtInPennies);
-    }
 
-    // only adds withdraw to transaction history if is not transfer
+    // only logs a plain withdraw in transaction history if it is not part of a transfer or crypto purchase
+    String transactionHistoryAction;
     if (user.isTransfer()){
-      // Adds transfer send to transaction history
-      TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, userID, currentTime, TRANSACTION_HISTORY_TRANSFER_SEND_ACTION, userWithdrawAmtInPennies);
+      transactionHistoryAction = TRANSACTION_HISTORY_TRANSFER_SEND_ACTION;
     } else if (user.isCryptoTransaction()) {
-      TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, userID, currentTime, TRANSACTION_HISTORY_CRYPTO_BUY_ACTION, userWithdrawAmtInPennies);
+      transactionHistoryAction = TRANSACTION_HISTORY_CRYPTO_BUY_ACTION;
     } else {
-      // Adds withdraw to transaction history
-      TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, userID, currentTime, TRANSACTION_HISTORY_WITHDRAW_ACTION, userWithdrawAmtInPennies);
+      transactionHistoryAction = TRANSACTION_HISTORY_WITHDRAW_ACTION;
     }
 
+    // Too many or too large withdraws, transfers or crypto purchases in a short time are rejected
+    long velocityRecordedAtMillis = System.currentTimeMillis();
+    if (velocityEngine.tryRecord(userID, false, userWithdrawAmtInPennies, velocityRecordedAtMillis) != null) {
+      return "welcome";
+    }
+
+    BalanceMutation withdraw = runVelocityCountedLeg(userID, false, userWithdrawAmtInPennies, velocityRecordedAtMillis,
+                                                     () -> withdraw(userID, userWithdrawAmtInPennies, transactionHistoryAction, currentTime));
+    if (withdraw == null) {
+      return "welcome";
+    }
+    user.setBalanceMutation(withdraw);
   
     // update Model so that View can access new main balance, overdraft balance, and logs
-    updateAccountInfo(user);
+    // (a transfer or crypto purchase does that once it is done)
+    if (!user.isTransfer() && !user.isCryptoTransaction()) {
+      updateAccountInfo(user, null);
+    }
     return "account_info";
 
   }
@@ -470,11 +784,10 @@ public class MvcController {
 
     String userID = user.getUsername();
     String userPasswordAttempt = user.getPassword();
-    
-    String userPassword = TestudoBankRepository.getCustomerPassword(jdbcTemplate, userID);
+    JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(userID);
 
     // unsuccessful login
-    if (userPasswordAttempt.equals(userPassword) == false) {
+    if (!TestudoBankRepository.isCorrectPassword(jdbcTemplate, userID, userPasswordAttempt)) {
       return "welcome";
     }
 
@@ -484,8 +797,11 @@ public class MvcController {
       return "welcome";
     }
     
+    // the balance engine only writes transaction and overdraft logs at checkpoints, so bring them up to date first
+    balanceEngine.checkpoint();
+
     // Fetch 3 most recent transactions for this customer
-    List<Map<String,Object>> transactionLogs = TestudoBankRepository.getRecentTransactions(jdbcTemplate, userID, MAX_NUM_TRANSACTIONS_DISPLAYED);
+    List<Map<String,Object>> transactionLogs = TestudoBankRepository.getRecentTransactions(jdbcTemplate, shardRouter.getRecentActivityCache(), userID, MAX_NUM_TRANSACTIONS_DISPLAYED);
     
     // Ensure customer has enough transactions to complete the reversal
     if (user.getNumTransactionsAgo() > transactionLogs.size()) {
@@ -496,8 +812,8 @@ public class MvcController {
     Map<String, Object> logToReverse = transactionLogs.get(user.getNumTransactionsAgo() - 1);
 
     // Get balance and overdraft balance
-    int userBalanceInPennies = TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, userID);
-    int userOverdraftBalanceInPennies = TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, userID);
+    int userBalanceInPennies = getCashBalanceInPennies(jdbcTemplate, userID);
+    int userOverdraftBalanceInPennies = getOverdraftBalanceInPennies(jdbcTemplate, userID);
 
     int reversalAmountInPennies = (int) logToReverse.get("Amount");
     double reversalAmount = reversalAmountInPennies / 100.0;
@@ -509,7 +825,9 @@ public class MvcController {
         return "welcome";
       }
       user.setAmountToWithdraw(reversalAmount);
-      submitWithdraw(user);
+      if (!submitWithdraw(user).equals("account_info")) {
+        return "welcome";
+      }
 
       // If reversing a deposit puts customer back in overdraft
       if (reversalAmountInPennies > userBalanceInPennies){
@@ -519,25 +837,49 @@ public class MvcController {
         List<Map<String,Object>> overdraftLogs = TestudoBankRepository.getOverdraftLogs(jdbcTemplate, userID, datetimeOfReversedDeposit);
 
         // fetch updated overdraft balance with extra interest rate applied
-        double updatedOverdraftBalanceInPennies = TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, userID);
+        double updatedOverdraftBalanceInPennies = getOverdraftBalanceInPennies(jdbcTemplate, userID);
         // reverse extra application of interest rate since customer was already in overdraft
         int newOverdraftBalanceInPennies = (int) (updatedOverdraftBalanceInPennies / 1.02);
 
         if (overdraftLogs.size() != 0) {
-          // remove extra entry from overdraft logs
-          TestudoBankRepository.deleteRowFromOverdraftLogsTable(jdbcTemplate, userID, datetimeOfReversedDeposit);
-          TestudoBankRepository.setCustomerOverdraftBalance(jdbcTemplate, userID, newOverdraftBalanceInPennies);
+          // remove extra entry from overdraft logs, and refund the extra interest out of the bank's overdraft fees
+          int overdraftCorrectionInPennies = (int) updatedOverdraftBalanceInPennies - newOverdraftBalanceInPennies;
+          if (balanceEngine.isEnabled()) {
+            TestudoBankRepository.deleteRowFromOverdraftLogsTable(jdbcTemplate, userID, datetimeOfReversedDeposit);
+            balanceEngine.correctOverdraftBalance(userID, newOverdraftBalanceInPennies);
+          } else if (mutationSequencer.isEnabled()) {
+            TestudoBankRepository.deleteRowFromOverdraftLogsTable(jdbcTemplate, userID, datetimeOfReversedDeposit);
+            mutationSequencer.correctOverdraftBalance(userID, newOverdraftBalanceInPennies);
+          } else {
+            LedgerJournal overdraftCorrectionJournal = new LedgerJournal(LedgerJournal.OVERDRAFT_CORRECTION_ACTION, SQL_DATETIME_FORMATTER.format(new java.util.Date()))
+              .post(userID, LedgerJournal.OVERDRAFT_ACCOUNT, overdraftCorrectionInPennies)
+              .post(LedgerJournal.BANK_ID, LedgerJournal.OVERDRAFT_FEES_ACCOUNT, -overdraftCorrectionInPennies);
+            shardRouter.transactionTemplateFor(userID).executeWithoutResult(status -> {
+              TestudoBankRepository.deleteRowFromOverdraftLogsTable(jdbcTemplate, userID, datetimeOfReversedDeposit);
+              TestudoBankRepository.setCustomerOverdraftBalance(jdbcTemplate, userID, newOverdraftBalanceInPennies);
+              TestudoBankRepository.insertLedgerJournal(jdbcTemplate, overdraftCorrectionJournal);
+            });
+          }
         }
       } 
     } else { // Case when reversing a withdraw, deposit the money instead
       user.setAmountToDeposit(reversalAmount);
-      submitDeposit(user);
+      if (!submitDeposit(user).equals("account_info")) {
+        return "welcome";
+      }
     }
 
     // Adds to number of reversals only after a successful reversal 
+    // (through the sequencer when it is enabled, since it caches the count to freeze accounts)
     numOfReversals++;
-    TestudoBankRepository.setCustomerNumFraudReversals(jdbcTemplate, userID, numOfReversals);
+    if (mutationSequencer.isEnabled()) {
+      mutationSequencer.recordReversal(userID);
+    } else {
+      TestudoBankRepository.setCustomerNumFraudReversals(jdbcTemplate, userID, numOfReversals);
+    }
 
+    // the overdraft correction may have changed the balances the reversal's deposit or withdraw computed, so re-read them all
+    user.setBalanceMutation(null);
     updateAccountInfo(user);
 
     return "account_info";
@@ -561,22 +903,28 @@ public class MvcController {
    */
   @PostMapping("/transfer")
   public String submitTransfer(@ModelAttribute("user") User sender) {
+    if (StringUtils.hasText(sender.getIdempotencyKey())) {
+      return runIdempotently(sender, "/transfer", this::submitTransfer);
+    }
+
+    String recipientUserID = sender.getTransferRecipientID();
+    JdbcTemplate recipientJdbcTemplate = shardRouter.jdbcTemplateFor(recipientUserID);
 
     // checks to see the customer you are transfering to exists
-    if (!TestudoBankRepository.doesCustomerExist(jdbcTemplate, sender.getTransferRecipientID())){
+    if (!TestudoBankRepository.doesCustomerExist(recipientJdbcTemplate, shardRouter.getCustomerIDFilter(), shardRouter.getCustomerProfileCache(), recipientUserID)){
       return "welcome";
     }
 
     String senderUserID = sender.getUsername();
     String senderPasswordAttempt = sender.getPassword();
-    String senderPassword = TestudoBankRepository.getCustomerPassword(jdbcTemplate, senderUserID);
+    JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(senderUserID);
 
     // creates new user for recipient
     User recipient = new User();
-    String recipientUserID = sender.getTransferRecipientID();
-    String recipientPassword = TestudoBankRepository.getCustomerPassword(jdbcTemplate, recipientUserID);
+    String recipientPassword = TestudoBankRepository.getCustomerPassword(recipientJdbcTemplate, recipientUserID);
     recipient.setUsername(recipientUserID);
     recipient.setPassword(recipientPassword);
+    recipient.setApiRequest(sender.isApiRequest());
 
     // sets isTransfer to true for sender and recipient
     sender.setTransfer(true);
@@ -585,7 +933,7 @@ public class MvcController {
     /// Invalid Input/State Handling ///
 
     // unsuccessful login
-    if (senderPasswordAttempt.equals(senderPassword) == false) {
+    if (!TestudoBankRepository.isCorrectPassword(jdbcTemplate, senderUserID, senderPasswordAttempt)) {
       return "welcome";
     }
 
@@ -611,20 +959,184 @@ public class MvcController {
   
     String currentTime = SQL_DATETIME_FORMATTER.format(new java.util.Date()); // use same timestamp for all logs created by this transfer
 
-    // withdraw transfer amount from sender and deposit into recipient's account
-    sender.setAmountToWithdraw(transferAmount);
-    submitWithdraw(sender);
+    // sender and recipient live in different DBs, or the balance engine or sequencer changes balances outside of
+    // MySQL transactions, so the transfer can't be done in one DB transaction
+    if (!shardRouter.isSameShard(senderUserID, recipientUserID) || balanceEngine.isEnabled() || mutationSequencer.isEnabled()) {
+      return submitTransferSaga(sender, recipientUserID, currentTime, transferAmountInPennies);
+    }
+
+    // case where the recipient's account is frozen, so the transfer could not be deposited
+    if (TestudoBankRepository.getCustomerNumberOfReversals(recipientJdbcTemplate, recipientUserID) >= MAX_DISPUTES) {
+      return "welcome";
+    }
+
+    // withdraw transfer amount from sender and deposit into recipient's account.
+    // Both legs share one shard transaction, so the TransferClearing postings of the two journals always net to 0.
+    String transferResponse = shardRouter.transactionTemplateFor(senderUserID).execute(status -> {
+      sender.setAmountToWithdraw(transferAmount);
+      if (!submitWithdraw(sender).equals("account_info")) {
+        return "welcome";
+      }
+
+      recipient.setAmountToDeposit(transferAmount);
+      if (!submitDeposit(recipient).equals("account_info")) {
+        // the recipient was frozen after the check above, so take the sender's withdraw back
+        status.setRollbackOnly();
+        return "welcome";
+      }
+
+      // Inserting transfer into transfer history for both customers
+      TestudoBankRepository.insertRowToTransferLogsTable(jdbcTemplate, shardRouter.getRecentActivityCache(), senderUserID, recipientUserID, currentTime, transferAmountInPennies);
+      return "account_info";
+    });
+    if (!transferResponse.equals("account_info")) {
+      return "welcome";
+    }
+    updateAccountInfo(recipient, null);
+    updateAccountInfo(sender, null);
+
+    return "account_info";
+  }
+
+  /**
+   * Helper method that runs a transfer between customers on different shards as a saga of local transactions:
+   * 
+   *  1. On the sender's shard, withdraw from the sender and record the saga as 'Debited'.
+   *  2. On the recipient's shard, deposit into the recipient, log the transfer, and record a credit marker for the saga.
+   *  3. On the sender's shard, log the transfer and mark the saga 'Completed'.
+   * 
+   * Steps 1 and 2 write their saga rows together with their balance change: in one MySQL transaction, or through
+   * the balance engine or the sequencer when one is enabled (which is why transfers within a shard use the saga then too).
+   * 
+   * If the recipient's account is frozen, the sender is refunded and the saga is marked 'Compensated'. If step 2
+   * fails with a DB error, it may still have committed, so the recipient's credit marker decides between completing
+   * the saga and refunding the sender. If the marker can't be read either, the error is rethrown and the saga is left
+   * 'Debited'. Sagas left 'Debited' by a crash or error between steps are finished by {@link #recoverTransferSagas()}.
+   * 
+   * @param sender
+   * @param recipientUserID
+   * @param currentTime timestamp shared by all logs created by this transfer
+   * @param transferAmountInPennies
+   * @return "account_info" page if the transfer completed. Otherwise, redirect to "welcome" page.
+   */
+  private String submitTransferSaga(User sender, String recipientUserID, String currentTime, int transferAmountInPennies) {
+    String senderUserID = sender.getUsername();
+    String sagaID = UUID.randomUUID().toString();
 
-    recipient.setAmountToDeposit(transferAmount);
-    submitDeposit(recipient);
+    // Step 1: debit the sender (velocity rules apply as to any withdraw; the other checks were done by submitTransfer)
+    long velocityRecordedAtMillis = System.currentTimeMillis();
+    if (velocityEngine.tryRecord(senderUserID, false, transferAmountInPennies, velocityRecordedAtMillis) != null) {
+      return "welcome";
+    }
+    BalanceMutation withdraw = runVelocityCountedLeg(senderUserID, false, transferAmountInPennies, velocityRecordedAtMillis,
+                                                     () -> withdraw(senderUserID, transferAmountInPennies, TRANSACTION_HISTORY_TRANSFER_SEND_ACTION, currentTime, sagaID, recipientUserID));
+    if (withdraw == null) {
+      return "welcome";
+    }
+    sender.setBalanceMutation(withdraw);
+
+    // Step 2: credit the recipient, or undo step 1 if that is not possible
+    boolean recipientCredited;
+    try {
+      recipientCredited = creditTransferSagaRecipient(sagaID, senderUserID, recipientUserID, currentTime, transferAmountInPennies, velocityRecordedAtMillis);
+    } catch (DataAccessException | TransactionException e) {
+      // the credit may have been committed before the error (e.g. its commit acknowledgement was lost)
+      LOGGER.warn("Crediting the recipient of transfer saga {} failed, checking its credit marker", sagaID, e);
+      balanceEngine.checkpoint();
+      recipientCredited = TestudoBankRepository.doesTransferSagaCreditExist(shardRouter.jdbcTemplateFor(recipientUserID), sagaID);
+      if (recipientCredited) {
+        // the recipient's count was taken back with the error, but their credit went through
+        velocityEngine.forceRecord(recipientUserID, true, transferAmountInPennies, velocityRecordedAtMillis);
+      }
+    }
+    if (!recipientCredited) {
+      compensateTransferSaga(sagaID, senderUserID, currentTime, transferAmountInPennies);
+      // the refunded transfer no longer counts against the sender's withdraw limits
+      velocityEngine.release(senderUserID, false, transferAmountInPennies, velocityRecordedAtMillis);
+      return "welcome";
+    }
 
-    // Inserting transfer into transfer history for both customers
-    TestudoBankRepository.insertRowToTransferLogsTable(jdbcTemplate, senderUserID, recipientUserID, currentTime, transferAmountInPennies);
-    updateAccountInfo(sender);
+    // Step 3: log the transfer for the sender
+    completeTransferSaga(sagaID, senderUserID, recipientUserID, currentTime, transferAmountInPennies);
+    updateAccountInfo(sender, null);
 
     return "account_info";
   }
 
+  // Deposits a transfer into the recipient's account, together with the saga's credit marker and the recipient's
+  // transfer log. Returns false if the recipient's account is frozen.
+  private boolean creditTransferSagaRecipient(String sagaID, String senderUserID, String recipientUserID, String currentTime, int transferAmountInPennies,
+                                              long velocityRecordedAtMillis) {
+    if (TestudoBankRepository.getCustomerNumberOfReversals(shardRouter.jdbcTemplateFor(recipientUserID), recipientUserID) >= MAX_DISPUTES) {
+      return false;
+    }
+    velocityEngine.forceRecord(recipientUserID, true, transferAmountInPennies, velocityRecordedAtMillis);
+    return runVelocityCountedLeg(recipientUserID, true, transferAmountInPennies, velocityRecordedAtMillis,
+                                 () -> deposit(recipientUserID, transferAmountInPennies, TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION, currentTime, sagaID, senderUserID)) != null;
+  }
+
+  // Logs the transfer on the sender's shard and closes out the saga
+  private void completeTransferSaga(String sagaID, String senderUserID, String recipientUserID, String currentTime, int transferAmountInPennies) {
+    shardRouter.transactionTemplateFor(senderUserID).execute(status -> {
+      JdbcTemplate senderJdbcTemplate = shardRouter.jdbcTemplateFor(senderUserID);
+      // within one shard, the transfer log written with the recipient's credit is also the sender's
+      if (!shardRouter.isSameShard(senderUserID, recipientUserID)) {
+        TestudoBankRepository.insertRowToTransferLogsTable(senderJdbcTemplate, shardRouter.getRecentActivityCache(), senderUserID, recipientUserID, currentTime, transferAmountInPennies);
+      }
+      TestudoBankRepository.setTransferSagaStatus(senderJdbcTemplate, sagaID, TRANSFER_SAGA_COMPLETED_STATUS);
+      return null;
+    });
+  }
+
+  // Returns the debited transfer amount to the sender, and marks the saga 'Compensated' together with the refund
+  private void compensateTransferSaga(String sagaID, String senderUserID, String currentTime, int transferAmountInPennies) {
+    deposit(senderUserID, transferAmountInPennies, TRANSACTION_HISTORY_TRANSFER_REFUND_ACTION, currentTime, sagaID, null);
+  }
+
+  /**
+   * Finishes transfer sagas that were left 'Debited' (e.g. the app crashed between saga steps).
+   * If the recipient's shard has a credit marker for the saga, the transfer is completed. Otherwise, the
+   * sender is re-credited. Only sagas older than a few minutes are touched so in-flight transfers are left alone.
+   * <p>
+   * This method is scheduled to run every minute.
+   */
+  @Scheduled(fixedDelay = 60000)
+  public void recoverTransferSagas() {
+    if (shardRouter.getNumShards() == 1 && !balanceEngine.isEnabled() && !mutationSequencer.isEnabled()) {
+      return;
+    }
+    // the balance engine writes saga rows and credit markers to MySQL at checkpoints
+    balanceEngine.checkpoint();
+    String recoveryCutoffTime = SQL_DATETIME_FORMATTER.format(new java.util.Date(System.currentTimeMillis() - TRANSFER_SAGA_RECOVERY_DELAY_IN_MILLIS));
+    for (JdbcTemplate shard : shardRouter.getShards()) {
+      for (Map<String,Object> saga : TestudoBankRepository.getTransferSagas(shard, TRANSFER_SAGA_DEBITED_STATUS, recoveryCutoffTime)) {
+        String sagaID = (String) saga.get("SagaID");
+        String senderUserID = (String) saga.get("TransferFrom");
+        String recipientUserID = (String) saga.get("TransferTo");
+        String sagaTime = SQL_DATETIME_FORMATTER.format(convertLocalDateTimeToDate((LocalDateTime) saga.get("Timestamp")));
+        int transferAmountInPennies = (int) saga.get("Amount");
+
+        if (TestudoBankRepository.doesTransferSagaCreditExist(shardRouter.jdbcTemplateFor(recipientUserID), sagaID)) {
+          completeTransferSaga(sagaID, senderUserID, recipientUserID, sagaTime, transferAmountInPennies);
+        } else {
+          compensateTransferSaga(sagaID, senderUserID, sagaTime, transferAmountInPennies);
+        }
+      }
+    }
+  }
+
+  /**
+   * Deletes idempotency keys older than a day from every shard, in bulk. By then no browser
+   * is still retrying the request.
+   * <p>
+   * This method is scheduled to run every hour.
+   */
+  @Scheduled(fixedDelay = 60 * 60 * 1000)
+  public void purgeExpiredIdempotencyKeys() {
+    String expiryCutoffTime = SQL_DATETIME_FORMATTER.format(new java.util.Date(System.currentTimeMillis() - IDEMPOTENCY_KEY_TTL_IN_MILLIS));
+    IdempotencyKeys.purgeExpiredKeys(shardRouter, expiryCutoffTime);
+  }
+
   /**
    * HTML POST request handler for the Buy Crypto Form page.
    * <p>
@@ -645,15 +1157,18 @@ public class MvcController {
    */
   @PostMapping("/buycrypto")
   public String buyCrypto(@ModelAttribute("user") User user) {
+    if (StringUtils.hasText(user.getIdempotencyKey())) {
+      return runIdempotently(user, "/buycrypto", this::buyCrypto);
+    }
 
     String userID = user.getUsername();
     String userPasswordAttempt = user.getPassword();
-    String userPassword = TestudoBankRepository.getCustomerPassword(jdbcTemplate, userID);
+    JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(userID);
 
     //// Invalid Input/State Handling ////
 
     // unsuccessful login
-    if (!userPasswordAttempt.equals(userPassword)) {
+    if (!TestudoBankRepository.isCorrectPassword(jdbcTemplate, userID, userPasswordAttempt)) {
       return "welcome";
     }
 
@@ -670,7 +1185,7 @@ public class MvcController {
     }
 
     // cannot buy crypto while in overdraft
-    int userOverdraftBalanceInPennies = TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, userID);
+    int userOverdraftBalanceInPennies = getOverdraftBalanceInPennies(jdbcTemplate, userID);
     if (userOverdraftBalanceInPennies > 0) {
       return "welcome";
     }
@@ -685,7 +1200,7 @@ public class MvcController {
 
     double costOfCryptoPurchaseInPennies = convertDollarsToPennies(costOfCryptoPurchaseInDollars);
 
-    int userBalanceInPennies = TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, userID);
+    int userBalanceInPennies = getCashBalanceInPennies(jdbcTemplate, userID);
 
     // check if balance will cover purchase
     if (costOfCryptoPurchaseInPennies > userBalanceInPennies) {
@@ -711,7 +1226,7 @@ public class MvcController {
       TestudoBankRepository.increaseCustomerCryptoBalance(jdbcTemplate, userID, cryptoToBuy, cryptoAmountToBuy);
       TestudoBankRepository.insertRowToCryptoLogsTable(jdbcTemplate, userID, cryptoToBuy, CRYPTO_HISTORY_BUY_ACTION, currentTime, cryptoAmountToBuy);
 
-      updateAccountInfo(user);
+      updateAccountInfo(user, cryptoToBuy);
 
       return "account_info";
     } else {
@@ -740,14 +1255,18 @@ public class MvcController {
    */
   @PostMapping("/sellcrypto")
   public String sellCrypto(@ModelAttribute("user") User user) {
+    if (StringUtils.hasText(user.getIdempotencyKey())) {
+      return runIdempotently(user, "/sellcrypto", this::sellCrypto);
+    }
+
     String userID = user.getUsername();
     String userPasswordAttempt = user.getPassword();
-    String userPassword = TestudoBankRepository.getCustomerPassword(jdbcTemplate, userID);
+    JdbcTemplate jdbcTemplate = shardRouter.jdbcTemplateFor(userID);
 
     //// Invalid Input/State Handling ////
 
     // unsuccessful login
-    if (!userPasswordAttempt.equals(userPassword)) {
+    if (!TestudoBankRepository.isCorrectPassword(jdbcTemplate, userID, userPasswordAttempt)) {
       return "welcome";
     }
 
@@ -790,7 +1309,7 @@ public class MvcController {
       TestudoBankRepository.decreaseCustomerCryptoBalance(jdbcTemplate, userID, cryptoToBuy, cryptoAmountToSell);
       TestudoBankRepository.insertRowToCryptoLogsTable(jdbcTemplate, userID, cryptoToBuy, CRYPTO_HISTORY_SELL_ACTION, currentTime, cryptoAmountToSell);
 
-      updateAccountInfo(user);
+      updateAccountInfo(user, cryptoToBuy);
 
       return "account_info";
     } else {
@@ -798,16 +1317,4 @@ public class MvcController {
     }
   }
 
-  /**
-   * 
-   * 
-   * @param user
-   * @return "account_info" if interest applied. Otherwise, redirect to "welcome" page.
-   */
-  public String applyInterest(@ModelAttribute("user") User user) {
-
-    return "welcome";
-
-  }
-
 }
\ No newline at end of file
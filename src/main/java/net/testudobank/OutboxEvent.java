@@ -0,0 +1,50 @@
+package net.testudobank;
+
+import java.util.Map;
+
+import lombok.Getter;
+
+/**
+ * One LedgerOutbox row: the net change a ledger journal made to one customer's accounts. Events are delivered at
+ * least once, so consumers should skip events whose (shardIndex, eventID) they have already seen.
+ */
+public class OutboxEvent {
+  @Getter
+  private final int shardIndex;
+  // increases with every event written on the shard
+  @Getter
+  private final long eventID;
+  @Getter
+  private final String journalID;
+  @Getter
+  private final String customerID;
+  @Getter
+  private final String action;
+  // positive if the bank now owes the customer more, like in the ledger
+  @Getter
+  private final long amountInPennies;
+  @Getter
+  private final String timestamp;
+
+  public OutboxEvent(int shardIndex, long eventID, String journalID, String customerID, String action, long amountInPennies, String timestamp) {
+    this.shardIndex = shardIndex;
+    this.eventID = eventID;
+    this.journalID = journalID;
+    this.customerID = customerID;
+    this.action = action;
+    this.amountInPennies = amountInPennies;
+    this.timestamp = timestamp;
+  }
+
+  // Builds an event from a row returned by TestudoBankRepository.getOutboxEvents
+  static OutboxEvent fromRow(int shardIndex, Map<String,Object> row) {
+    return new OutboxEvent(shardIndex, ((Number) row.get("EventID")).longValue(), (String) row.get("JournalID"), (String) row.get("CustomerID"),
+                           (String) row.get("Action"), ((Number) row.get("Amount")).longValue(), (String) row.get("Timestamp"));
+  }
+
+  // One NDJSON line. None of the string fields can contain quotes or backslashes.
+  public String toJson() {
+    return String.format("{\"shard\":%d,\"eventID\":%d,\"journalID\":\"%s\",\"customerID\":\"%s\",\"action\":\"%s\",\"amount\":%d,\"timestamp\":\"%s\"}",
+                         shardIndex, eventID, journalID, customerID, action, amountInPennies, timestamp);
+  }
+}
@@ -0,0 +1,178 @@
+package net.testudobank;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-process bus that the {@link OutboxRelay} publishes ledger events to.
+ * <p>
+ * Published events are kept in one bounded in-memory log. Every subscribed consumer reads the log from its own
+ * offset on its own thread, in batches, and its offset only moves past a batch once the handler returns, so a
+ * handler that throws gets the same batch again after {@link #RETRY_DELAY_IN_MILLIS}. An event leaves the log
+ * once every consumer is past it, and only then does the relay delete it from the LedgerOutbox. Together this
+ * gives at-least-once delivery across restarts.
+ * <p>
+ * The log holds at most `testudobank.outbox.bus-capacity` events. When a consumer falls that far behind, the
+ * relay stops publishing and new events wait in MySQL until the consumer catches up.
+ * <p>
+ * If `testudobank.outbox.log-file` is set, a built-in consumer also appends every event to that file as NDJSON.
+ */
+@Component
+public class OutboxEventBus {
+  //// CONSTANT LITERALS ////
+  private static int MAX_BATCH_SIZE = 256;
+  public static long RETRY_DELAY_IN_MILLIS = 1000;
+  private static String FILE_LOG_CONSUMER_NAME = "file-log";
+
+  private final int capacity;
+  private final List<OutboxEvent> log = new ArrayList<>();
+  // bus sequence number of log.get(0). Sequence numbers start at 0 and are never reused.
+  private long firstSequence = 0;
+  // next sequence number each consumer will read, by consumer name
+  private final Map<String,Long> consumerOffsets = new LinkedHashMap<>();
+  private final List<Thread> consumerThreads = new ArrayList<>();
+  private volatile boolean isClosed = false;
+
+  @Autowired
+  public OutboxEventBus(@Value("${testudobank.outbox.bus-capacity:10000}") int capacity,
+                        @Value("${testudobank.outbox.log-file:}") String logFile) {
+    this.capacity = capacity;
+    if (!logFile.isEmpty()) {
+      subscribe(FILE_LOG_CONSUMER_NAME, fileLogConsumer(Paths.get(logFile)));
+    }
+  }
+
+  /**
+   * Starts delivering every event published from now on to the handler, in publish order, on a new thread.
+   */
+  public synchronized void subscribe(String consumerName, Consumer<List<OutboxEvent>> handler) {
+    if (consumerOffsets.containsKey(consumerName)) {
+      throw new IllegalArgumentException("A consumer named " + consumerName + " is already subscribed");
+    }
+    consumerOffsets.put(consumerName, firstSequence + log.size());
+    Thread consumerThread = new Thread(() -> consume(consumerName, handler), "outbox-consumer-" + consumerName);
+    consumerThread.setDaemon(true);
+    consumerThreads.add(consumerThread);
+    consumerThread.start();
+  }
+
+  // Offset (next sequence number to read) of every consumer
+  public synchronized Map<String,Long> getConsumerOffsets() {
+    return new LinkedHashMap<>(consumerOffsets);
+  }
+
+  // Number of events that can be published before the log is full
+  public synchronized int getRemainingCapacity() {
+    return capacity - log.size();
+  }
+
+  /**
+   * Appends the events to the log, and wakes up the consumers. The caller must not publish more than
+   * {@link #getRemainingCapacity()} events.
+   */
+  public synchronized void publish(List<OutboxEvent> events) {
+    if (events.size() > getRemainingCapacity()) {
+      throw new IllegalStateException(String.format("Can't publish %d events with room for %d", events.size(), getRemainingCapacity()));
+    }
+    log.addAll(events);
+    notifyAll();
+  }
+
+  /**
+   * Removes and returns the events that every consumer has processed. With no consumers, every event counts
+   * as processed.
+   */
+  public synchronized List<OutboxEvent> drainProcessed() {
+    long slowestOffset = firstSequence + log.size();
+    for (long offset : consumerOffsets.values()) {
+      slowestOffset = Math.min(slowestOffset, offset);
+    }
+    List<OutboxEvent> processedEvents = log.subList(0, (int) (slowestOffset - firstSequence));
+    List<OutboxEvent> drainedEvents = new ArrayList<>(processedEvents);
+    processedEvents.clear();
+    firstSequence = slowestOffset;
+    return drainedEvents;
+  }
+
+  private void consume(String consumerName, Consumer<List<OutboxEvent>> handler) {
+    while (!isClosed) {
+      List<OutboxEvent> batch;
+      synchronized (this) {
+        long offset = consumerOffsets.get(consumerName);
+        while (offset == firstSequence + log.size() && !isClosed) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (isClosed) {
+          return;
+        }
+        int batchStart = (int) (offset - firstSequence);
+        batch = new ArrayList<>(log.subList(batchStart, Math.min(log.size(), batchStart + MAX_BATCH_SIZE)));
+      }
+
+      try {
+        handler.accept(batch);
+      } catch (RuntimeException e) {
+        System.out.println(String.format("Outbox consumer %s failed, retrying its batch: %s", consumerName, e));
+        try {
+          Thread.sleep(RETRY_DELAY_IN_MILLIS);
+        } catch (InterruptedException interrupted) {
+          return;
+        }
+        continue;
+      }
+      synchronized (this) {
+        consumerOffsets.merge(consumerName, (long) batch.size(), Long::sum);
+      }
+    }
+  }
+
+  // Appends each batch to the file as NDJSON lines, and flushes it before the batch counts as processed
+  private static Consumer<List<OutboxEvent>> fileLogConsumer(Path logFile) {
+    return batch -> {
+      try {
+        if (logFile.getParent() != null) {
+          Files.createDirectories(logFile.getParent());
+        }
+        try (Writer writer = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+          for (OutboxEvent event : batch) {
+            writer.write(event.toJson() + "\n");
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    };
+  }
+
+  @PreDestroy
+  public void close() {
+    isClosed = true;
+    synchronized (this) {
+      notifyAll();
+    }
+    for (Thread consumerThread : consumerThreads) {
+      consumerThread.interrupt();
+    }
+  }
+}
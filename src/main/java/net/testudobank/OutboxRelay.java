@@ -0,0 +1,98 @@
+package net.testudobank;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Moves ledger events from every shard's LedgerOutbox table to the {@link OutboxEventBus}.
+ * <p>
+ * {@link TestudoBankRepository#insertLedgerJournals} writes an outbox row for every customer a journal touches,
+ * in the same transaction as the journal, so an event exists exactly when its money movement committed. Each poll
+ * first deletes the rows of events that every bus consumer has processed, then publishes the oldest rows that are
+ * not on the bus yet, up to the bus's remaining capacity. A row is only deleted after it was processed, so events
+ * on the bus when the app stops are published again on the next start.
+ * <p>
+ * EventIDs are handed out when a row is inserted, not when it commits, so a row can show up after rows with
+ * higher EventIDs. Polls therefore always read from the start of the table instead of after the last EventID seen,
+ * and skip the rows already on the bus. A customer's events are still published in order, since their rows are
+ * written under the lock on their Customers row. Only one app instance should run the relay.
+ */
+@Component
+public class OutboxRelay {
+  private final ShardRouter shardRouter;
+  private final OutboxEventBus eventBus;
+  private final boolean isEnabled;
+  private final int batchSize;
+
+  // EventIDs of every shard's events that are on the bus and not yet deleted
+  private final List<Set<Long>> publishedEventIDs = new ArrayList<>();
+  // EventIDs of every shard's events that every consumer has processed, kept until their rows are deleted
+  private final List<List<Long>> processedEventIDs = new ArrayList<>();
+
+  @Autowired
+  public OutboxRelay(ShardRouter shardRouter, OutboxEventBus eventBus,
+                     @Value("${testudobank.outbox.relay-enabled:true}") boolean isEnabled,
+                     @Value("${testudobank.outbox.batch-size:1000}") int batchSize) {
+    this.shardRouter = shardRouter;
+    this.eventBus = eventBus;
+    this.isEnabled = isEnabled;
+    this.batchSize = batchSize;
+    for (int shardIndex = 0; shardIndex < shardRouter.getNumShards(); shardIndex++) {
+      publishedEventIDs.add(new HashSet<>());
+      processedEventIDs.add(new ArrayList<>());
+    }
+  }
+
+  @Scheduled(fixedDelayString = "${testudobank.outbox.poll-interval-millis:200}")
+  public void poll() {
+    if (isEnabled) {
+      relay();
+    }
+  }
+
+  /**
+   * Runs one relay pass over every shard.
+   *
+   * @return number of events published
+   */
+  public synchronized int relay() {
+    for (OutboxEvent event : eventBus.drainProcessed()) {
+      processedEventIDs.get(event.getShardIndex()).add(event.getEventID());
+    }
+
+    int numEventsPublished = 0;
+    for (int shardIndex = 0; shardIndex < shardRouter.getNumShards(); shardIndex++) {
+      JdbcTemplate jdbcTemplate = shardRouter.getShard(shardIndex);
+      Set<Long> shardPublishedEventIDs = publishedEventIDs.get(shardIndex);
+      List<Long> shardProcessedEventIDs = processedEventIDs.get(shardIndex);
+      TestudoBankRepository.deleteOutboxEvents(jdbcTemplate, shardProcessedEventIDs);
+      shardPublishedEventIDs.removeAll(shardProcessedEventIDs);
+      shardProcessedEventIDs.clear();
+
+      int numEventsToPublish = Math.min(batchSize, eventBus.getRemainingCapacity());
+      if (numEventsToPublish <= 0) {
+        continue;
+      }
+      // the oldest rows include the ones already on the bus, so read past them
+      List<OutboxEvent> events = new ArrayList<>();
+      for (Map<String,Object> row : TestudoBankRepository.getOutboxEvents(jdbcTemplate, shardPublishedEventIDs.size() + numEventsToPublish)) {
+        OutboxEvent event = OutboxEvent.fromRow(shardIndex, row);
+        if (events.size() < numEventsToPublish && shardPublishedEventIDs.add(event.getEventID())) {
+          events.add(event);
+        }
+      }
+      eventBus.publish(events);
+      numEventsPublished += events.size();
+    }
+    return numEventsPublished;
+  }
+}
@@ -0,0 +1,301 @@
+package net.testudobank;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import lombok.Getter;
+
+/**
+ * Immutable in-memory index of customers for prefix search on CustomerID, FirstName and LastName, built with a
+ * {@link Builder}.
+ * <p>
+ * CustomerIDs are packed into one byte array in CustomerID order, so an ID prefix is a binary search followed by a
+ * scan of the matching run. Names are deduplicated into a table sorted case-insensitively, and customers are listed
+ * grouped by first name and by last name in that order, so every customer whose name starts with a prefix sits in
+ * one contiguous run found by two binary searches over the name table. About 30 bytes per customer plus the distinct
+ * names.
+ */
+public class PrefixIndex {
+  private final int numCustomers;
+  // CustomerID i is idBytes[idOffsets[i], idOffsets[i + 1]), in CustomerID order
+  private final byte[] idBytes;
+  private final int[] idOffsets;
+  // distinct names sorted by their lower case keys
+  private final String[] names;
+  private final String[] nameKeys;
+  private final int[] firstNameIDs;
+  private final int[] lastNameIDs;
+  // customers grouped by first (last) name; customers with the name n are at [nameStarts[n], nameStarts[n + 1])
+  private final int[] customersByFirstName;
+  private final int[] firstNameStarts;
+  private final int[] customersByLastName;
+  private final int[] lastNameStarts;
+
+  private PrefixIndex(int numCustomers, byte[] idBytes, int[] idOffsets, String[] names, String[] nameKeys, int[] firstNameIDs, int[] lastNameIDs) {
+    this.numCustomers = numCustomers;
+    this.idBytes = idBytes;
+    this.idOffsets = idOffsets;
+    this.names = names;
+    this.nameKeys = nameKeys;
+    this.firstNameIDs = firstNameIDs;
+    this.lastNameIDs = lastNameIDs;
+    this.firstNameStarts = new int[names.length + 1];
+    this.customersByFirstName = groupByName(firstNameIDs, firstNameStarts);
+    this.lastNameStarts = new int[names.length + 1];
+    this.customersByLastName = groupByName(lastNameIDs, lastNameStarts);
+  }
+
+  public int size() {
+    return numCustomers;
+  }
+
+  /**
+   * Returns up to limit customers whose CustomerID, FirstName or LastName starts with the prefix, ignoring case:
+   * CustomerID matches first in CustomerID order, then first name matches, then last name matches.
+   */
+  public List<Recipient> search(String prefix, int limit) {
+    Map<String,Recipient> matches = new LinkedHashMap<>();
+    byte[] idPrefix = prefix.getBytes(StandardCharsets.UTF_8);
+    for (int i = lowerBound(idPrefix); i < numCustomers && matches.size() < limit && startsWith(i, idPrefix); i++) {
+      addMatch(matches, i);
+    }
+    String key = prefix.toLowerCase(Locale.ROOT);
+    int firstName = lowerBound(key);
+    int lastName = lowerBound(key + Character.MAX_VALUE);
+    addMatches(matches, customersByFirstName, firstNameStarts[firstName], firstNameStarts[lastName], limit);
+    addMatches(matches, customersByLastName, lastNameStarts[firstName], lastNameStarts[lastName], limit);
+    return new ArrayList<>(matches.values());
+  }
+
+  // Heap held by the index's arrays, not counting the JVM's per-object headers
+  public long estimatedBytes() {
+    long bytes = idBytes.length + 4L * idOffsets.length + 4L * (firstNameIDs.length + lastNameIDs.length)
+               + 4L * (customersByFirstName.length + customersByLastName.length + firstNameStarts.length + lastNameStarts.length);
+    for (int i = 0; i < names.length; i++) {
+      bytes += 2 * 48 + names[i].length() + nameKeys[i].length();
+    }
+    return bytes;
+  }
+
+  public static class Recipient {
+    @Getter
+    private final String customerID;
+    @Getter
+    private final String firstName;
+    @Getter
+    private final String lastName;
+
+    public Recipient(String customerID, String firstName, String lastName) {
+      this.customerID = customerID;
+      this.firstName = firstName;
+      this.lastName = lastName;
+    }
+  }
+
+  /**
+   * Collects customers in any order and builds a {@link PrefixIndex} of them. A CustomerID added twice is kept once,
+   * with the names it was last added with.
+   */
+  public static class Builder {
+    private byte[] idBytes = new byte[1024];
+    private int[] idOffsets = new int[65];
+    private int[] firstNameIDs = new int[64];
+    private int[] lastNameIDs = new int[64];
+    private int numCustomers = 0;
+    private final Map<String,Integer> nameIDs = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    public Builder add(String customerID, String firstName, String lastName) {
+      byte[] id = customerID.getBytes(StandardCharsets.UTF_8);
+      int idsEnd = idOffsets[numCustomers];
+      if (idsEnd + id.length > idBytes.length) {
+        idBytes = Arrays.copyOf(idBytes, Math.max(idBytes.length * 2, idsEnd + id.length));
+      }
+      if (numCustomers == firstNameIDs.length) {
+        firstNameIDs = Arrays.copyOf(firstNameIDs, numCustomers * 2);
+        lastNameIDs = Arrays.copyOf(lastNameIDs, numCustomers * 2);
+        idOffsets = Arrays.copyOf(idOffsets, numCustomers * 2 + 1);
+      }
+      System.arraycopy(id, 0, idBytes, idsEnd, id.length);
+      idOffsets[numCustomers + 1] = idsEnd + id.length;
+      firstNameIDs[numCustomers] = nameID(firstName);
+      lastNameIDs[numCustomers] = nameID(lastName);
+      numCustomers++;
+      return this;
+    }
+
+    public PrefixIndex build() {
+      // sort the names by key, and renumber them in that order
+      Integer[] nameOrder = new Integer[names.size()];
+      String[] keys = new String[names.size()];
+      for (int i = 0; i < nameOrder.length; i++) {
+        nameOrder[i] = i;
+        keys[i] = names.get(i).toLowerCase(Locale.ROOT);
+      }
+      Arrays.sort(nameOrder, (a, b) -> {
+        int byKey = keys[a].compareTo(keys[b]);
+        return byKey != 0 ? byKey : names.get(a).compareTo(names.get(b));
+      });
+      String[] sortedNames = new String[nameOrder.length];
+      String[] sortedKeys = new String[nameOrder.length];
+      int[] newNameIDs = new int[nameOrder.length];
+      for (int i = 0; i < nameOrder.length; i++) {
+        sortedNames[i] = names.get(nameOrder[i]);
+        sortedKeys[i] = keys[nameOrder[i]];
+        newNameIDs[nameOrder[i]] = i;
+      }
+
+      // sort the customers by CustomerID, dropping all but the last of each duplicate
+      int[] order = new int[numCustomers];
+      for (int i = 0; i < numCustomers; i++) {
+        order[i] = i;
+      }
+      sortByID(order, new int[numCustomers], 0, numCustomers);
+      int numUnique = 0;
+      for (int i = 0; i < numCustomers; i++) {
+        if (numUnique > 0 && compareIDs(order[numUnique - 1], order[i]) == 0) {
+          numUnique--;
+        }
+        order[numUnique++] = order[i];
+      }
+
+      byte[] sortedIDBytes = new byte[Arrays.stream(order, 0, numUnique).map(c -> idOffsets[c + 1] - idOffsets[c]).sum()];
+      int[] sortedIDOffsets = new int[numUnique + 1];
+      int[] sortedFirstNameIDs = new int[numUnique];
+      int[] sortedLastNameIDs = new int[numUnique];
+      for (int i = 0; i < numUnique; i++) {
+        int c = order[i];
+        int length = idOffsets[c + 1] - idOffsets[c];
+        System.arraycopy(idBytes, idOffsets[c], sortedIDBytes, sortedIDOffsets[i], length);
+        sortedIDOffsets[i + 1] = sortedIDOffsets[i] + length;
+        sortedFirstNameIDs[i] = newNameIDs[firstNameIDs[c]];
+        sortedLastNameIDs[i] = newNameIDs[lastNameIDs[c]];
+      }
+      return new PrefixIndex(numUnique, sortedIDBytes, sortedIDOffsets, sortedNames, sortedKeys, sortedFirstNameIDs, sortedLastNameIDs);
+    }
+
+    private int nameID(String name) {
+      String value = name == null ? "" : name;
+      Integer id = nameIDs.get(value);
+      if (id == null) {
+        id = names.size();
+        nameIDs.put(value, id);
+        names.add(value);
+      }
+      return id;
+    }
+
+    // Stable merge sort of customer numbers by CustomerID, so later duplicates stay after earlier ones
+    private void sortByID(int[] customers, int[] buffer, int from, int to) {
+      if (to - from < 2) {
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      sortByID(customers, buffer, from, middle);
+      sortByID(customers, buffer, middle, to);
+      if (compareIDs(customers[middle - 1], customers[middle]) <= 0) {
+        return;
+      }
+      System.arraycopy(customers, from, buffer, from, to - from);
+      int left = from;
+      int right = middle;
+      for (int i = from; i < to; i++) {
+        if (right >= to || (left < middle && compareIDs(buffer[left], buffer[right]) <= 0)) {
+          customers[i] = buffer[left++];
+        } else {
+          customers[i] = buffer[right++];
+        }
+      }
+    }
+
+    private int compareIDs(int a, int b) {
+      return compareBytes(idBytes, idOffsets[a], idOffsets[a + 1], idBytes, idOffsets[b], idOffsets[b + 1]);
+    }
+  }
+
+  //// INTERNALS ////
+
+  // Counting sort of customers by name, keeping CustomerID order within a name
+  private static int[] groupByName(int[] nameIDs, int[] nameStarts) {
+    for (int nameID : nameIDs) {
+      nameStarts[nameID + 1]++;
+    }
+    for (int i = 1; i < nameStarts.length; i++) {
+      nameStarts[i] += nameStarts[i - 1];
+    }
+    int[] next = Arrays.copyOf(nameStarts, nameStarts.length - 1);
+    int[] customers = new int[nameIDs.length];
+    for (int c = 0; c < nameIDs.length; c++) {
+      customers[next[nameIDs[c]]++] = c;
+    }
+    return customers;
+  }
+
+  private void addMatches(Map<String,Recipient> matches, int[] customers, int from, int to, int limit) {
+    for (int i = from; i < to && matches.size() < limit; i++) {
+      addMatch(matches, customers[i]);
+    }
+  }
+
+  private void addMatch(Map<String,Recipient> matches, int customer) {
+    String customerID = new String(idBytes, idOffsets[customer], idOffsets[customer + 1] - idOffsets[customer], StandardCharsets.UTF_8);
+    matches.putIfAbsent(customerID, new Recipient(customerID, names[firstNameIDs[customer]], names[lastNameIDs[customer]]));
+  }
+
+  // First customer whose CustomerID is not less than the prefix
+  private int lowerBound(byte[] idPrefix) {
+    int low = 0;
+    int high = numCustomers;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (compareBytes(idBytes, idOffsets[middle], idOffsets[middle + 1], idPrefix, 0, idPrefix.length) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  // First name whose key is not less than the given key
+  private int lowerBound(String key) {
+    int position = Arrays.binarySearch(nameKeys, key);
+    if (position < 0) {
+      return -position - 1;
+    }
+    while (position > 0 && nameKeys[position - 1].equals(key)) {
+      position--;
+    }
+    return position;
+  }
+
+  private boolean startsWith(int customer, byte[] idPrefix) {
+    int start = idOffsets[customer];
+    if (idOffsets[customer + 1] - start < idPrefix.length) {
+      return false;
+    }
+    for (int i = 0; i < idPrefix.length; i++) {
+      if (idBytes[start + i] != idPrefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int compareBytes(byte[] a, int aFrom, int aTo, byte[] b, int bFrom, int bTo) {
+    int length = Math.min(aTo - aFrom, bTo - bFrom);
+    for (int i = 0; i < length; i++) {
+      int byteComparison = (a[aFrom + i] & 0xff) - (b[bFrom + i] & 0xff);
+      if (byteComparison != 0) {
+        return byteComparison;
+      }
+    }
+    return (aTo - aFrom) - (bTo - bFrom);
+  }
+}
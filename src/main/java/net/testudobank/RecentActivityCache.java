@@ -0,0 +1,456 @@
+package net.testudobank;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.LinkedCaseInsensitiveMap;
+
+import lombok.Getter;
+
+/**
+ * Bounded in-memory cache of every active customer's newest TransactionHistory and TransferHistory rows, so the
+ * account page and disputes don't query MySQL for them.
+ * <p>
+ * Each cached customer holds a ring of their {@link #TRANSACTIONS_PER_CUSTOMER} newest transactions and
+ * {@link #TRANSFERS_PER_CUSTOMER} newest transfers, newest first like the queries they replace. A customer's rings
+ * are loaded from MySQL on their first read, and then kept up to date write-through by the
+ * {@link TestudoBankRepository} methods that insert history rows, once the inserting transaction commits.
+ * A ring is never loaded while a write to the customer is in flight or if one committed during the load, so a
+ * load can't miss or double count a row. Reads inside a transaction, and reads of more rows than a ring holds,
+ * go to MySQL.
+ * <p>
+ * Customers are kept in {@link #NUM_SEGMENTS} access-ordered segments. The least recently used customers are
+ * evicted once a segment is full, and customers that weren't read or written for `testudobank.recent-activity.idle-millis`
+ * are swept out periodically. Entries are keyed by DataSource as well as CustomerID, since a transfer row lives on
+ * one shard but is read by both of its parties.
+ * <p>
+ * The cache only knows about rows inserted through it, so every history insert and read on a router's shards must
+ * be given that router's cache ({@link ShardRouter#getRecentActivityCache()}). Code that deletes history rows, like
+ * partition archiving and rebalancing, clears the cache of the router it deleted through.
+ */
+@Component
+public class RecentActivityCache {
+  //// CONSTANT LITERALS ////
+  public static int TRANSACTIONS_PER_CUSTOMER = Math.max(MvcController.MAX_NUM_TRANSACTIONS_DISPLAYED, MvcController.MAX_REVERSABLE_TRANSACTIONS_AGO);
+  public static int TRANSFERS_PER_CUSTOMER = MvcController.MAX_NUM_TRANSFERS_DISPLAYED;
+  private static int NUM_SEGMENTS = 16;
+  private static List<String> TRANSACTION_COLUMNS = Arrays.asList("CustomerID", "Timestamp", "Action", "Amount");
+  private static List<String> TRANSFER_COLUMNS = Arrays.asList("TransferFrom", "TransferTo", "Timestamp", "Amount");
+  private static int TRANSACTION_TIMESTAMP_COLUMN = TRANSACTION_COLUMNS.indexOf("Timestamp");
+  private static int TRANSFER_TIMESTAMP_COLUMN = TRANSFER_COLUMNS.indexOf("Timestamp");
+  private static DateTimeFormatter SQL_DATETIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+  // rough heap use of a cached customer (entry, key, map node, rings) and of a cached row (array, timestamp, boxed amount)
+  private static int ESTIMATED_BYTES_PER_CUSTOMER = 256;
+  private static int ESTIMATED_BYTES_PER_ROW = 160;
+
+  private final Segment[] segments = new Segment[NUM_SEGMENTS];
+  private final LongAdder numHits = new LongAdder();
+  private final LongAdder numMisses = new LongAdder();
+  private final long idleMillis;
+
+  @Autowired
+  public RecentActivityCache(@Value("${testudobank.recent-activity.max-customers:100000}") int maxCustomers,
+                             @Value("${testudobank.recent-activity.idle-millis:600000}") long idleMillis) {
+    this.idleMillis = idleMillis;
+    for (int i = 0; i < NUM_SEGMENTS; i++) {
+      segments[i] = new Segment(Math.max(1, maxCustomers / NUM_SEGMENTS));
+    }
+  }
+
+  // Cache of the default size and idle time, for routers built outside of Spring
+  public RecentActivityCache() {
+    this(100000, 10 * 60 * 1000);
+  }
+
+  //// READS ////
+
+  /**
+   * Returns the customer's newest transactions, like TestudoBankRepository.getRecentTransactions.
+   *
+   * @param loader queries MySQL for the given number of newest rows
+   */
+  List<Map<String,Object>> getRecentTransactions(JdbcTemplate jdbcTemplate, String customerID, int numTransactions,
+                                                 IntFunction<List<Map<String,Object>>> loader) {
+    return read(jdbcTemplate, customerID, true, numTransactions, loader);
+  }
+
+  /**
+   * Returns the customer's newest sent or received transfers, like TestudoBankRepository.getTransferLogs.
+   *
+   * @param loader queries MySQL for the given number of newest rows
+   */
+  List<Map<String,Object>> getTransferLogs(JdbcTemplate jdbcTemplate, String customerID, int numTransfers,
+                                           IntFunction<List<Map<String,Object>>> loader) {
+    return read(jdbcTemplate, customerID, false, numTransfers, loader);
+  }
+
+  private List<Map<String,Object>> read(JdbcTemplate jdbcTemplate, String customerID, boolean isTransactions, int numRows,
+                                        IntFunction<List<Map<String,Object>>> loader) {
+    int ringSize = isTransactions ? TRANSACTIONS_PER_CUSTOMER : TRANSFERS_PER_CUSTOMER;
+    if (numRows > ringSize || TransactionSynchronizationManager.isActualTransactionActive()) {
+      return loader.apply(numRows);
+    }
+
+    Key key = new Key(jdbcTemplate.getDataSource(), customerID);
+    Segment segment = segmentFor(key);
+    CachedCustomer entry;
+    long writeEpoch;
+    synchronized (segment) {
+      entry = segment.getOrCreate(key);
+      entry.lastAccessMillis = System.currentTimeMillis();
+      Ring ring = isTransactions ? entry.transactions : entry.transfers;
+      if (ring != null) {
+        numHits.increment();
+        return ring.toRows(isTransactions ? TRANSACTION_COLUMNS : TRANSFER_COLUMNS, numRows);
+      }
+      writeEpoch = entry.writeEpoch;
+    }
+
+    numMisses.increment();
+    List<Map<String,Object>> rows = loader.apply(ringSize);
+    synchronized (segment) {
+      boolean isLoaded = (isTransactions ? entry.transactions : entry.transfers) != null;
+      if (segment.entries.get(key) == entry && !isLoaded && entry.numPendingWrites == 0 && entry.writeEpoch == writeEpoch) {
+        Ring ring = new Ring(ringSize, isTransactions ? TRANSACTION_TIMESTAMP_COLUMN : TRANSFER_TIMESTAMP_COLUMN);
+        // rows come newest first, so add them oldest first
+        for (int i = rows.size() - 1; i >= 0; i--) {
+          ring.add(toValues(rows.get(i), isTransactions ? TRANSACTION_COLUMNS : TRANSFER_COLUMNS));
+        }
+        if (isTransactions) {
+          entry.transactions = ring;
+        } else {
+          entry.transfers = ring;
+        }
+        segment.numRows += ring.size;
+      }
+    }
+    return rows.subList(0, Math.min(numRows, rows.size()));
+  }
+
+  //// WRITES ////
+
+  /**
+   * Runs the insert of the given history rows, and adds them to the cached rings of every customer they belong to
+   * once they are committed: right away outside of a transaction, or after the surrounding transaction commits.
+   *
+   * @param transactionLogs rows of {CustomerID, Timestamp, Action, Amount}
+   * @param transferLogs rows of {TransferFrom, TransferTo, Timestamp, Amount}
+   */
+  void writeThrough(JdbcTemplate jdbcTemplate, List<Object[]> transactionLogs, List<Object[]> transferLogs, Runnable insert) {
+    DataSource dataSource = jdbcTemplate.getDataSource();
+    Map<Key,List<List<Object[]>>> rowsByKey = new LinkedHashMap<>();
+    for (Object[] transactionLog : transactionLogs) {
+      rowsFor(rowsByKey, new Key(dataSource, (String) transactionLog[0])).get(0).add(transactionLog);
+    }
+    for (Object[] transferLog : transferLogs) {
+      rowsFor(rowsByKey, new Key(dataSource, (String) transferLog[0])).get(1).add(transferLog);
+      if (!transferLog[1].equals(transferLog[0])) {
+        rowsFor(rowsByKey, new Key(dataSource, (String) transferLog[1])).get(1).add(transferLog);
+      }
+    }
+
+    // mark the writes as in flight before the rows can be seen, so no ring gets loaded with them and then sees them again
+    Map<Key,CachedCustomer> entries = new LinkedHashMap<>();
+    for (Key key : rowsByKey.keySet()) {
+      Segment segment = segmentFor(key);
+      synchronized (segment) {
+        CachedCustomer entry = segment.getOrCreate(key);
+        entry.numPendingWrites++;
+        entry.lastAccessMillis = System.currentTimeMillis();
+        entries.put(key, entry);
+      }
+    }
+
+    try {
+      insert.run();
+    } catch (RuntimeException e) {
+      finishWrites(entries, rowsByKey, false);
+      throw e;
+    }
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      finishWrites(entries, rowsByKey, true);
+      return;
+    }
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+      @Override
+      public void afterCompletion(int status) {
+        finishWrites(entries, rowsByKey, status == STATUS_COMMITTED);
+      }
+    });
+  }
+
+  private void finishWrites(Map<Key,CachedCustomer> entries, Map<Key,List<List<Object[]>>> rowsByKey, boolean isCommitted) {
+    for (Map.Entry<Key,CachedCustomer> keyAndEntry : entries.entrySet()) {
+      Segment segment = segmentFor(keyAndEntry.getKey());
+      synchronized (segment) {
+        CachedCustomer entry = keyAndEntry.getValue();
+        entry.numPendingWrites--;
+        if (!isCommitted) {
+          continue;
+        }
+        entry.writeEpoch++;
+        List<List<Object[]>> rows = rowsByKey.get(keyAndEntry.getKey());
+        for (int i = 0; i < 2; i++) {
+          Ring ring = i == 0 ? entry.transactions : entry.transfers;
+          if (ring == null) {
+            continue;
+          }
+          for (Object[] row : rows.get(i)) {
+            segment.numRows -= ring.size;
+            ring.add(normalize(row, ring.timestampColumn));
+            segment.numRows += ring.size;
+          }
+        }
+      }
+    }
+  }
+
+  // Returns the key's {transaction rows, transfer rows}
+  private static List<List<Object[]>> rowsFor(Map<Key,List<List<Object[]>>> rowsByKey, Key key) {
+    return rowsByKey.computeIfAbsent(key, k -> {
+      List<List<Object[]>> rows = new ArrayList<>();
+      rows.add(new ArrayList<>());
+      rows.add(new ArrayList<>());
+      return rows;
+    });
+  }
+
+  //// EVICTION ////
+
+  // Drops every cached customer. Call after history rows were changed other than by inserts, e.g. dropped partitions.
+  public void clear() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        Iterator<CachedCustomer> entries = segment.entries.values().iterator();
+        while (entries.hasNext()) {
+          CachedCustomer entry = entries.next();
+          // an entry with a write in flight stays, without rings, so the write's bookkeeping still applies
+          if (entry.numPendingWrites == 0) {
+            entries.remove();
+          }
+          entry.transactions = null;
+          entry.transfers = null;
+          entry.writeEpoch++;
+        }
+        segment.numRows = 0;
+      }
+    }
+  }
+
+  @Scheduled(fixedDelayString = "${testudobank.recent-activity.sweep-interval-millis:60000}")
+  public void evictIdleCustomers() {
+    evictIdleCustomers(System.currentTimeMillis() - idleMillis);
+  }
+
+  /**
+   * Evicts every customer that wasn't read or written since idleSinceMillis.
+   *
+   * @return number of customers evicted
+   */
+  public int evictIdleCustomers(long idleSinceMillis) {
+    int numEvicted = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        // entries are in access order, so the idle ones come first
+        Iterator<CachedCustomer> entries = segment.entries.values().iterator();
+        while (entries.hasNext()) {
+          CachedCustomer entry = entries.next();
+          if (entry.lastAccessMillis >= idleSinceMillis) {
+            break;
+          }
+          if (entry.numPendingWrites == 0) {
+            segment.numRows -= entry.numRows();
+            entries.remove();
+            numEvicted++;
+          }
+        }
+      }
+    }
+    return numEvicted;
+  }
+
+  //// STATS ////
+
+  public Stats stats() {
+    long numCustomers = 0;
+    long numRows = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        numCustomers += segment.entries.size();
+        numRows += segment.numRows;
+      }
+    }
+    return new Stats(numHits.sum(), numMisses.sum(), numCustomers, numRows,
+                     numCustomers * ESTIMATED_BYTES_PER_CUSTOMER + numRows * ESTIMATED_BYTES_PER_ROW);
+  }
+
+  public static class Stats {
+    @Getter
+    private final long numHits;
+    @Getter
+    private final long numMisses;
+    @Getter
+    private final long numCustomers;
+    @Getter
+    private final long numRows;
+    // estimate of the heap held by cached customers and rows
+    @Getter
+    private final long estimatedBytes;
+
+    private Stats(long numHits, long numMisses, long numCustomers, long numRows, long estimatedBytes) {
+      this.numHits = numHits;
+      this.numMisses = numMisses;
+      this.numCustomers = numCustomers;
+      this.numRows = numRows;
+      this.estimatedBytes = estimatedBytes;
+    }
+
+    public double getHitRatio() {
+      return numHits + numMisses == 0 ? 0 : (double) numHits / (numHits + numMisses);
+    }
+  }
+
+  //// INTERNALS ////
+
+  private Segment segmentFor(Key key) {
+    return segments[(int) (ShardRouter.fnv1a64(key.customerID) & (NUM_SEGMENTS - 1))];
+  }
+
+  // Column values of a row read from MySQL, in table order
+  private static Object[] toValues(Map<String,Object> row, List<String> columns) {
+    Object[] values = new Object[columns.size()];
+    for (int i = 0; i < columns.size(); i++) {
+      values[i] = row.get(columns.get(i));
+    }
+    return values;
+  }
+
+  // Converts a row being inserted to the types MySQL returns it with: a LocalDateTime Timestamp and an Integer Amount
+  private static Object[] normalize(Object[] row, int timestampColumn) {
+    Object[] values = row.clone();
+    if (!(values[timestampColumn] instanceof LocalDateTime)) {
+      values[timestampColumn] = LocalDateTime.parse(values[timestampColumn].toString(), SQL_DATETIME_FORMATTER);
+    }
+    values[values.length - 1] = ((Number) values[values.length - 1]).intValue();
+    return values;
+  }
+
+  private static class Segment {
+    private final LinkedHashMap<Key,CachedCustomer> entries;
+    private long numRows = 0;
+
+    private Segment(int maxCustomers) {
+      this.entries = new LinkedHashMap<Key,CachedCustomer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key,CachedCustomer> eldest) {
+          // an entry with a write in flight must stay until the write finishes
+          if (size() > maxCustomers && eldest.getValue().numPendingWrites == 0) {
+            numRows -= eldest.getValue().numRows();
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+
+    private CachedCustomer getOrCreate(Key key) {
+      CachedCustomer entry = entries.get(key);
+      if (entry == null) {
+        entry = new CachedCustomer();
+        entries.put(key, entry);
+      }
+      return entry;
+    }
+  }
+
+  private static class CachedCustomer {
+    // null until loaded from MySQL
+    private Ring transactions;
+    private Ring transfers;
+    private int numPendingWrites = 0;
+    // bumped by every committed write, so a load that overlapped one is thrown away
+    private long writeEpoch = 0;
+    private long lastAccessMillis = System.currentTimeMillis();
+
+    private int numRows() {
+      return (transactions == null ? 0 : transactions.size) + (transfers == null ? 0 : transfers.size);
+    }
+  }
+
+  // The newest rows of one history table, ordered by Timestamp with the newest first. A row added with the same
+  // Timestamp as cached rows counts as newer than them.
+  private static class Ring {
+    private final Object[][] rows;
+    private final int timestampColumn;
+    private int size = 0;
+
+    private Ring(int capacity, int timestampColumn) {
+      this.rows = new Object[capacity][];
+      this.timestampColumn = timestampColumn;
+    }
+
+    private void add(Object[] row) {
+      LocalDateTime timestamp = (LocalDateTime) row[timestampColumn];
+      int position = 0;
+      while (position < size && timestamp.isBefore((LocalDateTime) rows[position][timestampColumn])) {
+        position++;
+      }
+      if (position == rows.length) {
+        return;
+      }
+      int numToShift = Math.min(size, rows.length - 1) - position;
+      System.arraycopy(rows, position, rows, position + 1, numToShift);
+      rows[position] = row;
+      size = Math.min(size + 1, rows.length);
+    }
+
+    private List<Map<String,Object>> toRows(List<String> columns, int numRows) {
+      List<Map<String,Object>> result = new ArrayList<>();
+      for (int i = 0; i < Math.min(numRows, size); i++) {
+        Map<String,Object> row = new LinkedCaseInsensitiveMap<>(columns.size());
+        for (int c = 0; c < columns.size(); c++) {
+          row.put(columns.get(c), rows[i][c]);
+        }
+        result.add(row);
+      }
+      return result;
+    }
+  }
+
+  private static class Key {
+    private final DataSource dataSource;
+    private final String customerID;
+
+    private Key(DataSource dataSource, String customerID) {
+      this.dataSource = dataSource;
+      this.customerID = customerID;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Key && ((Key) other).dataSource == dataSource && ((Key) other).customerID.equals(customerID);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(dataSource) + customerID.hashCode();
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package net.testudobank;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Serves recipient suggestions for the transfer form's autocomplete as JSON, from the in-memory
+ * {@link RecipientIndex}, so typing a recipient never queries MySQL.
+ */
+@Controller
+public class RecipientController {
+  //// CONSTANT LITERALS ////
+  // shorter prefixes would page through every customer a few at a time
+  private static int MIN_PREFIX_LENGTH = 2;
+  private static int MAX_SUGGESTIONS = 20;
+
+  private final RecipientIndex recipientIndex;
+
+  @Autowired
+  public RecipientController(RecipientIndex recipientIndex) {
+    this.recipientIndex = recipientIndex;
+  }
+
+  /**
+   * JSON GET request handler for customers whose CustomerID, first name or last name starts with the prefix,
+   * ignoring case. Prefixes shorter than MIN_PREFIX_LENGTH get no suggestions.
+   *
+   * @param prefix what the customer typed so far
+   * @param limit most suggestions to return, capped at MAX_SUGGESTIONS
+   */
+  @GetMapping("/api/recipients")
+  @ResponseBody
+  public List<PrefixIndex.Recipient> suggestRecipients(@RequestParam("prefix") String prefix,
+                                                       @RequestParam(value = "limit", defaultValue = "10") int limit) {
+    String trimmedPrefix = prefix.trim();
+    if (trimmedPrefix.length() < MIN_PREFIX_LENGTH || limit <= 0) {
+      return Collections.emptyList();
+    }
+    return recipientIndex.search(trimmedPrefix, Math.min(limit, MAX_SUGGESTIONS));
+  }
+}
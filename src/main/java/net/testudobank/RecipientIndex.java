@@ -0,0 +1,115 @@
+package net.testudobank;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Prefix search over every customer's CustomerID, FirstName and LastName for the transfer form's recipient
+ * autocomplete, served from a {@link PrefixIndex} instead of LIKE scans over Customers.
+ * <p>
+ * The index is built by streaming Customers from every shard at startup, and rebuilt every
+ * `testudobank.recipient-index.rebuild-interval-millis`. Customers passed to {@link #add(String, String, String)} in
+ * between are kept in a small list that is searched alongside the index, until a rebuild has them. The app itself
+ * doesn't create customers, so ones created by python-sql-scripts/addCustomers.py show up from the next rebuild on.
+ * When disabled, the index stays empty and only added customers are found.
+ */
+@Component
+public class RecipientIndex {
+  private final ShardRouter shardRouter;
+  private final boolean isEnabled;
+
+  private volatile PrefixIndex index = new PrefixIndex.Builder().build();
+  // customers added since the scan of the index started, oldest first
+  private final List<PrefixIndex.Recipient> recentlyAdded = new ArrayList<>();
+
+  @Autowired
+  public RecipientIndex(ShardRouter shardRouter, @Value("${testudobank.recipient-index.enabled:true}") boolean isEnabled) {
+    this.shardRouter = shardRouter;
+    this.isEnabled = isEnabled;
+  }
+
+  /**
+   * Returns up to limit customers whose CustomerID, FirstName or LastName starts with the prefix, ignoring case.
+   */
+  public List<PrefixIndex.Recipient> search(String prefix, int limit) {
+    Map<String,PrefixIndex.Recipient> matches = new LinkedHashMap<>();
+    for (PrefixIndex.Recipient recipient : index.search(prefix, limit)) {
+      matches.put(recipient.getCustomerID(), recipient);
+    }
+    String key = prefix.toLowerCase(Locale.ROOT);
+    synchronized (recentlyAdded) {
+      for (PrefixIndex.Recipient recipient : recentlyAdded) {
+        boolean isMatch = recipient.getCustomerID().startsWith(prefix) || startsWithIgnoringCase(recipient.getFirstName(), key)
+                          || startsWithIgnoringCase(recipient.getLastName(), key);
+        // a customer added again replaces their indexed names
+        if (isMatch && (matches.size() < limit || matches.containsKey(recipient.getCustomerID()))) {
+          matches.put(recipient.getCustomerID(), recipient);
+        }
+      }
+    }
+    return new ArrayList<>(matches.values());
+  }
+
+  // Account creation hook: call once the new customer is committed
+  public void add(String customerID, String firstName, String lastName) {
+    synchronized (recentlyAdded) {
+      recentlyAdded.add(new PrefixIndex.Recipient(customerID, firstName, lastName));
+    }
+  }
+
+  public int size() {
+    return index.size();
+  }
+
+  public long estimatedBytes() {
+    return index.estimatedBytes();
+  }
+
+  @Scheduled(initialDelay = 0, fixedDelayString = "${testudobank.recipient-index.rebuild-interval-millis:3600000}")
+  public void rebuildIfEnabled() {
+    if (isEnabled) {
+      long startTime = System.currentTimeMillis();
+      int numCustomers = rebuild();
+      System.out.println(String.format("Built recipient index of %d customers in %dms", numCustomers, System.currentTimeMillis() - startTime));
+    }
+  }
+
+  /**
+   * Builds a new index from every customer on every shard, and swaps it in.
+   *
+   * @return number of customers in the new index
+   */
+  public synchronized int rebuild() {
+    int numAddedBeforeScan;
+    synchronized (recentlyAdded) {
+      numAddedBeforeScan = recentlyAdded.size();
+    }
+    PrefixIndex.Builder builder = new PrefixIndex.Builder();
+    for (JdbcTemplate shard : shardRouter.getShards()) {
+      TestudoBankRepository.streamCustomerProfiles(shard, resultSet -> {
+        builder.add(resultSet.getString("CustomerID"), resultSet.getString("FirstName"), resultSet.getString("LastName"));
+      });
+    }
+    PrefixIndex newIndex = builder.build();
+
+    // customers added before the scan started are in the new index; later ones may not be, so they stay
+    synchronized (recentlyAdded) {
+      index = newIndex;
+      recentlyAdded.subList(0, numAddedBeforeScan).clear();
+    }
+    return newIndex.size();
+  }
+
+  private static boolean startsWithIgnoringCase(String name, String key) {
+    return name != null && name.regionMatches(true, 0, key, 0, key.length());
+  }
+}
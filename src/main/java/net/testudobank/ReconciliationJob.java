@@ -0,0 +1,211 @@
+package net.testudobank;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import lombok.Getter;
+
+/**
+ * Nightly check that every customer's Balance and OverdraftBalance columns agree with the balances implied by
+ * their LedgerEntries. Customers that disagree are recorded in the ReconciliationMismatches table and in a CSV
+ * file at `<reconciliation-dir>/reconciliation-<run timestamp>.csv`.
+ * <p>
+ * Each shard's customers are split into CustomerID ranges that are checked in parallel. A range is one streaming
+ * query that joins the range's Customers rows with its ledger sums, which MySQL reads from the LedgerEntries
+ * (CustomerID, Account, EntryID, Amount) index alone, so the scan never touches the ledger's table rows. Each
+ * query reads one consistent snapshot, and balances and their ledger entries are always written in the same
+ * transaction, so changes made while the job runs don't show up as mismatches.
+ * <p>
+ * Progress (ranges and customers checked, mismatches and ledger throughput) is printed at most every
+ * {@link #PROGRESS_INTERVAL_IN_MILLIS}. The job is skipped while the {@link BalanceEngine} or the
+ * {@link MutationSequencer} is enabled, since their balances reach MySQL after their ledger entries.
+ */
+@Component
+public class ReconciliationJob {
+  //// CONSTANT LITERALS ////
+  private static java.text.SimpleDateFormat SQL_DATETIME_FORMATTER = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+  private static java.text.SimpleDateFormat FILE_NAME_FORMATTER = new java.text.SimpleDateFormat("yyyyMMdd-HHmmss");
+  private static String MISMATCHES_FILE_HEADER = "CustomerID,Balance,ExpectedBalance,OverdraftBalance,ExpectedOverdraftBalance\n";
+  private static int RANGES_PER_WORKER = 16;
+  public static long PROGRESS_INTERVAL_IN_MILLIS = 10000;
+
+  private final ShardRouter shardRouter;
+  private final BalanceEngine balanceEngine;
+  private final MutationSequencer mutationSequencer;
+  private final int numWorkers;
+  private final String reconciliationDir;
+
+  @Autowired
+  public ReconciliationJob(ShardRouter shardRouter, BalanceEngine balanceEngine, MutationSequencer mutationSequencer,
+                           @Value("${testudobank.reconciliation.workers:4}") int numWorkers,
+                           @Value("${testudobank.reconciliation.dir:reconciliation}") String reconciliationDir) {
+    this.shardRouter = shardRouter;
+    this.balanceEngine = balanceEngine;
+    this.mutationSequencer = mutationSequencer;
+    this.numWorkers = numWorkers;
+    this.reconciliationDir = reconciliationDir;
+  }
+
+  /**
+   * Reconciles every shard.
+   * <p>
+   * This method is scheduled to run at 4am by default, after the nightly interest accrual.
+   */
+  @Scheduled(cron = "${testudobank.reconciliation.cron:0 0 4 * * *}")
+  public void reconcile() {
+    if (balanceEngine.isEnabled() || mutationSequencer.isEnabled()) {
+      return;
+    }
+    java.util.Date runDate = new java.util.Date();
+    Path mismatchesFile = Paths.get(reconciliationDir).resolve("reconciliation-" + FILE_NAME_FORMATTER.format(runDate) + ".csv");
+    try {
+      Progress progress = reconcile(shardRouter.getShards(), SQL_DATETIME_FORMATTER.format(runDate), mismatchesFile, numWorkers);
+      System.out.println("Reconciliation finished: " + progress);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // Counters of a reconciliation run, updated by every worker as ranges finish
+  public static class Progress {
+    private final long startTime = System.nanoTime();
+    private final AtomicLong lastReportTime = new AtomicLong(System.currentTimeMillis());
+    private final AtomicLong numRangesChecked = new AtomicLong();
+    private final AtomicLong numCustomersChecked = new AtomicLong();
+    private final AtomicLong numLedgerEntriesChecked = new AtomicLong();
+    private final AtomicLong numMismatches = new AtomicLong();
+    @Getter
+    private volatile long numRanges = 0;
+
+    public long getNumRangesChecked() {
+      return numRangesChecked.get();
+    }
+
+    public long getNumCustomersChecked() {
+      return numCustomersChecked.get();
+    }
+
+    public long getNumLedgerEntriesChecked() {
+      return numLedgerEntriesChecked.get();
+    }
+
+    public long getNumMismatches() {
+      return numMismatches.get();
+    }
+
+    public double getElapsedSeconds() {
+      return (System.nanoTime() - startTime) / 1e9;
+    }
+
+    @Override
+    public String toString() {
+      double seconds = getElapsedSeconds();
+      return String.format("%d/%d ranges, %d customers, %d mismatches, %d ledger entries in %.1fs (%.0f entries/sec)",
+                           numRangesChecked.get(), numRanges, numCustomersChecked.get(), numMismatches.get(),
+                           numLedgerEntriesChecked.get(), seconds, numLedgerEntriesChecked.get() / Math.max(seconds, 1e-9));
+    }
+
+    private void rangeChecked(long numCustomers, long numLedgerEntries, long numMismatchesInRange) {
+      numRangesChecked.incrementAndGet();
+      numCustomersChecked.addAndGet(numCustomers);
+      numLedgerEntriesChecked.addAndGet(numLedgerEntries);
+      numMismatches.addAndGet(numMismatchesInRange);
+      long lastReport = lastReportTime.get();
+      long now = System.currentTimeMillis();
+      if (now - lastReport >= PROGRESS_INTERVAL_IN_MILLIS && lastReportTime.compareAndSet(lastReport, now)) {
+        System.out.println("Reconciliation progress: " + this);
+      }
+    }
+  }
+
+  /**
+   * Reconciles the given shards, checking numWorkers ranges of a shard at a time, and records every mismatch
+   * under runTimestamp in each shard's ReconciliationMismatches table and in mismatchesFile.
+   *
+   * @return the final counters of the run
+   */
+  public static Progress reconcile(List<JdbcTemplate> shards, String runTimestamp, Path mismatchesFile, int numWorkers) throws IOException {
+    Progress progress = new Progress();
+    if (mismatchesFile.getParent() != null) {
+      Files.createDirectories(mismatchesFile.getParent());
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+    try (Writer mismatchesWriter = Files.newBufferedWriter(mismatchesFile, StandardCharsets.UTF_8)) {
+      mismatchesWriter.write(MISMATCHES_FILE_HEADER);
+      for (JdbcTemplate shard : shards) {
+        List<String> rangeBoundaries = TestudoBankRepository.getCustomerIDRangeBoundaries(shard, numWorkers * RANGES_PER_WORKER, false);
+        progress.numRanges += rangeBoundaries.size();
+        List<Future<?>> rangeResults = new ArrayList<>();
+        for (int i = 0; i < rangeBoundaries.size(); i++) {
+          String afterCustomerID = rangeBoundaries.get(i);
+          String rangeEnd = i + 1 < rangeBoundaries.size() ? rangeBoundaries.get(i + 1) : null;
+          rangeResults.add(executor.submit(() -> reconcileRange(shard, afterCustomerID, rangeEnd, runTimestamp, mismatchesWriter, progress)));
+        }
+        for (Future<?> rangeResult : rangeResults) {
+          rangeResult.get();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while reconciling balances", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    return progress;
+  }
+
+  private static void reconcileRange(JdbcTemplate jdbcTemplate, String afterCustomerID, String rangeEnd, String runTimestamp,
+                                     Writer mismatchesWriter, Progress progress) {
+    List<Object[]> mismatches = new ArrayList<>();
+    long[] numCustomers = {0};
+    long[] numLedgerEntries = {0};
+    TestudoBankRepository.streamReconciliationRange(jdbcTemplate, afterCustomerID, rangeEnd, resultSet -> {
+      numCustomers[0]++;
+      numLedgerEntries[0] += resultSet.getLong(6);
+      int balance = resultSet.getInt(2);
+      int overdraftBalance = resultSet.getInt(3);
+      long expectedBalance = resultSet.getLong(4);
+      long expectedOverdraftBalance = resultSet.getLong(5);
+      if (balance != expectedBalance || overdraftBalance != expectedOverdraftBalance) {
+        mismatches.add(new Object[] {runTimestamp, resultSet.getString(1), balance, expectedBalance, overdraftBalance, expectedOverdraftBalance});
+      }
+    });
+    TestudoBankRepository.insertRowsToReconciliationMismatchesTable(jdbcTemplate, mismatches);
+
+    StringBuilder mismatchLines = new StringBuilder();
+    for (Object[] mismatch : mismatches) {
+      mismatchLines.append(String.format("%s,%s,%s,%s,%s\n", mismatch[1], mismatch[2], mismatch[3], mismatch[4], mismatch[5]));
+    }
+    try {
+      synchronized (mismatchesWriter) {
+        mismatchesWriter.write(mismatchLines.toString());
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    progress.rangeChecked(numCustomers[0], numLedgerEntries[0], mismatches.size());
+  }
+}
@@ -0,0 +1,150 @@
+package net.testudobank;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Tool that moves customers' rows to their new shard after shards are added to a {@link ShardRouter}.
+ * <p>
+ * The target layout must list the current shards first, in the same order, followed by the new shards
+ * (this is how `testudobank.shards.urls` grows). Because routing uses jump consistent hashing, customers
+ * only ever move from an existing shard to one of the new shards.
+ * <p>
+ * Each customer is moved by copying their rows into the target shard in one transaction, and then
+ * deleting them from the source shard in a second transaction. Re-running the tool after a crash is safe:
+ * the copy step first clears any rows of the customer already on the target. Transfer logs are shared by the two
+ * parties of a transfer, so they are copied only if the target doesn't have them yet, and stay on the source shard
+ * until both parties have left it. Run it while the app is stopped (or the moving customers are otherwise idle),
+ * since writes made between the copy and delete would be lost.
+ */
+public class ShardRebalancer {
+  // Every table holding per-customer rows, keyed by the column that identifies the owning customer
+  private static final List<String[]> CUSTOMER_TABLES = Arrays.asList(
+    new String[] {"Customers", "CustomerID"},
+    new String[] {"Passwords", "CustomerID"},
+    new String[] {"OverdraftLogs", "CustomerID"},
+    new String[] {"TransactionHistory", "CustomerID"},
+    new String[] {"CustomerDailyRollups", "CustomerID"},
+    new String[] {"AccountViews", "CustomerID"},
+    new String[] {"CryptoHoldings", "CustomerID"},
+    new String[] {"CryptoHistory", "CustomerID"},
+    new String[] {"TransferSagas", "TransferFrom"},
+    new String[] {"TransferSagaCredits", "CustomerID"},
+    new String[] {"LedgerEntries", "CustomerID"},
+    new String[] {"IdempotencyKeys", "CustomerID"}
+  );
+
+  // Columns that the target shard assigns fresh values for, instead of copying them: auto-increment IDs, and the
+  // AccountViews watermark, which counts the source shard's outbox events and starts over at 0 on the target
+  private static final List<String> GENERATED_COLUMNS = Arrays.asList("EntryID", "LastEventID");
+
+  /**
+   * Moves every customer whose shard differs between the two layouts.
+   *
+   * @param currentLayout router that customers are currently placed by
+   * @param targetLayout router with the same leading shards as currentLayout, plus any new shards
+   * @return number of customers moved
+   */
+  public static int rebalance(ShardRouter currentLayout, ShardRouter targetLayout) {
+    if (targetLayout.getNumShards() < currentLayout.getNumShards()) {
+      throw new IllegalArgumentException("Removing shards is not supported; the target layout must keep every current shard");
+    }
+
+    int numCustomersMoved = 0;
+    for (int sourceShardIndex = 0; sourceShardIndex < currentLayout.getNumShards(); sourceShardIndex++) {
+      JdbcTemplate sourceShard = currentLayout.getShard(sourceShardIndex);
+      List<String> customerIDs = sourceShard.queryForList("SELECT CustomerID FROM Customers;", String.class);
+      for (String customerID : customerIDs) {
+        int targetShardIndex = targetLayout.shardIndexFor(customerID);
+        if (targetShardIndex != sourceShardIndex) {
+          moveCustomer(currentLayout, targetLayout, sourceShardIndex, customerID);
+          numCustomersMoved++;
+        }
+      }
+      System.out.println(String.format("Rebalanced shard %d: %d customers moved so far", sourceShardIndex, numCustomersMoved));
+    }
+    // history rows were copied and deleted without going through either layout's cache
+    currentLayout.getRecentActivityCache().clear();
+    targetLayout.getRecentActivityCache().clear();
+    return numCustomersMoved;
+  }
+
+  private static void moveCustomer(ShardRouter currentLayout, ShardRouter targetLayout, int sourceShardIndex, String customerID) {
+    JdbcTemplate sourceShard = currentLayout.getShard(sourceShardIndex);
+    JdbcTemplate targetShard = targetLayout.jdbcTemplateFor(customerID);
+
+    // copy all rows for the customer onto the target shard
+    targetLayout.transactionTemplateFor(customerID).execute(status -> {
+      for (String[] table : CUSTOMER_TABLES) {
+        copyRows(sourceShard, targetShard, table[0], table[1] + " = ?", customerID);
+      }
+      copyMissingRows(sourceShard, targetShard, "TransferHistory", "TransferFrom = ? OR TransferTo = ?", customerID, customerID);
+      // the copied ledger entries get EntryIDs past the target's latest snapshot run, so the customer's balances
+      // are derived from those entries alone until the target's next snapshot run folds them in
+      targetShard.update("DELETE FROM LedgerSnapshots WHERE CustomerID = ?", customerID);
+      return null;
+    });
+
+    // then remove them from the source shard
+    currentLayout.transactionTemplateFor(customerID).execute(status -> {
+      for (String[] table : CUSTOMER_TABLES) {
+        sourceShard.update(String.format("DELETE FROM %s WHERE %s = ?", table[0], table[1]), customerID);
+      }
+      sourceShard.update("DELETE FROM LedgerSnapshots WHERE CustomerID = ?", customerID);
+      // a transfer log is kept on the source shard while the other party of the transfer still lives there,
+      // either for good or until their own move copies it
+      List<Map<String,Object>> transferLogs = sourceShard.queryForList("SELECT * FROM TransferHistory WHERE TransferFrom = ? OR TransferTo = ?", customerID, customerID);
+      for (Map<String,Object> transferLog : transferLogs) {
+        String otherPartyID = customerID.equals(transferLog.get("TransferFrom")) ? (String) transferLog.get("TransferTo") : (String) transferLog.get("TransferFrom");
+        if (sourceShard.queryForObject("SELECT COUNT(*) FROM Customers WHERE CustomerID = ?", Integer.class, otherPartyID) == 0) {
+          sourceShard.update("DELETE FROM TransferHistory WHERE TransferFrom = ? AND TransferTo = ? AND Timestamp = ? AND Amount = ? LIMIT 1",
+                             transferLog.get("TransferFrom"), transferLog.get("TransferTo"), transferLog.get("Timestamp"), transferLog.get("Amount"));
+        }
+      }
+      return null;
+    });
+    currentLayout.getCustomerProfileCache().invalidate(sourceShard, customerID);
+  }
+
+  // Replaces the rows matching whereClause on the target shard with the matching rows from the source shard
+  private static void copyRows(JdbcTemplate sourceShard, JdbcTemplate targetShard, String tableName, String whereClause, Object... args) {
+    targetShard.update(String.format("DELETE FROM %s WHERE %s", tableName, whereClause), args);
+    insertRows(targetShard, tableName, sourceShard.queryForList(String.format("SELECT * FROM %s WHERE %s", tableName, whereClause), args));
+  }
+
+  // Copies the rows matching whereClause from the source shard that the target shard doesn't have yet, keeping the
+  // target's own rows. Identical rows are counted, so two equal transfers in the same second are both kept.
+  private static void copyMissingRows(JdbcTemplate sourceShard, JdbcTemplate targetShard, String tableName, String whereClause, Object... args) {
+    String selectSql = String.format("SELECT * FROM %s WHERE %s", tableName, whereClause);
+    List<Map<String,Object>> missingRows = sourceShard.queryForList(selectSql, args);
+    for (Map<String,Object> targetRow : targetShard.queryForList(selectSql, args)) {
+      missingRows.remove(targetRow);
+    }
+    insertRows(targetShard, tableName, missingRows);
+  }
+
+  private static void insertRows(JdbcTemplate targetShard, String tableName, List<Map<String,Object>> rows) {
+    if (rows.isEmpty()) {
+      return;
+    }
+    List<String> columns = new ArrayList<>(rows.get(0).keySet());
+    columns.removeAll(GENERATED_COLUMNS);
+    String placeholders = String.join(", ", Collections.nCopies(columns.size(), "?"));
+    String insertSql = String.format("INSERT INTO %s (%s) VALUES (%s)", tableName, String.join(", ", columns), placeholders);
+
+    List<Object[]> batchArgs = new ArrayList<>();
+    for (Map<String,Object> row : rows) {
+      Object[] values = new Object[columns.size()];
+      for (int i = 0; i < columns.size(); i++) {
+        values[i] = row.get(columns.get(i));
+      }
+      batchArgs.add(values);
+    }
+    targetShard.batchUpdate(insertSql, batchArgs);
+  }
+}
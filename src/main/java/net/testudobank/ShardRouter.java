@@ -0,0 +1,159 @@
+package net.testudobank;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import lombok.Getter;
+
+/**
+ * Routes every customer's rows (Customers, Passwords, ledger and holdings tables) to one of N
+ * MySQL shards, keyed by a hash of the CustomerID.
+ * <p>
+ * Shard 0 is always the primary `spring.datasource`. Additional shards are listed as comma-separated
+ * JDBC URLs in `testudobank.shards.urls` and share the primary's credentials. With no extra URLs
+ * configured, every customer routes to the primary and the app behaves exactly as a single-DB deployment.
+ * <p>
+ * Customers are assigned with jump consistent hashing (Lamping & Veach), so growing from N to N+1 shards
+ * only moves ~1/(N+1) of the customers. See {@link ShardRebalancer} for moving the rows after a resize.
+ * <p>
+ * The router also holds the in-memory caches of what its shards store, so every component serving customers from
+ * the same shards shares them.
+ */
+@Component
+public class ShardRouter {
+  private final List<JdbcTemplate> shardJdbcTemplates;
+  private final List<TransactionTemplate> shardTransactionTemplates;
+  @Getter
+  private final CustomerProfileCache customerProfileCache;
+  @Getter
+  private final RecentActivityCache recentActivityCache;
+  @Getter
+  private final CustomerIDFilter customerIDFilter;
+
+  @Autowired
+  public ShardRouter(JdbcTemplate jdbcTemplate,
+                     @Value("${testudobank.shards.urls:}") String additionalShardUrls,
+                     @Value("${spring.datasource.username:}") String username,
+                     @Value("${spring.datasource.password:}") String password,
+                     CustomerProfileCache customerProfileCache,
+                     RecentActivityCache recentActivityCache,
+                     CustomerIDFilter customerIDFilter) {
+    this(withAdditionalShards(jdbcTemplate, additionalShardUrls, username, password), customerProfileCache, recentActivityCache, customerIDFilter);
+  }
+
+  // Single-shard router where every customer lives in the given DB
+  public ShardRouter(JdbcTemplate jdbcTemplate) {
+    this(Collections.singletonList(jdbcTemplate));
+  }
+
+  public ShardRouter(List<JdbcTemplate> shardJdbcTemplates) {
+    this(shardJdbcTemplates, new CustomerProfileCache(), new RecentActivityCache(), new CustomerIDFilter());
+  }
+
+  private ShardRouter(List<JdbcTemplate> shardJdbcTemplates, CustomerProfileCache customerProfileCache, RecentActivityCache recentActivityCache,
+                      CustomerIDFilter customerIDFilter) {
+    if (shardJdbcTemplates.isEmpty()) {
+      throw new IllegalArgumentException("At least one shard is required");
+    }
+    this.shardJdbcTemplates = Collections.unmodifiableList(new ArrayList<>(shardJdbcTemplates));
+    List<TransactionTemplate> transactionTemplates = new ArrayList<>();
+    for (JdbcTemplate shard : shardJdbcTemplates) {
+      transactionTemplates.add(new TransactionTemplate(new DataSourceTransactionManager(shard.getDataSource())));
+    }
+    this.shardTransactionTemplates = Collections.unmodifiableList(transactionTemplates);
+    this.customerProfileCache = customerProfileCache;
+    this.recentActivityCache = recentActivityCache;
+    this.customerIDFilter = customerIDFilter;
+  }
+
+  private static List<JdbcTemplate> withAdditionalShards(JdbcTemplate primary, String additionalShardUrls, String username, String password) {
+    List<JdbcTemplate> shards = new ArrayList<>();
+    shards.add(primary);
+    for (String url : additionalShardUrls.split(",")) {
+      if (url.trim().isEmpty()) {
+        continue;
+      }
+      DataSource shardDataSource = DataSourceBuilder.create().url(url.trim()).username(username).password(password).build();
+      shards.add(new JdbcTemplate(shardDataSource));
+    }
+    return shards;
+  }
+
+  //// ROUTING ////
+
+  public int getNumShards() {
+    return shardJdbcTemplates.size();
+  }
+
+  public List<JdbcTemplate> getShards() {
+    return shardJdbcTemplates;
+  }
+
+  public JdbcTemplate getShard(int shardIndex) {
+    return shardJdbcTemplates.get(shardIndex);
+  }
+
+  public TransactionTemplate getShardTransactionTemplate(int shardIndex) {
+    return shardTransactionTemplates.get(shardIndex);
+  }
+
+  public int shardIndexFor(String customerID) {
+    return shardIndexFor(customerID, getNumShards());
+  }
+
+  public JdbcTemplate jdbcTemplateFor(String customerID) {
+    return shardJdbcTemplates.get(shardIndexFor(customerID));
+  }
+
+  /**
+   * Returns a TransactionTemplate bound to the customer's shard. Any JdbcTemplate calls made on
+   * {@link #jdbcTemplateFor(String)} inside the callback join the same local transaction.
+   */
+  public TransactionTemplate transactionTemplateFor(String customerID) {
+    return shardTransactionTemplates.get(shardIndexFor(customerID));
+  }
+
+  public boolean isSameShard(String customerID, String otherCustomerID) {
+    return shardIndexFor(customerID) == shardIndexFor(otherCustomerID);
+  }
+
+  /**
+   * Maps a CustomerID to a shard index in [0, numShards) using jump consistent hashing
+   * over a 64-bit FNV-1a hash of the ID.
+   */
+  public static int shardIndexFor(String customerID, int numShards) {
+    if (numShards == 1) {
+      return 0;
+    }
+    long key = fnv1a64(customerID);
+    long bucket = -1;
+    long nextBucket = 0;
+    while (nextBucket < numShards) {
+      bucket = nextBucket;
+      key = key * 2862933555777941757L + 1;
+      nextBucket = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+    }
+    return (int) bucket;
+  }
+
+  static long fnv1a64(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= (b & 0xff);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+}
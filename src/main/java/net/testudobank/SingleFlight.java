@@ -0,0 +1,85 @@
+package net.testudobank;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import lombok.Getter;
+
+/**
+ * Coalesces concurrent calls for the same key into one: the first caller runs the fetch, and every caller that
+ * asks for the key while that fetch is in flight waits for it and gets the same result (or exception) instead of
+ * running its own. Nothing is kept once the fetch completes, so the next call for the key runs a new fetch.
+ * <p>
+ * Callers that must not be served a result fetched before some change put a version of their data in the key, and
+ * bump it when the data changes.
+ */
+public class SingleFlight<K,V> {
+  private final ConcurrentHashMap<K,CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+  private final LongAdder numCalls = new LongAdder();
+  private final LongAdder numCoalesced = new LongAdder();
+
+  public V execute(K key, Supplier<V> fetch) {
+    numCalls.increment();
+    CompletableFuture<V> flight = new CompletableFuture<>();
+    CompletableFuture<V> leader = inFlight.putIfAbsent(key, flight);
+    if (leader != null) {
+      numCoalesced.increment();
+      return await(leader);
+    }
+
+    try {
+      V result = fetch.get();
+      flight.complete(result);
+      return result;
+    } catch (RuntimeException | Error e) {
+      flight.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, flight);
+    }
+  }
+
+  public Stats stats() {
+    return new Stats(numCalls.sum(), numCoalesced.sum(), inFlight.size());
+  }
+
+  /**
+   * numCoalesced is how many calls were served by another call's fetch, so numCalls - numCoalesced fetches ran.
+   */
+  public static class Stats {
+    @Getter
+    private final long numCalls;
+    @Getter
+    private final long numCoalesced;
+    @Getter
+    private final int numInFlight;
+
+    private Stats(long numCalls, long numCoalesced, int numInFlight) {
+      this.numCalls = numCalls;
+      this.numCoalesced = numCoalesced;
+      this.numInFlight = numInFlight;
+    }
+
+    public double getCoalescingRate() {
+      return numCalls == 0 ? 0 : (double) numCoalesced / numCalls;
+    }
+  }
+
+  // Waits for the leader's fetch, rethrowing its exception as is
+  private static <V> V await(CompletableFuture<V> leader) {
+    try {
+      return leader.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw e;
+    }
+  }
+}
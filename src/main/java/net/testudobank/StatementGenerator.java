@@ -0,0 +1,312 @@
+package net.testudobank;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import lombok.Getter;
+
+/**
+ * Monthly batch that writes a gzipped text statement for every customer to
+ * `<statements-dir>/<yyyy-MM>/<CustomerID>.txt.gz`.
+ * <p>
+ * A shard's statements are built from one forward-only streaming cursor per table (Customers, TransactionHistory,
+ * TransferHistory, CryptoHistory, OverdraftLogs, and the month's opening/closing balances summed from LedgerEntries),
+ * all ordered by CustomerID. The cursors are merge-joined on CustomerID, so there are no per-customer queries and
+ * only one customer's rows per cursor are held in memory while reading. Finished rows are handed to a pool of
+ * formatter threads through a bounded queue; when the formatters fall behind, the reading thread formats the
+ * statement itself, which keeps memory bounded without dropping work.
+ * <p>
+ * Each cursor holds its own connection for the whole run, so a run takes 6 connections from the shard's pool.
+ * CustomerIDs are digit strings, so MySQL's ORDER BY and Java's String order agree.
+ */
+@Component
+public class StatementGenerator {
+  //// CONSTANT LITERALS ////
+  private static String STATEMENT_FILE_SUFFIX = ".txt.gz";
+  private static int QUEUED_STATEMENTS_PER_THREAD = 64;
+
+  private final ShardRouter shardRouter;
+  private final String statementsDir;
+  private final int numFormatThreads;
+
+  @Autowired
+  public StatementGenerator(ShardRouter shardRouter,
+                            @Value("${testudobank.statements.dir:statements}") String statementsDir,
+                            @Value("${testudobank.statements.format-threads:0}") int numFormatThreads) {
+    this.shardRouter = shardRouter;
+    this.statementsDir = statementsDir;
+    this.numFormatThreads = numFormatThreads > 0 ? numFormatThreads : Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Writes last month's statements for every shard.
+   * <p>
+   * This method is scheduled to run at 3am on the 1st of each month by default.
+   */
+  @Scheduled(cron = "${testudobank.statements.cron:0 0 3 1 * *}")
+  public void generateLastMonthsStatements() {
+    YearMonth lastMonth = YearMonth.now().minusMonths(1);
+    for (int shardIndex = 0; shardIndex < shardRouter.getNumShards(); shardIndex++) {
+      try {
+        Result result = generateStatements(shardRouter.getShard(shardIndex), lastMonth, Paths.get(statementsDir), numFormatThreads);
+        System.out.println(String.format("Generated %d %s statements for shard %d in %.1fs (%.0f customers/sec)", result.getNumStatements(), lastMonth,
+                                         shardIndex, result.getElapsedSeconds(), result.getCustomersPerSecond()));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  @Getter
+  public static class Result {
+    private final int numStatements;
+    private final double elapsedSeconds;
+
+    private Result(int numStatements, double elapsedSeconds) {
+      this.numStatements = numStatements;
+      this.elapsedSeconds = elapsedSeconds;
+    }
+
+    public double getCustomersPerSecond() {
+      return elapsedSeconds > 0 ? numStatements / elapsedSeconds : numStatements;
+    }
+  }
+
+  /**
+   * Writes one month's statement for every customer on a single shard, formatting them on numFormatThreads threads.
+   * Statements already written for the month are overwritten.
+   */
+  public static Result generateStatements(JdbcTemplate jdbcTemplate, YearMonth month, Path statementsDir, int numFormatThreads) throws IOException {
+    long startTime = System.nanoTime();
+    Path monthDir = Files.createDirectories(statementsDir.resolve(month.toString()));
+    String monthStart = month.atDay(1) + " 00:00:00";
+    String monthEnd = month.plusMonths(1).atDay(1) + " 00:00:00";
+
+    ThreadPoolExecutor formatters = new ThreadPoolExecutor(numFormatThreads, numFormatThreads, 0, TimeUnit.MILLISECONDS,
+                                                           new ArrayBlockingQueue<>(numFormatThreads * QUEUED_STATEMENTS_PER_THREAD),
+                                                           new ThreadPoolExecutor.CallerRunsPolicy());
+    AtomicReference<IOException> writeFailure = new AtomicReference<>();
+    int numStatements = 0;
+
+    String getCustomersSql = "SELECT CustomerID, FirstName, LastName FROM Customers ORDER BY CustomerID";
+    // {CustomerID, opening cash, closing cash, opening overdraft, closing overdraft}, from the ledger's signed pennies
+    String getBalancesSql = "SELECT CustomerID, "
+      + "SUM(IF(Account = 'Cash' AND Timestamp < ?, Amount, 0)), SUM(IF(Account = 'Cash', Amount, 0)), "
+      + "SUM(IF(Account = 'Overdraft' AND Timestamp < ?, -Amount, 0)), SUM(IF(Account = 'Overdraft', -Amount, 0)) "
+      + "FROM LedgerEntries WHERE Timestamp < ? GROUP BY CustomerID ORDER BY CustomerID";
+    String getTransactionsSql = "SELECT CustomerID, Timestamp, Action, Amount FROM TransactionHistory "
+      + "WHERE Timestamp >= ? AND Timestamp < ? ORDER BY CustomerID, Timestamp";
+    // both sides of every transfer, as {CustomerID, Timestamp, direction, counterparty, Amount}
+    String getTransfersSql = "SELECT TransferFrom, Timestamp, 'Sent', TransferTo, Amount FROM TransferHistory WHERE Timestamp >= ? AND Timestamp < ? "
+      + "UNION ALL SELECT TransferTo, Timestamp, 'Received', TransferFrom, Amount FROM TransferHistory WHERE Timestamp >= ? AND Timestamp < ? "
+      + "ORDER BY 1, 2";
+    String getCryptoTradesSql = "SELECT CustomerID, Timestamp, Action, CryptoName, CryptoAmount FROM CryptoHistory "
+      + "WHERE Timestamp >= ? AND Timestamp < ? ORDER BY CustomerID, Timestamp";
+    String getOverdraftLogsSql = "SELECT CustomerID, Timestamp, DepositAmt, OldOverBalance, NewOverBalance FROM OverdraftLogs "
+      + "WHERE Timestamp >= ? AND Timestamp < ? ORDER BY CustomerID, Timestamp";
+
+    try (Cursor customers = new Cursor(jdbcTemplate, getCustomersSql);
+         Cursor balances = new Cursor(jdbcTemplate, getBalancesSql, monthStart, monthStart, monthEnd);
+         Cursor transactions = new Cursor(jdbcTemplate, getTransactionsSql, monthStart, monthEnd);
+         Cursor transfers = new Cursor(jdbcTemplate, getTransfersSql, monthStart, monthEnd, monthStart, monthEnd);
+         Cursor cryptoTrades = new Cursor(jdbcTemplate, getCryptoTradesSql, monthStart, monthEnd);
+         Cursor overdraftLogs = new Cursor(jdbcTemplate, getOverdraftLogsSql, monthStart, monthEnd)) {
+      while (customers.hasRow() && writeFailure.get() == null) {
+        String[] customer = customers.getRow();
+        CustomerStatement statement = new CustomerStatement(month, customer[0], customer[1], customer[2],
+                                                            balances.takeRowsFor(customer[0]), transactions.takeRowsFor(customer[0]),
+                                                            transfers.takeRowsFor(customer[0]), cryptoTrades.takeRowsFor(customer[0]),
+                                                            overdraftLogs.takeRowsFor(customer[0]));
+        customers.advance();
+        formatters.execute(() -> {
+          try {
+            statement.writeTo(monthDir.resolve(statement.customerID + STATEMENT_FILE_SUFFIX));
+          } catch (IOException e) {
+            writeFailure.compareAndSet(null, e);
+          }
+        });
+        numStatements++;
+      }
+    } finally {
+      formatters.shutdown();
+      try {
+        formatters.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (writeFailure.get() != null) {
+      throw writeFailure.get();
+    }
+    return new Result(numStatements, (System.nanoTime() - startTime) / 1e9);
+  }
+
+  // A forward-only cursor that streams rows from MySQL one at a time on its own connection
+  private static class Cursor implements AutoCloseable {
+    private final Connection connection;
+    private final ResultSet resultSet;
+    private final JdbcTemplate jdbcTemplate;
+    private final String sql;
+    private String[] row;
+
+    private Cursor(JdbcTemplate jdbcTemplate, String sql, Object... args) {
+      this.jdbcTemplate = jdbcTemplate;
+      this.sql = sql;
+      Connection cursorConnection = null;
+      try {
+        cursorConnection = jdbcTemplate.getDataSource().getConnection();
+        PreparedStatement statement = cursorConnection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        statement.setFetchSize(Integer.MIN_VALUE);
+        for (int i = 0; i < args.length; i++) {
+          statement.setObject(i + 1, args[i]);
+        }
+        this.resultSet = statement.executeQuery();
+        this.connection = cursorConnection;
+      } catch (SQLException e) {
+        closeQuietly(cursorConnection);
+        throw jdbcTemplate.getExceptionTranslator().translate("Opening statement cursor", sql, e);
+      }
+      advance();
+    }
+
+    private boolean hasRow() {
+      return row != null;
+    }
+
+    // The current row, with CustomerID first
+    private String[] getRow() {
+      return row;
+    }
+
+    private void advance() {
+      try {
+        if (!resultSet.next()) {
+          row = null;
+          return;
+        }
+        row = new String[resultSet.getMetaData().getColumnCount()];
+        for (int i = 0; i < row.length; i++) {
+          row[i] = resultSet.getString(i + 1);
+        }
+      } catch (SQLException e) {
+        throw jdbcTemplate.getExceptionTranslator().translate("Reading statement cursor", sql, e);
+      }
+    }
+
+    // Skips rows of earlier CustomerIDs, then returns the rows of the given customer
+    private List<String[]> takeRowsFor(String customerID) {
+      while (hasRow() && row[0].compareTo(customerID) < 0) {
+        advance();
+      }
+      if (!hasRow() || !row[0].equals(customerID)) {
+        return Collections.emptyList();
+      }
+      List<String[]> customerRows = new ArrayList<>();
+      while (hasRow() && row[0].equals(customerID)) {
+        customerRows.add(row);
+        advance();
+      }
+      return customerRows;
+    }
+
+    @Override
+    public void close() {
+      closeQuietly(connection);
+    }
+
+    // Closing the connection also closes its statement and result set
+    private static void closeQuietly(Connection connection) {
+      try {
+        if (connection != null) {
+          connection.close();
+        }
+      } catch (SQLException e) {
+        // nothing left to clean up if the connection is already gone
+      }
+    }
+  }
+
+  // One customer's rows for the month, formatted off the reading thread
+  private static class CustomerStatement {
+    private final YearMonth month;
+    private final String customerID;
+    private final String firstName;
+    private final String lastName;
+    private final List<String[]> balances;
+    private final List<String[]> transactions;
+    private final List<String[]> transfers;
+    private final List<String[]> cryptoTrades;
+    private final List<String[]> overdraftLogs;
+
+    private CustomerStatement(YearMonth month, String customerID, String firstName, String lastName, List<String[]> balances,
+                              List<String[]> transactions, List<String[]> transfers, List<String[]> cryptoTrades, List<String[]> overdraftLogs) {
+      this.month = month;
+      this.customerID = customerID;
+      this.firstName = firstName;
+      this.lastName = lastName;
+      this.balances = balances;
+      this.transactions = transactions;
+      this.transfers = transfers;
+      this.cryptoTrades = cryptoTrades;
+      this.overdraftLogs = overdraftLogs;
+    }
+
+    private void writeTo(Path statementFile) throws IOException {
+      try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(statementFile)), StandardCharsets.UTF_8)) {
+        writer.write(String.format("Testudo Bank statement for %s %s (%s), %s%n%n", firstName, lastName, customerID, month));
+
+        // customers with no ledger entries before the end of the month had nothing to report
+        String[] balance = balances.isEmpty() ? new String[] {customerID, "0", "0", "0", "0"} : balances.get(0);
+        writer.write(String.format("Opening balance: %s, overdraft balance: %s%n", dollars(balance[1]), dollars(balance[3])));
+        writer.write(String.format("Closing balance: %s, overdraft balance: %s%n", dollars(balance[2]), dollars(balance[4])));
+
+        writer.write(String.format("%nTransactions%n"));
+        for (String[] transaction : transactions) {
+          writer.write(String.format("%s  %-16s %s%n", transaction[1], transaction[2], dollars(transaction[3])));
+        }
+        writer.write(String.format("%nTransfers%n"));
+        for (String[] transfer : transfers) {
+          writer.write(String.format("%s  %-8s %s %s%n", transfer[1], transfer[2], transfer[3], dollars(transfer[4])));
+        }
+        writer.write(String.format("%nCrypto trades%n"));
+        for (String[] cryptoTrade : cryptoTrades) {
+          writer.write(String.format("%s  %-4s %s %s%n", cryptoTrade[1], cryptoTrade[2], new BigDecimal(cryptoTrade[4]).stripTrailingZeros().toPlainString(), cryptoTrade[3]));
+        }
+        writer.write(String.format("%nOverdraft balance changes%n"));
+        for (String[] overdraftLog : overdraftLogs) {
+          writer.write(String.format("%s  %s -> %s%n", overdraftLog[1], dollars(overdraftLog[3]), dollars(overdraftLog[4])));
+        }
+      }
+    }
+
+    private static String dollars(String pennies) {
+      return "$" + BigDecimal.valueOf(Long.parseLong(pennies), 2).toPlainString();
+    }
+  }
+}
@@ -1,12 +1,21 @@
 package net.testudobank;
 
 import java.math.BigDecimal;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.Consumer;
 
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 
 public class TestudoBankRepository {
   public static String getCustomerPassword(JdbcTemplate jdbcTemplate, String customerID) {
@@ -15,6 +24,18 @@ public class TestudoBankRepository {
     return customerPassword;
   }
 
+  // False for unknown customers too. CustomerIDs are digit strings, and anything else is rejected before it reaches the Passwords query.
+  public static boolean isCorrectPassword(JdbcTemplate jdbcTemplate, String customerID, String password) {
+    if (customerID == null || !customerID.matches("[0-9]+")) {
+      return false;
+    }
+    try {
+      return getCustomerPassword(jdbcTemplate, customerID).equals(password);
+    } catch (EmptyResultDataAccessException e) {
+      return false;
+    }
+  }
+
   public static int getCustomerNumberOfReversals(JdbcTemplate jdbcTemplate, String customerID) {
     String getNumberOfReversalsSql = String.format("SELECT NumFraudReversals FROM Customers WHERE CustomerID='%s';", customerID);
     int numOfReversals = jdbcTemplate.queryForObject(getNumberOfReversalsSql, Integer.class);
@@ -45,16 +66,28 @@ public class TestudoBankRepository {
     return userOverdraftBalanceInPennies;
   }
 
-  public static List<Map<String,Object>> getRecentTransactions(JdbcTemplate jdbcTemplate, String customerID, int numTransactionsToFetch) {
-    String getTransactionHistorySql = String.format("Select * from TransactionHistory WHERE CustomerId='%s' ORDER BY Timestamp DESC LIMIT %d;", customerID, numTransactionsToFetch);
-    List<Map<String,Object>> transactionLogs = jdbcTemplate.queryForList(getTransactionHistorySql);
-    return transactionLogs;
+  // {Balance, OverdraftBalance}, row-locked until the enclosing transaction ends, so balances computed from them are the ones written
+  public static Map<String,Object> lockCustomerBalances(JdbcTemplate jdbcTemplate, String customerID) {
+    String lockCustomerBalancesSql = "SELECT Balance, OverdraftBalance FROM Customers WHERE CustomerID = ? FOR UPDATE";
+    return jdbcTemplate.queryForMap(lockCustomerBalancesSql, customerID);
+  }
+
+  // Served from the router's RecentActivityCache when the customer's newest transactions are cached
+  public static List<Map<String,Object>> getRecentTransactions(JdbcTemplate jdbcTemplate, RecentActivityCache recentActivityCache, String customerID, int numTransactionsToFetch) {
+    return recentActivityCache.getRecentTransactions(jdbcTemplate, customerID, numTransactionsToFetch, numToFetch -> {
+      String getTransactionHistorySql = String.format("Select * from TransactionHistory WHERE CustomerId='%s' ORDER BY Timestamp DESC LIMIT %d;", customerID, numToFetch);
+      List<Map<String,Object>> transactionLogs = jdbcTemplate.queryForList(getTransactionHistorySql);
+      return transactionLogs;
+    });
   }
 
-  public static List<Map<String,Object>> getTransferLogs(JdbcTemplate jdbcTemplate, String customerID, int numTransfersToFetch) {
-    String getTransferHistorySql = String.format("Select * from TransferHistory WHERE TransferFrom='%s' OR TransferTo='%s' ORDER BY Timestamp DESC LIMIT %d;", customerID, customerID, numTransfersToFetch);
-    List<Map<String,Object>> transferLogs = jdbcTemplate.queryForList(getTransferHistorySql);
-    return transferLogs;
+  // Served from the router's RecentActivityCache when the customer's newest transfers are cached
+  public static List<Map<String,Object>> getTransferLogs(JdbcTemplate jdbcTemplate, RecentActivityCache recentActivityCache, String customerID, int numTransfersToFetch) {
+    return recentActivityCache.getTransferLogs(jdbcTemplate, customerID, numTransfersToFetch, numToFetch -> {
+      String getTransferHistorySql = String.format("Select * from TransferHistory WHERE TransferFrom='%s' OR TransferTo='%s' ORDER BY Timestamp DESC LIMIT %d;", customerID, customerID, numToFetch);
+      List<Map<String,Object>> transferLogs = jdbcTemplate.queryForList(getTransferHistorySql);
+      return transferLogs;
+    });
   }
 
   public static List<Map<String,Object>> getOverdraftLogs(JdbcTemplate jdbcTemplate, String customerID){
@@ -85,13 +118,15 @@ public class TestudoBankRepository {
     jdbcTemplate.update(customerInterestDepositsSql);
   }
 
-  public static void insertRowToTransactionHistoryTable(JdbcTemplate jdbcTemplate, String customerID, String timestamp, String action, int amtInPennies) {
+  public static void insertRowToTransactionHistoryTable(JdbcTemplate jdbcTemplate, RecentActivityCache recentActivityCache, String customerID, String timestamp, String action, int amtInPennies) {
     String insertRowToTransactionHistorySql = String.format("INSERT INTO TransactionHistory VALUES ('%s', '%s', '%s', %d);",
                                                               customerID,
                                                               timestamp,
                                                               action,
                                                               amtInPennies);
-    jdbcTemplate.update(insertRowToTransactionHistorySql);
+    List<Object[]> transactionLogs = Collections.singletonList(new Object[] {customerID, timestamp, action, amtInPennies});
+    recentActivityCache.writeThrough(jdbcTemplate, transactionLogs, Collections.emptyList(), () -> jdbcTemplate.update(insertRowToTransactionHistorySql));
+    addTransactionsToDailyRollups(jdbcTemplate, transactionLogs);
   }
 
   public static void insertRowToOverdraftLogsTable(JdbcTemplate jdbcTemplate, String customerID, String timestamp, int depositAmtIntPennies, int oldOverdraftBalanceInPennies, int newOverdraftBalanceInPennies) {
@@ -107,6 +142,7 @@ public class TestudoBankRepository {
   public static void setCustomerNumFraudReversals(JdbcTemplate jdbcTemplate, String customerID, int newNumFraudReversals) {
     String numOfReversalsUpdateSql = String.format("UPDATE Customers SET NumFraudReversals = %d WHERE CustomerID='%s';", newNumFraudReversals, customerID);
     jdbcTemplate.update(numOfReversalsUpdateSql);
+    ExposureAggregates.recordNumFraudReversals(newNumFraudReversals);
   }
 
   public static void setCustomerOverdraftBalance(JdbcTemplate jdbcTemplate, String customerID, int newOverdraftBalanceInPennies) {
@@ -138,6 +174,7 @@ public class TestudoBankRepository {
   public static void increaseCustomerCryptoBalance(JdbcTemplate jdbcTemplate, String customerID, String cryptoName, double increaseAmt) {
     String balanceIncreaseSql = "UPDATE CryptoHoldings SET CryptoAmount = CryptoAmount + ? WHERE CustomerID= ? AND CryptoName= ?";
     jdbcTemplate.update(balanceIncreaseSql, increaseAmt, customerID, cryptoName);
+    ExposureAggregates.recordCryptoHoldingChange(cryptoName, increaseAmt);
   }
 
   public static void decreaseCustomerCashBalance(JdbcTemplate jdbcTemplate, String customerID, int decreaseAmtInPennies) {
@@ -148,6 +185,7 @@ public class TestudoBankRepository {
   public static void decreaseCustomerCryptoBalance(JdbcTemplate jdbcTemplate, String customerID, String cryptoName, double decreaseAmt) {
     String balanceDecreaseSql = "UPDATE CryptoHoldings SET CryptoAmount = CryptoAmount - ? WHERE CustomerID= ? AND CryptoName= ?";
     jdbcTemplate.update(balanceDecreaseSql, decreaseAmt, customerID, cryptoName);
+    ExposureAggregates.recordCryptoHoldingChange(cryptoName, -decreaseAmt);
   }
 
   public static void deleteRowFromOverdraftLogsTable(JdbcTemplate jdbcTemplate, String customerID, String timestamp) {
@@ -155,13 +193,14 @@ public class TestudoBankRepository {
     jdbcTemplate.update(deleteRowFromOverdraftLogsSql);
   }
 
-  public static void insertRowToTransferLogsTable(JdbcTemplate jdbcTemplate, String customerID, String recipientID, String timestamp, int transferAmount) {
+  public static void insertRowToTransferLogsTable(JdbcTemplate jdbcTemplate, RecentActivityCache recentActivityCache, String customerID, String recipientID, String timestamp, int transferAmount) {
     String transferHistoryToSql = String.format("INSERT INTO TransferHistory VALUES ('%s', '%s', '%s', %d);",
                                                     customerID,
                                                     recipientID,
                                                     timestamp,
                                                     transferAmount);
-    jdbcTemplate.update(transferHistoryToSql);
+    List<Object[]> transferLogs = Collections.singletonList(new Object[] {customerID, recipientID, timestamp, transferAmount});
+    recentActivityCache.writeThrough(jdbcTemplate, Collections.emptyList(), transferLogs, () -> jdbcTemplate.update(transferHistoryToSql));
   }
 
   public static void insertRowToCryptoLogsTable(JdbcTemplate jdbcTemplate, String customerID, String cryptoName, String action, String timestamp, double cryptoAmount) {
@@ -169,12 +208,707 @@ public class TestudoBankRepository {
     jdbcTemplate.update(cryptoHistorySql, customerID, timestamp, action, cryptoName, cryptoAmount);
   }
   
-  public static boolean doesCustomerExist(JdbcTemplate jdbcTemplate, String customerID) { 
-    String getCustomerIDSql =  String.format("SELECT CustomerID FROM Customers WHERE CustomerID='%s';", customerID);
-    if (jdbcTemplate.queryForObject(getCustomerIDSql, String.class) != null) {
-     return true;
-    } else {
-      return false;
+  public static void insertRowToTransferSagasTable(JdbcTemplate jdbcTemplate, String sagaID, String customerID, String recipientID, String timestamp, int transferAmount, String status) {
+    String insertRowToTransferSagasSql = "INSERT INTO TransferSagas (SagaID, TransferFrom, TransferTo, Timestamp, Amount, Status) VALUES (?, ?, ?, ?, ?, ?)";
+    jdbcTemplate.update(insertRowToTransferSagasSql, sagaID, customerID, recipientID, timestamp, transferAmount, status);
+  }
+
+  public static void setTransferSagaStatus(JdbcTemplate jdbcTemplate, String sagaID, String status) {
+    String transferSagaStatusUpdateSql = "UPDATE TransferSagas SET Status = ? WHERE SagaID = ?";
+    jdbcTemplate.update(transferSagaStatusUpdateSql, status, sagaID);
+  }
+
+  public static List<Map<String,Object>> getTransferSagas(JdbcTemplate jdbcTemplate, String status, String olderThanTimestamp) {
+    String getTransferSagasSql = "SELECT * FROM TransferSagas WHERE Status = ? AND Timestamp < ?";
+    return jdbcTemplate.queryForList(getTransferSagasSql, status, olderThanTimestamp);
+  }
+
+  public static void insertRowToTransferSagaCreditsTable(JdbcTemplate jdbcTemplate, String sagaID, String recipientID) {
+    String insertRowToTransferSagaCreditsSql = "INSERT INTO TransferSagaCredits (SagaID, CustomerID) VALUES (?, ?)";
+    jdbcTemplate.update(insertRowToTransferSagaCreditsSql, sagaID, recipientID);
+  }
+
+  public static boolean doesTransferSagaCreditExist(JdbcTemplate jdbcTemplate, String sagaID) {
+    String countTransferSagaCreditsSql = "SELECT COUNT(*) FROM TransferSagaCredits WHERE SagaID = ?";
+    return jdbcTemplate.queryForObject(countTransferSagaCreditsSql, Integer.class, sagaID) > 0;
+  }
+
+  public static void insertLedgerJournal(JdbcTemplate jdbcTemplate, LedgerJournal journal) {
+    insertLedgerJournals(jdbcTemplate, Collections.singletonList(journal));
+  }
+
+  public static void insertLedgerJournals(JdbcTemplate jdbcTemplate, List<LedgerJournal> journals) {
+    String insertLedgerEntrySql = "INSERT INTO LedgerEntries (JournalID, CustomerID, Account, Amount, Action, Timestamp) VALUES (?, ?, ?, ?, ?, ?)";
+    List<Object[]> ledgerEntries = new ArrayList<>();
+    for (LedgerJournal journal : journals) {
+      if (!journal.isBalanced()) {
+        throw new IllegalStateException(String.format("Ledger journal %s for action %s does not balance", journal.getJournalID(), journal.getAction()));
+      }
+      for (LedgerJournal.Posting posting : journal.getPostings()) {
+        ledgerEntries.add(new Object[] {journal.getJournalID(), posting.customerID, posting.account, posting.amountInPennies, journal.getAction(), journal.getTimestamp()});
+      }
+    }
+    jdbcTemplate.batchUpdate(insertLedgerEntrySql, ledgerEntries);
+    insertLedgerJournalsToOutbox(jdbcTemplate, journals);
+    ExposureAggregates.recordLedgerJournals(journals);
+  }
+
+  // Adds one LedgerOutbox event per customer in each journal, holding the net change of that customer's accounts
+  private static void insertLedgerJournalsToOutbox(JdbcTemplate jdbcTemplate, List<LedgerJournal> journals) {
+    String insertLedgerOutboxSql = "INSERT INTO LedgerOutbox (JournalID, CustomerID, Action, Amount, Timestamp) VALUES (?, ?, ?, ?, ?)";
+    List<Object[]> outboxEvents = new ArrayList<>();
+    for (LedgerJournal journal : journals) {
+      Map<String,Long> customerAmounts = new LinkedHashMap<>();
+      for (LedgerJournal.Posting posting : journal.getPostings()) {
+        if (!posting.customerID.equals(LedgerJournal.BANK_ID)) {
+          customerAmounts.merge(posting.customerID, posting.amountInPennies, Long::sum);
+        }
+      }
+      customerAmounts.forEach((customerID, amount) -> outboxEvents.add(new Object[] {journal.getJournalID(), customerID, journal.getAction(), amount, journal.getTimestamp()}));
+    }
+    jdbcTemplate.batchUpdate(insertLedgerOutboxSql, outboxEvents);
+  }
+
+  // Each row is {CustomerID, Timestamp, Action, Amount}
+  public static void insertRowsToTransactionHistoryTable(JdbcTemplate jdbcTemplate, RecentActivityCache recentActivityCache, List<Object[]> transactionLogs) {
+    String insertRowToTransactionHistorySql = "INSERT INTO TransactionHistory VALUES (?, ?, ?, ?)";
+    recentActivityCache.writeThrough(jdbcTemplate, transactionLogs, Collections.emptyList(), () -> jdbcTemplate.batchUpdate(insertRowToTransactionHistorySql, transactionLogs));
+    addTransactionsToDailyRollups(jdbcTemplate, transactionLogs);
+  }
+
+  // Each row is {CustomerID, Timestamp, DepositAmt, OldOverBalance, NewOverBalance}
+  public static void insertRowsToOverdraftLogsTable(JdbcTemplate jdbcTemplate, List<Object[]> overdraftLogs) {
+    String insertRowToOverdraftLogsSql = "INSERT INTO OverdraftLogs VALUES (?, ?, ?, ?, ?)";
+    jdbcTemplate.batchUpdate(insertRowToOverdraftLogsSql, overdraftLogs);
+  }
+
+  // Each row is {Balance, OverdraftBalance, CustomerID}
+  public static void setCustomerBalances(JdbcTemplate jdbcTemplate, List<Object[]> customerBalances) {
+    String setCustomerBalancesSql = "UPDATE Customers SET Balance = ?, OverdraftBalance = ? WHERE CustomerID = ?";
+    jdbcTemplate.batchUpdate(setCustomerBalancesSql, customerBalances);
+  }
+
+  public static void setCustomerNumFraudReversals(JdbcTemplate jdbcTemplate, List<Object[]> customerNumFraudReversals) {
+    String setNumFraudReversalsSql = "UPDATE Customers SET NumFraudReversals = ? WHERE CustomerID = ?";
+    jdbcTemplate.batchUpdate(setNumFraudReversalsSql, customerNumFraudReversals);
+    for (Object[] customerNumFraudReversal : customerNumFraudReversals) {
+      ExposureAggregates.recordNumFraudReversals(((Number) customerNumFraudReversal[0]).intValue());
+    }
+  }
+
+  public static void insertRowToBalanceEngineCheckpointsTable(JdbcTemplate jdbcTemplate, long segmentNumber, String timestamp) {
+    String insertRowToBalanceEngineCheckpointsSql = "INSERT INTO BalanceEngineCheckpoints (SegmentNumber, Timestamp) VALUES (?, ?)";
+    jdbcTemplate.update(insertRowToBalanceEngineCheckpointsSql, segmentNumber, timestamp);
+  }
+
+  public static boolean doesBalanceEngineCheckpointExist(JdbcTemplate jdbcTemplate, long segmentNumber) {
+    String countBalanceEngineCheckpointsSql = "SELECT COUNT(*) FROM BalanceEngineCheckpoints WHERE SegmentNumber = ?";
+    return jdbcTemplate.queryForObject(countBalanceEngineCheckpointsSql, Integer.class, segmentNumber) > 0;
+  }
+
+  public static long getLatestBalanceEngineCheckpoint(JdbcTemplate jdbcTemplate) {
+    String getLatestBalanceEngineCheckpointSql = "SELECT COALESCE(MAX(SegmentNumber), 0) FROM BalanceEngineCheckpoints";
+    return jdbcTemplate.queryForObject(getLatestBalanceEngineCheckpointSql, Long.class);
+  }
+
+  public static void insertRowToIdempotencyKeysTable(JdbcTemplate jdbcTemplate, String customerID, String idempotencyKey, String endpoint, String timestamp) {
+    String insertRowToIdempotencyKeysSql = "INSERT INTO IdempotencyKeys (CustomerID, IdempotencyKey, Endpoint, Timestamp) VALUES (?, ?, ?, ?)";
+    jdbcTemplate.update(insertRowToIdempotencyKeysSql, customerID, idempotencyKey, endpoint, timestamp);
+  }
+
+  public static Optional<Map<String,Object>> getIdempotencyKey(JdbcTemplate jdbcTemplate, String customerID, String idempotencyKey) {
+    String getIdempotencyKeySql = "SELECT Endpoint, Response FROM IdempotencyKeys WHERE CustomerID = ? AND IdempotencyKey = ?";
+    List<Map<String,Object>> idempotencyKeys = jdbcTemplate.queryForList(getIdempotencyKeySql, customerID, idempotencyKey);
+    return idempotencyKeys.isEmpty() ? Optional.empty() : Optional.of(idempotencyKeys.get(0));
+  }
+
+  public static void setIdempotencyKeyResponse(JdbcTemplate jdbcTemplate, String customerID, String idempotencyKey, String response) {
+    String setIdempotencyKeyResponseSql = "UPDATE IdempotencyKeys SET Response = ? WHERE CustomerID = ? AND IdempotencyKey = ?";
+    jdbcTemplate.update(setIdempotencyKeyResponseSql, response, customerID, idempotencyKey);
+  }
+
+  public static void deleteRowFromIdempotencyKeysTable(JdbcTemplate jdbcTemplate, String customerID, String idempotencyKey) {
+    String deleteRowFromIdempotencyKeysSql = "DELETE FROM IdempotencyKeys WHERE CustomerID = ? AND IdempotencyKey = ?";
+    jdbcTemplate.update(deleteRowFromIdempotencyKeysSql, customerID, idempotencyKey);
+  }
+
+  // Deletes at most batchSize keys older than the cutoff, so a purge never holds locks on the table for long
+  public static int deleteExpiredIdempotencyKeys(JdbcTemplate jdbcTemplate, String cutoffTimestamp, int batchSize) {
+    String deleteExpiredIdempotencyKeysSql = "DELETE FROM IdempotencyKeys WHERE Timestamp < ? LIMIT ?";
+    return jdbcTemplate.update(deleteExpiredIdempotencyKeysSql, cutoffTimestamp, batchSize);
+  }
+
+  // Derives an account balance from the latest ledger snapshot plus the journal entries appended after it
+  public static long getLedgerBalanceInPennies(JdbcTemplate jdbcTemplate, String customerID, String account) {
+    String getLedgerBalanceSql = "SELECT COALESCE((SELECT Balance FROM LedgerSnapshots WHERE CustomerID = ? AND Account = ?), 0) "
+                               + "+ COALESCE((SELECT SUM(Amount) FROM LedgerEntries WHERE CustomerID = ? AND Account = ? "
+                               + "AND EntryID > (SELECT COALESCE(MAX(LastEntryID), 0) FROM LedgerSnapshotRuns)), 0)";
+    return jdbcTemplate.queryForObject(getLedgerBalanceSql, Long.class, customerID, account, customerID, account);
+  }
+
+  public static long getLatestLedgerEntryID(JdbcTemplate jdbcTemplate) {
+    String getLatestLedgerEntryIDSql = "SELECT COALESCE(MAX(EntryID), 0) FROM LedgerEntries";
+    return jdbcTemplate.queryForObject(getLatestLedgerEntryIDSql, Long.class);
+  }
+
+  public static Optional<Map<String,Object>> getLatestLedgerSnapshotRun(JdbcTemplate jdbcTemplate) {
+    String getLatestLedgerSnapshotRunSql = "SELECT * FROM LedgerSnapshotRuns ORDER BY RunID DESC LIMIT 1";
+    List<Map<String,Object>> snapshotRuns = jdbcTemplate.queryForList(getLatestLedgerSnapshotRunSql);
+    return snapshotRuns.stream().findFirst();
+  }
+
+  public static void insertRowToLedgerSnapshotRunsTable(JdbcTemplate jdbcTemplate, long lastEntryID, long observedEntryID, String timestamp) {
+    String insertRowToLedgerSnapshotRunsSql = "INSERT INTO LedgerSnapshotRuns (LastEntryID, ObservedEntryID, Timestamp) VALUES (?, ?, ?)";
+    jdbcTemplate.update(insertRowToLedgerSnapshotRunsSql, lastEntryID, observedEntryID, timestamp);
+  }
+
+  // Folds the journal entries in (afterEntryID, upToEntryID] into the per-account snapshot balances
+  public static void addLedgerEntriesToSnapshots(JdbcTemplate jdbcTemplate, long afterEntryID, long upToEntryID) {
+    String addLedgerEntriesToSnapshotsSql = "INSERT INTO LedgerSnapshots (CustomerID, Account, Balance) "
+                                          + "SELECT CustomerID, Account, SUM(Amount) FROM LedgerEntries WHERE EntryID > ? AND EntryID <= ? GROUP BY CustomerID, Account "
+                                          + "ON DUPLICATE KEY UPDATE Balance = Balance + VALUES(Balance)";
+    jdbcTemplate.update(addLedgerEntriesToSnapshotsSql, afterEntryID, upToEntryID);
+  }
+
+  // Posts a balanced opening journal for every customer that has no ledger entries yet, so the ledger agrees with the Customers table
+  public static int insertOpeningBalanceLedgerEntries(JdbcTemplate jdbcTemplate, String timestamp) {
+    String insertOpeningBalanceLedgerEntriesSql = "INSERT INTO LedgerEntries (JournalID, CustomerID, Account, Amount, Action, Timestamp) "
+                                                + "SELECT CONCAT('OpeningBalance-', n.CustomerID), IF(p.Leg = 3, ?, n.CustomerID), "
+                                                + "CASE p.Leg WHEN 1 THEN ? WHEN 2 THEN ? ELSE ? END, "
+                                                + "CASE p.Leg WHEN 1 THEN n.Balance WHEN 2 THEN -n.OverdraftBalance ELSE n.OverdraftBalance - n.Balance END AS Amount, ?, ? "
+                                                + "FROM (SELECT CustomerID, Balance, OverdraftBalance FROM Customers c WHERE NOT EXISTS (SELECT 1 FROM LedgerEntries l WHERE l.CustomerID = c.CustomerID)) n "
+                                                + "CROSS JOIN (SELECT 1 AS Leg UNION ALL SELECT 2 UNION ALL SELECT 3) p "
+                                                + "HAVING Amount <> 0";
+    return jdbcTemplate.update(insertOpeningBalanceLedgerEntriesSql, LedgerJournal.BANK_ID, LedgerJournal.CASH_ACCOUNT, LedgerJournal.OVERDRAFT_ACCOUNT, LedgerJournal.EXTERNAL_ACCOUNT, LedgerJournal.OPENING_BALANCE_ACTION, timestamp);
+  }
+
+  //// INTEREST ACCRUAL ////
+
+  // Counts every customer, or only the ones in overdraft (read off the OverdraftBalance index)
+  public static int getNumCustomers(JdbcTemplate jdbcTemplate, boolean isOverdrawnOnly) {
+    String getNumCustomersSql = "SELECT COUNT(*) FROM Customers" + (isOverdrawnOnly ? " WHERE OverdraftBalance > 0" : "");
+    return jdbcTemplate.queryForObject(getNumCustomersSql, Integer.class);
+  }
+
+  // Returns the CustomerID at the given position in CustomerID order, among every customer or only the ones in overdraft
+  public static Optional<String> getCustomerIDAtOffset(JdbcTemplate jdbcTemplate, int offset, boolean isOverdrawnOnly) {
+    String getCustomerIDAtOffsetSql = "SELECT CustomerID FROM Customers" + (isOverdrawnOnly ? " WHERE OverdraftBalance > 0" : "") + " ORDER BY CustomerID LIMIT 1 OFFSET ?";
+    List<String> customerIDs = jdbcTemplate.queryForList(getCustomerIDAtOffsetSql, String.class, offset);
+    return customerIDs.isEmpty() ? Optional.empty() : Optional.of(customerIDs.get(0));
+  }
+
+  // Splits the shard's customers (or only its overdrawn ones) into at most numRanges ranges of about the same size, and returns
+  // the start of each range, the first being "". Each range starts after its boundary and ends at the next one (inclusive).
+  public static List<String> getCustomerIDRangeBoundaries(JdbcTemplate jdbcTemplate, int numRanges, boolean isOverdrawnOnly) {
+    int numCustomers = getNumCustomers(jdbcTemplate, isOverdrawnOnly);
+    List<String> rangeBoundaries = new ArrayList<>();
+    rangeBoundaries.add("");
+    for (int i = 1; i < numRanges; i++) {
+      int offset = (int) ((long) numCustomers * i / numRanges) - 1;
+      Optional<String> boundary = offset < 0 ? Optional.empty() : getCustomerIDAtOffset(jdbcTemplate, offset, isOverdrawnOnly);
+      if (boundary.isPresent() && !boundary.get().equals(rangeBoundaries.get(rangeBoundaries.size() - 1))) {
+        rangeBoundaries.add(boundary.get());
+      }
+    }
+    return rangeBoundaries;
+  }
+
+  // Each row is {AccrualType, AccrualDate, RangeIndex, RangeStart, RangeEnd, LastCustomerID}. Ranges already planned by another app instance are kept.
+  public static void insertRowsToInterestAccrualsTable(JdbcTemplate jdbcTemplate, List<Object[]> ranges) {
+    String insertRowToInterestAccrualsSql = "INSERT IGNORE INTO InterestAccruals (AccrualType, AccrualDate, RangeIndex, RangeStart, RangeEnd, LastCustomerID, IsComplete) VALUES (?, ?, ?, ?, ?, ?, false)";
+    jdbcTemplate.batchUpdate(insertRowToInterestAccrualsSql, ranges);
+  }
+
+  public static List<Integer> getUnfinishedInterestAccrualRanges(JdbcTemplate jdbcTemplate, String accrualType, String accrualDate) {
+    String getUnfinishedInterestAccrualRangesSql = "SELECT RangeIndex FROM InterestAccruals WHERE AccrualType = ? AND AccrualDate = ? AND IsComplete = false ORDER BY RangeIndex";
+    return jdbcTemplate.queryForList(getUnfinishedInterestAccrualRangesSql, Integer.class, accrualType, accrualDate);
+  }
+
+  public static List<String> getUnfinishedInterestAccrualDates(JdbcTemplate jdbcTemplate, String accrualType) {
+    String getUnfinishedInterestAccrualDatesSql = "SELECT DISTINCT DATE_FORMAT(AccrualDate, '%Y-%m-%d') FROM InterestAccruals WHERE AccrualType = ? AND IsComplete = false ORDER BY 1";
+    return jdbcTemplate.queryForList(getUnfinishedInterestAccrualDatesSql, String.class, accrualType);
+  }
+
+  public static boolean doesInterestAccrualExist(JdbcTemplate jdbcTemplate, String accrualType, String accrualDate) {
+    String countInterestAccrualsSql = "SELECT COUNT(*) FROM InterestAccruals WHERE AccrualType = ? AND AccrualDate = ?";
+    return jdbcTemplate.queryForObject(countInterestAccrualsSql, Integer.class, accrualType, accrualDate) > 0;
+  }
+
+  // Locks the range's checkpoint row until the end of the transaction, so only one worker accrues a range at a time
+  public static Map<String,Object> lockInterestAccrualRange(JdbcTemplate jdbcTemplate, String accrualType, String accrualDate, int rangeIndex) {
+    String lockInterestAccrualRangeSql = "SELECT RangeEnd, LastCustomerID, IsComplete FROM InterestAccruals WHERE AccrualType = ? AND AccrualDate = ? AND RangeIndex = ? FOR UPDATE";
+    return jdbcTemplate.queryForMap(lockInterestAccrualRangeSql, accrualType, accrualDate, rangeIndex);
+  }
+
+  public static void setInterestAccrualProgress(JdbcTemplate jdbcTemplate, String accrualType, String accrualDate, int rangeIndex, String lastCustomerID, boolean isComplete) {
+    String setInterestAccrualProgressSql = "UPDATE InterestAccruals SET LastCustomerID = ?, IsComplete = ? WHERE AccrualType = ? AND AccrualDate = ? AND RangeIndex = ?";
+    jdbcTemplate.update(setInterestAccrualProgressSql, lastCustomerID, isComplete, accrualType, accrualDate, rangeIndex);
+  }
+
+  // Returns the last CustomerID of the next chunk after afterCustomerID, or empty once the range is done. A null rangeEnd means no upper bound.
+  public static Optional<String> getInterestAccrualChunkEnd(JdbcTemplate jdbcTemplate, String afterCustomerID, String rangeEnd, int chunkSize) {
+    String rangeEndCondition = rangeEnd == null ? "" : " AND CustomerID <= ?";
+    String getChunkEndSql = "SELECT MAX(CustomerID) FROM (SELECT CustomerID FROM Customers WHERE CustomerID > ?" + rangeEndCondition + " ORDER BY CustomerID LIMIT ?) chunk";
+    Object[] chunkArgs = rangeEnd == null ? new Object[] {afterCustomerID, chunkSize} : new Object[] {afterCustomerID, rangeEnd, chunkSize};
+    return Optional.ofNullable(jdbcTemplate.queryForObject(getChunkEndSql, String.class, chunkArgs));
+  }
+
+  // Locks the Customers rows of a chunk, so balances can't change between posting the interest and crediting it
+  public static void lockCustomers(JdbcTemplate jdbcTemplate, String afterCustomerID, String lastCustomerID) {
+    String lockCustomersSql = "SELECT COUNT(*) FROM Customers WHERE CustomerID > ? AND CustomerID <= ? FOR UPDATE";
+    jdbcTemplate.queryForObject(lockCustomersSql, Integer.class, afterCustomerID, lastCustomerID);
+  }
+
+  // Posts one interest journal per customer in the chunk: their Cash account is credited, and the bank's InterestExpense account pays for it
+  public static int insertInterestLedgerEntries(JdbcTemplate jdbcTemplate, String afterCustomerID, String lastCustomerID, BigDecimal interestRate,
+                                                int maxDisputes, String journalIDPrefix, String timestamp) {
+    String insertInterestLedgerEntriesSql = "INSERT INTO LedgerEntries (JournalID, CustomerID, Account, Amount, Action, Timestamp) "
+                                          + "SELECT CONCAT(?, c.CustomerID), IF(p.Leg = 1, c.CustomerID, ?), IF(p.Leg = 1, ?, ?), IF(p.Leg = 1, c.Interest, -c.Interest), ?, ? "
+                                          + "FROM (SELECT CustomerID, FLOOR(Balance * ?) AS Interest FROM Customers "
+                                          + "WHERE CustomerID > ? AND CustomerID <= ? AND NumFraudReversals < ? AND FLOOR(Balance * ?) > 0) c "
+                                          + "CROSS JOIN (SELECT 1 AS Leg UNION ALL SELECT 2) p";
+    int numLedgerEntriesInserted = jdbcTemplate.update(insertInterestLedgerEntriesSql, journalIDPrefix, LedgerJournal.BANK_ID, LedgerJournal.CASH_ACCOUNT,
+                                                       LedgerJournal.INTEREST_EXPENSE_ACCOUNT, LedgerJournal.INTEREST_ACTION, timestamp, interestRate,
+                                                       afterCustomerID, lastCustomerID, maxDisputes, interestRate);
+    String insertInterestOutboxEventsSql = "INSERT INTO LedgerOutbox (JournalID, CustomerID, Action, Amount, Timestamp) "
+                                         + "SELECT CONCAT(?, CustomerID), CustomerID, ?, FLOOR(Balance * ?), ? FROM Customers "
+                                         + "WHERE CustomerID > ? AND CustomerID <= ? AND NumFraudReversals < ? AND FLOOR(Balance * ?) > 0";
+    jdbcTemplate.update(insertInterestOutboxEventsSql, journalIDPrefix, LedgerJournal.INTEREST_ACTION, interestRate, timestamp,
+                        afterCustomerID, lastCustomerID, maxDisputes, interestRate);
+    return numLedgerEntriesInserted;
+  }
+
+  // Adds interest to the main balance of every customer in the chunk whose account is not frozen
+  public static int creditInterest(JdbcTemplate jdbcTemplate, String afterCustomerID, String lastCustomerID, BigDecimal interestRate, int maxDisputes) {
+    String creditInterestSql = "UPDATE Customers SET Balance = Balance + FLOOR(Balance * ?) "
+                             + "WHERE CustomerID > ? AND CustomerID <= ? AND NumFraudReversals < ? AND FLOOR(Balance * ?) > 0";
+    return jdbcTemplate.update(creditInterestSql, interestRate, afterCustomerID, lastCustomerID, maxDisputes, interestRate);
+  }
+
+  // Returns the next chunk of overdrawn CustomerIDs after afterCustomerID, in order. A null rangeEnd means no upper bound.
+  public static List<String> getOverdrawnCustomerIDs(JdbcTemplate jdbcTemplate, String afterCustomerID, String rangeEnd, int chunkSize) {
+    String rangeEndCondition = rangeEnd == null ? "" : " AND CustomerID <= ?";
+    String getOverdrawnCustomerIDsSql = "SELECT CustomerID FROM Customers WHERE OverdraftBalance > 0 AND CustomerID > ?" + rangeEndCondition + " ORDER BY CustomerID LIMIT ?";
+    Object[] chunkArgs = rangeEnd == null ? new Object[] {afterCustomerID, chunkSize} : new Object[] {afterCustomerID, rangeEnd, chunkSize};
+    return jdbcTemplate.queryForList(getOverdrawnCustomerIDsSql, String.class, chunkArgs);
+  }
+
+  // Posts one overdraft interest journal per overdrawn customer in the chunk: their Overdraft account is charged the interest rounded up to the
+  // penny, but no further than maxOverdraftInPennies, and the bank's OverdraftFees account earns it
+  public static int insertOverdraftInterestLedgerEntries(JdbcTemplate jdbcTemplate, String afterCustomerID, String lastCustomerID, BigDecimal interestRate,
+                                                         int maxOverdraftInPennies, String journalIDPrefix, String timestamp) {
+    String insertOverdraftInterestLedgerEntriesSql = "INSERT INTO LedgerEntries (JournalID, CustomerID, Account, Amount, Action, Timestamp) "
+                                                   + "SELECT CONCAT(?, c.CustomerID), IF(p.Leg = 1, c.CustomerID, ?), IF(p.Leg = 1, ?, ?), IF(p.Leg = 1, -c.Interest, c.Interest), ?, ? "
+                                                   + "FROM (SELECT CustomerID, LEAST(CEIL(OverdraftBalance * ?), ? - OverdraftBalance) AS Interest FROM Customers "
+                                                   + "WHERE CustomerID > ? AND CustomerID <= ? AND OverdraftBalance > 0 AND OverdraftBalance < ?) c "
+                                                   + "CROSS JOIN (SELECT 1 AS Leg UNION ALL SELECT 2) p";
+    int numLedgerEntriesInserted = jdbcTemplate.update(insertOverdraftInterestLedgerEntriesSql, journalIDPrefix, LedgerJournal.BANK_ID, LedgerJournal.OVERDRAFT_ACCOUNT,
+                                                       LedgerJournal.OVERDRAFT_FEES_ACCOUNT, LedgerJournal.OVERDRAFT_INTEREST_ACTION, timestamp, interestRate,
+                                                       maxOverdraftInPennies, afterCustomerID, lastCustomerID, maxOverdraftInPennies);
+    String insertOverdraftInterestOutboxEventsSql = "INSERT INTO LedgerOutbox (JournalID, CustomerID, Action, Amount, Timestamp) "
+                                                  + "SELECT CONCAT(?, CustomerID), CustomerID, ?, -LEAST(CEIL(OverdraftBalance * ?), ? - OverdraftBalance), ? FROM Customers "
+                                                  + "WHERE CustomerID > ? AND CustomerID <= ? AND OverdraftBalance > 0 AND OverdraftBalance < ?";
+    jdbcTemplate.update(insertOverdraftInterestOutboxEventsSql, journalIDPrefix, LedgerJournal.OVERDRAFT_INTEREST_ACTION, interestRate, maxOverdraftInPennies,
+                        timestamp, afterCustomerID, lastCustomerID, maxOverdraftInPennies);
+    return numLedgerEntriesInserted;
+  }
+
+  // Logs the overdraft interest charge of every overdrawn customer in the chunk, with the same amounts as insertOverdraftInterestLedgerEntries
+  public static void insertOverdraftInterestLogs(JdbcTemplate jdbcTemplate, String afterCustomerID, String lastCustomerID, BigDecimal interestRate,
+                                                 int maxOverdraftInPennies, String timestamp) {
+    String insertOverdraftInterestLogsSql = "INSERT INTO OverdraftLogs (CustomerID, Timestamp, DepositAmt, OldOverBalance, NewOverBalance) "
+                                          + "SELECT CustomerID, ?, 0, OverdraftBalance, OverdraftBalance + LEAST(CEIL(OverdraftBalance * ?), ? - OverdraftBalance) FROM Customers "
+                                          + "WHERE CustomerID > ? AND CustomerID <= ? AND OverdraftBalance > 0 AND OverdraftBalance < ?";
+    jdbcTemplate.update(insertOverdraftInterestLogsSql, timestamp, interestRate, maxOverdraftInPennies, afterCustomerID, lastCustomerID, maxOverdraftInPennies);
+  }
+
+  // Adds interest to the overdraft balance of every overdrawn customer in the chunk, with the same amounts as insertOverdraftInterestLedgerEntries
+  public static int chargeOverdraftInterest(JdbcTemplate jdbcTemplate, String afterCustomerID, String lastCustomerID, BigDecimal interestRate, int maxOverdraftInPennies) {
+    String chargeOverdraftInterestSql = "UPDATE Customers SET OverdraftBalance = OverdraftBalance + LEAST(CEIL(OverdraftBalance * ?), ? - OverdraftBalance) "
+                                      + "WHERE CustomerID > ? AND CustomerID <= ? AND OverdraftBalance > 0 AND OverdraftBalance < ?";
+    return jdbcTemplate.update(chargeOverdraftInterestSql, interestRate, maxOverdraftInPennies, afterCustomerID, lastCustomerID, maxOverdraftInPennies);
+  }
+
+  // Streams the customer's TransactionHistory rows in Timestamp order through the (CustomerID, Timestamp) index, one row at a time.
+  // fromTimestamp is inclusive and toTimestamp is exclusive, and either can be null for no bound.
+  public static void streamTransactionHistory(JdbcTemplate jdbcTemplate, String customerID, String fromTimestamp, String toTimestamp, RowCallbackHandler rowHandler) {
+    List<Object> args = new ArrayList<>(Collections.singletonList(customerID));
+    String streamTransactionHistorySql = "SELECT Timestamp, Action, Amount FROM TransactionHistory WHERE CustomerID = ?";
+    if (fromTimestamp != null) {
+      streamTransactionHistorySql += " AND Timestamp >= ?";
+      args.add(fromTimestamp);
+    }
+    if (toTimestamp != null) {
+      streamTransactionHistorySql += " AND Timestamp < ?";
+      args.add(toTimestamp);
+    }
+    streamingJdbcTemplate(jdbcTemplate).query(streamTransactionHistorySql + " ORDER BY Timestamp", rowHandler, args.toArray());
+  }
+
+  //// RECONCILIATION ////
+
+  // Streams {CustomerID, Balance, OverdraftBalance, ledger cash balance, ledger overdraft balance, ledger entry count} for every customer after
+  // afterCustomerID up to rangeEnd (inclusive), in CustomerID order. A null rangeEnd means no upper bound. The ledger sums are
+  // read from the (CustomerID, Account, EntryID, Amount) index alone, and the whole range is read from one consistent snapshot.
+  public static void streamReconciliationRange(JdbcTemplate jdbcTemplate, String afterCustomerID, String rangeEnd, RowCallbackHandler rowHandler) {
+    String rangeEndCondition = rangeEnd == null ? "" : " AND CustomerID <= ?";
+    String streamReconciliationRangeSql = "SELECT c.CustomerID, c.Balance, c.OverdraftBalance, COALESCE(l.CashBalance, 0), COALESCE(l.OverdraftBalance, 0), COALESCE(l.NumEntries, 0) "
+      + "FROM (SELECT CustomerID, Balance, OverdraftBalance FROM Customers WHERE CustomerID > ?" + rangeEndCondition + ") c "
+      + "LEFT JOIN (SELECT CustomerID, SUM(IF(Account = ?, Amount, 0)) AS CashBalance, -SUM(IF(Account = ?, Amount, 0)) AS OverdraftBalance, COUNT(*) AS NumEntries "
+      + "FROM LedgerEntries WHERE CustomerID > ?" + rangeEndCondition + " AND CustomerID <> ? AND Account IN (?, ?) GROUP BY CustomerID) l ON l.CustomerID = c.CustomerID "
+      + "ORDER BY c.CustomerID";
+    List<Object> args = new ArrayList<>();
+    args.add(afterCustomerID);
+    if (rangeEnd != null) {
+      args.add(rangeEnd);
+    }
+    args.addAll(Arrays.asList(LedgerJournal.CASH_ACCOUNT, LedgerJournal.OVERDRAFT_ACCOUNT, afterCustomerID));
+    if (rangeEnd != null) {
+      args.add(rangeEnd);
+    }
+    // the bank's own accounts hold the other side of every journal, so skip them rather than summing half the ledger
+    args.addAll(Arrays.asList(LedgerJournal.BANK_ID, LedgerJournal.CASH_ACCOUNT, LedgerJournal.OVERDRAFT_ACCOUNT));
+    streamingJdbcTemplate(jdbcTemplate).query(streamReconciliationRangeSql, rowHandler, args.toArray());
+  }
+
+  // Each row is {RunTimestamp, CustomerID, Balance, ExpectedBalance, OverdraftBalance, ExpectedOverdraftBalance}
+  public static void insertRowsToReconciliationMismatchesTable(JdbcTemplate jdbcTemplate, List<Object[]> mismatches) {
+    String insertRowToReconciliationMismatchesSql = "INSERT INTO ReconciliationMismatches VALUES (?, ?, ?, ?, ?, ?)";
+    jdbcTemplate.batchUpdate(insertRowToReconciliationMismatchesSql, mismatches);
+  }
+
+  //// OUTBOX ////
+
+  // Oldest events still in the LedgerOutbox, in EventID order, with Timestamp as a "yyyy-MM-dd HH:mm:ss" String
+  public static List<Map<String,Object>> getOutboxEvents(JdbcTemplate jdbcTemplate, int limit) {
+    String getOutboxEventsSql = "SELECT EventID, JournalID, CustomerID, Action, Amount, DATE_FORMAT(Timestamp, '%Y-%m-%d %H:%i:%s') AS Timestamp "
+                              + "FROM LedgerOutbox ORDER BY EventID LIMIT ?";
+    return jdbcTemplate.queryForList(getOutboxEventsSql, limit);
+  }
+
+  // EventID of the customer's newest event still in the LedgerOutbox, or 0 if the relay has deleted all of them
+  public static long getLastOutboxEventID(JdbcTemplate jdbcTemplate, String customerID) {
+    String getLastOutboxEventIDSql = "SELECT COALESCE(MAX(EventID), 0) FROM LedgerOutbox WHERE CustomerID = ?";
+    return jdbcTemplate.queryForObject(getLastOutboxEventIDSql, Long.class, customerID);
+  }
+
+  public static void deleteOutboxEvents(JdbcTemplate jdbcTemplate, List<Long> eventIDs) {
+    if (eventIDs.isEmpty()) {
+      return;
+    }
+    String placeholders = String.join(", ", Collections.nCopies(eventIDs.size(), "?"));
+    String deleteOutboxEventsSql = String.format("DELETE FROM LedgerOutbox WHERE EventID IN (%s)", placeholders);
+    jdbcTemplate.update(deleteOutboxEventsSql, eventIDs.toArray());
+  }
+
+  //// ACCOUNT VIEWS ////
+
+  public static Optional<Map<String,Object>> getAccountView(JdbcTemplate jdbcTemplate, String customerID) {
+    String getAccountViewSql = "SELECT * FROM AccountViews WHERE CustomerID = ?";
+    return jdbcTemplate.queryForList(getAccountViewSql, customerID).stream().findFirst();
+  }
+
+  // Row is {CustomerID, FirstName, LastName, Balance, OverdraftBalance, EthBalance, SolBalance, OverdraftLogs, TransactionHist, TransferHist, CryptoHist, LastEventID}
+  public static void replaceAccountView(JdbcTemplate jdbcTemplate, Object[] accountView) {
+    String replaceAccountViewSql = "REPLACE INTO AccountViews VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    jdbcTemplate.update(replaceAccountViewSql, accountView);
+  }
+
+  public static void deleteAccountView(JdbcTemplate jdbcTemplate, String customerID) {
+    String deleteAccountViewSql = "DELETE FROM AccountViews WHERE CustomerID = ?";
+    jdbcTemplate.update(deleteAccountViewSql, customerID);
+  }
+
+  public static void deleteAccountViews(JdbcTemplate jdbcTemplate) {
+    jdbcTemplate.update("DELETE FROM AccountViews");
+  }
+
+  public static Optional<Map<String,Object>> getCustomerBalances(JdbcTemplate jdbcTemplate, String customerID) {
+    String getCustomerBalancesSql = "SELECT Balance, OverdraftBalance FROM Customers WHERE CustomerID = ?";
+    return jdbcTemplate.queryForList(getCustomerBalancesSql, customerID).stream().findFirst();
+  }
+
+  // Balance and OverdraftBalance, plus the customer's newest outbox EventID as LastEventID (0 if none), read in one statement
+  public static Optional<Map<String,Object>> getCustomerBalancesWithLastOutboxEventID(JdbcTemplate jdbcTemplate, String customerID) {
+    String getCustomerBalancesSql = "SELECT Balance, OverdraftBalance, "
+                                  + "(SELECT COALESCE(MAX(EventID), 0) FROM LedgerOutbox WHERE CustomerID = ?) AS LastEventID "
+                                  + "FROM Customers WHERE CustomerID = ?";
+    return jdbcTemplate.queryForList(getCustomerBalancesSql, customerID, customerID).stream().findFirst();
+  }
+
+  public static List<String> getCustomerIDs(JdbcTemplate jdbcTemplate) {
+    return jdbcTemplate.queryForList("SELECT CustomerID FROM Customers ORDER BY CustomerID", String.class);
+  }
+
+  //// CUSTOMER PROFILES ////
+
+  // Served from the router's CustomerProfileCache once the customer was read; empty if the customer doesn't exist
+  public static Optional<CustomerProfileCache.Profile> getCustomerProfile(JdbcTemplate jdbcTemplate, CustomerProfileCache customerProfileCache, String customerID) {
+    return customerProfileCache.get(jdbcTemplate, customerID, () -> {
+      String getCustomerProfileSql = "SELECT FirstName, LastName FROM Customers WHERE CustomerID = ?";
+      return jdbcTemplate.queryForList(getCustomerProfileSql, customerID).stream().findFirst();
+    });
+  }
+
+  // Up to limit rows of {CustomerID, FirstName, LastName} with CustomerIDs after afterCustomerID, in CustomerID order
+  public static List<Map<String,Object>> getCustomerProfiles(JdbcTemplate jdbcTemplate, String afterCustomerID, int limit) {
+    String getCustomerProfilesSql = "SELECT CustomerID, FirstName, LastName FROM Customers WHERE CustomerID > ? ORDER BY CustomerID LIMIT ?";
+    return jdbcTemplate.queryForList(getCustomerProfilesSql, afterCustomerID, limit);
+  }
+
+  // Streams every CustomerID on the shard, in no particular order
+  public static void streamCustomerIDs(JdbcTemplate jdbcTemplate, RowCallbackHandler rowHandler) {
+    streamingJdbcTemplate(jdbcTemplate).query("SELECT CustomerID FROM Customers", rowHandler);
+  }
+
+  // Streams {CustomerID, FirstName, LastName} of every customer on the shard, in CustomerID order
+  public static void streamCustomerProfiles(JdbcTemplate jdbcTemplate, RowCallbackHandler rowHandler) {
+    streamingJdbcTemplate(jdbcTemplate).query("SELECT CustomerID, FirstName, LastName FROM Customers ORDER BY CustomerID", rowHandler);
+  }
+
+  //// HISTORY PAGES ////
+
+  // Rows of {Timestamp, Action, Amount} at or before atOrBeforeTimestamp (null for the newest), newest first, after skipping numToSkip of them.
+  // Rows sharing an older Timestamp come back in the same order each time, since new rows are only ever newer, so a page can resume in the middle of them.
+  public static List<Map<String,Object>> getTransactionHistoryPage(JdbcTemplate jdbcTemplate, String customerID, String atOrBeforeTimestamp,
+                                                                   int numToSkip, int limit) {
+    List<Object> args = new ArrayList<>(Collections.singletonList(customerID));
+    String getTransactionHistoryPageSql = "SELECT DATE_FORMAT(Timestamp, '%Y-%m-%d %H:%i:%s') AS Timestamp, Action, Amount FROM TransactionHistory WHERE CustomerID = ?";
+    if (atOrBeforeTimestamp != null) {
+      getTransactionHistoryPageSql += " AND TransactionHistory.Timestamp <= ?";
+      args.add(atOrBeforeTimestamp);
+    }
+    args.add(numToSkip);
+    args.add(limit);
+    return jdbcTemplate.queryForList(getTransactionHistoryPageSql + " ORDER BY TransactionHistory.Timestamp DESC LIMIT ?, ?", args.toArray());
+  }
+
+  // Rows of {TransferFrom, TransferTo, Timestamp, Amount} sent or received by the customer, paged like getTransactionHistoryPage
+  public static List<Map<String,Object>> getTransferHistoryPage(JdbcTemplate jdbcTemplate, String customerID, String atOrBeforeTimestamp,
+                                                                int numToSkip, int limit) {
+    List<Object> args = new ArrayList<>(Arrays.asList(customerID, customerID));
+    String getTransferHistoryPageSql = "SELECT TransferFrom, TransferTo, DATE_FORMAT(Timestamp, '%Y-%m-%d %H:%i:%s') AS Timestamp, Amount FROM TransferHistory "
+                                     + "WHERE (TransferFrom = ? OR TransferTo = ?)";
+    if (atOrBeforeTimestamp != null) {
+      getTransferHistoryPageSql += " AND TransferHistory.Timestamp <= ?";
+      args.add(atOrBeforeTimestamp);
+    }
+    args.add(numToSkip);
+    args.add(limit);
+    return jdbcTemplate.queryForList(getTransferHistoryPageSql + " ORDER BY TransferHistory.Timestamp DESC LIMIT ?, ?", args.toArray());
+  }
+
+  //// EXPOSURE ////
+
+  // Sums of Balance and OverdraftBalance, and the number of customers and of frozen accounts, in a full scan of Customers
+  public static Map<String,Object> getCustomerExposureTotals(JdbcTemplate jdbcTemplate, int maxDisputes) {
+    String getCustomerExposureTotalsSql = "SELECT COALESCE(SUM(Balance), 0) AS Balance, COALESCE(SUM(OverdraftBalance), 0) AS OverdraftBalance, "
+                                        + "COUNT(*) AS NumCustomers, COALESCE(SUM(NumFraudReversals >= ?), 0) AS NumFrozenAccounts FROM Customers";
+    return jdbcTemplate.queryForMap(getCustomerExposureTotalsSql, maxDisputes);
+  }
+
+  // Total amount held of each crypto asset
+  public static Map<String,Double> getCryptoHoldingTotals(JdbcTemplate jdbcTemplate) {
+    String getCryptoHoldingTotalsSql = "SELECT CryptoName, SUM(CryptoAmount) FROM CryptoHoldings GROUP BY CryptoName";
+    Map<String,Double> cryptoHoldingTotals = new TreeMap<>();
+    jdbcTemplate.query(getCryptoHoldingTotalsSql, (RowCallbackHandler) resultSet -> cryptoHoldingTotals.put(resultSet.getString(1), resultSet.getDouble(2)));
+    return cryptoHoldingTotals;
+  }
+
+  //// DAILY ROLLUPS ////
+
+  private static int NUM_BANK_ROLLUP_SLOTS = 16;
+  private static Comparator<List<Object>> ROLLUP_KEY_ORDER = (a, b) -> {
+    for (int i = 0; i < a.size(); i++) {
+      int order = a.get(i).toString().compareTo(b.get(i).toString());
+      if (order != 0) {
+        return order;
+      }
+    }
+    return 0;
+  };
+
+  /**
+   * Adds TransactionHistory rows ({CustomerID, Timestamp, Action, Amount}) to the CustomerDailyRollups and
+   * BankDailyRollups tables, in the caller's transaction. Rows are summed in memory first, so a batch costs one
+   * upsert per (customer, day, action) and one per (day, action).
+   * <p>
+   * Every transaction touches the same bank-wide row for a day and action, so each day and action is spread over
+   * {@link #NUM_BANK_ROLLUP_SLOTS} rows, and a thread always writes to the same one. Readers sum the slots.
+   */
+  private static void addTransactionsToDailyRollups(JdbcTemplate jdbcTemplate, List<Object[]> transactionLogs) {
+    Map<List<Object>,long[]> customerRollups = new TreeMap<>(ROLLUP_KEY_ORDER);
+    Map<List<Object>,long[]> bankRollups = new TreeMap<>(ROLLUP_KEY_ORDER);
+    for (Object[] transactionLog : transactionLogs) {
+      String day = transactionLog[1].toString().substring(0, 10);
+      long amount = ((Number) transactionLog[3]).longValue();
+      long[] customerRollup = customerRollups.computeIfAbsent(Arrays.asList(transactionLog[0], day, transactionLog[2]), key -> new long[2]);
+      customerRollup[0]++;
+      customerRollup[1] += amount;
+      long[] bankRollup = bankRollups.computeIfAbsent(Arrays.asList(day, transactionLog[2]), key -> new long[2]);
+      bankRollup[0]++;
+      bankRollup[1] += amount;
     }
+    if (customerRollups.isEmpty()) {
+      return;
+    }
+
+    // rows are upserted in key order, so concurrent batches lock them in the same order
+    List<Object[]> customerRollupRows = new ArrayList<>();
+    customerRollups.forEach((key, rollup) -> customerRollupRows.add(new Object[] {key.get(0), key.get(1), key.get(2), rollup[0], rollup[1]}));
+    String addToCustomerDailyRollupsSql = "INSERT INTO CustomerDailyRollups VALUES (?, ?, ?, ?, ?) "
+                                        + "ON DUPLICATE KEY UPDATE NumTransactions = NumTransactions + VALUES(NumTransactions), TotalAmount = TotalAmount + VALUES(TotalAmount)";
+    jdbcTemplate.batchUpdate(addToCustomerDailyRollupsSql, customerRollupRows);
+
+    int slot = (int) (Thread.currentThread().getId() % NUM_BANK_ROLLUP_SLOTS);
+    List<Object[]> bankRollupRows = new ArrayList<>();
+    bankRollups.forEach((key, rollup) -> bankRollupRows.add(new Object[] {key.get(0), key.get(1), slot, rollup[0], rollup[1]}));
+    String addToBankDailyRollupsSql = "INSERT INTO BankDailyRollups VALUES (?, ?, ?, ?, ?) "
+                                    + "ON DUPLICATE KEY UPDATE NumTransactions = NumTransactions + VALUES(NumTransactions), TotalAmount = TotalAmount + VALUES(TotalAmount)";
+    jdbcTemplate.batchUpdate(addToBankDailyRollupsSql, bankRollupRows);
+  }
+
+  /**
+   * Returns the customer's rollup rows (Day, Action, NumTransactions, TotalAmount) for each day from fromDay to toDay
+   * (yyyy-MM-dd, both inclusive), oldest day first. Days without transactions have no rows.
+   */
+  public static List<Map<String,Object>> getCustomerDailyRollups(JdbcTemplate jdbcTemplate, String customerID, String fromDay, String toDay) {
+    String getCustomerDailyRollupsSql = "SELECT Day, Action, NumTransactions, TotalAmount FROM CustomerDailyRollups "
+                                      + "WHERE CustomerID = ? AND Day BETWEEN ? AND ? ORDER BY Day, Action";
+    return jdbcTemplate.queryForList(getCustomerDailyRollupsSql, customerID, fromDay, toDay);
+  }
+
+  /**
+   * Returns the customer's number of transactions and total pennies of each action from fromDay to toDay
+   * (yyyy-MM-dd, both inclusive), as rows of Action, NumTransactions and TotalAmount.
+   */
+  public static List<Map<String,Object>> getCustomerActionTotals(JdbcTemplate jdbcTemplate, String customerID, String fromDay, String toDay) {
+    String getCustomerActionTotalsSql = "SELECT Action, SUM(NumTransactions) AS NumTransactions, SUM(TotalAmount) AS TotalAmount FROM CustomerDailyRollups "
+                                      + "WHERE CustomerID = ? AND Day BETWEEN ? AND ? GROUP BY Action ORDER BY Action";
+    return jdbcTemplate.queryForList(getCustomerActionTotalsSql, customerID, fromDay, toDay);
+  }
+
+  /**
+   * Returns the shard's bank-wide rollup rows (Day, Action, NumTransactions, TotalAmount) for each day from fromDay
+   * to toDay (yyyy-MM-dd, both inclusive), oldest day first.
+   */
+  public static List<Map<String,Object>> getBankDailyRollups(JdbcTemplate jdbcTemplate, String fromDay, String toDay) {
+    String getBankDailyRollupsSql = "SELECT Day, Action, SUM(NumTransactions) AS NumTransactions, SUM(TotalAmount) AS TotalAmount FROM BankDailyRollups "
+                                  + "WHERE Day BETWEEN ? AND ? GROUP BY Day, Action ORDER BY Day, Action";
+    return jdbcTemplate.queryForList(getBankDailyRollupsSql, fromDay, toDay);
+  }
+
+  /**
+   * One-off migration for DBs created before the rollup tables existed: recomputes both rollup tables from the
+   * TransactionHistory rows still in MySQL. Run it while the app is stopped.
+   */
+  public static void rebuildDailyRollups(JdbcTemplate jdbcTemplate) {
+    jdbcTemplate.update("DELETE FROM CustomerDailyRollups");
+    jdbcTemplate.update("DELETE FROM BankDailyRollups");
+    jdbcTemplate.update("INSERT INTO CustomerDailyRollups SELECT CustomerID, DATE(Timestamp), Action, COUNT(*), SUM(Amount) "
+                        + "FROM TransactionHistory GROUP BY CustomerID, DATE(Timestamp), Action");
+    jdbcTemplate.update("INSERT INTO BankDailyRollups SELECT Day, Action, 0, SUM(NumTransactions), SUM(TotalAmount) "
+                        + "FROM CustomerDailyRollups GROUP BY Day, Action");
+  }
+
+  //// HISTORY PARTITIONS ////
+
+  // Partitions of a history table in order, oldest month first and pFuture last. Empty if the table isn't partitioned.
+  public static List<String> getHistoryPartitionNames(JdbcTemplate jdbcTemplate, String table) {
+    String getHistoryPartitionNamesSql = "SELECT PARTITION_NAME FROM INFORMATION_SCHEMA.PARTITIONS "
+      + "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND PARTITION_NAME IS NOT NULL ORDER BY PARTITION_ORDINAL_POSITION";
+    return jdbcTemplate.queryForList(getHistoryPartitionNamesSql, String.class, table);
+  }
+
+  // Month (yyyy-MM) of the oldest row in a history table, or empty if it has no rows
+  public static Optional<String> getOldestHistoryMonth(JdbcTemplate jdbcTemplate, String table) {
+    String getOldestHistoryMonthSql = String.format("SELECT DATE_FORMAT(MIN(Timestamp), '%%Y-%%m') FROM %s", table);
+    return Optional.ofNullable(jdbcTemplate.queryForObject(getOldestHistoryMonthSql, String.class));
+  }
+
+  // Splits the pFuture partition of a history table into one partition per given month (each given as {PartitionName, first day of the next month}),
+  // followed by a new pFuture
+  public static void addHistoryPartitions(JdbcTemplate jdbcTemplate, String table, List<String[]> monthPartitions) {
+    StringBuilder partitionDefinitions = new StringBuilder();
+    for (String[] monthPartition : monthPartitions) {
+      partitionDefinitions.append(String.format("PARTITION %s VALUES LESS THAN (TO_DAYS('%s')), ", monthPartition[0], monthPartition[1]));
+    }
+    String addHistoryPartitionsSql = String.format("ALTER TABLE %s REORGANIZE PARTITION pFuture INTO (%sPARTITION pFuture VALUES LESS THAN MAXVALUE)",
+                                                   table, partitionDefinitions);
+    jdbcTemplate.update(addHistoryPartitionsSql);
+  }
+
+  // Streams every row of one partition of a history table in Timestamp order, one row at a time
+  public static void streamHistoryPartition(JdbcTemplate jdbcTemplate, String table, String partitionName, RowCallbackHandler rowHandler) {
+    String streamHistoryPartitionSql = String.format("SELECT * FROM %s PARTITION (%s) ORDER BY Timestamp", table, partitionName);
+    streamingJdbcTemplate(jdbcTemplate).query(streamHistoryPartitionSql, rowHandler);
+  }
+
+  public static void dropHistoryPartition(JdbcTemplate jdbcTemplate, String table, String partitionName) {
+    String dropHistoryPartitionSql = String.format("ALTER TABLE %s DROP PARTITION %s", table, partitionName);
+    jdbcTemplate.update(dropHistoryPartitionSql);
+  }
+
+  /**
+   * Returns the customer's TransactionHistory rows from fromTimestamp (inclusive) to toTimestamp (exclusive) in Timestamp
+   * order, reading archived months from historyArchive and the rest from MySQL. Either bound can be null for no bound.
+   * Every row has the CustomerID, Timestamp (as a "yyyy-MM-dd HH:mm:ss" String), Action and Amount columns.
+   */
+  public static List<Map<String,Object>> getTransactionHistory(JdbcTemplate jdbcTemplate, HistoryArchive historyArchive, String customerID,
+                                                               String fromTimestamp, String toTimestamp) {
+    List<Map<String,Object>> transactionLogs = new ArrayList<>();
+    forEachArchivedTransaction(historyArchive, customerID, fromTimestamp, toTimestamp, row -> {
+      Map<String,Object> transactionLog = new LinkedHashMap<>();
+      transactionLog.put("CustomerID", row[0]);
+      transactionLog.put("Timestamp", row[1]);
+      transactionLog.put("Action", row[2]);
+      transactionLog.put("Amount", row[3] == null ? null : Integer.valueOf(row[3]));
+      transactionLogs.add(transactionLog);
+    });
+
+    List<Object> args = new ArrayList<>(Collections.singletonList(customerID));
+    String getTransactionHistorySql = "SELECT CustomerID, DATE_FORMAT(Timestamp, '%Y-%m-%d %H:%i:%s') AS Timestamp, Action, Amount FROM TransactionHistory WHERE CustomerID = ?";
+    if (fromTimestamp != null) {
+      getTransactionHistorySql += " AND Timestamp >= ?";
+      args.add(fromTimestamp);
+    }
+    if (toTimestamp != null) {
+      getTransactionHistorySql += " AND Timestamp < ?";
+      args.add(toTimestamp);
+    }
+    transactionLogs.addAll(jdbcTemplate.queryForList(getTransactionHistorySql + " ORDER BY Timestamp", args.toArray()));
+    return transactionLogs;
+  }
+
+  // Passes the customer's archived TransactionHistory rows ({CustomerID, Timestamp, Action, Amount}) within the range to rowHandler,
+  // in Timestamp order. Archived months are always older than every month still in MySQL.
+  public static void forEachArchivedTransaction(HistoryArchive historyArchive, String customerID, String fromTimestamp, String toTimestamp,
+                                                Consumer<String[]> rowHandler) {
+    for (YearMonth month : historyArchive.getArchivedMonths(HistoryArchiveJob.TRANSACTION_HISTORY_TABLE)) {
+      // skip months entirely outside the range without reading them
+      String monthStart = month.atDay(1) + " 00:00:00";
+      String monthEnd = month.plusMonths(1).atDay(1) + " 00:00:00";
+      if ((toTimestamp != null && monthStart.compareTo(toTimestamp) >= 0) || (fromTimestamp != null && monthEnd.compareTo(fromTimestamp) <= 0)) {
+        continue;
+      }
+      historyArchive.forEachRow(HistoryArchiveJob.TRANSACTION_HISTORY_TABLE, month, row -> {
+        if (row[0].equals(customerID) && (fromTimestamp == null || row[1].compareTo(fromTimestamp) >= 0)
+            && (toTimestamp == null || row[1].compareTo(toTimestamp) < 0)) {
+          rowHandler.accept(row);
+        }
+      });
+    }
+  }
+
+  // Returns a JdbcTemplate whose queries stream rows from MySQL one at a time instead of materializing the whole result set
+  public static JdbcTemplate streamingJdbcTemplate(JdbcTemplate jdbcTemplate) {
+    JdbcTemplate streamingJdbcTemplate = new JdbcTemplate(jdbcTemplate.getDataSource());
+    streamingJdbcTemplate.setFetchSize(Integer.MIN_VALUE);
+    return streamingJdbcTemplate;
+  }
+
+  // Customers the CustomerIDFilter has never seen are turned away without a query
+  public static boolean doesCustomerExist(JdbcTemplate jdbcTemplate, CustomerIDFilter customerIDFilter, CustomerProfileCache customerProfileCache, String customerID) { 
+    return customerIDFilter.mightExist(customerID) && getCustomerProfile(jdbcTemplate, customerProfileCache, customerID).isPresent();
   }
 }
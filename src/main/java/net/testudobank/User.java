@@ -99,4 +99,27 @@ public class User {
   @Setter @Getter
   private int numDepositsForInterest;
 
+  //// Idempotency Fields ////
+
+  @Setter @Getter
+  private String idempotencyKey;
+
+  //// Page Fields ////
+
+  // Lets the "account_info" page fetch its history sections from AccountFragmentController
+  @Setter @Getter
+  private String fragmentToken;
+
+  //// Result Fields ////
+
+  // The last deposit or withdraw this request made, with the balances it left
+  @Setter @Getter
+  private BalanceMutation balanceMutation;
+
+  //// API Fields ////
+
+  // Set for requests from the /api/v1 REST layer, which don't render the "account_info" page
+  @Setter @Getter
+  private boolean isApiRequest;
+
 }
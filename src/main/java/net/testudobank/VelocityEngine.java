@@ -0,0 +1,265 @@
+package net.testudobank;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory fraud velocity checks. Every deposit and withdraw (including transfers and crypto trades, which are
+ * made of the two) is counted in per-customer sliding windows of 1 minute, 1 hour and 24 hours, separately for
+ * money coming in and money going out, and is rejected if it would push any window past one of the configured
+ * {@link Rule}s. Checks never touch MySQL.
+ * <p>
+ * Each window is a ring of {@link #BUCKETS_PER_WINDOW} buckets holding a count and a sum of pennies, so a window
+ * slides one bucket (1/6th of its length) at a time. All buckets live in flat primitive arrays indexed by the
+ * customer's position in the engine, which costs {@link #bytesPerAccount()} bytes per tracked customer and no
+ * objects besides the CustomerID. Customers are spread over {@link #NUM_STRIPES} stripes by CustomerID hash, each
+ * with its own arrays and lock, so checks of different customers rarely contend. Windows are only tracked while at
+ * least one rule is configured.
+ * <p>
+ * Windows live in this app instance only, and start empty after a restart.
+ */
+@Component
+public class VelocityEngine {
+  //// CONSTANT LITERALS ////
+  public static String MONEY_IN = "deposit";
+  public static String MONEY_OUT = "withdraw";
+  public static String COUNT_METRIC = "count";
+  public static String AMOUNT_METRIC = "amount";
+  // window names, and the length of each window in millis
+  private static List<String> WINDOWS = Arrays.asList("1m", "1h", "24h");
+  private static long[] WINDOW_LENGTHS_IN_MILLIS = {60 * 1000L, 60 * 60 * 1000L, 24 * 60 * 60 * 1000L};
+  private static int BUCKETS_PER_WINDOW = 6;
+  private static int NUM_DIRECTIONS = 2;
+  // customers are split over independently locked stripes, so concurrent movements of different customers rarely wait
+  private static int NUM_STRIPES = 64;
+  private static int INITIAL_CAPACITY_PER_STRIPE = 16;
+
+  /**
+   * Limit on the number or the total pennies of one direction of money movement within one window.
+   * A movement is rejected if the window would exceed the limit with it included.
+   */
+  public static class Rule {
+    private final int direction;
+    private final int window;
+    private final boolean isAmountLimit;
+    private final long limit;
+    private final String description;
+
+    /**
+     * Parses a rule written as `<deposit|withdraw>:<1m|1h|24h>:<count|amount>:<limit>`, where an amount limit
+     * is in pennies. For example, `withdraw:24h:amount:500000` allows at most $5000 out per 24 hours.
+     */
+    public static Rule parse(String rule) {
+      String[] parts = rule.trim().split(":");
+      if (parts.length != 4 || (!parts[0].equals(MONEY_IN) && !parts[0].equals(MONEY_OUT)) || !WINDOWS.contains(parts[1])
+          || (!parts[2].equals(COUNT_METRIC) && !parts[2].equals(AMOUNT_METRIC))) {
+        throw new IllegalArgumentException("Velocity rules must look like <deposit|withdraw>:<1m|1h|24h>:<count|amount>:<limit>, but got " + rule);
+      }
+      return new Rule(parts[0].equals(MONEY_IN) ? 0 : 1, WINDOWS.indexOf(parts[1]), parts[2].equals(AMOUNT_METRIC), Long.parseLong(parts[3]), rule.trim());
+    }
+
+    private Rule(int direction, int window, boolean isAmountLimit, long limit, String description) {
+      this.direction = direction;
+      this.window = window;
+      this.isAmountLimit = isAmountLimit;
+      this.limit = limit;
+      this.description = description;
+    }
+
+    @Override
+    public String toString() {
+      return description;
+    }
+  }
+
+  private final Rule[] rules;
+  private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+
+  @Autowired
+  public VelocityEngine(@Value("${testudobank.velocity.rules:}") String rules) {
+    List<Rule> parsedRules = new ArrayList<>();
+    for (String rule : rules.split(",")) {
+      if (!rule.trim().isEmpty()) {
+        parsedRules.add(Rule.parse(rule));
+      }
+    }
+    this.rules = parsedRules.toArray(new Rule[0]);
+    for (int i = 0; i < NUM_STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  // Engine without rules, which lets every movement through and tracks nothing
+  public static VelocityEngine disabled() {
+    return new VelocityEngine("");
+  }
+
+  public List<Rule> getRules() {
+    return Collections.unmodifiableList(Arrays.asList(rules));
+  }
+
+  // Heap used by the window state of one tracked customer, not counting the CustomerID String and index map slots
+  public static int bytesPerAccount() {
+    int numWindows = NUM_DIRECTIONS * WINDOWS.size();
+    return numWindows * Long.BYTES + 2 * numWindows * BUCKETS_PER_WINDOW * Integer.BYTES;
+  }
+
+  public int getNumTrackedCustomers() {
+    int numCustomers = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        numCustomers += stripe.numCustomers;
+      }
+    }
+    return numCustomers;
+  }
+
+  //// CHECKS ////
+
+  /**
+   * Counts a movement of money into (isMoneyIn) or out of the customer's account at nowMillis, unless it
+   * would break a rule.
+   *
+   * @return the rule the movement would break, or null if it was counted
+   */
+  public Rule tryRecord(String customerID, boolean isMoneyIn, int amountInPennies, long nowMillis) {
+    return record(customerID, isMoneyIn, amountInPennies, nowMillis, true);
+  }
+
+  /**
+   * Counts a movement that can't be rejected anymore, such as the credit side of a transfer whose sender was
+   * already debited.
+   */
+  public void forceRecord(String customerID, boolean isMoneyIn, int amountInPennies, long nowMillis) {
+    record(customerID, isMoneyIn, amountInPennies, nowMillis, false);
+  }
+
+  /**
+   * Takes a movement counted at recordedAtMillis back out of the customer's windows, for a movement whose money
+   * didn't move after all (its withdraw or deposit was rejected, failed or rolled back). Windows that no longer
+   * include recordedAtMillis are left alone.
+   */
+  public void release(String customerID, boolean isMoneyIn, int amountInPennies, long recordedAtMillis) {
+    if (rules.length == 0) {
+      return;
+    }
+    int direction = isMoneyIn ? 0 : 1;
+    long fingerprint = ShardRouter.fnv1a64(customerID);
+    Stripe stripe = stripeFor(customerID);
+    synchronized (stripe) {
+      int index = stripe.customerIndexes.get(fingerprint, i -> stripe.customerIDs[i].equals(customerID));
+      if (index < 0) {
+        return;
+      }
+      int firstWindow = (index * NUM_DIRECTIONS + direction) * WINDOWS.size();
+      for (int window = 0; window < WINDOWS.size(); window++) {
+        long bucketNumber = recordedAtMillis / (WINDOW_LENGTHS_IN_MILLIS[window] / BUCKETS_PER_WINDOW);
+        long newestBucket = stripe.newestBuckets[firstWindow + window];
+        if (bucketNumber > newestBucket || newestBucket - bucketNumber >= BUCKETS_PER_WINDOW) {
+          continue;
+        }
+        int bucket = (firstWindow + window) * BUCKETS_PER_WINDOW + (int) (bucketNumber % BUCKETS_PER_WINDOW);
+        stripe.counts[bucket] = Math.max(0, stripe.counts[bucket] - 1);
+        stripe.amountsInPennies[bucket] = Math.max(0, stripe.amountsInPennies[bucket] - amountInPennies);
+      }
+    }
+  }
+
+  private Rule record(String customerID, boolean isMoneyIn, int amountInPennies, long nowMillis, boolean isCheckEnabled) {
+    if (rules.length == 0) {
+      return null;
+    }
+    int direction = isMoneyIn ? 0 : 1;
+    long fingerprint = ShardRouter.fnv1a64(customerID);
+    Stripe stripe = stripeFor(customerID);
+    synchronized (stripe) {
+      int index = stripe.customerIndexes.get(fingerprint, i -> stripe.customerIDs[i].equals(customerID));
+      if (index < 0) {
+        index = stripe.addCustomer(customerID, fingerprint);
+      }
+      int firstWindow = (index * NUM_DIRECTIONS + direction) * WINDOWS.size();
+      for (int window = 0; window < WINDOWS.size(); window++) {
+        stripe.slide(firstWindow + window, nowMillis / (WINDOW_LENGTHS_IN_MILLIS[window] / BUCKETS_PER_WINDOW));
+      }
+
+      if (isCheckEnabled) {
+        for (Rule rule : rules) {
+          if (rule.direction == direction && stripe.windowTotal(firstWindow + rule.window, rule.isAmountLimit) + (rule.isAmountLimit ? amountInPennies : 1) > rule.limit) {
+            return rule;
+          }
+        }
+      }
+      for (int window = 0; window < WINDOWS.size(); window++) {
+        int bucket = (firstWindow + window) * BUCKETS_PER_WINDOW + (int) (stripe.newestBuckets[firstWindow + window] % BUCKETS_PER_WINDOW);
+        stripe.counts[bucket]++;
+        // saturate instead of wrapping, so a huge total can't wrap around and look small
+        stripe.amountsInPennies[bucket] = (int) Math.min(Integer.MAX_VALUE, (long) stripe.amountsInPennies[bucket] + amountInPennies);
+      }
+      return null;
+    }
+  }
+
+  private Stripe stripeFor(String customerID) {
+    return stripes[(customerID.hashCode() & Integer.MAX_VALUE) % NUM_STRIPES];
+  }
+
+  // Window state of the customers in one stripe, guarded by the stripe's lock. For customer c (their position in the
+  // stripe), direction d and window w, newestBuckets[(c * NUM_DIRECTIONS + d) * WINDOWS.size() + w] is the number of the
+  // window's newest bucket since the epoch, and counts/amounts hold the window's ring of buckets starting at that
+  // position times BUCKETS_PER_WINDOW.
+  private static class Stripe {
+    private final CustomerIndexMap customerIndexes = new CustomerIndexMap(INITIAL_CAPACITY_PER_STRIPE);
+    private String[] customerIDs = new String[INITIAL_CAPACITY_PER_STRIPE];
+    private long[] newestBuckets = new long[INITIAL_CAPACITY_PER_STRIPE * NUM_DIRECTIONS * WINDOWS.size()];
+    private int[] counts = new int[newestBuckets.length * BUCKETS_PER_WINDOW];
+    private int[] amountsInPennies = new int[newestBuckets.length * BUCKETS_PER_WINDOW];
+    private int numCustomers = 0;
+
+    // Moves the window's newest bucket up to bucketNumber, emptying the buckets that fall out of the window
+    private void slide(int window, long bucketNumber) {
+      long newestBucket = newestBuckets[window];
+      if (bucketNumber <= newestBucket) {
+        return;
+      }
+      int firstBucket = window * BUCKETS_PER_WINDOW;
+      if (bucketNumber - newestBucket >= BUCKETS_PER_WINDOW) {
+        Arrays.fill(counts, firstBucket, firstBucket + BUCKETS_PER_WINDOW, 0);
+        Arrays.fill(amountsInPennies, firstBucket, firstBucket + BUCKETS_PER_WINDOW, 0);
+      } else {
+        for (long expiredBucket = newestBucket + 1; expiredBucket <= bucketNumber; expiredBucket++) {
+          counts[firstBucket + (int) (expiredBucket % BUCKETS_PER_WINDOW)] = 0;
+          amountsInPennies[firstBucket + (int) (expiredBucket % BUCKETS_PER_WINDOW)] = 0;
+        }
+      }
+      newestBuckets[window] = bucketNumber;
+    }
+
+    private long windowTotal(int window, boolean isAmount) {
+      int[] buckets = isAmount ? amountsInPennies : counts;
+      long total = 0;
+      for (int bucket = window * BUCKETS_PER_WINDOW; bucket < (window + 1) * BUCKETS_PER_WINDOW; bucket++) {
+        total += buckets[bucket];
+      }
+      return total;
+    }
+
+    private int addCustomer(String customerID, long fingerprint) {
+      if (numCustomers == customerIDs.length) {
+        customerIDs = Arrays.copyOf(customerIDs, numCustomers * 2);
+        newestBuckets = Arrays.copyOf(newestBuckets, newestBuckets.length * 2);
+        counts = Arrays.copyOf(counts, counts.length * 2);
+        amountsInPennies = Arrays.copyOf(amountsInPennies, amountsInPennies.length * 2);
+      }
+      int index = numCustomers++;
+      customerIDs[index] = customerID;
+      customerIndexes.add(fingerprint, index);
+      return index;
+    }
+  }
+}
@@ -0,0 +1,241 @@
+package net.testudobank;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Append-only log of {@link BalanceEngine} mutations ({@link BalanceMutation}s), written to memory-mapped segment files.
+ * <p>
+ * A record is complete once its length prefix is written, and the prefix is written after the record body,
+ * so a reader never sees a torn record. Records appended to the mapped pages survive a crash of the app's
+ * process. When fsync is enabled, {@link #awaitDurable(long)} also waits for the pages to be forced to disk.
+ * Waiting threads share one force per round (group commit): the first waiter forces everything appended so
+ * far, and every thread whose record was covered by that force returns together.
+ * <p>
+ * Segments are sealed when they fill up or when the engine checkpoints, and are deleted once their records
+ * are written to MySQL.
+ * <p>
+ * A record of a transfer saga leg ends with the saga's ID and the other customer of the transfer. Other records
+ * end right after their timestamp, like every record written before saga legs were logged.
+ */
+public class WriteAheadLog {
+  //// CONSTANT LITERALS ////
+  private static String SEGMENT_FILE_PREFIX = "wal-";
+  private static String SEGMENT_FILE_SUFFIX = ".log";
+  private static int RECORD_LENGTH_PREFIX_SIZE = 4;
+  private static int RECORD_FIXED_BODY_SIZE = 2 + 1 + 4 * 5 + 8;
+
+  private final File directory;
+  private final int segmentCapacity;
+  private final boolean isFsyncEnabled;
+
+  private long currentSegmentNumber;
+  private MappedByteBuffer currentSegment;
+  private final List<Long> sealedSegmentNumbers = new ArrayList<>();
+  private long appendedSequence = 0;
+
+  private final Object syncMonitor = new Object();
+  private long durableSequence = 0;
+  private boolean isSyncing = false;
+
+  /**
+   * Opens a log that appends to a new segment numbered firstSegmentNumber.
+   */
+  public WriteAheadLog(File directory, int segmentCapacity, boolean isFsyncEnabled, long firstSegmentNumber) {
+    this.directory = directory;
+    this.segmentCapacity = segmentCapacity;
+    this.isFsyncEnabled = isFsyncEnabled;
+    this.currentSegmentNumber = firstSegmentNumber;
+    this.currentSegment = mapSegment(firstSegmentNumber);
+  }
+
+  /**
+   * Appends a record and returns its sequence number, to be passed to {@link #awaitDurable(long)}.
+   */
+  public synchronized long append(BalanceMutation record) {
+    byte[] customerIDBytes = record.customerID.getBytes(StandardCharsets.UTF_8);
+    int bodySize = RECORD_FIXED_BODY_SIZE + customerIDBytes.length;
+    byte[] transferSagaIDBytes = null;
+    byte[] counterpartyIDBytes = null;
+    if (record.transferSagaID != null) {
+      transferSagaIDBytes = record.transferSagaID.getBytes(StandardCharsets.UTF_8);
+      counterpartyIDBytes = record.counterpartyID == null ? new byte[0] : record.counterpartyID.getBytes(StandardCharsets.UTF_8);
+      bodySize += 2 + transferSagaIDBytes.length + 2 + counterpartyIDBytes.length;
+    }
+    // keep room for the zero length prefix that marks the end of the segment
+    if (currentSegment.remaining() < RECORD_LENGTH_PREFIX_SIZE * 2 + bodySize) {
+      if (currentSegment.position() == 0) {
+        throw new IllegalArgumentException("Write-ahead log record is larger than a whole segment");
+      }
+      sealCurrentSegmentAndStartNext();
+    }
+
+    int recordPosition = currentSegment.position();
+    currentSegment.position(recordPosition + RECORD_LENGTH_PREFIX_SIZE);
+    currentSegment.putShort((short) customerIDBytes.length);
+    currentSegment.put(customerIDBytes);
+    currentSegment.put(record.actionCode);
+    currentSegment.putInt(record.amountInPennies);
+    currentSegment.putInt(record.oldCashBalanceInPennies);
+    currentSegment.putInt(record.oldOverdraftBalanceInPennies);
+    currentSegment.putInt(record.newCashBalanceInPennies);
+    currentSegment.putInt(record.newOverdraftBalanceInPennies);
+    currentSegment.putLong(record.timestampMillis);
+    if (transferSagaIDBytes != null) {
+      currentSegment.putShort((short) transferSagaIDBytes.length);
+      currentSegment.put(transferSagaIDBytes);
+      currentSegment.putShort((short) counterpartyIDBytes.length);
+      currentSegment.put(counterpartyIDBytes);
+    }
+    currentSegment.putInt(recordPosition, bodySize);
+    return ++appendedSequence;
+  }
+
+  /**
+   * Blocks until the record with the given sequence number is on disk. Returns immediately when fsync is disabled.
+   */
+  public void awaitDurable(long sequence) {
+    if (!isFsyncEnabled) {
+      return;
+    }
+    while (true) {
+      synchronized (syncMonitor) {
+        while (isSyncing && durableSequence < sequence) {
+          try {
+            syncMonitor.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the write-ahead log to sync", e);
+          }
+        }
+        if (durableSequence >= sequence) {
+          return;
+        }
+        // no sync covers this record yet, so this thread forces the log for every waiting thread
+        isSyncing = true;
+      }
+
+      long syncedSequence = 0;
+      try {
+        MappedByteBuffer segmentToForce;
+        synchronized (this) {
+          segmentToForce = currentSegment;
+          syncedSequence = appendedSequence;
+        }
+        segmentToForce.force();
+      } finally {
+        synchronized (syncMonitor) {
+          durableSequence = Math.max(durableSequence, syncedSequence);
+          isSyncing = false;
+          syncMonitor.notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Seals the current segment (if it has any records) and returns the numbers of every segment sealed since
+   * the last call, oldest first. Records appended after this call go to a new segment.
+   */
+  public synchronized List<Long> sealSegments() {
+    if (currentSegment.position() > 0) {
+      sealCurrentSegmentAndStartNext();
+    }
+    List<Long> segmentNumbers = new ArrayList<>(sealedSegmentNumbers);
+    sealedSegmentNumbers.clear();
+    return segmentNumbers;
+  }
+
+  // Sealed segments are forced here, so a sync only ever needs to force the current segment
+  private void sealCurrentSegmentAndStartNext() {
+    currentSegment.force();
+    sealedSegmentNumbers.add(currentSegmentNumber);
+    currentSegmentNumber++;
+    currentSegment = mapSegment(currentSegmentNumber);
+  }
+
+  private MappedByteBuffer mapSegment(long segmentNumber) {
+    try (RandomAccessFile segmentFile = new RandomAccessFile(segmentFile(directory, segmentNumber), "rw")) {
+      segmentFile.setLength(segmentCapacity);
+      return segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentCapacity);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  //// SEGMENT FILES ////
+
+  private static File segmentFile(File directory, long segmentNumber) {
+    return new File(directory, String.format("%s%019d%s", SEGMENT_FILE_PREFIX, segmentNumber, SEGMENT_FILE_SUFFIX));
+  }
+
+  /**
+   * Returns the numbers of the segment files in the directory, oldest first.
+   */
+  public static List<Long> listSegmentNumbers(File directory) {
+    List<Long> segmentNumbers = new ArrayList<>();
+    String[] fileNames = directory.list();
+    if (fileNames == null) {
+      return segmentNumbers;
+    }
+    for (String fileName : fileNames) {
+      if (fileName.startsWith(SEGMENT_FILE_PREFIX) && fileName.endsWith(SEGMENT_FILE_SUFFIX)) {
+        segmentNumbers.add(Long.parseLong(fileName.substring(SEGMENT_FILE_PREFIX.length(), fileName.length() - SEGMENT_FILE_SUFFIX.length())));
+      }
+    }
+    Collections.sort(segmentNumbers);
+    return segmentNumbers;
+  }
+
+  /**
+   * Reads every complete record in a segment file, in the order they were appended.
+   */
+  public static List<BalanceMutation> readSegment(File directory, long segmentNumber) {
+    List<BalanceMutation> records = new ArrayList<>();
+    try (RandomAccessFile segmentFile = new RandomAccessFile(segmentFile(directory, segmentNumber), "r")) {
+      ByteBuffer segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, segmentFile.length());
+      while (segment.remaining() >= RECORD_LENGTH_PREFIX_SIZE) {
+        int bodySize = segment.getInt();
+        if (bodySize == 0 || bodySize > segment.remaining()) {
+          break;
+        }
+        int recordEnd = segment.position() + bodySize;
+        byte[] customerIDBytes = new byte[segment.getShort()];
+        segment.get(customerIDBytes);
+        BalanceMutation record = new BalanceMutation(new String(customerIDBytes, StandardCharsets.UTF_8), segment.get(), segment.getInt(), segment.getInt(),
+                                                     segment.getInt(), segment.getInt(), segment.getInt(), segment.getLong());
+        if (segment.position() < recordEnd) {
+          String transferSagaID = readString(segment);
+          String counterpartyID = readString(segment);
+          record = record.forTransferSaga(transferSagaID, counterpartyID.isEmpty() ? null : counterpartyID);
+        }
+        records.add(record);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return records;
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getShort()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  public static void deleteSegment(File directory, long segmentNumber) {
+    File file = segmentFile(directory, segmentNumber);
+    if (file.exists() && !file.delete()) {
+      throw new UncheckedIOException(new IOException("Could not delete write-ahead log segment " + file));
+    }
+  }
+}
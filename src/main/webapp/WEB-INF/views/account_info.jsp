@@ -31,17 +31,17 @@
 	<div align="center">
 		<h2><span>${user.firstName}</span> <span>${user.lastName}</span> Bank Account Info</h2>
     <span>Username: </span><span>${user.username}</span><br/>
-		<span>Balance: $</span><span>${user.balance}</span><br/>
-    <span>Overdraft Balance: $</span><span>${user.overDraftBalance}</span><br/>
+		<span>Balance: $</span><span id="balance">${user.balance}</span><br/>
+    <span>Overdraft Balance: $</span><span id="overdraftBalance">${user.overDraftBalance}</span><br/>
     <span>Crypto Balance in USD: $</span><span>${user.cryptoBalanceUSD}</span><br/>
     <span>Ethereum Coins Owned: </span><span>${user.ethBalance}</span><br/>
     <span>Solana Coins Owned: </span><span>${user.solBalance}</span><br/>
-    <span>Current $ETH Price: </span><span>${user.ethPrice}</span><br/>
-    <span>Current $SOL Price: </span><span>${user.solPrice}</span><br/>
-    <span>Re-payment logs: </span><span>${user.logs}</span><br/>
-    <span>Transaction History: </span><span>${user.transactionHist}</span><br/>
-    <span>Transfer History: </span><span>${user.transferHist}</span><br/>
-    <span>Crypto History: </span><span>${user.cryptoHist}</span><br/>
+    <span>Current $ETH Price: </span><span id="ethPrice">${user.ethPrice}</span><br/>
+    <span>Current $SOL Price: </span><span id="solPrice">${user.solPrice}</span><br/>
+    <span>Re-payment logs: </span><span data-fragment="overdraft-logs">Loading...</span><br/>
+    <span>Transaction History: </span><span data-fragment="transactions">Loading...</span><br/>
+    <span>Transfer History: </span><span data-fragment="transfers">Loading...</span><br/>
+    <span>Crypto History: </span><span data-fragment="crypto-history">Loading...</span><br/>
     <br/>
     <a href='/deposit'>Deposit</a>
     <a href='/withdraw'>Withdraw</a>
@@ -49,5 +49,27 @@
     <a href='/transfer'>Transfer</a>
     <a href='/'>Logout</a>
 	</div>
+  <script>
+    // history sections are fetched after the balances are shown, and revalidated against the browser's cached copy
+    document.querySelectorAll('[data-fragment]').forEach(function (section) {
+      fetch('/api/accounts/${user.username}/fragments/' + section.dataset.fragment, {headers: {'X-Fragment-Token': '${user.fragmentToken}'}})
+        .then(function (response) { return response.ok ? response.text() : Promise.reject(response.status); })
+        .then(function (html) { section.innerHTML = html; })
+        .catch(function () { section.textContent = 'Unavailable, reload the page to try again'; });
+    });
+
+    // new prices and balances are pushed while the page is open
+    var liveUpdates = new EventSource('/api/live?customerID=${user.username}&token=${user.fragmentToken}');
+    liveUpdates.addEventListener('prices', function (event) {
+      var prices = JSON.parse(event.data);
+      document.getElementById('ethPrice').textContent = prices.ETH;
+      document.getElementById('solPrice').textContent = prices.SOL;
+    });
+    liveUpdates.addEventListener('balance', function (event) {
+      var balances = JSON.parse(event.data);
+      document.getElementById('balance').textContent = balances.balanceInPennies / 100;
+      document.getElementById('overdraftBalance').textContent = balances.overdraftBalanceInPennies / 100;
+    });
+  </script>
 </body>
 </html>
\ No newline at end of file
@@ -45,6 +45,7 @@
       <form:label path="amountToDeposit">Amount to Deposit ($):</form:label>
 			<form:input path="amountToDeposit"/><br/>	
 				
+			<form:hidden path="idempotencyKey"/>
 			<form:button>Deposit</form:button>
 		</form:form>
     <a href='/'>Home</a>
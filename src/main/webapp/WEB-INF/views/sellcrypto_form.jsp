@@ -48,12 +48,21 @@
       <form:label path="amountToSellCrypto">Amount to buy (# of Coins, Fractional Allowed):</form:label>
 			<form:input path="amountToSellCrypto"/><br/>	
 
-      <span>Current $ETH Price: </span><span>${user.ethPrice}</span><br/>
-      <span>Current $SOL Price: </span><span>${user.solPrice}</span><br/>
+      <span>Current $ETH Price: </span><span id="ethPrice">${user.ethPrice}</span><br/>
+      <span>Current $SOL Price: </span><span id="solPrice">${user.solPrice}</span><br/>
 
+			<form:hidden path="idempotencyKey"/>
 			<form:button>Sell Crypto</form:button>
 		</form:form>
     <a href='/'>Home</a>
 	</div>
+  <script>
+    // new prices are pushed while the form is open
+    new EventSource('/api/live').addEventListener('prices', function (event) {
+      var prices = JSON.parse(event.data);
+      document.getElementById('ethPrice').textContent = prices.ETH;
+      document.getElementById('solPrice').textContent = prices.SOL;
+    });
+  </script>
 </body>
 </html>
\ No newline at end of file
@@ -43,14 +43,37 @@
 			<form:password path="password"/><br/>		
 
       <form:label path="transferRecipientID">Username of Recipient:</form:label>
-			<form:input path="transferRecipientID"/><br/>
+			<form:input path="transferRecipientID" list="recipientSuggestions" autocomplete="off"/><br/>
+      <datalist id="recipientSuggestions"></datalist>
 
       <form:label path="amountToTransfer">Amount to Transfer ($):</form:label>
 			<form:input path="amountToTransfer"/><br/>	
 				
+			<form:hidden path="idempotencyKey"/>
 			<form:button>Transfer</form:button>
 		</form:form>
     <a href='/'>Home</a>
 	</div>
+  <script>
+    // suggests recipients by CustomerID or name as the customer types
+    document.getElementById("transferRecipientID").addEventListener("input", function (event) {
+      var prefix = event.target.value.trim();
+      if (prefix.length < 2) {
+        return;
+      }
+      fetch("/api/recipients?prefix=" + encodeURIComponent(prefix))
+        .then(function (response) { return response.json(); })
+        .then(function (recipients) {
+          var suggestions = document.getElementById("recipientSuggestions");
+          suggestions.innerHTML = "";
+          recipients.forEach(function (recipient) {
+            var option = document.createElement("option");
+            option.value = recipient.customerID;
+            option.label = recipient.firstName + " " + recipient.lastName;
+            suggestions.appendChild(option);
+          });
+        });
+    });
+  </script>
 </body>
 </html>
\ No newline at end of file
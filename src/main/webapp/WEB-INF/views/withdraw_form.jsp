@@ -45,6 +45,7 @@
       <form:label path="amountToWithdraw">Amount to Withdraw ($):</form:label>
 			<form:input path="amountToWithdraw"/><br/>	
 				
+			<form:hidden path="idempotencyKey"/>
 			<form:button>Withdraw</form:button>
 		</form:form>
     <a href='/'>Home</a>
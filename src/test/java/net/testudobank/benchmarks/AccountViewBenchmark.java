@@ -0,0 +1,121 @@
+package net.testudobank.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+
+import net.testudobank.AccountViews;
+import net.testudobank.BalanceEngine;
+import net.testudobank.MutationSequencer;
+import net.testudobank.MvcController;
+import net.testudobank.OutboxEventBus;
+import net.testudobank.ShardRouter;
+import net.testudobank.User;
+import net.testudobank.VelocityEngine;
+import net.testudobank.helpers.BenchmarkHelpers;
+
+/**
+ * Compares the latency of rendering the "account_info" page (a login) when it is read from the source tables on
+ * every request against reading it from the {@link AccountViews} read model, for customers with a few weeks of
+ * transactions, transfers, overdraft logs and crypto trades each.
+ * <p>
+ * Pass the number of customers to seed as the first argument (100K by default).
+ * <p>
+ * Not run by `mvn test`. Run it from an IDE, or with:
+ * mvn test-compile exec:java -Dexec.mainClass=net.testudobank.benchmarks.AccountViewBenchmark -Dexec.classpathScope=test
+ */
+public class AccountViewBenchmark {
+  private static int DEFAULT_NUM_CUSTOMERS = 100000;
+  private static int NUM_TRANSACTIONS_PER_CUSTOMER = 20;
+  private static int NUM_LOGINS = 20000;
+  private static int SEED_BATCH_SIZE = 10000;
+  private static String PASSWORD = "password";
+
+  public static void main(String[] args) throws Exception {
+    int numCustomers = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NUM_CUSTOMERS;
+    MySQLContainer db = BenchmarkHelpers.startDB();
+    OutboxEventBus eventBus = new OutboxEventBus(10000, "");
+    try {
+      JdbcTemplate jdbcTemplate = BenchmarkHelpers.pooledJdbcTemplate(db, 8);
+      seedCustomers(jdbcTemplate, numCustomers);
+      ShardRouter shardRouter = new ShardRouter(jdbcTemplate);
+      BalanceEngine balanceEngine = BalanceEngine.disabled(shardRouter);
+
+      AccountViews accountViews = new AccountViews(shardRouter, balanceEngine, eventBus, true);
+      long rebuildStartTime = System.nanoTime();
+      int numViewsBuilt = accountViews.rebuild();
+      System.out.println(String.format("Rebuilt %d account views in %.1fs", numViewsBuilt, (System.nanoTime() - rebuildStartTime) / 1e9));
+
+      runAndReport("Source tables", new MvcController(shardRouter, BenchmarkHelpers.FIXED_PRICE_CLIENT, balanceEngine, MutationSequencer.disabled(shardRouter),
+                                                      VelocityEngine.disabled(), AccountViews.disabled(shardRouter, balanceEngine)), numCustomers);
+      runAndReport("Account views", new MvcController(shardRouter, BenchmarkHelpers.FIXED_PRICE_CLIENT, balanceEngine, MutationSequencer.disabled(shardRouter),
+                                                      VelocityEngine.disabled(), accountViews), numCustomers);
+    } finally {
+      eventBus.close();
+      db.stop();
+    }
+  }
+
+  // Logs in as NUM_LOGINS random customers after a warm-up round, and prints latency percentiles of the page render
+  private static void runAndReport(String label, MvcController controller, int numCustomers) {
+    runLogins(controller, numCustomers);
+    long[] latencies = runLogins(controller, numCustomers);
+    Arrays.sort(latencies);
+    System.out.println(String.format("%s: p50 %.2fms, p99 %.2fms, p99.9 %.2fms", label, percentile(latencies, 0.5) / 1e6,
+                                     percentile(latencies, 0.99) / 1e6, percentile(latencies, 0.999) / 1e6));
+  }
+
+  private static long[] runLogins(MvcController controller, int numCustomers) {
+    Random random = new Random(0);
+    long[] latencies = new long[NUM_LOGINS];
+    for (int i = 0; i < NUM_LOGINS; i++) {
+      User user = new User();
+      user.setUsername(String.valueOf(100000000 + random.nextInt(numCustomers)));
+      user.setPassword(PASSWORD);
+      long startTime = System.nanoTime();
+      controller.submitLoginForm(user);
+      latencies[i] = System.nanoTime() - startTime;
+    }
+    return latencies;
+  }
+
+  private static long percentile(long[] sortedLatencies, double percentile) {
+    return sortedLatencies[(int) Math.min(sortedLatencies.length - 1, Math.round(percentile * sortedLatencies.length))];
+  }
+
+  private static void seedCustomers(JdbcTemplate jdbcTemplate, int numCustomers) {
+    for (int batchStart = 0; batchStart < numCustomers; batchStart += SEED_BATCH_SIZE) {
+      List<Object[]> customers = new ArrayList<>();
+      List<Object[]> passwords = new ArrayList<>();
+      List<Object[]> transactions = new ArrayList<>();
+      List<Object[]> transfers = new ArrayList<>();
+      List<Object[]> overdraftLogs = new ArrayList<>();
+      List<Object[]> cryptoHoldings = new ArrayList<>();
+      List<Object[]> cryptoLogs = new ArrayList<>();
+      for (int i = batchStart; i < Math.min(batchStart + SEED_BATCH_SIZE, numCustomers); i++) {
+        String customerID = String.valueOf(100000000 + i);
+        customers.add(new Object[] {customerID, 100000});
+        passwords.add(new Object[] {customerID, PASSWORD});
+        for (int t = 0; t < NUM_TRANSACTIONS_PER_CUSTOMER; t++) {
+          String timestamp = String.format("2024-01-%02d 10:%02d:00", 1 + t % 28, t);
+          transactions.add(new Object[] {customerID, timestamp, t % 2 == 0 ? "Deposit" : "Withdraw", 100 + t});
+        }
+        transfers.add(new Object[] {customerID, String.valueOf(100000000 + (i + 1) % numCustomers), "2024-01-15 12:00:00", 500});
+        overdraftLogs.add(new Object[] {customerID, "2024-01-20 12:00:00", 0, 1000, 1001});
+        cryptoHoldings.add(new Object[] {customerID, "ETH", 0.5});
+        cryptoLogs.add(new Object[] {customerID, "2024-01-10 12:00:00", "Buy", "ETH", 0.5});
+      }
+      jdbcTemplate.batchUpdate("INSERT INTO Customers VALUES (?, 'Bench', 'Customer', ?, 0, 0, 0)", customers);
+      jdbcTemplate.batchUpdate("INSERT INTO Passwords VALUES (?, ?)", passwords);
+      jdbcTemplate.batchUpdate("INSERT INTO TransactionHistory VALUES (?, ?, ?, ?)", transactions);
+      jdbcTemplate.batchUpdate("INSERT INTO TransferHistory VALUES (?, ?, ?, ?)", transfers);
+      jdbcTemplate.batchUpdate("INSERT INTO OverdraftLogs VALUES (?, ?, ?, ?, ?)", overdraftLogs);
+      jdbcTemplate.batchUpdate("INSERT INTO CryptoHoldings VALUES (?, ?, ?)", cryptoHoldings);
+      jdbcTemplate.batchUpdate("INSERT INTO CryptoHistory VALUES (?, ?, ?, ?, ?)", cryptoLogs);
+    }
+  }
+}
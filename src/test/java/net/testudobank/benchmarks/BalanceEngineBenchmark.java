@@ -0,0 +1,93 @@
+package net.testudobank.benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+
+import net.testudobank.BalanceEngine;
+import net.testudobank.MvcController;
+import net.testudobank.ShardRouter;
+import net.testudobank.helpers.BenchmarkHelpers;
+
+/**
+ * Measures deposit/withdraw mutations per second through {@link BalanceEngine} on one node, with and without
+ * fsync on the write-ahead log, and how long the checkpoint of those mutations into MySQL takes afterwards.
+ * The target is 100k+ mutations/sec.
+ * <p>
+ * Not run by `mvn test`. Run it from an IDE, or with:
+ * mvn test-compile exec:java -Dexec.mainClass=net.testudobank.benchmarks.BalanceEngineBenchmark -Dexec.classpathScope=test
+ */
+public class BalanceEngineBenchmark {
+  private static int NUM_CUSTOMERS = 100000;
+  private static int NUM_THREADS = 64;
+  private static long RUN_TIME_IN_MILLIS = 10000;
+  private static int CUSTOMER_INITIAL_BALANCE_IN_PENNIES = 1000000;
+
+  public static void main(String[] args) throws Exception {
+    MySQLContainer db = BenchmarkHelpers.startDB();
+    try {
+      JdbcTemplate jdbcTemplate = BenchmarkHelpers.pooledJdbcTemplate(db, 4);
+      seedCustomers(jdbcTemplate);
+
+      for (boolean isFsyncEnabled : new boolean[] {true, false}) {
+        File walDirectory = Files.createTempDirectory("testudobank-wal").toFile();
+        BalanceEngine balanceEngine = new BalanceEngine(new ShardRouter(jdbcTemplate), true, walDirectory.getPath(), isFsyncEnabled);
+        balanceEngine.start();
+        balanceEngine.preload();
+
+        double throughput = runMutations(balanceEngine);
+        long checkpointStartTime = System.nanoTime();
+        balanceEngine.checkpoint();
+        double checkpointSeconds = (System.nanoTime() - checkpointStartTime) / 1e9;
+        System.out.println(String.format("fsync=%b: %.0f mutations/sec, checkpoint of the run took %.1fs", isFsyncEnabled, throughput, checkpointSeconds));
+      }
+    } finally {
+      db.stop();
+    }
+  }
+
+  private static String customerID(int i) {
+    return String.valueOf(100000000 + i);
+  }
+
+  private static void seedCustomers(JdbcTemplate jdbcTemplate) {
+    List<Object[]> customers = new ArrayList<>();
+    for (int i = 0; i < NUM_CUSTOMERS; i++) {
+      customers.add(new Object[] {customerID(i), CUSTOMER_INITIAL_BALANCE_IN_PENNIES});
+    }
+    jdbcTemplate.batchUpdate("INSERT INTO Customers VALUES (?, 'Bench', 'Customer', ?, 0, 0, 0)", customers);
+  }
+
+  // Runs an even mix of $1 deposits and withdraws for random customers and returns the mutations/sec achieved
+  private static double runMutations(BalanceEngine balanceEngine) throws InterruptedException {
+    AtomicLong numMutations = new AtomicLong();
+    long deadline = System.currentTimeMillis() + RUN_TIME_IN_MILLIS;
+    ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+    for (int t = 0; t < NUM_THREADS; t++) {
+      executor.submit(() -> {
+        Random random = new Random();
+        while (System.currentTimeMillis() < deadline) {
+          String customerID = customerID(random.nextInt(NUM_CUSTOMERS));
+          if (random.nextBoolean()) {
+            balanceEngine.deposit(customerID, 100, MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION);
+          } else {
+            balanceEngine.withdraw(customerID, 100, MvcController.TRANSACTION_HISTORY_WITHDRAW_ACTION);
+          }
+          numMutations.incrementAndGet();
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(RUN_TIME_IN_MILLIS * 2, TimeUnit.MILLISECONDS);
+    return numMutations.get() * 1000.0 / RUN_TIME_IN_MILLIS;
+  }
+}
@@ -0,0 +1,128 @@
+package net.testudobank.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+
+import net.testudobank.AccountViews;
+import net.testudobank.BalanceEngine;
+import net.testudobank.MutationSequencer;
+import net.testudobank.MvcController;
+import net.testudobank.ShardRouter;
+import net.testudobank.SingleFlight;
+import net.testudobank.User;
+import net.testudobank.VelocityEngine;
+import net.testudobank.helpers.BenchmarkHelpers;
+
+/**
+ * Compares the throughput and latency of concurrent logins to a small set of hot customers when every login reads
+ * the source tables on its own against when concurrent logins to the same customer share one read, the way a
+ * scripted client or a customer with several tabs open fires requests.
+ * <p>
+ * Pass the number of hot customers as the first argument (20 by default).
+ * <p>
+ * Not run by `mvn test`. Run it from an IDE, or with:
+ * mvn test-compile exec:java -Dexec.mainClass=net.testudobank.benchmarks.CoalescedReadBenchmark -Dexec.classpathScope=test
+ */
+public class CoalescedReadBenchmark {
+  private static int DEFAULT_NUM_CUSTOMERS = 20;
+  private static int NUM_THREADS = 64;
+  private static int NUM_LOGINS_PER_THREAD = 500;
+  private static int NUM_TRANSACTIONS_PER_CUSTOMER = 20;
+  private static String PASSWORD = "password";
+
+  public static void main(String[] args) throws Exception {
+    int numCustomers = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NUM_CUSTOMERS;
+    MySQLContainer db = BenchmarkHelpers.startDB();
+    ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+    try {
+      JdbcTemplate jdbcTemplate = BenchmarkHelpers.pooledJdbcTemplate(db, 16);
+      seedCustomers(jdbcTemplate, numCustomers);
+      ShardRouter shardRouter = new ShardRouter(jdbcTemplate);
+      BalanceEngine balanceEngine = BalanceEngine.disabled(shardRouter);
+
+      runAndReport("Uncoalesced", new AccountViews(shardRouter, balanceEngine, null, false, false), shardRouter, balanceEngine, executor, numCustomers);
+      runAndReport("Coalesced", new AccountViews(shardRouter, balanceEngine, null, false, true), shardRouter, balanceEngine, executor, numCustomers);
+    } finally {
+      executor.shutdownNow();
+      db.stop();
+    }
+  }
+
+  // Runs NUM_THREADS concurrent login loops after a warm-up round, and prints throughput, latency percentiles and
+  // how many logins were served by another login's read
+  private static void runAndReport(String label, AccountViews accountViews, ShardRouter shardRouter, BalanceEngine balanceEngine,
+                                   ExecutorService executor, int numCustomers) throws Exception {
+    MvcController controller = new MvcController(shardRouter, BenchmarkHelpers.FIXED_PRICE_CLIENT, balanceEngine, MutationSequencer.disabled(shardRouter),
+                                                 VelocityEngine.disabled(), accountViews);
+    runLogins(controller, executor, numCustomers);
+    SingleFlight.Stats warmUpStats = accountViews.getReadCoalescingStats();
+
+    long startTime = System.nanoTime();
+    long[] latencies = runLogins(controller, executor, numCustomers);
+    double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+    SingleFlight.Stats stats = accountViews.getReadCoalescingStats();
+    long numCalls = stats.getNumCalls() - warmUpStats.getNumCalls();
+    long numCoalesced = stats.getNumCoalesced() - warmUpStats.getNumCoalesced();
+
+    Arrays.sort(latencies);
+    System.out.println(String.format("%s: %.0f logins/s, p50 %.2fms, p99 %.2fms, %.1f%% coalesced (%d reads for %d logins)", label,
+                                     latencies.length / elapsedSeconds, percentile(latencies, 0.5) / 1e6, percentile(latencies, 0.99) / 1e6,
+                                     numCalls == 0 ? 0 : 100.0 * numCoalesced / numCalls,
+                                     numCalls == 0 ? latencies.length : numCalls - numCoalesced, latencies.length));
+  }
+
+  private static long[] runLogins(MvcController controller, ExecutorService executor, int numCustomers) throws Exception {
+    List<Future<long[]>> threads = new ArrayList<>();
+    for (int t = 0; t < NUM_THREADS; t++) {
+      Random random = new Random(t);
+      threads.add(executor.submit(() -> {
+        long[] latencies = new long[NUM_LOGINS_PER_THREAD];
+        for (int i = 0; i < NUM_LOGINS_PER_THREAD; i++) {
+          User user = new User();
+          user.setUsername(String.valueOf(100000000 + random.nextInt(numCustomers)));
+          user.setPassword(PASSWORD);
+          long startTime = System.nanoTime();
+          controller.submitLoginForm(user);
+          latencies[i] = System.nanoTime() - startTime;
+        }
+        return latencies;
+      }));
+    }
+
+    long[] latencies = new long[NUM_THREADS * NUM_LOGINS_PER_THREAD];
+    for (int t = 0; t < NUM_THREADS; t++) {
+      System.arraycopy(threads.get(t).get(), 0, latencies, t * NUM_LOGINS_PER_THREAD, NUM_LOGINS_PER_THREAD);
+    }
+    return latencies;
+  }
+
+  private static long percentile(long[] sortedLatencies, double percentile) {
+    return sortedLatencies[(int) Math.min(sortedLatencies.length - 1, Math.round(percentile * sortedLatencies.length))];
+  }
+
+  private static void seedCustomers(JdbcTemplate jdbcTemplate, int numCustomers) {
+    List<Object[]> customers = new ArrayList<>();
+    List<Object[]> passwords = new ArrayList<>();
+    List<Object[]> transactions = new ArrayList<>();
+    for (int i = 0; i < numCustomers; i++) {
+      String customerID = String.valueOf(100000000 + i);
+      customers.add(new Object[] {customerID, 100000});
+      passwords.add(new Object[] {customerID, PASSWORD});
+      for (int t = 0; t < NUM_TRANSACTIONS_PER_CUSTOMER; t++) {
+        String timestamp = String.format("2024-01-%02d 10:%02d:00", 1 + t % 28, t);
+        transactions.add(new Object[] {customerID, timestamp, t % 2 == 0 ? "Deposit" : "Withdraw", 100 + t});
+      }
+    }
+    jdbcTemplate.batchUpdate("INSERT INTO Customers VALUES (?, 'Bench', 'Customer', ?, 0, 0, 0)", customers);
+    jdbcTemplate.batchUpdate("INSERT INTO Passwords VALUES (?, ?)", passwords);
+    jdbcTemplate.batchUpdate("INSERT INTO TransactionHistory VALUES (?, ?, ?, ?)", transactions);
+  }
+}
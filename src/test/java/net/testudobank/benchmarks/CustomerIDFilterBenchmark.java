@@ -0,0 +1,91 @@
+package net.testudobank.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.testudobank.BloomFilter;
+
+/**
+ * Measures the memory, build time, lookup latency and measured false positive rate of the {@link BloomFilter} that
+ * CustomerIDFilter keeps over every CustomerID, at a few false positive rates, for 50M customers. Lookups of
+ * CustomerIDs that exist and of ones that don't are timed separately, since a miss can stop at its first unset bit.
+ * <p>
+ * Pass the number of customers as the first argument (50M by default). The filter takes about 60MB for 50M customers
+ * at a 1% false positive rate.
+ * <p>
+ * Not run by `mvn test`. Run it from an IDE, or with:
+ * mvn test-compile exec:java -Dexec.mainClass=net.testudobank.benchmarks.CustomerIDFilterBenchmark -Dexec.classpathScope=test
+ */
+public class CustomerIDFilterBenchmark {
+  private static int DEFAULT_NUM_CUSTOMERS = 50000000;
+  private static double[] FALSE_POSITIVE_RATES = {0.01, 0.001};
+  private static int NUM_LOOKUPS = 2000000;
+  // lookups are timed in batches, since one lookup takes about as long as reading the clock
+  private static int LOOKUPS_PER_BATCH = 100;
+  private static int FIRST_CUSTOMER_ID = 100000000;
+
+  public static void main(String[] args) {
+    int numCustomers = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NUM_CUSTOMERS;
+    for (double falsePositiveRate : FALSE_POSITIVE_RATES) {
+      long buildStartTime = System.nanoTime();
+      BloomFilter filter = new BloomFilter(numCustomers, falsePositiveRate);
+      for (int i = 0; i < numCustomers; i++) {
+        filter.put(String.valueOf(FIRST_CUSTOMER_ID + i));
+      }
+      double buildSeconds = (System.nanoTime() - buildStartTime) / 1e9;
+      System.out.println(String.format("%d customers at %.1f%% false positives: %.1fMB, %d hash functions, built in %.1fs",
+                                       numCustomers, falsePositiveRate * 100, filter.getNumBits() / 8 / 1e6, filter.getNumHashFunctions(), buildSeconds));
+
+      // warm up, then time lookups of existing customers and of IDs past the last customer
+      runLookups(filter, numCustomers, true);
+      runLookups(filter, numCustomers, false);
+      report("  existing", runLookups(filter, numCustomers, true), filter, numCustomers, true);
+      report("  unknown", runLookups(filter, numCustomers, false), filter, numCustomers, false);
+    }
+  }
+
+  private static void report(String label, long[] batchLatencies, BloomFilter filter, int numCustomers, boolean isExisting) {
+    Arrays.sort(batchLatencies);
+    String result = String.format("%s: p50 %.0fns, p99 %.0fns per lookup", label,
+                                  (double) percentile(batchLatencies, 0.5) / LOOKUPS_PER_BATCH, (double) percentile(batchLatencies, 0.99) / LOOKUPS_PER_BATCH);
+    if (!isExisting) {
+      int numFalsePositives = 0;
+      for (int i = 0; i < NUM_LOOKUPS; i++) {
+        if (filter.mightContain(String.valueOf((long) FIRST_CUSTOMER_ID + numCustomers + i))) {
+          numFalsePositives++;
+        }
+      }
+      result += String.format(", %.3f%% false positives", 100.0 * numFalsePositives / NUM_LOOKUPS);
+    }
+    System.out.println(result);
+  }
+
+  // Returns the latency of each batch of lookups
+  private static long[] runLookups(BloomFilter filter, int numCustomers, boolean isExisting) {
+    Random random = new Random(0);
+    String[] customerIDs = new String[LOOKUPS_PER_BATCH];
+    long[] batchLatencies = new long[NUM_LOOKUPS / LOOKUPS_PER_BATCH];
+    int numFound = 0;
+    for (int batch = 0; batch < batchLatencies.length; batch++) {
+      for (int i = 0; i < LOOKUPS_PER_BATCH; i++) {
+        long offset = isExisting ? random.nextInt(numCustomers) : numCustomers + (long) random.nextInt(Integer.MAX_VALUE - FIRST_CUSTOMER_ID);
+        customerIDs[i] = String.valueOf(FIRST_CUSTOMER_ID + offset);
+      }
+      long startTime = System.nanoTime();
+      for (String customerID : customerIDs) {
+        if (filter.mightContain(customerID)) {
+          numFound++;
+        }
+      }
+      batchLatencies[batch] = System.nanoTime() - startTime;
+    }
+    if (isExisting && numFound != NUM_LOOKUPS) {
+      throw new IllegalStateException("Existing customers were reported missing");
+    }
+    return batchLatencies;
+  }
+
+  private static long percentile(long[] sortedLatencies, double percentile) {
+    return sortedLatencies[(int) Math.min(sortedLatencies.length - 1, Math.round(percentile * sortedLatencies.length))];
+  }
+}
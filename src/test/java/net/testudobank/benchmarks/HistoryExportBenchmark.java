@@ -0,0 +1,97 @@
+package net.testudobank.benchmarks;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+
+import net.testudobank.HistoryArchive;
+import net.testudobank.HistoryExportController;
+import net.testudobank.helpers.BenchmarkHelpers;
+
+/**
+ * Measures the MB/s of {@link HistoryExportController} exporting one customer's history of 1M rows as CSV and
+ * NDJSON, with and without gzip, along with the most heap left in use after any GC during each export (which
+ * should stay flat no matter how many rows are exported).
+ * <p>
+ * Pass the number of history rows to seed as the first argument (1M by default).
+ * <p>
+ * Not run by `mvn test`. Run it from an IDE, or with:
+ * mvn test-compile exec:java -Dexec.mainClass=net.testudobank.benchmarks.HistoryExportBenchmark -Dexec.classpathScope=test
+ */
+public class HistoryExportBenchmark {
+  private static int DEFAULT_NUM_ROWS = 1000000;
+  private static int SEED_BATCH_SIZE = 10000;
+  private static String CUSTOMER_ID = "123456789";
+
+  public static void main(String[] args) throws Exception {
+    int numRows = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NUM_ROWS;
+    MySQLContainer db = BenchmarkHelpers.startDB();
+    try {
+      JdbcTemplate jdbcTemplate = BenchmarkHelpers.pooledJdbcTemplate(db, 2);
+      seedHistory(jdbcTemplate, numRows);
+      HistoryArchive emptyArchive = new HistoryArchive(Files.createTempDirectory("archive"));
+
+      String[] formats = {HistoryExportController.CSV_FORMAT, HistoryExportController.NDJSON_FORMAT};
+      for (String format : formats) {
+        for (boolean gzip : new boolean[] {false, true}) {
+          CountingOutputStream out = new CountingOutputStream();
+          long startTime = System.nanoTime();
+          long numRowsExported = HistoryExportController.exportTransactionHistory(jdbcTemplate, emptyArchive, CUSTOMER_ID, null, null, format, gzip, out);
+          double seconds = (System.nanoTime() - startTime) / 1e9;
+          System.out.println(String.format("%s%s: %d rows, %.1f MB in %.1fs (%.1f MB/s, %.0f rows/sec), peak heap after GC %.1f MB",
+                                           format, gzip ? " + gzip" : "", numRowsExported, out.numBytes / 1e6, seconds, out.numBytes / 1e6 / seconds,
+                                           numRowsExported / seconds, out.peakHeapBytes / 1e6));
+        }
+      }
+    } finally {
+      db.stop();
+    }
+  }
+
+  private static void seedHistory(JdbcTemplate jdbcTemplate, int numRows) {
+    jdbcTemplate.update("INSERT INTO Customers VALUES (?, 'Bench', 'Customer', 0, 0, 0, 0)", CUSTOMER_ID);
+    for (int batchStart = 0; batchStart < numRows; batchStart += SEED_BATCH_SIZE) {
+      List<Object[]> transactions = new ArrayList<>();
+      for (int i = batchStart; i < Math.min(batchStart + SEED_BATCH_SIZE, numRows); i++) {
+        transactions.add(new Object[] {CUSTOMER_ID, i, i % 2 == 0 ? "Deposit" : "Withdraw", 100 + i % 1000});
+      }
+      jdbcTemplate.batchUpdate("INSERT INTO TransactionHistory VALUES (?, TIMESTAMP('2024-01-01') + INTERVAL ? SECOND, ?, ?)", transactions);
+    }
+  }
+
+  // Discards the export, counting its bytes and sampling the heap in use after the latest GC every MB
+  private static class CountingOutputStream extends OutputStream {
+    private long numBytes = 0;
+    private long peakHeapBytes = heapBytesAfterLastGC();
+
+    @Override
+    public void write(int b) {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      if (numBytes / 1000000 != (numBytes + length) / 1000000) {
+        peakHeapBytes = Math.max(peakHeapBytes, heapBytesAfterLastGC());
+      }
+      numBytes += length;
+    }
+
+    private static long heapBytesAfterLastGC() {
+      long heapBytes = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP && pool.getCollectionUsage() != null) {
+          heapBytes += pool.getCollectionUsage().getUsed();
+        }
+      }
+      return heapBytes;
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package net.testudobank.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+
+import net.testudobank.InterestAccrualJob;
+import net.testudobank.ShardRouter;
+import net.testudobank.helpers.BenchmarkHelpers;
+
+/**
+ * Measures how long {@link InterestAccrualJob} takes to accrue a day of interest for every customer on one shard,
+ * with 1, 4 and 8 parallel workers, and extrapolates it to 10M accounts. The target is to fit 10M accounts
+ * into a 4 hour nightly window. It then times the overdraft interest accrual with every tenth customer overdrawn.
+ * <p>
+ * Pass the number of customers to seed as the first argument (1M by default).
+ * <p>
+ * Not run by `mvn test`. Run it from an IDE, or with:
+ * mvn test-compile exec:java -Dexec.mainClass=net.testudobank.benchmarks.InterestAccrualBenchmark -Dexec.classpathScope=test
+ */
+public class InterestAccrualBenchmark {
+  private static int DEFAULT_NUM_CUSTOMERS = 1000000;
+  private static int TARGET_NUM_CUSTOMERS = 10000000;
+  private static double NIGHTLY_WINDOW_IN_HOURS = 4;
+  private static int[] NUM_WORKERS = {1, 4, 8};
+  private static int CHUNK_SIZE = 5000;
+  private static int SEED_BATCH_SIZE = 10000;
+
+  public static void main(String[] args) throws Exception {
+    int numCustomers = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NUM_CUSTOMERS;
+    MySQLContainer db = BenchmarkHelpers.startDB();
+    try {
+      JdbcTemplate jdbcTemplate = BenchmarkHelpers.pooledJdbcTemplate(db, NUM_WORKERS[NUM_WORKERS.length - 1] + 1);
+      seedCustomers(jdbcTemplate, numCustomers);
+      ShardRouter shardRouter = new ShardRouter(jdbcTemplate);
+
+      // each run accrues a different day, so every run credits every customer
+      for (int i = 0; i < NUM_WORKERS.length; i++) {
+        String accrualDate = String.format("2024-01-%02d", i + 1);
+        long startTime = System.nanoTime();
+        int numCustomersCredited = InterestAccrualJob.accrueInterest(jdbcTemplate, shardRouter.getShardTransactionTemplate(0), accrualDate, NUM_WORKERS[i], NUM_WORKERS[i], CHUNK_SIZE);
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        double projectedHours = seconds * TARGET_NUM_CUSTOMERS / numCustomersCredited / 3600;
+        System.out.println(String.format("%d worker(s): credited %d customers in %.1fs (%.0f customers/sec), 10M accounts would take %.2fh (%s the %.0fh window)",
+                                         NUM_WORKERS[i], numCustomersCredited, seconds, numCustomersCredited / seconds, projectedHours,
+                                         projectedHours <= NIGHTLY_WINDOW_IN_HOURS ? "within" : "OVER", NIGHTLY_WINDOW_IN_HOURS));
+      }
+
+      long startTime = System.nanoTime();
+      int numOverdraftsCharged = InterestAccrualJob.accrueOverdraftInterest(jdbcTemplate, shardRouter.getShardTransactionTemplate(0), "2024-01-01",
+                                                                           NUM_WORKERS[NUM_WORKERS.length - 1], NUM_WORKERS[NUM_WORKERS.length - 1], CHUNK_SIZE);
+      double seconds = (System.nanoTime() - startTime) / 1e9;
+      System.out.println(String.format("Overdraft interest: charged %d overdrafts in %.1fs (%.0f overdrafts/sec)", numOverdraftsCharged, seconds, numOverdraftsCharged / seconds));
+      System.out.println("Ledger total (should be 0): " + jdbcTemplate.queryForObject("SELECT SUM(Amount) FROM LedgerEntries", Long.class));
+    } finally {
+      db.stop();
+    }
+  }
+
+  private static void seedCustomers(JdbcTemplate jdbcTemplate, int numCustomers) {
+    for (int batchStart = 0; batchStart < numCustomers; batchStart += SEED_BATCH_SIZE) {
+      List<Object[]> customers = new ArrayList<>();
+      for (int i = batchStart; i < Math.min(batchStart + SEED_BATCH_SIZE, numCustomers); i++) {
+        customers.add(new Object[] {String.valueOf(100000000 + i), 100000, i % 10 == 0 ? 50000 : 0});
+      }
+      jdbcTemplate.batchUpdate("INSERT INTO Customers VALUES (?, 'Bench', 'Customer', ?, ?, 0, 0)", customers);
+    }
+  }
+}
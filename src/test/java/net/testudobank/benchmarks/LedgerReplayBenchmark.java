@@ -0,0 +1,68 @@
+package net.testudobank.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+
+import net.testudobank.LedgerJournal;
+import net.testudobank.LedgerReplayer;
+import net.testudobank.helpers.BenchmarkHelpers;
+
+/**
+ * Measures how fast {@link LedgerReplayer} rebuilds every balance on a shard from its LedgerEntries,
+ * in ledger entries replayed per second.
+ * <p>
+ * Not run by `mvn test`. Run it from an IDE, or with:
+ * mvn test-compile exec:java -Dexec.mainClass=net.testudobank.benchmarks.LedgerReplayBenchmark -Dexec.classpathScope=test
+ */
+public class LedgerReplayBenchmark {
+  private static int NUM_CUSTOMERS = 10000;
+  private static int NUM_JOURNALS = 1000000;
+  private static int INSERT_BATCH_SIZE = 10000;
+  private static int NUM_RUNS = 5;
+
+  public static void main(String[] args) {
+    MySQLContainer db = BenchmarkHelpers.startDB();
+    try {
+      JdbcTemplate jdbcTemplate = BenchmarkHelpers.pooledJdbcTemplate(db, 1);
+      long numEntries = seedLedger(jdbcTemplate);
+      System.out.println(String.format("Seeded %d ledger entries for %d customers", numEntries, NUM_CUSTOMERS));
+
+      for (int run = 1; run <= NUM_RUNS; run++) {
+        long startTime = System.nanoTime();
+        LedgerReplayer replayer = LedgerReplayer.replay(jdbcTemplate);
+        double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.println(String.format("Run %d: replayed %d entries for %d account holders in %.2fs (%.0f entries/sec)",
+                                         run, replayer.getNumEntriesReplayed(), replayer.getNumCustomers(), elapsedSeconds, replayer.getNumEntriesReplayed() / elapsedSeconds));
+      }
+    } finally {
+      db.stop();
+    }
+  }
+
+  // Appends random balanced deposit and withdraw journals, the same shape as the ones MvcController posts
+  private static long seedLedger(JdbcTemplate jdbcTemplate) {
+    String insertLedgerEntrySql = "INSERT INTO LedgerEntries (JournalID, CustomerID, Account, Amount, Action, Timestamp) VALUES (?, ?, ?, ?, ?, NOW())";
+    Random random = new Random(42);
+    long numEntries = 0;
+    List<Object[]> batch = new ArrayList<>();
+    for (int i = 0; i < NUM_JOURNALS; i++) {
+      String journalID = String.valueOf(i);
+      String customerID = String.valueOf(100000000 + random.nextInt(NUM_CUSTOMERS));
+      long amountInPennies = (1 + random.nextInt(10000)) * (random.nextBoolean() ? 1 : -1);
+      batch.add(new Object[] {journalID, customerID, LedgerJournal.CASH_ACCOUNT, amountInPennies, "Deposit"});
+      batch.add(new Object[] {journalID, LedgerJournal.BANK_ID, LedgerJournal.EXTERNAL_ACCOUNT, -amountInPennies, "Deposit"});
+      if (batch.size() >= INSERT_BATCH_SIZE) {
+        numEntries += batch.size();
+        jdbcTemplate.batchUpdate(insertLedgerEntrySql, batch);
+        batch.clear();
+      }
+    }
+    numEntries += batch.size();
+    jdbcTemplate.batchUpdate(insertLedgerEntrySql, batch);
+    return numEntries;
+  }
+}
@@ -0,0 +1,188 @@
+package net.testudobank.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+import net.testudobank.LiveUpdates;
+import net.testudobank.LiveUpdatesController;
+
+/**
+ * Load test for the Server-Sent Events streams of {@link LiveUpdatesController}: opens 50k idle price streams to a
+ * running app from one thread with non-blocking sockets, holds them open, and reports how many are connected and
+ * still getting events, and how long each new price snapshot took to reach every stream (from the first stream that
+ * got it to the last). At the end it prints the app's own counts from /api/live/stats.
+ * <p>
+ * Idle streams only get heartbeats, so start the app with a short heartbeat interval to see them, like
+ * --testudobank.live.heartbeat-interval-millis=10000, and pass the same interval here. Prices only change when Yahoo
+ * Finance's do, so hold the streams for a few minutes to see more than the first snapshot. Both ends need an open
+ * file limit above the number of streams (ulimit -n 100000), and the client needs more ephemeral ports than Linux
+ * gives by default (sysctl net.ipv4.ip_local_port_range="1024 65535").
+ * <p>
+ * Arguments: host (localhost), port (8080), number of streams (50000), seconds to hold them (300) and the app's
+ * heartbeat interval in millis (10000).
+ * <p>
+ * Not run by `mvn test`. Start the app, then run it from an IDE, or with:
+ * mvn test-compile exec:java -Dexec.mainClass=net.testudobank.benchmarks.LiveUpdatesLoadTest -Dexec.classpathScope=test -Dexec.args="localhost 8080 50000 300 10000"
+ */
+public class LiveUpdatesLoadTest {
+  private static int DEFAULT_NUM_STREAMS = 50000;
+  private static int DEFAULT_HOLD_SECONDS = 300;
+  private static long DEFAULT_HEARTBEAT_INTERVAL_MILLIS = 10000;
+  // streams opened per loop, so the app's accept queue isn't flooded
+  private static int MAX_CONNECTS_IN_FLIGHT = 1000;
+  private static long REPORT_INTERVAL_MILLIS = 5000;
+  private static int READ_BUFFER_SIZE = 4096;
+  private static int MAX_PRICE_SNAPSHOTS = 1000;
+  private static String PRICES_MARKER = "event:" + LiveUpdates.PRICES_EVENT;
+  private static String HEARTBEAT_MARKER = "event:" + LiveUpdates.HEARTBEAT_EVENT;
+
+  // One stream's progress. Markers can be split across reads, so the tail of the last read is kept.
+  private static class Stream {
+    private final ByteBuffer request;
+    private boolean isConnected = false;
+    private String tail = "";
+    private int numPriceSnapshots = 0;
+    private long lastEventMillis = 0;
+
+    private Stream(ByteBuffer request) {
+      this.request = request;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    String host = args.length > 0 ? args[0] : "localhost";
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+    int numStreams = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_NUM_STREAMS;
+    long holdMillis = 1000L * (args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_HOLD_SECONDS);
+    long heartbeatIntervalMillis = args.length > 4 ? Long.parseLong(args[4]) : DEFAULT_HEARTBEAT_INTERVAL_MILLIS;
+    InetSocketAddress address = new InetSocketAddress(host, port);
+    byte[] request = ("GET /api/live HTTP/1.1\r\nHost: " + host + ":" + port + "\r\nAccept: text/event-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    // when the k-th price snapshot first and last reached a stream, and how many streams it reached
+    long[] snapshotFirstMillis = new long[MAX_PRICE_SNAPSHOTS];
+    long[] snapshotLastMillis = new long[MAX_PRICE_SNAPSHOTS];
+    int[] snapshotNumStreams = new int[MAX_PRICE_SNAPSHOTS];
+    List<Stream> streams = new ArrayList<>();
+    int numOpened = 0;
+    int numConnecting = 0;
+    int numConnected = 0;
+    int numFailed = 0;
+    int numClosedByApp = 0;
+    long numHeartbeats = 0;
+    ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    long startMillis = System.currentTimeMillis();
+    long nextReportMillis = startMillis + REPORT_INTERVAL_MILLIS;
+    long allOpenedMillis = 0;
+    // moved to holdMillis after the last stream connected; streams that never connect or fail end the test anyway
+    long endMillis = startMillis + 2 * holdMillis;
+    try (Selector selector = Selector.open()) {
+      while (System.currentTimeMillis() < endMillis) {
+        while (numOpened < numStreams && numConnecting < MAX_CONNECTS_IN_FLIGHT) {
+          SocketChannel channel = SocketChannel.open();
+          channel.configureBlocking(false);
+          Stream stream = new Stream(ByteBuffer.wrap(request));
+          streams.add(stream);
+          channel.register(selector, channel.connect(address) ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, stream);
+          numOpened++;
+          numConnecting++;
+        }
+        if (numOpened == numStreams && allOpenedMillis == 0 && numConnecting == 0) {
+          allOpenedMillis = System.currentTimeMillis();
+          endMillis = allOpenedMillis + holdMillis;
+          System.out.println(String.format("Opened %d streams in %.1fs", numStreams, (allOpenedMillis - startMillis) / 1e3));
+        }
+
+        selector.select(100);
+        long nowMillis = System.currentTimeMillis();
+        for (SelectionKey key : selector.selectedKeys()) {
+          SocketChannel channel = (SocketChannel) key.channel();
+          Stream stream = (Stream) key.attachment();
+          try {
+            if (key.isConnectable()) {
+              channel.finishConnect();
+              key.interestOps(SelectionKey.OP_WRITE);
+            } else if (key.isWritable()) {
+              channel.write(stream.request);
+              if (!stream.request.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ);
+              }
+            } else if (key.isReadable()) {
+              readBuffer.clear();
+              int numRead = channel.read(readBuffer);
+              if (numRead < 0) {
+                numClosedByApp++;
+                numConnected -= stream.isConnected ? 1 : 0;
+                key.cancel();
+                channel.close();
+                continue;
+              }
+              String text = stream.tail + new String(readBuffer.array(), 0, numRead, StandardCharsets.US_ASCII);
+              if (!stream.isConnected) {
+                if (!text.startsWith("HTTP/1.1 200")) {
+                  throw new IOException("Stream was refused: " + text.split("\r\n")[0]);
+                }
+                stream.isConnected = true;
+                numConnected++;
+                numConnecting--;
+              }
+              for (int i = text.indexOf(PRICES_MARKER); i >= 0; i = text.indexOf(PRICES_MARKER, i + 1)) {
+                int snapshot = Math.min(stream.numPriceSnapshots++, MAX_PRICE_SNAPSHOTS - 1);
+                snapshotFirstMillis[snapshot] = snapshotNumStreams[snapshot] == 0 ? nowMillis : snapshotFirstMillis[snapshot];
+                snapshotLastMillis[snapshot] = nowMillis;
+                snapshotNumStreams[snapshot]++;
+              }
+              for (int i = text.indexOf(HEARTBEAT_MARKER); i >= 0; i = text.indexOf(HEARTBEAT_MARKER, i + 1)) {
+                numHeartbeats++;
+              }
+              stream.lastEventMillis = text.contains("event:") ? nowMillis : stream.lastEventMillis;
+              // keep just enough to find a marker split across reads, without counting a whole one twice
+              stream.tail = text.substring(Math.max(0, text.length() - PRICES_MARKER.length() + 1));
+            }
+          } catch (IOException e) {
+            numFailed++;
+            numConnecting -= stream.isConnected ? 0 : 1;
+            numConnected -= stream.isConnected ? 1 : 0;
+            key.cancel();
+            channel.close();
+          }
+        }
+        selector.selectedKeys().clear();
+
+        if (nowMillis >= nextReportMillis) {
+          int numLive = 0;
+          for (Stream stream : streams) {
+            numLive += stream.isConnected && nowMillis - stream.lastEventMillis < 2 * heartbeatIntervalMillis ? 1 : 0;
+          }
+          System.out.println(String.format("%5.0fs: %d connected (%d got an event in the last 2 heartbeat intervals), %d connecting, "
+                                           + "%d failed, %d closed by the app, %d heartbeats",
+                                           (nowMillis - startMillis) / 1e3, numConnected, numLive, numConnecting, numFailed, numClosedByApp, numHeartbeats));
+          nextReportMillis = nowMillis + REPORT_INTERVAL_MILLIS;
+        }
+      }
+
+      for (int snapshot = 0; snapshot < MAX_PRICE_SNAPSHOTS && snapshotNumStreams[snapshot] > 0; snapshot++) {
+        // the first snapshot is sent to each stream as it connects, so only later ones measure the fan-out
+        System.out.println(String.format("Price snapshot %d reached %d streams over %dms%s", snapshot + 1, snapshotNumStreams[snapshot],
+                                         snapshotLastMillis[snapshot] - snapshotFirstMillis[snapshot], snapshot == 0 ? " (sent on connect)" : ""));
+      }
+      try (InputStream stats = new URL("http://" + host + ":" + port + "/api/live/stats").openStream();
+           Scanner scanner = new Scanner(stats, StandardCharsets.UTF_8.name())) {
+        System.out.println("App stats: " + scanner.useDelimiter("\\A").next());
+      }
+      for (SelectionKey key : selector.keys()) {
+        key.channel().close();
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package net.testudobank.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.testudobank.PrefixIndex;
+
+/**
+ * Measures the build time, memory and search latency of the {@link PrefixIndex} behind the transfer form's
+ * recipient autocomplete, for 10M customers with made up names. Searches are for random 2 to 4 character prefixes
+ * of CustomerIDs and names, the way a customer's typing sends them, and return up to 10 suggestions.
+ * <p>
+ * The customers are generated in memory rather than streamed from MySQL, so the build time doesn't include the scan
+ * of Customers that RecipientIndex does. Pass the number of customers as the first argument (10M by default).
+ * <p>
+ * Not run by `mvn test`. Run it from an IDE, or with:
+ * mvn test-compile exec:java -Dexec.mainClass=net.testudobank.benchmarks.RecipientIndexBenchmark -Dexec.classpathScope=test
+ */
+public class RecipientIndexBenchmark {
+  private static int DEFAULT_NUM_CUSTOMERS = 10000000;
+  private static int NUM_FIRST_NAMES = 5000;
+  private static int NUM_LAST_NAMES = 50000;
+  private static int NUM_SEARCHES = 200000;
+  private static int NUM_SUGGESTIONS = 10;
+  private static String[] SYLLABLES = {"an", "be", "car", "da", "el", "fi", "go", "ha", "is", "jo", "ka", "li", "mo", "na", "or",
+                                       "pe", "qui", "ra", "so", "ta", "ul", "vi", "wa", "xe", "ya", "zo"};
+
+  public static void main(String[] args) {
+    int numCustomers = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NUM_CUSTOMERS;
+    Random random = new Random(0);
+    String[] firstNames = names(random, NUM_FIRST_NAMES, 2);
+    String[] lastNames = names(random, NUM_LAST_NAMES, 3);
+
+    long buildStartTime = System.nanoTime();
+    PrefixIndex.Builder builder = new PrefixIndex.Builder();
+    for (int i = 0; i < numCustomers; i++) {
+      builder.add(String.valueOf(100000000 + i), firstNames[random.nextInt(firstNames.length)], lastNames[random.nextInt(lastNames.length)]);
+    }
+    PrefixIndex index = builder.build();
+    System.out.println(String.format("Built index of %d customers in %.1fs, %.0fMB", index.size(), (System.nanoTime() - buildStartTime) / 1e9,
+                                     index.estimatedBytes() / 1e6));
+
+    // warm up, then time searches
+    runSearches(index, numCustomers, firstNames, lastNames);
+    long[] latencies = runSearches(index, numCustomers, firstNames, lastNames);
+    Arrays.sort(latencies);
+    System.out.println(String.format("Searches: p50 %.1fus, p99 %.1fus, p99.9 %.1fus", percentile(latencies, 0.5) / 1e3,
+                                     percentile(latencies, 0.99) / 1e3, percentile(latencies, 0.999) / 1e3));
+  }
+
+  private static long[] runSearches(PrefixIndex index, int numCustomers, String[] firstNames, String[] lastNames) {
+    Random random = new Random(1);
+    long[] latencies = new long[NUM_SEARCHES];
+    int numSuggestions = 0;
+    for (int i = 0; i < NUM_SEARCHES; i++) {
+      String source;
+      switch (i % 3) {
+        case 0:
+          source = String.valueOf(100000000 + random.nextInt(numCustomers));
+          break;
+        case 1:
+          source = firstNames[random.nextInt(firstNames.length)];
+          break;
+        default:
+          source = lastNames[random.nextInt(lastNames.length)];
+      }
+      String prefix = source.substring(0, Math.min(source.length(), 2 + random.nextInt(3)));
+      long startTime = System.nanoTime();
+      numSuggestions += index.search(prefix, NUM_SUGGESTIONS).size();
+      latencies[i] = System.nanoTime() - startTime;
+    }
+    if (numSuggestions == 0) {
+      throw new IllegalStateException("No suggestions were found");
+    }
+    return latencies;
+  }
+
+  // Made up capitalized names of numSyllables syllables each
+  private static String[] names(Random random, int numNames, int numSyllables) {
+    String[] names = new String[numNames];
+    for (int i = 0; i < numNames; i++) {
+      StringBuilder name = new StringBuilder();
+      for (int s = 0; s < numSyllables; s++) {
+        name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+      }
+      names[i] = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+    return names;
+  }
+
+  private static long percentile(long[] sortedLatencies, double percentile) {
+    return sortedLatencies[(int) Math.min(sortedLatencies.length - 1, Math.round(percentile * sortedLatencies.length))];
+  }
+}
@@ -0,0 +1,70 @@
+package net.testudobank.benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+
+import net.testudobank.LedgerJournal;
+import net.testudobank.ReconciliationJob;
+import net.testudobank.helpers.BenchmarkHelpers;
+
+/**
+ * Measures how long {@link ReconciliationJob} takes to reconcile one shard with 1, 4 and 8 workers, and
+ * extrapolates it to 50M ledger entries. The target is to reconcile 50M entries in a few minutes.
+ * <p>
+ * Pass the number of customers to seed as the first argument (500K by default). Each customer gets
+ * 5 deposit journals, and every 1000th customer's balance is off by a penny. Only the customers' side of
+ * the ledger is counted, since the bank's side is not reconciled.
+ * <p>
+ * Not run by `mvn test`. Run it from an IDE, or with:
+ * mvn test-compile exec:java -Dexec.mainClass=net.testudobank.benchmarks.ReconciliationBenchmark -Dexec.classpathScope=test
+ */
+public class ReconciliationBenchmark {
+  private static int DEFAULT_NUM_CUSTOMERS = 500000;
+  private static int NUM_DEPOSITS_PER_CUSTOMER = 5;
+  private static long TARGET_NUM_LEDGER_ENTRIES = 50000000;
+  private static int[] NUM_WORKERS = {1, 4, 8};
+  private static int SEED_BATCH_SIZE = 5000;
+
+  public static void main(String[] args) throws Exception {
+    int numCustomers = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NUM_CUSTOMERS;
+    MySQLContainer db = BenchmarkHelpers.startDB();
+    try {
+      JdbcTemplate jdbcTemplate = BenchmarkHelpers.pooledJdbcTemplate(db, NUM_WORKERS[NUM_WORKERS.length - 1] + 1);
+      seedCustomers(jdbcTemplate, numCustomers);
+
+      for (int i = 0; i < NUM_WORKERS.length; i++) {
+        Path mismatchesFile = Files.createTempFile("reconciliation", ".csv");
+        ReconciliationJob.Progress progress = ReconciliationJob.reconcile(Collections.singletonList(jdbcTemplate), String.format("2024-01-01 04:00:%02d", i),
+                                                                          mismatchesFile, NUM_WORKERS[i]);
+        double projectedMinutes = progress.getElapsedSeconds() * TARGET_NUM_LEDGER_ENTRIES / progress.getNumLedgerEntriesChecked() / 60;
+        System.out.println(String.format("%d worker(s): %s, 50M ledger entries would take %.1f min", NUM_WORKERS[i], progress, projectedMinutes));
+      }
+    } finally {
+      db.stop();
+    }
+  }
+
+  private static void seedCustomers(JdbcTemplate jdbcTemplate, int numCustomers) {
+    for (int batchStart = 0; batchStart < numCustomers; batchStart += SEED_BATCH_SIZE) {
+      List<Object[]> customers = new ArrayList<>();
+      List<Object[]> ledgerEntries = new ArrayList<>();
+      for (int i = batchStart; i < Math.min(batchStart + SEED_BATCH_SIZE, numCustomers); i++) {
+        String customerID = String.valueOf(100000000 + i);
+        customers.add(new Object[] {customerID, NUM_DEPOSITS_PER_CUSTOMER * 1000 + (i % 1000 == 0 ? 1 : 0)});
+        for (int d = 0; d < NUM_DEPOSITS_PER_CUSTOMER; d++) {
+          String journalID = customerID + "-" + d;
+          ledgerEntries.add(new Object[] {journalID, customerID, LedgerJournal.CASH_ACCOUNT, 1000});
+          ledgerEntries.add(new Object[] {journalID, LedgerJournal.BANK_ID, LedgerJournal.EXTERNAL_ACCOUNT, -1000});
+        }
+      }
+      jdbcTemplate.batchUpdate("INSERT INTO Customers VALUES (?, 'Bench', 'Customer', ?, 0, 0, 0)", customers);
+      jdbcTemplate.batchUpdate("INSERT INTO LedgerEntries (JournalID, CustomerID, Account, Amount, Action, Timestamp) VALUES (?, ?, ?, ?, 'Deposit', '2024-01-01 00:00:00')", ledgerEntries);
+    }
+  }
+}
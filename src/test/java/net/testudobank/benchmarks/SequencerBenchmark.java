@@ -0,0 +1,130 @@
+package net.testudobank.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+
+import net.testudobank.BalanceEngine;
+import net.testudobank.MutationSequencer;
+import net.testudobank.MvcController;
+import net.testudobank.ShardRouter;
+import net.testudobank.User;
+import net.testudobank.helpers.BenchmarkHelpers;
+
+/**
+ * Compares deposits/withdraws through {@link MvcController} on the MySQL path against the {@link MutationSequencer},
+ * with most of the load on a few hot accounts. Reports throughput plus p50/p99 request latency.
+ * <p>
+ * Not run by `mvn test`. Run it from an IDE, or with:
+ * mvn test-compile exec:java -Dexec.mainClass=net.testudobank.benchmarks.SequencerBenchmark -Dexec.classpathScope=test
+ */
+public class SequencerBenchmark {
+  private static int NUM_CUSTOMERS = 10000;
+  private static int NUM_HOT_CUSTOMERS = 10;
+  private static double HOT_CUSTOMER_TRAFFIC_SHARE = 0.8;
+  private static int NUM_THREADS = 64;
+  private static long RUN_TIME_IN_MILLIS = 20000;
+  private static int CUSTOMER_INITIAL_BALANCE_IN_PENNIES = 1000000;
+  private static String CUSTOMER_PASSWORD = "password";
+
+  public static void main(String[] args) throws Exception {
+    MySQLContainer db = BenchmarkHelpers.startDB();
+    try {
+      JdbcTemplate jdbcTemplate = BenchmarkHelpers.pooledJdbcTemplate(db, NUM_THREADS);
+      seedCustomers(jdbcTemplate);
+      ShardRouter shardRouter = new ShardRouter(jdbcTemplate);
+
+      runAndReport("MySQL path", new MvcController(shardRouter, BenchmarkHelpers.FIXED_PRICE_CLIENT));
+
+      MutationSequencer mutationSequencer = new MutationSequencer(shardRouter, true, 0, 1024);
+      mutationSequencer.start();
+      try {
+        runAndReport("Sequencer", new MvcController(shardRouter, BenchmarkHelpers.FIXED_PRICE_CLIENT, BalanceEngine.disabled(shardRouter), mutationSequencer));
+      } finally {
+        mutationSequencer.stop();
+      }
+    } finally {
+      db.stop();
+    }
+  }
+
+  private static String customerID(int i) {
+    return String.valueOf(100000000 + i);
+  }
+
+  private static void seedCustomers(JdbcTemplate jdbcTemplate) {
+    List<Object[]> customers = new ArrayList<>();
+    List<Object[]> passwords = new ArrayList<>();
+    for (int i = 0; i < NUM_CUSTOMERS; i++) {
+      customers.add(new Object[] {customerID(i), CUSTOMER_INITIAL_BALANCE_IN_PENNIES});
+      passwords.add(new Object[] {customerID(i), CUSTOMER_PASSWORD});
+    }
+    jdbcTemplate.batchUpdate("INSERT INTO Customers VALUES (?, 'Bench', 'Customer', ?, 0, 0, 0)", customers);
+    jdbcTemplate.batchUpdate("INSERT INTO Passwords VALUES (?, ?)", passwords);
+  }
+
+  private static void runAndReport(String label, MvcController controller) throws Exception {
+    long[] latenciesInNanos = runMutations(controller);
+    Arrays.sort(latenciesInNanos);
+    System.out.println(String.format("%s: %.0f mutations/sec, p50 %.2fms, p99 %.2fms", label,
+                                     latenciesInNanos.length * 1000.0 / RUN_TIME_IN_MILLIS,
+                                     percentile(latenciesInNanos, 0.50) / 1e6, percentile(latenciesInNanos, 0.99) / 1e6));
+  }
+
+  private static long percentile(long[] sortedValues, double percentile) {
+    if (sortedValues.length == 0) {
+      return 0;
+    }
+    return sortedValues[(int) Math.min(sortedValues.length - 1, Math.round(percentile * sortedValues.length))];
+  }
+
+  // Runs an even mix of $1 deposits and withdraws and returns the latency of every request
+  private static long[] runMutations(MvcController controller) throws Exception {
+    long deadline = System.currentTimeMillis() + RUN_TIME_IN_MILLIS;
+    ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+    List<Future<List<Long>>> threadLatencies = new ArrayList<>();
+    for (int t = 0; t < NUM_THREADS; t++) {
+      threadLatencies.add(executor.submit(() -> {
+        List<Long> latenciesInNanos = new ArrayList<>();
+        Random random = new Random();
+        while (System.currentTimeMillis() < deadline) {
+          boolean isHotCustomer = random.nextDouble() < HOT_CUSTOMER_TRAFFIC_SHARE;
+          User user = new User();
+          user.setUsername(customerID(isHotCustomer ? random.nextInt(NUM_HOT_CUSTOMERS) : random.nextInt(NUM_CUSTOMERS)));
+          user.setPassword(CUSTOMER_PASSWORD);
+
+          long startTime = System.nanoTime();
+          if (random.nextBoolean()) {
+            user.setAmountToDeposit(1.00);
+            controller.submitDeposit(user);
+          } else {
+            user.setAmountToWithdraw(1.00);
+            controller.submitWithdraw(user);
+          }
+          latenciesInNanos.add(System.nanoTime() - startTime);
+        }
+        return latenciesInNanos;
+      }));
+    }
+    executor.shutdown();
+    executor.awaitTermination(RUN_TIME_IN_MILLIS * 2, TimeUnit.MILLISECONDS);
+
+    List<Long> allLatenciesInNanos = new ArrayList<>();
+    for (Future<List<Long>> latencies : threadLatencies) {
+      allLatenciesInNanos.addAll(latencies.get());
+    }
+    long[] latenciesInNanos = new long[allLatenciesInNanos.size()];
+    for (int i = 0; i < latenciesInNanos.length; i++) {
+      latenciesInNanos[i] = allLatenciesInNanos.get(i);
+    }
+    return latenciesInNanos;
+  }
+}
@@ -0,0 +1,100 @@
+package net.testudobank.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+
+import net.testudobank.MvcController;
+import net.testudobank.ShardRouter;
+import net.testudobank.User;
+import net.testudobank.helpers.BenchmarkHelpers;
+
+/**
+ * Measures deposit throughput through {@link MvcController} as customers are spread over 1, 2 and 4
+ * MySQL shards, each running in its own local Docker container.
+ * <p>
+ * Not run by `mvn test`. Run it from an IDE, or with:
+ * mvn test-compile exec:java -Dexec.mainClass=net.testudobank.benchmarks.ShardedWriteThroughputBenchmark -Dexec.classpathScope=test
+ */
+public class ShardedWriteThroughputBenchmark {
+  private static int MAX_SHARDS = 4;
+  private static int NUM_CUSTOMERS = 2000;
+  private static int NUM_THREADS_PER_SHARD = 8;
+  private static long RUN_TIME_IN_MILLIS = 20000;
+  private static String CUSTOMER_PASSWORD = "password";
+
+  public static void main(String[] args) throws Exception {
+    List<MySQLContainer> containers = new ArrayList<>();
+    List<JdbcTemplate> shards = new ArrayList<>();
+    for (int i = 0; i < MAX_SHARDS; i++) {
+      MySQLContainer db = BenchmarkHelpers.startDB();
+      containers.add(db);
+      shards.add(BenchmarkHelpers.pooledJdbcTemplate(db, NUM_THREADS_PER_SHARD * MAX_SHARDS));
+    }
+
+    try {
+      double singleShardThroughput = 0;
+      for (int numShards = 1; numShards <= MAX_SHARDS; numShards *= 2) {
+        ShardRouter shardRouter = new ShardRouter(shards.subList(0, numShards));
+        seedCustomers(shardRouter);
+        double throughput = runDeposits(new MvcController(shardRouter, BenchmarkHelpers.FIXED_PRICE_CLIENT), numShards * NUM_THREADS_PER_SHARD);
+        if (numShards == 1) {
+          singleShardThroughput = throughput;
+        }
+        System.out.println(String.format("%d shard(s): %.0f deposits/sec (%.2fx single shard)", numShards, throughput, throughput / singleShardThroughput));
+      }
+    } finally {
+      for (MySQLContainer db : containers) {
+        db.stop();
+      }
+    }
+  }
+
+  private static String customerID(int i) {
+    return String.valueOf(100000000 + i);
+  }
+
+  // Places every customer on their shard with a fresh account, clearing rows left over from the previous layout
+  private static void seedCustomers(ShardRouter shardRouter) {
+    for (JdbcTemplate shard : shardRouter.getShards()) {
+      shard.update("DELETE FROM Customers;");
+      shard.update("DELETE FROM Passwords;");
+      shard.update("DELETE FROM TransactionHistory;");
+    }
+    for (int i = 0; i < NUM_CUSTOMERS; i++) {
+      JdbcTemplate shard = shardRouter.jdbcTemplateFor(customerID(i));
+      shard.update("INSERT INTO Customers VALUES (?, 'Bench', 'Customer', 0, 0, 0, 0)", customerID(i));
+      shard.update("INSERT INTO Passwords VALUES (?, ?)", customerID(i), CUSTOMER_PASSWORD);
+    }
+  }
+
+  // Runs deposits for random customers from the given number of threads and returns the deposits/sec achieved
+  private static double runDeposits(MvcController controller, int numThreads) throws InterruptedException {
+    AtomicLong numDeposits = new AtomicLong();
+    long deadline = System.currentTimeMillis() + RUN_TIME_IN_MILLIS;
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    for (int t = 0; t < numThreads; t++) {
+      executor.submit(() -> {
+        Random random = new Random();
+        while (System.currentTimeMillis() < deadline) {
+          User user = new User();
+          user.setUsername(customerID(random.nextInt(NUM_CUSTOMERS)));
+          user.setPassword(CUSTOMER_PASSWORD);
+          user.setAmountToDeposit(1.00);
+          controller.submitDeposit(user);
+          numDeposits.incrementAndGet();
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(RUN_TIME_IN_MILLIS * 2, TimeUnit.MILLISECONDS);
+    return numDeposits.get() * 1000.0 / RUN_TIME_IN_MILLIS;
+  }
+}
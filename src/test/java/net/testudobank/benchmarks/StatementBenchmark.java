@@ -0,0 +1,71 @@
+package net.testudobank.benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+
+import net.testudobank.StatementGenerator;
+import net.testudobank.helpers.BenchmarkHelpers;
+
+/**
+ * Measures how many customers/sec {@link StatementGenerator} writes statements for, with 1 formatter thread
+ * and with one per CPU, for customers with a month of transactions, transfers and overdraft logs each.
+ * <p>
+ * Pass the number of customers to seed as the first argument (100K by default).
+ * <p>
+ * Not run by `mvn test`. Run it from an IDE, or with:
+ * mvn test-compile exec:java -Dexec.mainClass=net.testudobank.benchmarks.StatementBenchmark -Dexec.classpathScope=test
+ */
+public class StatementBenchmark {
+  private static int DEFAULT_NUM_CUSTOMERS = 100000;
+  private static int NUM_TRANSACTIONS_PER_CUSTOMER = 20;
+  private static int SEED_BATCH_SIZE = 10000;
+  private static YearMonth MONTH = YearMonth.of(2024, 1);
+
+  public static void main(String[] args) throws Exception {
+    int numCustomers = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NUM_CUSTOMERS;
+    MySQLContainer db = BenchmarkHelpers.startDB();
+    try {
+      JdbcTemplate jdbcTemplate = BenchmarkHelpers.pooledJdbcTemplate(db, 8);
+      seedCustomers(jdbcTemplate, numCustomers);
+
+      int[] numFormatThreads = {1, Runtime.getRuntime().availableProcessors()};
+      for (int threads : numFormatThreads) {
+        Path statementsDir = Files.createTempDirectory("statements");
+        StatementGenerator.Result result = StatementGenerator.generateStatements(jdbcTemplate, MONTH, statementsDir, threads);
+        System.out.println(String.format("%d formatter thread(s): %d statements in %.1fs (%.0f customers/sec)",
+                                         threads, result.getNumStatements(), result.getElapsedSeconds(), result.getCustomersPerSecond()));
+      }
+    } finally {
+      db.stop();
+    }
+  }
+
+  private static void seedCustomers(JdbcTemplate jdbcTemplate, int numCustomers) {
+    for (int batchStart = 0; batchStart < numCustomers; batchStart += SEED_BATCH_SIZE) {
+      List<Object[]> customers = new ArrayList<>();
+      List<Object[]> transactions = new ArrayList<>();
+      List<Object[]> transfers = new ArrayList<>();
+      List<Object[]> overdraftLogs = new ArrayList<>();
+      for (int i = batchStart; i < Math.min(batchStart + SEED_BATCH_SIZE, numCustomers); i++) {
+        String customerID = String.valueOf(100000000 + i);
+        customers.add(new Object[] {customerID, 100000});
+        for (int t = 0; t < NUM_TRANSACTIONS_PER_CUSTOMER; t++) {
+          String timestamp = String.format("%s-%02d 10:%02d:00", MONTH, 1 + t % 28, t);
+          transactions.add(new Object[] {customerID, timestamp, t % 2 == 0 ? "Deposit" : "Withdraw", 100 + t});
+        }
+        transfers.add(new Object[] {customerID, String.valueOf(100000000 + (i + 1) % numCustomers), MONTH + "-15 12:00:00", 500});
+        overdraftLogs.add(new Object[] {customerID, MONTH + "-20 12:00:00", 0, 1000, 1001});
+      }
+      jdbcTemplate.batchUpdate("INSERT INTO Customers VALUES (?, 'Bench', 'Customer', ?, 0, 0, 0)", customers);
+      jdbcTemplate.batchUpdate("INSERT INTO TransactionHistory VALUES (?, ?, ?, ?)", transactions);
+      jdbcTemplate.batchUpdate("INSERT INTO TransferHistory VALUES (?, ?, ?, ?)", transfers);
+      jdbcTemplate.batchUpdate("INSERT INTO OverdraftLogs VALUES (?, ?, ?, ?, ?)", overdraftLogs);
+    }
+  }
+}
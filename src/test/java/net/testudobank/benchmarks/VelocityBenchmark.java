@@ -0,0 +1,96 @@
+package net.testudobank.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.testudobank.VelocityEngine;
+
+/**
+ * Measures the latency of {@link VelocityEngine} checks with 1M tracked accounts, from 1 and 8 threads, along with
+ * the heap each tracked account takes. The target is a p99 under 10us.
+ * <p>
+ * Pass the number of accounts to track as the first argument (1M by default). No DB is needed.
+ * <p>
+ * Not run by `mvn test`. Run it from an IDE, or with:
+ * mvn test-compile exec:java -Dexec.mainClass=net.testudobank.benchmarks.VelocityBenchmark -Dexec.classpathScope=test
+ */
+public class VelocityBenchmark {
+  private static int DEFAULT_NUM_ACCOUNTS = 1000000;
+  private static int NUM_CHECKS_PER_THREAD = 2000000;
+  private static int[] NUM_THREADS = {1, 8};
+  private static String RULES = "withdraw:1m:count:10,withdraw:1h:count:60,withdraw:24h:amount:2000000,deposit:1m:count:10";
+
+  public static void main(String[] args) throws Exception {
+    int numAccounts = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NUM_ACCOUNTS;
+    String[] customerIDs = new String[numAccounts];
+    for (int i = 0; i < numAccounts; i++) {
+      customerIDs[i] = String.valueOf(100000000 + i);
+    }
+
+    long heapBefore = usedHeapAfterGC();
+    VelocityEngine velocityEngine = new VelocityEngine(RULES);
+    long nowMillis = System.currentTimeMillis();
+    for (int i = 0; i < numAccounts; i++) {
+      velocityEngine.forceRecord(customerIDs[i], false, 100, nowMillis);
+      velocityEngine.forceRecord(customerIDs[i], true, 100, nowMillis);
+    }
+    long heapBytes = usedHeapAfterGC() - heapBefore;
+    System.out.println(String.format("%d accounts: %d bytes of windows per account, %.1f MB of heap in total (%.0f bytes per account, "
+                                     + "including index slots and array growth slack)", numAccounts, VelocityEngine.bytesPerAccount(),
+                                     heapBytes / 1e6, (double) heapBytes / numAccounts));
+
+    for (int numThreads : NUM_THREADS) {
+      ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+      try {
+        // one warm-up round so the JIT has compiled the check before it is timed
+        runChecks(executor, numThreads, velocityEngine, customerIDs);
+        long startTime = System.nanoTime();
+        long[] latencies = runChecks(executor, numThreads, velocityEngine, customerIDs);
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        Arrays.sort(latencies);
+        System.out.println(String.format("%d thread(s): %.0f checks/sec, p50 %.2fus, p99 %.2fus, p99.9 %.2fus", numThreads, latencies.length / seconds,
+                                         percentile(latencies, 0.5) / 1e3, percentile(latencies, 0.99) / 1e3, percentile(latencies, 0.999) / 1e3));
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  // Runs NUM_CHECKS_PER_THREAD random deposit or withdraw checks on each thread, and returns the latency of every check in nanos
+  private static long[] runChecks(ExecutorService executor, int numThreads, VelocityEngine velocityEngine, String[] customerIDs) throws Exception {
+    Future<?>[] results = new Future<?>[numThreads];
+    long[] latencies = new long[numThreads * NUM_CHECKS_PER_THREAD];
+    for (int t = 0; t < numThreads; t++) {
+      int firstCheck = t * NUM_CHECKS_PER_THREAD;
+      results[t] = executor.submit(() -> {
+        Random random = new Random(firstCheck);
+        for (int i = 0; i < NUM_CHECKS_PER_THREAD; i++) {
+          String customerID = customerIDs[random.nextInt(customerIDs.length)];
+          boolean isMoneyIn = random.nextBoolean();
+          long startTime = System.nanoTime();
+          velocityEngine.tryRecord(customerID, isMoneyIn, 100 + random.nextInt(10000), System.currentTimeMillis());
+          latencies[firstCheck + i] = System.nanoTime() - startTime;
+        }
+      });
+    }
+    for (Future<?> result : results) {
+      result.get();
+    }
+    return latencies;
+  }
+
+  private static long percentile(long[] sortedLatencies, double percentile) {
+    return sortedLatencies[(int) Math.min(sortedLatencies.length - 1, Math.round(percentile * sortedLatencies.length))];
+  }
+
+  private static long usedHeapAfterGC() throws InterruptedException {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+  }
+}
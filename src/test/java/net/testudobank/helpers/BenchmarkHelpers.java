@@ -0,0 +1,52 @@
+package net.testudobank.helpers;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.ext.ScriptUtils;
+import org.testcontainers.jdbc.JdbcDatabaseDelegate;
+
+import net.testudobank.CryptoPriceClient;
+
+public class BenchmarkHelpers {
+  // Crypto prices don't matter for benchmarks, so skip the Yahoo Finance calls made while rendering account info
+  public static CryptoPriceClient FIXED_PRICE_CLIENT = new CryptoPriceClient() {
+    @Override
+    public double getCurrentCryptoValue(String cryptoName) {
+      return 1;
+    }
+
+    @Override
+    public double getCurrentEthValue() {
+      return 1;
+    }
+
+    @Override
+    public double getCurrentSolValue() {
+      return 1;
+    }
+  };
+
+  // Spins up a MySQL DB in a local Docker container with the same schema as the integration tests
+  public static MySQLContainer startDB() {
+    MySQLContainer db = new MySQLContainer<>("mysql:5.7.37")
+      .withUsername("root")
+      .withPassword("db_password")
+      .withDatabaseName("testudo_bank");
+    db.start();
+    ScriptUtils.runInitScript(new JdbcDatabaseDelegate(db, ""), "createDB.sql");
+    return db;
+  }
+
+  // Benchmarks hit the DB from many threads, so use a connection pool like the app does instead of MysqlDataSource
+  public static JdbcTemplate pooledJdbcTemplate(MySQLContainer db, int poolSize) {
+    HikariDataSource dataSource = new HikariDataSource();
+    dataSource.setJdbcUrl(db.getJdbcUrl());
+    dataSource.setUsername(db.getUsername());
+    dataSource.setPassword(db.getPassword());
+    dataSource.setMaximumPoolSize(poolSize);
+    return new JdbcTemplate(dataSource);
+  }
+
+}
@@ -4,6 +4,8 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.temporal.ChronoUnit;
@@ -15,6 +17,8 @@ import javax.sql.DataSource;
 
 import com.mysql.cj.jdbc.MysqlDataSource;
 
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.testcontainers.containers.MySQLContainer;
 import org.testcontainers.delegate.DatabaseDelegate;
 import org.testcontainers.ext.ScriptUtils;
@@ -32,6 +36,25 @@ public class MvcControllerIntegTestHelpers {
     return dataSource;
   }
 
+  // Creates another database with the same tables in the container, to be used as a second shard. Drop it when done.
+  public static JdbcTemplate createShardDB(MySQLContainer db, JdbcTemplate jdbcTemplate, String databaseName) throws SQLException {
+    jdbcTemplate.execute("CREATE DATABASE " + databaseName);
+    MysqlDataSource dataSource = new MysqlDataSource();
+    dataSource.setUrl(db.getJdbcUrl().replace("/" + db.getDatabaseName(), "/" + databaseName));
+    dataSource.setUser(db.getUsername());
+    dataSource.setPassword(db.getPassword());
+    try (Connection connection = dataSource.getConnection()) {
+      org.springframework.jdbc.datasource.init.ScriptUtils.executeSqlScript(connection, new ClassPathResource("createDB.sql"));
+    }
+    return new JdbcTemplate(dataSource);
+  }
+
+  // Uses given customer details to initialize the customer in the Customers and Passwords table of a shard created by createShardDB()
+  public static void addCustomerToShardDB(JdbcTemplate shard, String ID, String password, String firstName, String lastName, int balance, int numFraudReversals) {
+    shard.update("INSERT INTO Customers VALUES (?, ?, ?, ?, 0, ?, 0)", ID, firstName, lastName, balance, numFraudReversals);
+    shard.update("INSERT INTO Passwords VALUES (?, ?)", ID, password);
+  }
+
   // Uses given customer details to initialize the customer in the Customers and Passwords table in the MySQL DB.
   public static void addCustomerToDB(DatabaseDelegate dbDelegate, String ID, String password, String firstName, String lastName, int balance, int overdraftBalance, int numFraudReversals, int numInterestDeposits) throws ScriptException {
     String insertCustomerSql = String.format("INSERT INTO Customers VALUES ('%s', '%s', '%s', %d, %d, %d, %d)", ID, firstName, lastName, balance, overdraftBalance, numFraudReversals, numInterestDeposits);
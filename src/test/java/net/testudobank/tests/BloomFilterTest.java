@@ -0,0 +1,65 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import net.testudobank.BloomFilter;
+import org.junit.jupiter.api.Test;
+
+public class BloomFilterTest {
+  private static int NUM_CUSTOMERS = 100000;
+
+  // Generates 9-digit CustomerIDs like the ones created by python-sql-scripts/addCustomers.py
+  private static String customerID(int i) {
+    return String.valueOf(100000000 + i);
+  }
+
+  /**
+   * Every CustomerID that was put is reported as present.
+   */
+  @Test
+  public void testNoFalseNegatives() {
+    BloomFilter filter = new BloomFilter(NUM_CUSTOMERS, 0.01);
+    for (int i = 0; i < NUM_CUSTOMERS; i++) {
+      filter.put(customerID(i));
+    }
+    for (int i = 0; i < NUM_CUSTOMERS; i++) {
+      assertTrue(filter.mightContain(customerID(i)), "False negative for " + customerID(i));
+    }
+  }
+
+  /**
+   * CustomerIDs that were never put are reported as present at about the configured rate, for a few rates.
+   */
+  @Test
+  public void testFalsePositiveRateMatchesConfiguration() {
+    for (double falsePositiveRate : new double[] {0.1, 0.01, 0.001}) {
+      BloomFilter filter = new BloomFilter(NUM_CUSTOMERS, falsePositiveRate);
+      for (int i = 0; i < NUM_CUSTOMERS; i++) {
+        filter.put(customerID(i));
+      }
+      int numFalsePositives = 0;
+      int numProbes = 1000000;
+      for (int i = NUM_CUSTOMERS; i < NUM_CUSTOMERS + numProbes; i++) {
+        if (filter.mightContain(customerID(i))) {
+          numFalsePositives++;
+        }
+      }
+      double measuredRate = (double) numFalsePositives / numProbes;
+      assertTrue(measuredRate < falsePositiveRate * 1.5, "False positive rate " + measuredRate + " for configured " + falsePositiveRate);
+      assertTrue(Math.abs(filter.expectedFalsePositiveRate(NUM_CUSTOMERS) - falsePositiveRate) < falsePositiveRate * 0.2);
+    }
+  }
+
+  /**
+   * An empty filter contains nothing, and a rate outside of (0, 1) is rejected.
+   */
+  @Test
+  public void testEmptyFilterAndInvalidRate() {
+    BloomFilter filter = new BloomFilter(1000, 0.01);
+    assertFalse(filter.mightContain(customerID(0)));
+    assertThrows(IllegalArgumentException.class, () -> new BloomFilter(1000, 0));
+    assertThrows(IllegalArgumentException.class, () -> new BloomFilter(1000, 1));
+  }
+}
@@ -0,0 +1,44 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import net.testudobank.FragmentTokens;
+import org.junit.jupiter.api.Test;
+
+public class FragmentTokensTest {
+  /**
+   * A token is only accepted for the customer it was issued to, by instances with the same signing key.
+   */
+  @Test
+  public void testTokenIsBoundToCustomerAndKey() {
+    FragmentTokens fragmentTokens = new FragmentTokens("key", 60000);
+    String token = fragmentTokens.issue("123456789");
+
+    assertTrue(fragmentTokens.isValid(token, "123456789"));
+    assertTrue(new FragmentTokens("key", 60000).isValid(token, "123456789"));
+    assertFalse(fragmentTokens.isValid(token, "987654321"));
+    assertFalse(fragmentTokens.isValid(token, "12345678"));
+    assertFalse(new FragmentTokens("other key", 60000).isValid(token, "123456789"));
+    assertFalse(new FragmentTokens("", 60000).isValid(token, "123456789"));
+  }
+
+  /**
+   * Expired, altered and malformed tokens are turned down.
+   */
+  @Test
+  public void testExpiredAndMalformedTokens() {
+    FragmentTokens fragmentTokens = new FragmentTokens("key", 60000);
+    String token = fragmentTokens.issue("123456789");
+    String[] parts = token.split("\\.");
+    String extendedToken = parts[0] + "." + (Long.parseLong(parts[1]) + 60000) + "." + parts[2];
+
+    assertFalse(new FragmentTokens("key", -1).isValid(new FragmentTokens("key", -1).issue("123456789"), "123456789"));
+    assertFalse(fragmentTokens.isValid(extendedToken, "123456789"));
+    assertFalse(fragmentTokens.isValid(null, "123456789"));
+    assertFalse(fragmentTokens.isValid("", "123456789"));
+    assertFalse(fragmentTokens.isValid("123456789", "123456789"));
+    assertFalse(fragmentTokens.isValid("123456789.soon." + parts[2], "123456789"));
+    assertFalse(fragmentTokens.isValid(parts[0] + "." + parts[1] + ".not*base64", "123456789"));
+  }
+}
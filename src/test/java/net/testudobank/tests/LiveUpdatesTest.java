@@ -0,0 +1,149 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+
+import net.testudobank.CryptoPriceClient;
+import net.testudobank.LiveUpdates;
+import org.junit.jupiter.api.Test;
+
+public class LiveUpdatesTest {
+  // Records the events sent to it as "name:data", and waits for sendGate before each send
+  private static class RecordingSink implements LiveUpdates.EventSink {
+    private final List<String> events = new CopyOnWriteArrayList<>();
+    private final CountDownLatch sendGate;
+    private final CountDownLatch sendStarted = new CountDownLatch(1);
+    private volatile boolean isClosed = false;
+
+    private RecordingSink(CountDownLatch sendGate) {
+      this.sendGate = sendGate;
+    }
+
+    private RecordingSink() {
+      this(new CountDownLatch(0));
+    }
+
+    @Override
+    public void send(String eventName, String data) throws IOException {
+      sendStarted.countDown();
+      try {
+        sendGate.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      events.add(eventName + ":" + data);
+    }
+
+    @Override
+    public void close() {
+      isClosed = true;
+    }
+  }
+
+  private static class FixedPriceClient extends CryptoPriceClient {
+    private volatile double ethPrice = 2000.5;
+
+    @Override
+    public double getCurrentEthValue() {
+      return ethPrice;
+    }
+
+    @Override
+    public double getCurrentSolValue() {
+      return 100;
+    }
+  }
+
+  private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.currentTimeMillis() < deadline, "timed out waiting for the condition");
+      Thread.sleep(5);
+    }
+  }
+
+  /**
+   * Broadcasts reach every connection, customer events only reach that customer's connections, and new connections
+   * start with the last price snapshot. Unchanged prices aren't broadcast again.
+   */
+  @Test
+  public void testEventsAreRoutedToTheirConnections() throws InterruptedException {
+    FixedPriceClient priceClient = new FixedPriceClient();
+    LiveUpdates liveUpdates = new LiveUpdates(null, null, priceClient, null, 16, 2, 60000);
+    try {
+      RecordingSink anonymous = new RecordingSink();
+      RecordingSink customer1 = new RecordingSink();
+      RecordingSink customer2 = new RecordingSink();
+      liveUpdates.subscribe(null, anonymous);
+      liveUpdates.subscribe("123456789", customer1);
+      liveUpdates.subscribe("987654321", customer2);
+
+      liveUpdates.refreshPrices();
+      liveUpdates.refreshPrices();
+      liveUpdates.publish("123456789", LiveUpdates.BALANCE_EVENT, "{\"balanceInPennies\":100}");
+      waitUntil(() -> customer1.events.size() == 2 && anonymous.events.size() == 1 && customer2.events.size() == 1);
+      assertEquals(Arrays.asList("prices:{\"ETH\":2000.5,\"SOL\":100.0}", "balance:{\"balanceInPennies\":100}"), customer1.events);
+      assertEquals(Arrays.asList("prices:{\"ETH\":2000.5,\"SOL\":100.0}"), customer2.events);
+
+      RecordingSink late = new RecordingSink();
+      liveUpdates.subscribe("123456789", late);
+      priceClient.ethPrice = 2001;
+      liveUpdates.refreshPrices();
+      waitUntil(() -> late.events.size() == 2 && anonymous.events.size() == 2);
+      assertEquals(Arrays.asList("prices:{\"ETH\":2000.5,\"SOL\":100.0}", "prices:{\"ETH\":2001.0,\"SOL\":100.0}"), late.events);
+      assertEquals(4, liveUpdates.getStats().getNumConnections());
+      assertEquals(2, liveUpdates.getStats().getNumCustomersConnected());
+    } finally {
+      liveUpdates.close();
+    }
+  }
+
+  /**
+   * A client that doesn't keep up only gets the newest events once it does, without holding up other clients, and
+   * a client that is gone is unsubscribed and closed.
+   */
+  @Test
+  public void testSlowClientsDropOldestAndGoneClientsAreRemoved() throws InterruptedException {
+    LiveUpdates liveUpdates = new LiveUpdates(null, null, new FixedPriceClient(), null, 4, 2, 60000);
+    try {
+      CountDownLatch slowClientGate = new CountDownLatch(1);
+      RecordingSink slow = new RecordingSink(slowClientGate);
+      RecordingSink fast = new RecordingSink();
+      liveUpdates.subscribe(null, slow);
+      liveUpdates.subscribe(null, fast);
+
+      // the slow client's writer is stuck sending event 0, so its queue keeps only the newest 4 of the rest
+      liveUpdates.broadcast("test", "0");
+      slow.sendStarted.await();
+      for (int i = 1; i < 20; i++) {
+        liveUpdates.broadcast("test", String.valueOf(i));
+      }
+      // the fast client isn't held up, though its own writer may also fall behind and drop some
+      waitUntil(() -> fast.events.contains("test:19"));
+      slowClientGate.countDown();
+      waitUntil(() -> slow.events.size() == 5);
+      assertEquals(Arrays.asList("test:0", "test:16", "test:17", "test:18", "test:19"), slow.events);
+      assertTrue(liveUpdates.getStats().getNumEventsDropped() >= 15);
+
+      RecordingSink gone = new RecordingSink() {
+        @Override
+        public void send(String eventName, String data) throws IOException {
+          throw new IOException("Broken pipe");
+        }
+      };
+      liveUpdates.subscribe(null, gone);
+      liveUpdates.broadcast("test", "20");
+      waitUntil(() -> gone.isClosed);
+      assertEquals(2, liveUpdates.getStats().getNumConnections());
+    } finally {
+      liveUpdates.close();
+    }
+  }
+}
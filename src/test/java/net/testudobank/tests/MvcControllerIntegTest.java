@@ -1,27 +1,49 @@
 package net.testudobank.tests;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.SQLException;
 import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import javax.script.ScriptException;
 
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import net.testudobank.CryptoPriceClient;
+import net.testudobank.CustomerIDFilter;
+import net.testudobank.CustomerProfileCache;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.testcontainers.containers.MySQLContainer;
 import org.testcontainers.delegate.DatabaseDelegate;
 import org.testcontainers.ext.ScriptUtils;
@@ -29,8 +51,36 @@ import org.testcontainers.jdbc.JdbcDatabaseDelegate;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
+import net.testudobank.AccountFragmentController;
+import net.testudobank.AccountViews;
+import net.testudobank.ApiV1Controller;
+import net.testudobank.BalanceEngine;
+import net.testudobank.ExposureAggregates;
+import net.testudobank.HistoryArchive;
+import net.testudobank.HistoryArchiveJob;
+import net.testudobank.HistoryExportController;
+import net.testudobank.IdempotencyKeys;
+import net.testudobank.InterestAccrualJob;
+import net.testudobank.LedgerJournal;
+import net.testudobank.LedgerReplayer;
+import net.testudobank.LedgerSnapshotJob;
+import net.testudobank.LiveUpdates;
+import net.testudobank.MutationSequencer;
 import net.testudobank.MvcController;
+import net.testudobank.OutboxEvent;
+import net.testudobank.OutboxEventBus;
+import net.testudobank.OutboxRelay;
+import net.testudobank.PrefixIndex;
+import net.testudobank.RecentActivityCache;
+import net.testudobank.RecipientController;
+import net.testudobank.RecipientIndex;
+import net.testudobank.ReconciliationJob;
+import net.testudobank.ShardRebalancer;
+import net.testudobank.ShardRouter;
+import net.testudobank.StatementGenerator;
+import net.testudobank.TestudoBankRepository;
 import net.testudobank.User;
+import net.testudobank.VelocityEngine;
 import net.testudobank.helpers.MvcControllerIntegTestHelpers;
 
 @Testcontainers
@@ -58,6 +108,7 @@ public class MvcControllerIntegTest {
 
   private static MvcController controller;
   private static JdbcTemplate jdbcTemplate;
+  private static ShardRouter shardRouter;
   private static DatabaseDelegate dbDelegate;
   private static CryptoPriceClient cryptoPriceClient = Mockito.mock(CryptoPriceClient.class);
 
@@ -67,7 +118,8 @@ public class MvcControllerIntegTest {
     ScriptUtils.runInitScript(dbDelegate, "createDB.sql");
     jdbcTemplate = new JdbcTemplate(MvcControllerIntegTestHelpers.dataSource(db));
     jdbcTemplate.getDataSource().getConnection().setCatalog(db.getDatabaseName());
-    controller = new MvcController(jdbcTemplate, cryptoPriceClient);
+    shardRouter = new ShardRouter(jdbcTemplate);
+    controller = new MvcController(shardRouter, cryptoPriceClient);
   }
 
   @AfterEach
@@ -76,6 +128,10 @@ public class MvcControllerIntegTest {
     // so it is OK to use runInitScript() again even though we aren't initializing the DB for the first time here.
     // runInitScript() is a poorly-named function.
     ScriptUtils.runInitScript(dbDelegate, "clearDB.sql");
+    // the truncated history rows and customers would otherwise still be served from memory
+    shardRouter.getRecentActivityCache().clear();
+    shardRouter.getCustomerProfileCache().clear();
+    shardRouter.getCustomerIDFilter().clear();
   }
 
   //// INTEGRATION TESTS ////
@@ -1582,4 +1638,1137 @@ public void testTransferPaysOverdraftAndDepositsRemainder() throws SQLException,
     cryptoTransactionTester.test(cryptoTransaction);
   }
 
-}
\ No newline at end of file
+  /**
+   * Verifies that the double-entry ledger stays in sync with the Customers table.
+   * 
+   * The customer starts with $100 (posted as an opening balance), withdraws $150 into overdraft,
+   * and then deposits $10 after a ledger snapshot run. The balances derived from the ledger (snapshot + journal tail)
+   * and from a full replay should both match the Customers table, and all ledger entries should sum to 0.
+   * 
+   * @throws ScriptException
+   */
+  @Test
+  public void testLedgerMatchesCustomerBalances() throws ScriptException {
+    // initialize customer1 with a balance of $100 and post it to the ledger as an opening balance
+    int CUSTOMER1_BALANCE_IN_PENNIES = MvcControllerIntegTestHelpers.convertDollarsToPennies(100);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, CUSTOMER1_BALANCE_IN_PENNIES, 0);
+    ShardRouter shardRouter = new ShardRouter(jdbcTemplate);
+    assertEquals(2, LedgerSnapshotJob.postOpeningBalances(shardRouter));
+
+    User customer1 = new User();
+    customer1.setUsername(CUSTOMER1_ID);
+    customer1.setPassword(CUSTOMER1_PASSWORD);
+    customer1.setAmountToWithdraw(150);
+    controller.submitWithdraw(customer1);
+
+    // the second snapshot run folds in the entries observed by the first one
+    assertTrue(LedgerSnapshotJob.snapshotLedger(jdbcTemplate, shardRouter.getShardTransactionTemplate(0)));
+    assertTrue(LedgerSnapshotJob.snapshotLedger(jdbcTemplate, shardRouter.getShardTransactionTemplate(0)));
+
+    customer1.setAmountToDeposit(10);
+    controller.submitDeposit(customer1);
+
+    // $50 excess withdraw becomes $51 of overdraft after interest, and the $10 deposit repays part of it
+    Map<String,Object> customer1Data = jdbcTemplate.queryForList(String.format("SELECT * FROM Customers WHERE CustomerID='%s';", CUSTOMER1_ID)).get(0);
+    assertEquals(0, (int)customer1Data.get("Balance"));
+    assertEquals(MvcControllerIntegTestHelpers.applyOverdraftInterest(5000) - 1000, (int)customer1Data.get("OverdraftBalance"));
+
+    assertEquals((int)customer1Data.get("Balance"), TestudoBankRepository.getLedgerBalanceInPennies(jdbcTemplate, CUSTOMER1_ID, LedgerJournal.CASH_ACCOUNT));
+    assertEquals((int)customer1Data.get("OverdraftBalance"), -TestudoBankRepository.getLedgerBalanceInPennies(jdbcTemplate, CUSTOMER1_ID, LedgerJournal.OVERDRAFT_ACCOUNT));
+
+    LedgerReplayer replayer = LedgerReplayer.replay(jdbcTemplate);
+    assertEquals((int)customer1Data.get("Balance"), replayer.getBalanceInPennies(CUSTOMER1_ID, LedgerJournal.CASH_ACCOUNT));
+    assertEquals((int)customer1Data.get("OverdraftBalance"), -replayer.getBalanceInPennies(CUSTOMER1_ID, LedgerJournal.OVERDRAFT_ACCOUNT));
+
+    // every journal balances, so the whole ledger sums to 0
+    assertEquals(0L, jdbcTemplate.queryForObject("SELECT SUM(Amount) FROM LedgerEntries", Long.class));
+  }
+
+  /**
+   * Verifies that re-submitting a deposit form with the same idempotency key (e.g. a double-click or browser retry)
+   * only deposits once, and that the retry still gets the "account_info" page.
+   * 
+   * @throws ScriptException
+   */
+  @Test
+  public void testDepositWithSameIdempotencyKeyIsOnlyAppliedOnce() throws ScriptException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 0);
+    String idempotencyKey = "c6b8a1e4-5d0f-4b3a-9d0e-2f6a7c1b9e42";
+
+    for (int i = 0; i < 2; i++) {
+      User customer1DepositFormInputs = new User();
+      customer1DepositFormInputs.setUsername(CUSTOMER1_ID);
+      customer1DepositFormInputs.setPassword(CUSTOMER1_PASSWORD);
+      customer1DepositFormInputs.setAmountToDeposit(12.34);
+      customer1DepositFormInputs.setIdempotencyKey(idempotencyKey);
+      assertEquals("account_info", controller.submitDeposit(customer1DepositFormInputs));
+      assertEquals(12.34, customer1DepositFormInputs.getBalance());
+    }
+
+    assertEquals(1234, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, CUSTOMER1_ID));
+    assertEquals(1, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TransactionHistory;", Integer.class));
+    assertEquals("account_info", jdbcTemplate.queryForObject("SELECT Response FROM IdempotencyKeys;", String.class));
+
+    // a retry with a wrong password does not get the account info
+    User wrongPasswordRetry = new User();
+    wrongPasswordRetry.setUsername(CUSTOMER1_ID);
+    wrongPasswordRetry.setPassword("wrong_password");
+    wrongPasswordRetry.setAmountToDeposit(12.34);
+    wrongPasswordRetry.setIdempotencyKey(idempotencyKey);
+    assertEquals("welcome", controller.submitDeposit(wrongPasswordRetry));
+  }
+
+  /**
+   * Verifies that a rejected request gives its idempotency key back, so the customer can fix the form and
+   * submit it again, and that expired keys are purged.
+   * 
+   * @throws ScriptException
+   */
+  @Test
+  public void testRejectedRequestReleasesIdempotencyKey() throws ScriptException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 0);
+    String idempotencyKey = "0f4e2d8c-7a1b-4c5d-8e9f-3a2b1c0d4e5f";
+
+    User customer1WithdrawFormInputs = new User();
+    customer1WithdrawFormInputs.setUsername(CUSTOMER1_ID);
+    customer1WithdrawFormInputs.setPassword("wrong_password");
+    customer1WithdrawFormInputs.setAmountToWithdraw(10);
+    customer1WithdrawFormInputs.setIdempotencyKey(idempotencyKey);
+    assertEquals("welcome", controller.submitWithdraw(customer1WithdrawFormInputs));
+    assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM IdempotencyKeys;", Integer.class));
+
+    customer1WithdrawFormInputs.setPassword(CUSTOMER1_PASSWORD);
+    customer1WithdrawFormInputs.setIdempotencyKey(idempotencyKey);
+    assertEquals("account_info", controller.submitWithdraw(customer1WithdrawFormInputs));
+    assertEquals(1, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM IdempotencyKeys;", Integer.class));
+
+    // keys created before the cutoff are purged
+    String cutoffAfterNow = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new java.util.Date(System.currentTimeMillis() + 60 * 1000));
+    assertEquals(1, IdempotencyKeys.purgeExpiredKeys(new ShardRouter(jdbcTemplate), cutoffAfterNow));
+    assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM IdempotencyKeys;", Integer.class));
+  }
+
+  /**
+   * Verifies that the nightly interest accrual credits a day of the annual interest rate to every customer whose
+   * account is not frozen and whose main balance earns at least a penny, posts a balanced ledger journal for it, and only credits each customer once per day
+   * even when the accrual is run again for the same day.
+   * 
+   * @throws ScriptException
+   */
+  @Test
+  public void testInterestAccrualCreditsEachCustomerOncePerDay() throws ScriptException {
+    // customer1 has $10000, customer2 has $10000 but a frozen account, customer3 is in overdraft,
+    // and customer4 has $100 (too little to earn a penny of interest in a day)
+    String CUSTOMER3_ID = "555555555";
+    String CUSTOMER4_ID = "666666666";
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 1000000, 0, 0, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, 1000000, 0, MvcController.MAX_DISPUTES, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER3_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 5000, 0, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER4_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 10000, 0, 0, 0);
+
+    // 2 partitions with 1 customer per chunk, so the accrual spans several ranges and chunks
+    ShardRouter shardRouter = new ShardRouter(jdbcTemplate);
+    assertEquals(1, InterestAccrualJob.accrueInterest(jdbcTemplate, shardRouter.getShardTransactionTemplate(0), "2024-01-01", 2, 2, 1));
+    assertEquals(0, InterestAccrualJob.accrueInterest(jdbcTemplate, shardRouter.getShardTransactionTemplate(0), "2024-01-01", 2, 2, 1));
+
+    // a day at 1.5% a year is about 0.0041%, so $10000 earns 40 cents
+    assertEquals(1000040, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, CUSTOMER1_ID));
+    assertEquals(1000000, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, CUSTOMER2_ID));
+    assertEquals(0, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, CUSTOMER3_ID));
+    assertEquals(10000, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, CUSTOMER4_ID));
+    assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM InterestAccruals WHERE IsComplete = false", Integer.class));
+
+    // the interest is paid out of the bank's InterestExpense account
+    assertEquals(40L, TestudoBankRepository.getLedgerBalanceInPennies(jdbcTemplate, CUSTOMER1_ID, LedgerJournal.CASH_ACCOUNT));
+    assertEquals(-40L, TestudoBankRepository.getLedgerBalanceInPennies(jdbcTemplate, LedgerJournal.BANK_ID, LedgerJournal.INTEREST_EXPENSE_ACCOUNT));
+    assertEquals(0L, jdbcTemplate.queryForObject("SELECT SUM(Amount) FROM LedgerEntries", Long.class));
+
+    // the next day pays interest on the new balance
+    assertEquals(1, InterestAccrualJob.accrueInterest(jdbcTemplate, shardRouter.getShardTransactionTemplate(0), "2024-01-02", 2, 2, 1));
+    assertEquals(1000080, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, CUSTOMER1_ID));
+  }
+
+  /**
+   * Verifies that the nightly overdraft interest only charges customers in overdraft, rounds each charge up to the penny,
+   * never charges past the max overdraft limit, logs each charge in OverdraftLogs, posts it to the bank's OverdraftFees
+   * account, and charges each overdraft once per day.
+   */
+  @Test
+  public void testOverdraftInterestAccrualChargesEachOverdraftOncePerDay() throws ScriptException {
+    // customer1 has $100 and no overdraft, customer2 owes $50, customer3 owes $1 (less than a penny of interest),
+    // customer4 owes a penny less than the max overdraft, and customer5 owes the max overdraft
+    String CUSTOMER3_ID = "555555555";
+    String CUSTOMER4_ID = "666666666";
+    String CUSTOMER5_ID = "777777777";
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 10000, 0, 0, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, 0, 5000, 0, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER3_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 100, 0, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER4_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, MvcController.MAX_OVERDRAFT_IN_PENNIES - 1, 0, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER5_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, MvcController.MAX_OVERDRAFT_IN_PENNIES, 0, 0);
+
+    ShardRouter shardRouter = new ShardRouter(jdbcTemplate);
+    assertEquals(3, InterestAccrualJob.accrueOverdraftInterest(jdbcTemplate, shardRouter.getShardTransactionTemplate(0), "2024-01-01", 2, 2, 1));
+    assertEquals(0, InterestAccrualJob.accrueOverdraftInterest(jdbcTemplate, shardRouter.getShardTransactionTemplate(0), "2024-01-01", 2, 2, 1));
+
+    assertEquals(10000, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, CUSTOMER1_ID));
+    assertEquals(0, TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, CUSTOMER1_ID));
+    assertEquals(5003, TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, CUSTOMER2_ID));
+    assertEquals(101, TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, CUSTOMER3_ID));
+    assertEquals(MvcController.MAX_OVERDRAFT_IN_PENNIES, TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, CUSTOMER4_ID));
+    assertEquals(MvcController.MAX_OVERDRAFT_IN_PENNIES, TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, CUSTOMER5_ID));
+    assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM InterestAccruals WHERE IsComplete = false", Integer.class));
+
+    // the charge is logged like any other overdraft balance change
+    List<Map<String,Object>> overdraftLogs = TestudoBankRepository.getOverdraftLogs(jdbcTemplate, CUSTOMER2_ID);
+    assertEquals(1, overdraftLogs.size());
+    assertEquals(5000, (int) overdraftLogs.get(0).get("OldOverBalance"));
+    assertEquals(5003, (int) overdraftLogs.get(0).get("NewOverBalance"));
+    assertEquals(1, TestudoBankRepository.getOverdraftLogs(jdbcTemplate, CUSTOMER3_ID).size());
+    assertEquals(0, TestudoBankRepository.getOverdraftLogs(jdbcTemplate, CUSTOMER5_ID).size());
+
+    // the interest is earned by the bank's OverdraftFees account
+    assertEquals(-3L, TestudoBankRepository.getLedgerBalanceInPennies(jdbcTemplate, CUSTOMER2_ID, LedgerJournal.OVERDRAFT_ACCOUNT));
+    assertEquals(-1L, TestudoBankRepository.getLedgerBalanceInPennies(jdbcTemplate, CUSTOMER4_ID, LedgerJournal.OVERDRAFT_ACCOUNT));
+    assertEquals(5L, TestudoBankRepository.getLedgerBalanceInPennies(jdbcTemplate, LedgerJournal.BANK_ID, LedgerJournal.OVERDRAFT_FEES_ACCOUNT));
+    assertEquals(0L, jdbcTemplate.queryForObject("SELECT SUM(Amount) FROM LedgerEntries", Long.class));
+    assertEquals(-3L, jdbcTemplate.queryForObject("SELECT Amount FROM LedgerOutbox WHERE CustomerID = ?", Long.class, CUSTOMER2_ID));
+
+    // balance interest and overdraft interest are tracked separately, so the same day still pays balance interest
+    assertEquals(1, InterestAccrualJob.accrueInterest(jdbcTemplate, shardRouter.getShardTransactionTemplate(0), "2024-01-01", 2, 2, 1));
+  }
+
+  /**
+   * Verifies that a monthly statement is written for every customer, with only that customer's
+   * rows from that month, and opening/closing balances taken from the ledger.
+   */
+  @Test
+  public void testStatementGeneratorWritesMonthlyStatementPerCustomer() throws ScriptException, IOException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 0, 0, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, 0, 0, 0, 0);
+
+    // customer1 deposits $100 in December, then in January sends $25 to customer2; customer1 also deposits in February
+    TestudoBankRepository.insertLedgerJournal(jdbcTemplate, new LedgerJournal(MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, "2023-12-31 10:00:00")
+      .post(CUSTOMER1_ID, LedgerJournal.CASH_ACCOUNT, 10000).post(LedgerJournal.BANK_ID, LedgerJournal.EXTERNAL_ACCOUNT, -10000));
+    TestudoBankRepository.insertLedgerJournal(jdbcTemplate, new LedgerJournal(MvcController.TRANSACTION_HISTORY_TRANSFER_SEND_ACTION, "2024-01-15 10:00:00")
+      .post(CUSTOMER1_ID, LedgerJournal.CASH_ACCOUNT, -2500).post(CUSTOMER2_ID, LedgerJournal.CASH_ACCOUNT, 2500));
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, shardRouter.getRecentActivityCache(), CUSTOMER1_ID, "2024-01-15 10:00:00", MvcController.TRANSACTION_HISTORY_TRANSFER_SEND_ACTION, 2500);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, shardRouter.getRecentActivityCache(), CUSTOMER2_ID, "2024-01-15 10:00:00", MvcController.TRANSACTION_HISTORY_TRANSFER_RECEIVE_ACTION, 2500);
+    TestudoBankRepository.insertRowToTransferLogsTable(jdbcTemplate, shardRouter.getRecentActivityCache(), CUSTOMER1_ID, CUSTOMER2_ID, "2024-01-15 10:00:00", 2500);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, shardRouter.getRecentActivityCache(), CUSTOMER1_ID, "2024-02-01 10:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 700);
+
+    Path statementsDir = Files.createTempDirectory("statements");
+    StatementGenerator.Result result = StatementGenerator.generateStatements(jdbcTemplate, YearMonth.of(2024, 1), statementsDir, 2);
+    assertEquals(2, result.getNumStatements());
+
+    String customer1Statement = readGzippedFile(statementsDir.resolve("2024-01").resolve(CUSTOMER1_ID + ".txt.gz"));
+    assertTrue(customer1Statement.contains("Opening balance: $100.00"));
+    assertTrue(customer1Statement.contains("Closing balance: $75.00"));
+    assertTrue(customer1Statement.contains("Sent     " + CUSTOMER2_ID + " $25.00"));
+    assertTrue(!customer1Statement.contains("$7.00"));
+
+    String customer2Statement = readGzippedFile(statementsDir.resolve("2024-01").resolve(CUSTOMER2_ID + ".txt.gz"));
+    assertTrue(customer2Statement.contains("Opening balance: $0.00"));
+    assertTrue(customer2Statement.contains("Closing balance: $25.00"));
+    assertTrue(customer2Statement.contains("Received " + CUSTOMER1_ID + " $25.00"));
+  }
+
+  /**
+   * Verifies that the history export streams only the customer's own rows, in Timestamp order,
+   * as CSV or gzipped NDJSON, and honors the inclusive date range.
+   */
+  @Test
+  public void testHistoryExportStreamsCustomerHistory() throws ScriptException, IOException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 0, 0, 0);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, shardRouter.getRecentActivityCache(), CUSTOMER1_ID, "2024-01-02 10:00:00", MvcController.TRANSACTION_HISTORY_WITHDRAW_ACTION, 250);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, shardRouter.getRecentActivityCache(), CUSTOMER1_ID, "2024-01-01 10:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 10000);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, shardRouter.getRecentActivityCache(), CUSTOMER1_ID, "2024-01-03 10:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 5);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, shardRouter.getRecentActivityCache(), CUSTOMER2_ID, "2024-01-02 11:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 700);
+
+    HistoryArchive emptyArchive = new HistoryArchive(Files.createTempDirectory("archive"));
+    ByteArrayOutputStream csv = new ByteArrayOutputStream();
+    assertEquals(3, HistoryExportController.exportTransactionHistory(jdbcTemplate, emptyArchive, CUSTOMER1_ID, null, null, HistoryExportController.CSV_FORMAT, false, csv));
+    assertEquals("timestamp,action,amount\n"
+                 + "2024-01-01 10:00:00,Deposit,100.00\n"
+                 + "2024-01-02 10:00:00,Withdraw,2.50\n"
+                 + "2024-01-03 10:00:00,Deposit,0.05\n", new String(csv.toByteArray(), StandardCharsets.UTF_8));
+
+    // only 2024-01-02 is in range
+    ByteArrayOutputStream ndjson = new ByteArrayOutputStream();
+    assertEquals(1, HistoryExportController.exportTransactionHistory(jdbcTemplate, emptyArchive, CUSTOMER1_ID, "2024-01-02 00:00:00", "2024-01-03 00:00:00",
+                                                                     HistoryExportController.NDJSON_FORMAT, true, ndjson));
+    Path ndjsonFile = Files.createTempFile("history", ".ndjson.gz");
+    Files.write(ndjsonFile, ndjson.toByteArray());
+    assertEquals("{\"timestamp\":\"2024-01-02 10:00:00\",\"action\":\"Withdraw\",\"amount\":2.50}\n", readGzippedFile(ndjsonFile));
+  }
+
+  /**
+   * Verifies that partition maintenance splits the history tables into monthly partitions, moves partitions older
+   * than the retention window to the archive, and that archived rows are still returned with the live ones.
+   */
+  @Test
+  public void testHistoryArchiveMovesExpiredPartitionsOutOfMySQL() throws ScriptException, IOException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 0, 0, 0);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, shardRouter.getRecentActivityCache(), CUSTOMER1_ID, "2024-10-05 10:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 10000);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, shardRouter.getRecentActivityCache(), CUSTOMER2_ID, "2024-10-06 10:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 700);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, shardRouter.getRecentActivityCache(), CUSTOMER1_ID, "2024-11-20 10:00:00", MvcController.TRANSACTION_HISTORY_WITHDRAW_ACTION, 250);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, shardRouter.getRecentActivityCache(), CUSTOMER1_ID, "2025-01-02 10:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 5);
+
+    HistoryArchive archive = new HistoryArchive(Files.createTempDirectory("archive"));
+    try {
+      // with 1 month of retention in 2025-01, 2024-10 and 2024-11 are archived and 2024-12 onwards stay in MySQL
+      assertEquals(2, HistoryArchiveJob.maintainPartitions(jdbcTemplate, shardRouter.getRecentActivityCache(), archive, YearMonth.of(2025, 1), 1));
+      assertEquals(Arrays.asList("p202412", "p202501", "p202502", "pFuture"),
+                   TestudoBankRepository.getHistoryPartitionNames(jdbcTemplate, HistoryArchiveJob.TRANSACTION_HISTORY_TABLE));
+      assertEquals(Arrays.asList(YearMonth.of(2024, 10), YearMonth.of(2024, 11)), archive.getArchivedMonths(HistoryArchiveJob.TRANSACTION_HISTORY_TABLE));
+      assertEquals(1, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TransactionHistory", Integer.class));
+
+      List<Map<String,Object>> customer1History = TestudoBankRepository.getTransactionHistory(jdbcTemplate, archive, CUSTOMER1_ID, null, null);
+      assertEquals(3, customer1History.size());
+      assertEquals("2024-10-05 10:00:00", customer1History.get(0).get("Timestamp"));
+      assertEquals(10000, customer1History.get(0).get("Amount"));
+      assertEquals("2024-11-20 10:00:00", customer1History.get(1).get("Timestamp"));
+      assertEquals("2025-01-02 10:00:00", customer1History.get(2).get("Timestamp"));
+      assertEquals(1, TestudoBankRepository.getTransactionHistory(jdbcTemplate, archive, CUSTOMER1_ID, "2024-11-01 00:00:00", "2025-01-01 00:00:00").size());
+
+      // running again the same month changes nothing
+      assertEquals(0, HistoryArchiveJob.maintainPartitions(jdbcTemplate, shardRouter.getRecentActivityCache(), archive, YearMonth.of(2025, 1), 1));
+    } finally {
+      // put back the single pFuture partition that createDB.sql starts with, for the other tests
+      for (String table : HistoryArchiveJob.HISTORY_TABLES) {
+        jdbcTemplate.update("ALTER TABLE " + table + " PARTITION BY RANGE (TO_DAYS(Timestamp)) (PARTITION pFuture VALUES LESS THAN MAXVALUE)");
+      }
+    }
+  }
+
+  /**
+   * Verifies that every TransactionHistory insert, single or batched, is added to the customer's and the bank's
+   * daily rollups, and that range queries over the rollups add up the right days.
+   */
+  @Test
+  public void testDailyRollupsFollowTransactionHistory() throws ScriptException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 0, 0, 0);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, shardRouter.getRecentActivityCache(), CUSTOMER1_ID, "2024-01-01 10:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 10000);
+    TestudoBankRepository.insertRowsToTransactionHistoryTable(jdbcTemplate, shardRouter.getRecentActivityCache(), Arrays.asList(
+      new Object[] {CUSTOMER1_ID, "2024-01-01 12:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 500},
+      new Object[] {CUSTOMER1_ID, "2024-01-02 09:00:00", MvcController.TRANSACTION_HISTORY_WITHDRAW_ACTION, 250},
+      new Object[] {CUSTOMER2_ID, "2024-01-02 10:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 700},
+      new Object[] {CUSTOMER1_ID, "2024-02-01 09:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 1}
+    ));
+
+    List<Map<String,Object>> customer1Rollups = TestudoBankRepository.getCustomerDailyRollups(jdbcTemplate, CUSTOMER1_ID, "2024-01-01", "2024-01-31");
+    assertEquals(2, customer1Rollups.size());
+    assertEquals(MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, customer1Rollups.get(0).get("Action"));
+    assertEquals(2, ((Number) customer1Rollups.get(0).get("NumTransactions")).intValue());
+    assertEquals(10500L, ((Number) customer1Rollups.get(0).get("TotalAmount")).longValue());
+    assertEquals(MvcController.TRANSACTION_HISTORY_WITHDRAW_ACTION, customer1Rollups.get(1).get("Action"));
+
+    // "how much did customer1 deposit in January"
+    List<Map<String,Object>> customer1Totals = TestudoBankRepository.getCustomerActionTotals(jdbcTemplate, CUSTOMER1_ID, "2024-01-01", "2024-01-31");
+    assertEquals(2, customer1Totals.size());
+    assertEquals(10500L, ((Number) customer1Totals.get(0).get("TotalAmount")).longValue());
+    assertEquals(250L, ((Number) customer1Totals.get(1).get("TotalAmount")).longValue());
+
+    // the bank's deposits on 2024-01-02 only come from customer2
+    List<Map<String,Object>> bankRollups = TestudoBankRepository.getBankDailyRollups(jdbcTemplate, "2024-01-02", "2024-01-02");
+    assertEquals(2, bankRollups.size());
+    assertEquals(MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, bankRollups.get(0).get("Action"));
+    assertEquals(1L, ((Number) bankRollups.get(0).get("NumTransactions")).longValue());
+    assertEquals(700L, ((Number) bankRollups.get(0).get("TotalAmount")).longValue());
+
+    // rebuilding from TransactionHistory gives the same totals
+    TestudoBankRepository.rebuildDailyRollups(jdbcTemplate);
+    assertEquals(customer1Totals, TestudoBankRepository.getCustomerActionTotals(jdbcTemplate, CUSTOMER1_ID, "2024-01-01", "2024-01-31"));
+    assertEquals(bankRollups, TestudoBankRepository.getBankDailyRollups(jdbcTemplate, "2024-01-02", "2024-01-02"));
+  }
+
+  /**
+   * Verifies that the exposure totals follow deposits, withdraws into overdraft and fraud reversals as they commit,
+   * and that reconciling replaces them with the totals in MySQL.
+   */
+  @Test
+  public void testExposureAggregatesFollowLedgerWrites() throws ScriptException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 0, 0, 0);
+    ExposureAggregates.reconcile(Collections.singletonList(jdbcTemplate));
+    assertEquals(0, ExposureAggregates.snapshot().getDepositsHeldInPennies());
+    assertEquals(1, ExposureAggregates.snapshot().getNumCustomers());
+    assertEquals(MvcController.MAX_OVERDRAFT_IN_PENNIES, ExposureAggregates.snapshot().getOverdraftLimitInPennies());
+
+    User customer1 = new User();
+    customer1.setUsername(CUSTOMER1_ID);
+    customer1.setPassword(CUSTOMER1_PASSWORD);
+    customer1.setAmountToDeposit(100);
+    controller.submitDeposit(customer1);
+    assertEquals(10000, ExposureAggregates.snapshot().getDepositsHeldInPennies());
+
+    customer1.setAmountToWithdraw(150);
+    controller.submitWithdraw(customer1);
+    assertEquals(0, ExposureAggregates.snapshot().getDepositsHeldInPennies());
+    assertEquals(TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, CUSTOMER1_ID),
+                 ExposureAggregates.snapshot().getOverdraftOutstandingInPennies());
+
+    TestudoBankRepository.setCustomerNumFraudReversals(jdbcTemplate, CUSTOMER1_ID, MvcController.MAX_DISPUTES);
+    assertEquals(1, ExposureAggregates.snapshot().getNumFrozenAccounts());
+
+    // a write that bypasses the repository is only picked up by reconciling
+    jdbcTemplate.update("UPDATE Customers SET Balance = 777 WHERE CustomerID = ?", CUSTOMER1_ID);
+    assertEquals(-777, ExposureAggregates.reconcile(Collections.singletonList(jdbcTemplate)));
+    assertEquals(777, ExposureAggregates.snapshot().getDepositsHeldInPennies());
+    assertEquals(1, ExposureAggregates.snapshot().getNumFrozenAccounts());
+  }
+
+  /**
+   * Verifies that deposits and withdraws that break a velocity rule are rejected without moving money,
+   * and that the windows slide so the same movements are allowed again later.
+   */
+  @Test
+  public void testVelocityRulesRejectBurstsOfMovements() throws ScriptException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 0, 0, 0);
+    ShardRouter shardRouter = new ShardRouter(jdbcTemplate);
+    VelocityEngine velocityEngine = new VelocityEngine("withdraw:1m:count:2, deposit:24h:amount:20000");
+    MvcController velocityController = new MvcController(shardRouter, cryptoPriceClient, BalanceEngine.disabled(shardRouter),
+                                                          MutationSequencer.disabled(shardRouter), velocityEngine);
+
+    User customer1 = new User();
+    customer1.setUsername(CUSTOMER1_ID);
+    customer1.setPassword(CUSTOMER1_PASSWORD);
+    customer1.setAmountToDeposit(100);
+    assertEquals("account_info", velocityController.submitDeposit(customer1));
+    // $100 + $150 would be over $200 of deposits in 24 hours
+    customer1.setAmountToDeposit(150);
+    assertEquals("welcome", velocityController.submitDeposit(customer1));
+    assertEquals(10000, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, CUSTOMER1_ID));
+
+    customer1.setAmountToWithdraw(1);
+    assertEquals("account_info", velocityController.submitWithdraw(customer1));
+    assertEquals("account_info", velocityController.submitWithdraw(customer1));
+    assertEquals("welcome", velocityController.submitWithdraw(customer1));
+    assertEquals(9800, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, CUSTOMER1_ID));
+
+    // a minute later the withdraw window has slid past both withdraws, but the deposit window hasn't
+    long aMinuteLater = System.currentTimeMillis() + 70 * 1000;
+    assertEquals(null, velocityEngine.tryRecord(CUSTOMER1_ID, false, 100, aMinuteLater));
+    assertEquals("deposit:24h:amount:20000", String.valueOf(velocityEngine.tryRecord(CUSTOMER1_ID, true, 15000, aMinuteLater)));
+  }
+
+  /**
+   * Verifies that a transfer or dispute whose withdraw is rejected by a velocity rule moves no money: the recipient
+   * isn't paid, no transfer is logged, and the rejected reversal isn't counted against the customer.
+   */
+  @Test
+  public void testTransferAndDisputeAbortWhenWithdrawIsRejected() throws ScriptException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 10000, 0, 0, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, 5000, 0, 0, 0);
+    ShardRouter shardRouter = new ShardRouter(jdbcTemplate);
+    VelocityEngine velocityEngine = new VelocityEngine("withdraw:1m:count:1");
+    MvcController velocityController = new MvcController(shardRouter, cryptoPriceClient, BalanceEngine.disabled(shardRouter),
+                                                          MutationSequencer.disabled(shardRouter), velocityEngine);
+
+    User customer1 = new User();
+    customer1.setUsername(CUSTOMER1_ID);
+    customer1.setPassword(CUSTOMER1_PASSWORD);
+    customer1.setAmountToDeposit(20);
+    assertEquals("account_info", velocityController.submitDeposit(customer1));
+    // use up the minute's only withdraw
+    assertEquals(null, velocityEngine.tryRecord(CUSTOMER1_ID, false, 100, System.currentTimeMillis()));
+
+    customer1.setTransferRecipientID(CUSTOMER2_ID);
+    customer1.setAmountToTransfer(10);
+    assertEquals("welcome", velocityController.submitTransfer(customer1));
+    assertEquals(12000, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, CUSTOMER1_ID));
+    assertEquals(5000, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, CUSTOMER2_ID));
+    assertEquals(0, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TransferHistory", Integer.class));
+
+    // reversing the $20 deposit needs a withdraw too
+    User customer1Dispute = new User();
+    customer1Dispute.setUsername(CUSTOMER1_ID);
+    customer1Dispute.setPassword(CUSTOMER1_PASSWORD);
+    customer1Dispute.setNumTransactionsAgo(1);
+    assertEquals("welcome", velocityController.submitDispute(customer1Dispute));
+    assertEquals(12000, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, CUSTOMER1_ID));
+    assertEquals(0, TestudoBankRepository.getCustomerNumberOfReversals(jdbcTemplate, CUSTOMER1_ID));
+  }
+
+  /**
+   * Verifies that withdraws rejected after their velocity check (here for going past the overdraft limit) don't count
+   * against the velocity rules, so retrying them can't lock the customer out.
+   */
+  @Test
+  public void testRejectedWithdrawsAreNotCountedByVelocityRules() throws ScriptException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 0, 0, 0);
+    ShardRouter shardRouter = new ShardRouter(jdbcTemplate);
+    VelocityEngine velocityEngine = new VelocityEngine("withdraw:1m:count:1");
+    MvcController velocityController = new MvcController(shardRouter, cryptoPriceClient, BalanceEngine.disabled(shardRouter),
+                                                          MutationSequencer.disabled(shardRouter), velocityEngine);
+
+    User customer1 = new User();
+    customer1.setUsername(CUSTOMER1_ID);
+    customer1.setPassword(CUSTOMER1_PASSWORD);
+    customer1.setAmountToWithdraw(MvcController.MAX_OVERDRAFT_IN_PENNIES / 100 + 1);
+    assertEquals("welcome", velocityController.submitWithdraw(customer1));
+    assertEquals("welcome", velocityController.submitWithdraw(customer1));
+
+    // the minute's only withdraw is still available
+    customer1.setAmountToWithdraw(1);
+    assertEquals("account_info", velocityController.submitWithdraw(customer1));
+    assertEquals("welcome", velocityController.submitWithdraw(customer1));
+    assertEquals(102, TestudoBankRepository.getCustomerOverdraftBalanceInPennies(jdbcTemplate, CUSTOMER1_ID));
+  }
+
+  /**
+   * Verifies that every deposit and withdraw writes an outbox event, that the relay publishes no more events than
+   * the bus has room for, that a failing consumer gets its batch again, and that rows are only deleted once processed.
+   */
+  @Test
+  public void testOutboxRelayDeliversLedgerEventsAtLeastOnce() throws ScriptException, InterruptedException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 0, 0, 0);
+    User customer1 = new User();
+    customer1.setUsername(CUSTOMER1_ID);
+    customer1.setPassword(CUSTOMER1_PASSWORD);
+    customer1.setAmountToDeposit(100);
+    controller.submitDeposit(customer1);
+    customer1.setAmountToWithdraw(25);
+    controller.submitWithdraw(customer1);
+    assertEquals(2, TestudoBankRepository.getOutboxEvents(jdbcTemplate, 10).size());
+
+    // the consumer fails on its first batch, then records every event it is given
+    List<OutboxEvent> receivedEvents = Collections.synchronizedList(new ArrayList<>());
+    boolean[] hasFailed = {false};
+    OutboxEventBus eventBus = new OutboxEventBus(1, "");
+    eventBus.subscribe("test", batch -> {
+      if (!hasFailed[0]) {
+        hasFailed[0] = true;
+        throw new IllegalStateException("first delivery fails");
+      }
+      receivedEvents.addAll(batch);
+    });
+    OutboxRelay relay = new OutboxRelay(new ShardRouter(jdbcTemplate), eventBus, true, 100);
+    try {
+      // the bus only has room for one event at a time
+      assertEquals(1, relay.relay());
+      assertEquals(0, relay.relay());
+      waitUntil(() -> receivedEvents.size() == 1);
+      assertEquals(1, relay.relay());
+      waitUntil(() -> receivedEvents.size() == 2);
+      assertEquals(0, relay.relay());
+    } finally {
+      eventBus.close();
+    }
+
+    assertEquals(MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, receivedEvents.get(0).getAction());
+    assertEquals(10000, receivedEvents.get(0).getAmountInPennies());
+    assertEquals(MvcController.TRANSACTION_HISTORY_WITHDRAW_ACTION, receivedEvents.get(1).getAction());
+    assertEquals(-2500, receivedEvents.get(1).getAmountInPennies());
+    assertTrue(receivedEvents.get(0).getEventID() < receivedEvents.get(1).getEventID());
+    assertEquals(0, TestudoBankRepository.getOutboxEvents(jdbcTemplate, 10).size());
+  }
+
+  // Polls the condition every 10ms until it holds, for up to 10 seconds
+  private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.currentTimeMillis() < deadline, "timed out waiting for the condition");
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * Verifies that the AccountViews read model is updated right away by the customer's own requests, through ledger
+   * events for changes made anywhere else, and that it can be rebuilt from scratch.
+   */
+  @Test
+  public void testAccountViewsFollowLedgerEvents() throws ScriptException, InterruptedException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 0, 0, 0);
+    ShardRouter shardRouter = new ShardRouter(jdbcTemplate);
+    OutboxEventBus eventBus = new OutboxEventBus(10000, "");
+    AccountViews accountViews = new AccountViews(shardRouter, BalanceEngine.disabled(shardRouter), eventBus, true);
+    MvcController viewController = new MvcController(shardRouter, cryptoPriceClient, BalanceEngine.disabled(shardRouter),
+                                                      MutationSequencer.disabled(shardRouter), VelocityEngine.disabled(), accountViews);
+    OutboxRelay relay = new OutboxRelay(shardRouter, eventBus, true, 100);
+    try {
+      // the first login builds the customer's view
+      User customer1 = new User();
+      customer1.setUsername(CUSTOMER1_ID);
+      customer1.setPassword(CUSTOMER1_PASSWORD);
+      assertEquals("account_info", viewController.submitLoginForm(customer1));
+      assertEquals(CUSTOMER1_FIRST_NAME, jdbcTemplate.queryForObject("SELECT FirstName FROM AccountViews WHERE CustomerID = ?", String.class, CUSTOMER1_ID));
+
+      // the customer's own deposit shows up in their view before its event is relayed
+      customer1.setAmountToDeposit(100);
+      assertEquals("account_info", viewController.submitDeposit(customer1));
+      assertEquals(100, customer1.getBalance());
+      assertEquals(10000, jdbcTemplate.queryForObject("SELECT Balance FROM AccountViews WHERE CustomerID = ?", Integer.class, CUSTOMER1_ID));
+      assertTrue(customer1.getTransactionHist().contains(MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION));
+      assertEquals(0, customer1.getBalanceMutation().oldCashBalanceInPennies);
+      assertEquals(10000, customer1.getBalanceMutation().newCashBalanceInPennies);
+
+      // a withdraw into overdraft and a deposit repaying it are applied to the view from their computed post-state
+      customer1.setAmountToWithdraw(150);
+      assertEquals("account_info", viewController.submitWithdraw(customer1));
+      assertEquals(50, customer1.getOverDraftBalance());
+      customer1.setAmountToDeposit(50);
+      assertEquals("account_info", viewController.submitDeposit(customer1));
+      assertEquals(0, customer1.getOverDraftBalance());
+      assertEquals(0, jdbcTemplate.queryForObject("SELECT OverdraftBalance FROM AccountViews WHERE CustomerID = ?", Integer.class, CUSTOMER1_ID));
+      assertTrue(customer1.getLogs().contains("5000"));
+      customer1.setAmountToDeposit(100);
+      assertEquals("account_info", viewController.submitDeposit(customer1));
+      assertEquals(10000, jdbcTemplate.queryForObject("SELECT Balance FROM AccountViews WHERE CustomerID = ?", Integer.class, CUSTOMER1_ID));
+
+      // a credit made outside of the customer's requests only reaches the view through its ledger event
+      String currentTime = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new java.util.Date());
+      shardRouter.getShardTransactionTemplate(0).executeWithoutResult(status -> {
+        TestudoBankRepository.increaseCustomerCashBalance(jdbcTemplate, CUSTOMER1_ID, 500);
+        TestudoBankRepository.insertLedgerJournal(jdbcTemplate, new LedgerJournal(MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, currentTime)
+          .post(CUSTOMER1_ID, LedgerJournal.CASH_ACCOUNT, 500)
+          .post(LedgerJournal.BANK_ID, LedgerJournal.EXTERNAL_ACCOUNT, -500));
+      });
+      assertEquals(10000, jdbcTemplate.queryForObject("SELECT Balance FROM AccountViews WHERE CustomerID = ?", Integer.class, CUSTOMER1_ID));
+      long lastEventID = jdbcTemplate.queryForObject("SELECT MAX(EventID) FROM LedgerOutbox WHERE CustomerID = ?", Long.class, CUSTOMER1_ID);
+      assertEquals(lastEventID - 1, jdbcTemplate.queryForObject("SELECT LastEventID FROM AccountViews WHERE CustomerID = ?", Long.class, CUSTOMER1_ID));
+
+      // the events of the requests are skipped, since the view already holds them, and only the credit's amount is added
+      assertEquals(5, relay.relay());
+      waitUntil(() -> jdbcTemplate.queryForObject("SELECT Balance FROM AccountViews WHERE CustomerID = ?", Integer.class, CUSTOMER1_ID) == 10500);
+      waitUntil(() -> accountViews.getStaleness().getNumEventsApplied() == 5);
+      assertEquals(lastEventID, jdbcTemplate.queryForObject("SELECT LastEventID FROM AccountViews WHERE CustomerID = ?", Long.class, CUSTOMER1_ID));
+      assertTrue(accountViews.getStaleness().getLagMillis() < 60000);
+
+      assertEquals("account_info", viewController.submitLoginForm(customer1));
+      assertEquals(105, customer1.getBalance());
+
+      // a rebuild replaces views that drifted from the source tables
+      jdbcTemplate.update("UPDATE AccountViews SET Balance = 0");
+      assertEquals(1, accountViews.rebuild());
+      assertEquals(10500, jdbcTemplate.queryForObject("SELECT Balance FROM AccountViews WHERE CustomerID = ?", Integer.class, CUSTOMER1_ID));
+    } finally {
+      eventBus.close();
+    }
+  }
+
+  /**
+   * Verifies that the recent-activity cache serves a customer's newest transactions and transfers from memory once
+   * loaded, keeps them up to date as committed rows are inserted, ignores rolled back inserts, and evicts idle customers.
+   */
+  @Test
+  public void testRecentActivityCacheServesNewestRowsFromMemory() throws ScriptException {
+    RecentActivityCache recentActivityCache = shardRouter.getRecentActivityCache();
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 0, 0, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, 0, 0, 0, 0);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, recentActivityCache, CUSTOMER1_ID, "2024-01-02 10:00:00", MvcController.TRANSACTION_HISTORY_WITHDRAW_ACTION, 200);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, recentActivityCache, CUSTOMER1_ID, "2024-01-01 10:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 100);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, recentActivityCache, CUSTOMER1_ID, "2024-01-04 10:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 400);
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, recentActivityCache, CUSTOMER1_ID, "2024-01-03 10:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 300);
+
+    // the first read loads the newest rows from MySQL
+    RecentActivityCache.Stats statsBefore = recentActivityCache.stats();
+    List<Map<String,Object>> transactionLogs = TestudoBankRepository.getRecentTransactions(jdbcTemplate, recentActivityCache, CUSTOMER1_ID, 3);
+    assertEquals(Arrays.asList(400, 300, 200), Arrays.asList(transactionLogs.get(0).get("Amount"), transactionLogs.get(1).get("Amount"), transactionLogs.get(2).get("Amount")));
+    assertEquals(statsBefore.getNumMisses() + 1, recentActivityCache.stats().getNumMisses());
+
+    // a committed insert is written through, and a rolled back one is not
+    TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, recentActivityCache, CUSTOMER1_ID, "2024-01-05 10:00:00", MvcController.TRANSACTION_HISTORY_WITHDRAW_ACTION, 500);
+    shardRouter.getShardTransactionTemplate(0).executeWithoutResult(status -> {
+      TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, recentActivityCache, CUSTOMER1_ID, "2024-01-06 10:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, 600);
+      status.setRollbackOnly();
+    });
+
+    // later reads never touch MySQL, so rows deleted behind the cache's back are still served
+    jdbcTemplate.update("DELETE FROM TransactionHistory");
+    transactionLogs = TestudoBankRepository.getRecentTransactions(jdbcTemplate, recentActivityCache, CUSTOMER1_ID, 3);
+    assertEquals(Arrays.asList(500, 400, 300), Arrays.asList(transactionLogs.get(0).get("Amount"), transactionLogs.get(1).get("Amount"), transactionLogs.get(2).get("Amount")));
+    assertEquals(LocalDateTime.of(2024, 1, 5, 10, 0), transactionLogs.get(0).get("Timestamp"));
+    assertEquals(statsBefore.getNumHits() + 1, recentActivityCache.stats().getNumHits());
+
+    // a transfer row is written through to both of its parties
+    TestudoBankRepository.insertRowToTransferLogsTable(jdbcTemplate, recentActivityCache, CUSTOMER1_ID, CUSTOMER2_ID, "2024-01-01 10:00:00", 100);
+    assertEquals(1, TestudoBankRepository.getTransferLogs(jdbcTemplate, recentActivityCache, CUSTOMER2_ID, 10).size());
+    TestudoBankRepository.insertRowToTransferLogsTable(jdbcTemplate, recentActivityCache, CUSTOMER2_ID, CUSTOMER1_ID, "2024-01-02 10:00:00", 50);
+    jdbcTemplate.update("DELETE FROM TransferHistory");
+    List<Map<String,Object>> transferLogs = TestudoBankRepository.getTransferLogs(jdbcTemplate, recentActivityCache, CUSTOMER2_ID, 10);
+    assertEquals(2, transferLogs.size());
+    assertEquals(CUSTOMER2_ID, transferLogs.get(0).get("TransferFrom"));
+    assertEquals(CUSTOMER1_ID, transferLogs.get(1).get("TransferFrom"));
+
+    RecentActivityCache.Stats stats = recentActivityCache.stats();
+    assertEquals(2, stats.getNumCustomers());
+    assertEquals(5, stats.getNumRows());
+    assertTrue(stats.getEstimatedBytes() > 0);
+    assertTrue(stats.getHitRatio() > 0);
+
+    assertEquals(2, recentActivityCache.evictIdleCustomers(System.currentTimeMillis() + 1));
+    assertEquals(0, recentActivityCache.stats().getNumCustomers());
+    assertEquals(0, TestudoBankRepository.getRecentTransactions(jdbcTemplate, recentActivityCache, CUSTOMER1_ID, 3).size());
+  }
+
+  /**
+   * Verifies that customer profiles are read from Customers once and then served from memory, that customers that
+   * don't exist are never cached, that invalidation drops a profile, and that warm-up loads every customer.
+   */
+  @Test
+  public void testCustomerProfileCacheServesExistenceAndNames() throws ScriptException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 0, 0, 0);
+
+    CustomerProfileCache customerProfileCache = shardRouter.getCustomerProfileCache();
+
+    // a missing customer is looked up again every time, so they are found once they are created
+    CustomerProfileCache.Stats statsBefore = customerProfileCache.stats();
+    assertFalse(TestudoBankRepository.doesCustomerExist(jdbcTemplate, shardRouter.getCustomerIDFilter(), customerProfileCache, CUSTOMER2_ID));
+    assertFalse(TestudoBankRepository.doesCustomerExist(jdbcTemplate, shardRouter.getCustomerIDFilter(), customerProfileCache, CUSTOMER2_ID));
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, 0, 0, 0, 0);
+    assertTrue(TestudoBankRepository.doesCustomerExist(jdbcTemplate, shardRouter.getCustomerIDFilter(), customerProfileCache, CUSTOMER2_ID));
+    assertEquals(statsBefore.getNumMisses() + 3, customerProfileCache.stats().getNumMisses());
+
+    // once read, a customer's existence and name are served without querying Customers
+    assertEquals(CUSTOMER1_FIRST_NAME, TestudoBankRepository.getCustomerProfile(jdbcTemplate, customerProfileCache, CUSTOMER1_ID).get().getFirstName());
+    jdbcTemplate.update("UPDATE Customers SET FirstName = 'Renamed' WHERE CustomerID = ?", CUSTOMER1_ID);
+    CustomerProfileCache.Profile profile = TestudoBankRepository.getCustomerProfile(jdbcTemplate, customerProfileCache, CUSTOMER1_ID).get();
+    assertEquals(CUSTOMER1_FIRST_NAME, profile.getFirstName());
+    assertEquals(CUSTOMER1_LAST_NAME, profile.getLastName());
+    assertEquals(statsBefore.getNumHits() + 1, customerProfileCache.stats().getNumHits());
+
+    // a transfer to a customer that doesn't exist is turned away
+    User customer1 = new User();
+    customer1.setUsername(CUSTOMER1_ID);
+    customer1.setPassword(CUSTOMER1_PASSWORD);
+    customer1.setTransferRecipientID("000000000");
+    customer1.setAmountToTransfer(1);
+    assertEquals("welcome", controller.submitTransfer(customer1));
+
+    // invalidating picks up the rename
+    customerProfileCache.invalidate(jdbcTemplate, CUSTOMER1_ID);
+    assertEquals("Renamed", TestudoBankRepository.getCustomerProfile(jdbcTemplate, customerProfileCache, CUSTOMER1_ID).get().getFirstName());
+
+    customerProfileCache.clear();
+    assertEquals(0, customerProfileCache.stats().getNumCustomers());
+    assertEquals(2, customerProfileCache.warmUp(shardRouter));
+    CustomerProfileCache.Stats stats = customerProfileCache.stats();
+    assertEquals(2, stats.getNumCustomers());
+    assertTrue(stats.getEstimatedBytes() > 0);
+    assertTrue(TestudoBankRepository.doesCustomerExist(jdbcTemplate, shardRouter.getCustomerIDFilter(), customerProfileCache, CUSTOMER2_ID));
+    assertEquals(stats.getNumHits() + 1, customerProfileCache.stats().getNumHits());
+  }
+
+  /**
+   * Verifies that once the CustomerID filter is built, transfers to recipients that don't exist are turned away
+   * without a query, and customers added after the build are still found.
+   */
+  @Test
+  public void testCustomerIDFilterRejectsUnknownRecipients() throws ScriptException {
+    CustomerIDFilter customerIDFilter = shardRouter.getCustomerIDFilter();
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 1000, 0, 0, 0);
+    assertEquals(1, customerIDFilter.rebuild(shardRouter));
+
+    // the recipient is added to MySQL behind the filter's back, so only the filter can turn them away
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, 0, 0, 0, 0);
+    CustomerProfileCache.Stats profileStatsBefore = shardRouter.getCustomerProfileCache().stats();
+    long numRejectedBefore = customerIDFilter.stats().getNumRejected();
+    assertFalse(TestudoBankRepository.doesCustomerExist(jdbcTemplate, customerIDFilter, shardRouter.getCustomerProfileCache(), CUSTOMER2_ID));
+    assertEquals(profileStatsBefore.getNumMisses(), shardRouter.getCustomerProfileCache().stats().getNumMisses());
+    assertEquals(numRejectedBefore + 1, customerIDFilter.stats().getNumRejected());
+
+    User customer1 = new User();
+    customer1.setUsername(CUSTOMER1_ID);
+    customer1.setPassword(CUSTOMER1_PASSWORD);
+    customer1.setTransferRecipientID(CUSTOMER2_ID);
+    customer1.setAmountToTransfer(1);
+    assertEquals("welcome", controller.submitTransfer(customer1));
+    assertEquals(1000, (int) jdbcTemplate.queryForObject("SELECT Balance FROM Customers WHERE CustomerID = ?", Integer.class, CUSTOMER1_ID));
+
+    // the account creation hook makes the recipient visible right away
+    customerIDFilter.add(CUSTOMER2_ID);
+    assertTrue(TestudoBankRepository.doesCustomerExist(jdbcTemplate, customerIDFilter, shardRouter.getCustomerProfileCache(), CUSTOMER2_ID));
+    assertTrue(TestudoBankRepository.doesCustomerExist(jdbcTemplate, customerIDFilter, shardRouter.getCustomerProfileCache(), CUSTOMER1_ID));
+
+    CustomerIDFilter.Stats stats = customerIDFilter.stats();
+    assertEquals(2, stats.getNumCustomers());
+    assertTrue(stats.getEstimatedBytes() > 0);
+    assertTrue(stats.getExpectedFalsePositiveRate() < 0.01);
+  }
+
+  /**
+   * Verifies that the recipient index is built from Customers, finds customers by CustomerID and name prefix, picks
+   * up customers added after the build, and backs the autocomplete endpoint.
+   */
+  @Test
+  public void testRecipientIndexSuggestsRecipientsByPrefix() throws ScriptException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, "Alice", "Anderson", 0, 0, 0, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, "Bob", "Alvarez", 0, 0, 0, 0);
+    RecipientIndex recipientIndex = new RecipientIndex(new ShardRouter(jdbcTemplate), true);
+    assertEquals(2, recipientIndex.rebuild());
+
+    List<PrefixIndex.Recipient> suggestions = recipientIndex.search("al", 10);
+    assertEquals(Arrays.asList(CUSTOMER1_ID, CUSTOMER2_ID), Arrays.asList(suggestions.get(0).getCustomerID(), suggestions.get(1).getCustomerID()));
+    assertEquals("Alvarez", suggestions.get(1).getLastName());
+    assertEquals(CUSTOMER2_ID, recipientIndex.search(CUSTOMER2_ID.substring(0, 5), 10).stream()
+      .filter(recipient -> recipient.getCustomerID().equals(CUSTOMER2_ID)).findFirst().get().getCustomerID());
+
+    // customers added after the build are found right away, and stay found after the next rebuild
+    String CUSTOMER3_ID = "555555555";
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER3_ID, CUSTOMER1_PASSWORD, "Carol", "Alston", 0, 0, 0, 0);
+    assertEquals(2, recipientIndex.search("al", 10).size());
+    recipientIndex.add(CUSTOMER3_ID, "Carol", "Alston");
+    assertEquals(3, recipientIndex.search("AL", 10).size());
+    assertEquals(3, recipientIndex.rebuild());
+    assertEquals(3, recipientIndex.search("al", 10).size());
+
+    RecipientController recipientController = new RecipientController(recipientIndex);
+    assertEquals(1, recipientController.suggestRecipients("car", 10).size());
+    assertEquals(2, recipientController.suggestRecipients(" al ", 2).size());
+    assertTrue(recipientController.suggestRecipients("a", 10).isEmpty());
+  }
+
+  /**
+   * Verifies that the /api/v1 handlers move exact penny amounts through the form handlers, answer with the balances
+   * after the change, page through history across entries that share a second, and turn away bad credentials
+   * and rejected requests.
+   */
+  @Test
+  public void testApiV1MutationsReturnPostStateAndPageHistory() throws ScriptException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 0, 0, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, 0, 0, 0, 0);
+    ShardRouter shardRouter = new ShardRouter(jdbcTemplate);
+    ApiV1Controller api = new ApiV1Controller(controller, shardRouter, BalanceEngine.disabled(shardRouter), cryptoPriceClient);
+    String authorization = "Basic " + Base64.getEncoder().encodeToString((CUSTOMER1_ID + ":" + CUSTOMER1_PASSWORD).getBytes(StandardCharsets.UTF_8));
+
+    // 29 pennies is 28.999... pennies as a double dollar amount, and must not lose a penny on the way through
+    ApiV1Controller.AmountRequest deposit = new ApiV1Controller.AmountRequest();
+    deposit.setAmountInPennies(10029);
+    ResponseEntity<Object> response = api.deposit(CUSTOMER1_ID, authorization, null, deposit);
+    assertEquals(HttpStatus.OK, response.getStatusCode());
+    assertEquals(10029, ((ApiV1Controller.AccountState) response.getBody()).getBalanceInPennies());
+
+    ApiV1Controller.AmountRequest withdraw = new ApiV1Controller.AmountRequest();
+    withdraw.setAmountInPennies(29);
+    assertEquals(10000, ((ApiV1Controller.AccountState) api.withdraw(CUSTOMER1_ID, authorization, null, withdraw).getBody()).getBalanceInPennies());
+
+    ApiV1Controller.TransferRequest transfer = new ApiV1Controller.TransferRequest();
+    transfer.setRecipientID(CUSTOMER2_ID);
+    transfer.setAmountInPennies(2500);
+    ApiV1Controller.AccountState afterTransfer = (ApiV1Controller.AccountState) api.transfer(CUSTOMER1_ID, authorization, null, transfer).getBody();
+    assertEquals(7500, afterTransfer.getBalanceInPennies());
+    assertEquals(null, afterTransfer.getCryptoBalances());
+    assertEquals(2500, (int) jdbcTemplate.queryForObject("SELECT Balance FROM Customers WHERE CustomerID = ?", Integer.class, CUSTOMER2_ID));
+
+    // rejected requests and bad credentials move no money
+    transfer.setRecipientID("000000000");
+    assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, api.transfer(CUSTOMER1_ID, authorization, null, transfer).getStatusCode());
+    assertEquals(HttpStatus.UNAUTHORIZED, api.deposit(CUSTOMER2_ID, authorization, null, deposit).getStatusCode());
+    assertEquals(HttpStatus.UNAUTHORIZED, api.getBalance(CUSTOMER1_ID, "Basic " + Base64.getEncoder().encodeToString((CUSTOMER1_ID + ":wrong").getBytes(StandardCharsets.UTF_8))).getStatusCode());
+    ApiV1Controller.AccountState balance = (ApiV1Controller.AccountState) api.getBalance(CUSTOMER1_ID, authorization).getBody();
+    assertEquals(7500, balance.getBalanceInPennies());
+    assertEquals(0.0, balance.getCryptoBalances().get("ETH"));
+
+    // three more transactions in the same second as one page boundary, walked two at a time
+    for (int i = 0; i < 3; i++) {
+      TestudoBankRepository.insertRowToTransactionHistoryTable(jdbcTemplate, shardRouter.getRecentActivityCache(), CUSTOMER1_ID, "2020-01-01 00:00:00", MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION, i + 1);
+    }
+    List<Integer> amounts = new ArrayList<>();
+    String cursor = null;
+    int numPages = 0;
+    do {
+      ApiV1Controller.HistoryPage<?> page = (ApiV1Controller.HistoryPage<?>) api.getTransactions(CUSTOMER1_ID, authorization, 2, cursor).getBody();
+      for (Object entry : page.getEntries()) {
+        amounts.add(((ApiV1Controller.TransactionEntry) entry).getAmountInPennies());
+      }
+      cursor = page.getNextCursor();
+      numPages++;
+    } while (cursor != null);
+    assertEquals(6, amounts.size());
+    assertEquals(Arrays.asList(1, 2, 3), Arrays.asList(amounts.get(3), amounts.get(4), amounts.get(5)).stream().sorted().collect(Collectors.toList()));
+    assertTrue(numPages >= 3);
+    assertEquals(HttpStatus.BAD_REQUEST, api.getTransactions(CUSTOMER1_ID, authorization, 2, "not a cursor").getStatusCode());
+    assertEquals(1, ((ApiV1Controller.HistoryPage<?>) api.getTransfers(CUSTOMER1_ID, authorization, 20, null).getBody()).getEntries().size());
+  }
+
+  /**
+   * Verifies that the account page's history fragments are only served for a valid fragment token, and that a
+   * fragment whose section hasn't changed is revalidated with a 304 without reading the view, while changed sections
+   * get a new ETag.
+   */
+  @Test
+  public void testAccountFragmentsRevalidateWithSectionVersions() throws ScriptException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 0, 0, 0);
+    ShardRouter shardRouter = new ShardRouter(jdbcTemplate);
+    OutboxEventBus eventBus = new OutboxEventBus(10000, "");
+    AccountViews accountViews = new AccountViews(shardRouter, BalanceEngine.disabled(shardRouter), eventBus, true);
+    MvcController viewController = new MvcController(shardRouter, cryptoPriceClient, BalanceEngine.disabled(shardRouter),
+                                                      MutationSequencer.disabled(shardRouter), VelocityEngine.disabled(), accountViews);
+    AccountFragmentController fragmentController = new AccountFragmentController(accountViews);
+    try {
+      User customer1 = new User();
+      customer1.setUsername(CUSTOMER1_ID);
+      customer1.setPassword(CUSTOMER1_PASSWORD);
+      customer1.setAmountToDeposit(100);
+      assertEquals("account_info", viewController.submitDeposit(customer1));
+      String token = customer1.getFragmentToken();
+
+      // the first fetch of each section is a full response with the section's ETag
+      MockHttpServletResponse response = new MockHttpServletResponse();
+      ResponseEntity<String> transactions = getFragment(fragmentController, "transactions", token, null, response);
+      assertEquals(HttpStatus.OK, transactions.getStatusCode());
+      assertTrue(transactions.getBody().contains(MvcController.TRANSACTION_HISTORY_DEPOSIT_ACTION));
+      String transactionsETag = transactions.getHeaders().getETag();
+      String transfersETag = getFragment(fragmentController, "transfers", token, null, new MockHttpServletResponse()).getHeaders().getETag();
+
+      // revalidating an unchanged section doesn't read the view, so one dropped behind its back isn't rebuilt
+      jdbcTemplate.update("DELETE FROM AccountViews");
+      response = new MockHttpServletResponse();
+      assertEquals(null, getFragment(fragmentController, "transactions", token, transactionsETag, response));
+      assertEquals(HttpStatus.NOT_MODIFIED.value(), response.getStatus());
+      assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM AccountViews", Integer.class));
+
+      // a withdraw changes the transactions section, but leaves the transfers section's version alone
+      customer1.setAmountToWithdraw(50);
+      assertEquals("account_info", viewController.submitWithdraw(customer1));
+      transactions = getFragment(fragmentController, "transactions", token, transactionsETag, new MockHttpServletResponse());
+      assertEquals(HttpStatus.OK, transactions.getStatusCode());
+      assertFalse(transactionsETag.equals(transactions.getHeaders().getETag()));
+      assertTrue(transactions.getBody().contains(MvcController.TRANSACTION_HISTORY_WITHDRAW_ACTION));
+      response = new MockHttpServletResponse();
+      assertEquals(null, getFragment(fragmentController, "transfers", token, transfersETag, response));
+      assertEquals(HttpStatus.NOT_MODIFIED.value(), response.getStatus());
+
+      // tokens are bound to their customer, and only the page's sections are served
+      assertEquals(HttpStatus.UNAUTHORIZED, getFragment(fragmentController, "transactions", null, null, new MockHttpServletResponse()).getStatusCode());
+      assertEquals(HttpStatus.UNAUTHORIZED, fragmentController.getFragment(CUSTOMER2_ID, "transactions", token,
+        new ServletWebRequest(new MockHttpServletRequest("GET", "/"), new MockHttpServletResponse())).getStatusCode());
+      assertEquals(HttpStatus.NOT_FOUND, getFragment(fragmentController, "balances", token, null, new MockHttpServletResponse()).getStatusCode());
+    } finally {
+      eventBus.close();
+    }
+  }
+
+  // GET of one of CUSTOMER1's fragments, revalidating ifNoneMatch if it isn't null
+  private static ResponseEntity<String> getFragment(AccountFragmentController fragmentController, String section, String token,
+                                                    String ifNoneMatch, MockHttpServletResponse response) {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/accounts/" + CUSTOMER1_ID + "/fragments/" + section);
+    if (ifNoneMatch != null) {
+      request.addHeader("If-None-Match", ifNoneMatch);
+    }
+    return fragmentController.getFragment(CUSTOMER1_ID, section, token, new ServletWebRequest(request, response));
+  }
+
+  /**
+   * Verifies that a transfer's recipient gets their new balance pushed over their live updates stream once the
+   * transfer's ledger events are relayed, while streams of other customers don't.
+   */
+  @Test
+  public void testLiveUpdatesPushBalanceChangesFromLedgerEvents() throws ScriptException, InterruptedException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 10000, 0, 0, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, 0, 0, 0, 0);
+    ShardRouter shardRouter = new ShardRouter(jdbcTemplate);
+    OutboxEventBus eventBus = new OutboxEventBus(10000, "");
+    LiveUpdates liveUpdates = new LiveUpdates(shardRouter, BalanceEngine.disabled(shardRouter), cryptoPriceClient, eventBus, 16, 2, 60000);
+    OutboxRelay relay = new OutboxRelay(shardRouter, eventBus, true, 100);
+    List<String> recipientEvents = new CopyOnWriteArrayList<>();
+    List<String> bystanderEvents = new CopyOnWriteArrayList<>();
+    try {
+      liveUpdates.subscribe(CUSTOMER2_ID, recordingSink(recipientEvents));
+      liveUpdates.subscribe("111111111", recordingSink(bystanderEvents));
+
+      User customer1 = new User();
+      customer1.setUsername(CUSTOMER1_ID);
+      customer1.setPassword(CUSTOMER1_PASSWORD);
+      customer1.setTransferRecipientID(CUSTOMER2_ID);
+      customer1.setAmountToTransfer(40);
+      assertEquals("account_info", controller.submitTransfer(customer1));
+      assertTrue(recipientEvents.isEmpty());
+
+      assertTrue(relay.relay() > 0);
+      waitUntil(() -> !recipientEvents.isEmpty());
+      assertEquals(LiveUpdates.BALANCE_EVENT + ":{\"balanceInPennies\":4000,\"overdraftBalanceInPennies\":0}", recipientEvents.get(0));
+      assertTrue(bystanderEvents.isEmpty());
+    } finally {
+      liveUpdates.close();
+      eventBus.close();
+    }
+  }
+
+  // Sink that records the events sent to it as "name:data"
+  private static LiveUpdates.EventSink recordingSink(List<String> events) {
+    return new LiveUpdates.EventSink() {
+      @Override
+      public void send(String eventName, String data) {
+        events.add(eventName + ":" + data);
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  /**
+   * Verifies that the shard rebalancer moves customers with all of their rows to a new shard: a transfer log between
+   * two customers who both move is moved once, a transfer log with a customer who stays is kept on both shards, and
+   * the credit marker of a transfer saga moves with its recipient.
+   */
+  @Test
+  public void testShardRebalancerMovesSharedTransferLogsAndCreditMarkers() throws ScriptException, SQLException {
+    // two customers who move to the new shard, and one who stays
+    List<String> movingIDs = new ArrayList<>();
+    String stayingID = null;
+    for (int i = 0; movingIDs.size() < 2 || stayingID == null; i++) {
+      String customerID = String.valueOf(100000000 + i);
+      if (ShardRouter.shardIndexFor(customerID, 2) == 1 && movingIDs.size() < 2) {
+        movingIDs.add(customerID);
+      } else if (ShardRouter.shardIndexFor(customerID, 2) == 0 && stayingID == null) {
+        stayingID = customerID;
+      }
+    }
+    String senderID = movingIDs.get(0);
+    String recipientID = movingIDs.get(1);
+    for (String customerID : Arrays.asList(senderID, recipientID, stayingID)) {
+      MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, customerID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 10000, 0);
+    }
+    TestudoBankRepository.insertRowToTransferLogsTable(jdbcTemplate, shardRouter.getRecentActivityCache(), senderID, recipientID, "2024-01-15 10:00:00", 2500);
+    TestudoBankRepository.insertRowToTransferLogsTable(jdbcTemplate, shardRouter.getRecentActivityCache(), stayingID, senderID, "2024-01-15 11:00:00", 500);
+    TestudoBankRepository.insertRowToTransferSagaCreditsTable(jdbcTemplate, "saga-1", recipientID);
+
+    JdbcTemplate shard1 = MvcControllerIntegTestHelpers.createShardDB(db, jdbcTemplate, "testudo_bank_shard1");
+    try {
+      assertEquals(2, ShardRebalancer.rebalance(new ShardRouter(jdbcTemplate), new ShardRouter(Arrays.asList(jdbcTemplate, shard1))));
+
+      String countTransferLogsSql = "SELECT COUNT(*) FROM TransferHistory WHERE TransferFrom = ? AND TransferTo = ?";
+      assertEquals(1, (int) shard1.queryForObject(countTransferLogsSql, Integer.class, senderID, recipientID));
+      assertEquals(1, (int) shard1.queryForObject(countTransferLogsSql, Integer.class, stayingID, senderID));
+      assertEquals(0, (int) jdbcTemplate.queryForObject(countTransferLogsSql, Integer.class, senderID, recipientID));
+      assertEquals(1, (int) jdbcTemplate.queryForObject(countTransferLogsSql, Integer.class, stayingID, senderID));
+      assertTrue(TestudoBankRepository.doesTransferSagaCreditExist(shard1, "saga-1"));
+      assertFalse(TestudoBankRepository.doesTransferSagaCreditExist(jdbcTemplate, "saga-1"));
+      assertEquals(2, (int) shard1.queryForObject("SELECT COUNT(*) FROM Customers", Integer.class));
+      assertEquals(1, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM Customers", Integer.class));
+    } finally {
+      jdbcTemplate.execute("DROP DATABASE testudo_bank_shard1");
+    }
+  }
+
+  /**
+   * Verifies that a transfer to a frozen customer on another shard refunds the sender under its own action, and
+   * closes the saga as compensated without crediting the recipient.
+   */
+  @Test
+  public void testCrossShardTransferToFrozenRecipientIsRefunded() throws ScriptException, SQLException {
+    String senderID = null;
+    String recipientID = null;
+    for (int i = 0; senderID == null || recipientID == null; i++) {
+      String customerID = String.valueOf(100000000 + i);
+      if (ShardRouter.shardIndexFor(customerID, 2) == 0 && senderID == null) {
+        senderID = customerID;
+      } else if (ShardRouter.shardIndexFor(customerID, 2) == 1 && recipientID == null) {
+        recipientID = customerID;
+      }
+    }
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, senderID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 10000, 0);
+
+    JdbcTemplate shard1 = MvcControllerIntegTestHelpers.createShardDB(db, jdbcTemplate, "testudo_bank_shard1");
+    try {
+      MvcControllerIntegTestHelpers.addCustomerToShardDB(shard1, recipientID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, 5000, MvcController.MAX_DISPUTES);
+      MvcController shardedController = new MvcController(new ShardRouter(Arrays.asList(jdbcTemplate, shard1)), cryptoPriceClient);
+
+      User sender = new User();
+      sender.setUsername(senderID);
+      sender.setPassword(CUSTOMER1_PASSWORD);
+      sender.setTransferRecipientID(recipientID);
+      sender.setAmountToTransfer(10);
+      assertEquals("welcome", shardedController.submitTransfer(sender));
+
+      assertEquals(10000, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, senderID));
+      assertEquals(5000, TestudoBankRepository.getCustomerCashBalanceInPennies(shard1, recipientID));
+      List<String> senderActions = jdbcTemplate.queryForList("SELECT Action FROM TransactionHistory WHERE CustomerID = ? ORDER BY Action", String.class, senderID);
+      assertEquals(Arrays.asList(MvcController.TRANSACTION_HISTORY_TRANSFER_REFUND_ACTION, MvcController.TRANSACTION_HISTORY_TRANSFER_SEND_ACTION), senderActions);
+      assertEquals(MvcController.TRANSFER_SAGA_COMPENSATED_STATUS, jdbcTemplate.queryForObject("SELECT Status FROM TransferSagas", String.class));
+      assertEquals(0, (int) shard1.queryForObject("SELECT COUNT(*) FROM TransferSagaCredits", Integer.class));
+      assertEquals(0, (int) shard1.queryForObject("SELECT COUNT(*) FROM TransactionHistory", Integer.class));
+    } finally {
+      jdbcTemplate.execute("DROP DATABASE testudo_bank_shard1");
+    }
+  }
+
+  /**
+   * Verifies that with the mutation sequencer enabled, a transfer within one shard runs as a saga whose rows are
+   * written with the sequencer's balance changes: the saga completes, the credit marker is recorded, and the
+   * transfer is logged once.
+   */
+  @Test
+  public void testTransferThroughMutationSequencerRunsAsSaga() throws ScriptException {
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 10000, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, 5000, 0);
+    ShardRouter shardRouter = new ShardRouter(jdbcTemplate);
+    MutationSequencer mutationSequencer = new MutationSequencer(shardRouter, true, 2, 1024);
+    mutationSequencer.start();
+    try {
+      MvcController sequencedController = new MvcController(shardRouter, cryptoPriceClient, BalanceEngine.disabled(shardRouter), mutationSequencer);
+      User customer1 = new User();
+      customer1.setUsername(CUSTOMER1_ID);
+      customer1.setPassword(CUSTOMER1_PASSWORD);
+      customer1.setTransferRecipientID(CUSTOMER2_ID);
+      customer1.setAmountToTransfer(10);
+      assertEquals("account_info", sequencedController.submitTransfer(customer1));
+
+      assertEquals(9000, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, CUSTOMER1_ID));
+      assertEquals(6000, TestudoBankRepository.getCustomerCashBalanceInPennies(jdbcTemplate, CUSTOMER2_ID));
+      assertEquals(MvcController.TRANSFER_SAGA_COMPLETED_STATUS, jdbcTemplate.queryForObject("SELECT Status FROM TransferSagas", String.class));
+      assertEquals(CUSTOMER2_ID, jdbcTemplate.queryForObject("SELECT CustomerID FROM TransferSagaCredits", String.class));
+      assertEquals(1, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM TransferHistory", Integer.class));
+    } finally {
+      mutationSequencer.stop();
+    }
+  }
+
+  /**
+   * Verifies that reconciliation reports exactly the customers whose balances disagree with the ledger,
+   * both in the ReconciliationMismatches table and in the mismatches file.
+   */
+  @Test
+  public void testReconciliationReportsBalancesThatDisagreeWithLedger() throws ScriptException, IOException {
+    String CUSTOMER3_ID = "555555555";
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER1_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 0, 0, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER2_ID, CUSTOMER2_PASSWORD, CUSTOMER2_FIRST_NAME, CUSTOMER2_LAST_NAME, 0, 0, 0, 0);
+    MvcControllerIntegTestHelpers.addCustomerToDB(dbDelegate, CUSTOMER3_ID, CUSTOMER1_PASSWORD, CUSTOMER1_FIRST_NAME, CUSTOMER1_LAST_NAME, 0, 0, 0, 0);
+
+    // customer1 deposits $100 and withdraws $150 through the app, so Customers and the ledger agree
+    User customer1 = new User();
+    customer1.setUsername(CUSTOMER1_ID);
+    customer1.setPassword(CUSTOMER1_PASSWORD);
+    customer1.setAmountToDeposit(100);
+    controller.submitDeposit(customer1);
+    customer1.setAmountToWithdraw(150);
+    controller.submitWithdraw(customer1);
+
+    // customer2's balance drifts from the ledger
+    User customer2 = new User();
+    customer2.setUsername(CUSTOMER2_ID);
+    customer2.setPassword(CUSTOMER2_PASSWORD);
+    customer2.setAmountToDeposit(20);
+    controller.submitDeposit(customer2);
+    jdbcTemplate.update("UPDATE Customers SET Balance = Balance + 1 WHERE CustomerID = ?", CUSTOMER2_ID);
+
+    Path mismatchesFile = Files.createTempDirectory("reconciliation").resolve("mismatches.csv");
+    ReconciliationJob.Progress progress = ReconciliationJob.reconcile(Collections.singletonList(jdbcTemplate), "2024-01-01 04:00:00", mismatchesFile, 2);
+    assertEquals(3, progress.getNumCustomersChecked());
+    assertEquals(1, progress.getNumMismatches());
+    assertEquals(progress.getNumRanges(), progress.getNumRangesChecked());
+
+    List<Map<String,Object>> mismatches = jdbcTemplate.queryForList("SELECT * FROM ReconciliationMismatches");
+    assertEquals(1, mismatches.size());
+    assertEquals(CUSTOMER2_ID, mismatches.get(0).get("CustomerID"));
+    assertEquals(2001, mismatches.get(0).get("Balance"));
+    assertEquals(2000L, mismatches.get(0).get("ExpectedBalance"));
+    assertEquals(Arrays.asList("CustomerID,Balance,ExpectedBalance,OverdraftBalance,ExpectedOverdraftBalance", CUSTOMER2_ID + ",2001,2000,0,0"),
+                 Files.readAllLines(mismatchesFile));
+  }
+
+  private static String readGzippedFile(Path file) throws IOException {
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+      ByteArrayOutputStream contents = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int numBytesRead;
+      while ((numBytesRead = in.read(buffer)) != -1) {
+        contents.write(buffer, 0, numBytesRead);
+      }
+      return new String(contents.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+}
@@ -0,0 +1,73 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import net.testudobank.PrefixIndex;
+import org.junit.jupiter.api.Test;
+
+public class PrefixIndexTest {
+  private static List<String> customerIDs(List<PrefixIndex.Recipient> recipients) {
+    return recipients.stream().map(PrefixIndex.Recipient::getCustomerID).collect(Collectors.toList());
+  }
+
+  private static PrefixIndex sampleIndex() {
+    // added out of CustomerID order, like rows streamed from several shards
+    return new PrefixIndex.Builder()
+      .add("123456789", "John", "Smith")
+      .add("123450000", "Jane", "Smithers")
+      .add("987654321", "Johnny", "Appleseed")
+      .add("555555555", "Mary", "Johnson")
+      .add("123999999", "Bob", "jones")
+      .build();
+  }
+
+  /**
+   * CustomerID prefixes match in CustomerID order.
+   */
+  @Test
+  public void testCustomerIDPrefix() {
+    PrefixIndex index = sampleIndex();
+    assertEquals(Arrays.asList("123450000", "123456789", "123999999"), customerIDs(index.search("123", 10)));
+    assertEquals(Arrays.asList("123450000", "123456789"), customerIDs(index.search("1234", 10)));
+    assertEquals(Arrays.asList("987654321"), customerIDs(index.search("987654321", 10)));
+    assertTrue(index.search("9876543210", 10).isEmpty());
+  }
+
+  /**
+   * Name prefixes match first names before last names, ignoring case, and each customer is returned once.
+   */
+  @Test
+  public void testNamePrefixIgnoresCase() {
+    PrefixIndex index = sampleIndex();
+    assertEquals(Arrays.asList("123456789", "987654321", "555555555", "123999999"), customerIDs(index.search("jo", 10)));
+    assertEquals(Arrays.asList("123456789", "123450000"), customerIDs(index.search("SMITH", 10)));
+    assertEquals("Smithers", index.search("smithe", 10).get(0).getLastName());
+    assertTrue(index.search("zed", 10).isEmpty());
+  }
+
+  /**
+   * At most limit customers are returned, and a CustomerID added twice keeps its latest names.
+   */
+  @Test
+  public void testLimitAndDuplicates() {
+    PrefixIndex.Builder builder = new PrefixIndex.Builder();
+    for (int i = 0; i < 1000; i++) {
+      builder.add(String.valueOf(100000000 + i), "Customer", "Number" + i);
+    }
+    builder.add("100000005", "Renamed", "Customer");
+    PrefixIndex index = builder.build();
+
+    assertEquals(1000, index.size());
+    assertEquals(7, index.search("cust", 7).size());
+    assertEquals(Arrays.asList("100000005"), customerIDs(index.search("renamed", 10)));
+    // the renamed customer's old last name "Number5" is gone, so "Number50" comes first
+    assertEquals(Arrays.asList("100000050"), customerIDs(index.search("number5", 1)));
+    assertEquals(20, index.search("number5", 20).size());
+    assertTrue(new PrefixIndex.Builder().build().search("1", 10).isEmpty());
+  }
+}
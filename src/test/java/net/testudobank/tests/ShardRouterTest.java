@@ -0,0 +1,61 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import net.testudobank.ShardRouter;
+import org.junit.jupiter.api.Test;
+
+public class ShardRouterTest {
+  private static int NUM_CUSTOMERS = 100000;
+
+  // Generates 9-digit CustomerIDs like the ones created by python-sql-scripts/addCustomers.py
+  private static String customerID(int i) {
+    return String.format("%09d", 100000000 + i * 7919 % 900000000);
+  }
+
+  /**
+   * Every customer routes to shard 0 when there is only one shard.
+   */
+  @Test
+  public void testSingleShard() {
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(0, ShardRouter.shardIndexFor(customerID(i), 1));
+    }
+  }
+
+  /**
+   * Customers are spread evenly (within 5%) across shards.
+   */
+  @Test
+  public void testCustomersAreEvenlyDistributed() {
+    int numShards = 4;
+    int[] customersPerShard = new int[numShards];
+    for (int i = 0; i < NUM_CUSTOMERS; i++) {
+      customersPerShard[ShardRouter.shardIndexFor(customerID(i), numShards)]++;
+    }
+
+    int expectedCustomersPerShard = NUM_CUSTOMERS / numShards;
+    for (int count : customersPerShard) {
+      assertTrue(Math.abs(count - expectedCustomersPerShard) < expectedCustomersPerShard * 0.05, "Uneven shard size: " + count);
+    }
+  }
+
+  /**
+   * Adding a fifth shard only moves customers onto the new shard, and only ~1/5 of them.
+   */
+  @Test
+  public void testAddingShardOnlyMovesCustomersToNewShard() {
+    int numCustomersMoved = 0;
+    for (int i = 0; i < NUM_CUSTOMERS; i++) {
+      int oldShard = ShardRouter.shardIndexFor(customerID(i), 4);
+      int newShard = ShardRouter.shardIndexFor(customerID(i), 5);
+      if (oldShard != newShard) {
+        assertEquals(4, newShard);
+        numCustomersMoved++;
+      }
+    }
+
+    assertTrue(Math.abs(numCustomersMoved - NUM_CUSTOMERS / 5) < NUM_CUSTOMERS * 0.01, "Unexpected number of customers moved: " + numCustomersMoved);
+  }
+}
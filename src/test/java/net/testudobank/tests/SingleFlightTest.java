@@ -0,0 +1,127 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.testudobank.SingleFlight;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class SingleFlightTest {
+  private static int NUM_CALLERS = 8;
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(NUM_CALLERS);
+
+  @AfterEach
+  public void shutdownExecutor() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Calls for a key that arrive while its fetch is in flight wait for that fetch and get the same result.
+   */
+  @Test
+  public void testConcurrentCallsShareOneFetch() throws Exception {
+    SingleFlight<String,Object> singleFlight = new SingleFlight<>();
+    AtomicInteger numFetches = new AtomicInteger();
+    CountDownLatch fetchStarted = new CountDownLatch(1);
+    CountDownLatch releaseFetch = new CountDownLatch(1);
+    Object result = new Object();
+
+    Future<Object> leader = executor.submit(() -> singleFlight.execute("123456789", () -> {
+      numFetches.incrementAndGet();
+      fetchStarted.countDown();
+      await(releaseFetch);
+      return result;
+    }));
+    assertTrue(fetchStarted.await(10, TimeUnit.SECONDS));
+
+    List<Future<Object>> followers = new ArrayList<>();
+    for (int i = 1; i < NUM_CALLERS; i++) {
+      followers.add(executor.submit(() -> singleFlight.execute("123456789", () -> {
+        numFetches.incrementAndGet();
+        return new Object();
+      })));
+    }
+    waitForCoalescedCalls(singleFlight, NUM_CALLERS - 1);
+    releaseFetch.countDown();
+
+    assertSame(result, leader.get(10, TimeUnit.SECONDS));
+    for (Future<Object> follower : followers) {
+      assertSame(result, follower.get(10, TimeUnit.SECONDS));
+    }
+    assertEquals(1, numFetches.get());
+    assertEquals(NUM_CALLERS, singleFlight.stats().getNumCalls());
+    assertEquals((double) (NUM_CALLERS - 1) / NUM_CALLERS, singleFlight.stats().getCoalescingRate(), 1e-9);
+    assertEquals(0, singleFlight.stats().getNumInFlight());
+  }
+
+  /**
+   * Nothing is kept after a fetch completes, and different keys never share a fetch.
+   */
+  @Test
+  public void testSequentialCallsAndDifferentKeysFetchAgain() {
+    SingleFlight<String,Integer> singleFlight = new SingleFlight<>();
+    AtomicInteger numFetches = new AtomicInteger();
+
+    assertEquals(1, singleFlight.execute("123456789@0", numFetches::incrementAndGet));
+    assertEquals(2, singleFlight.execute("123456789@0", numFetches::incrementAndGet));
+    assertEquals(3, singleFlight.execute("123456789@1", numFetches::incrementAndGet));
+    assertEquals(0, singleFlight.stats().getNumCoalesced());
+  }
+
+  /**
+   * Callers that joined a failing fetch get its exception, and the next call fetches again.
+   */
+  @Test
+  public void testFailedFetchIsRethrownToEveryCaller() throws Exception {
+    SingleFlight<String,Object> singleFlight = new SingleFlight<>();
+    CountDownLatch fetchStarted = new CountDownLatch(1);
+    CountDownLatch releaseFetch = new CountDownLatch(1);
+
+    Future<Object> leader = executor.submit(() -> singleFlight.execute("123456789", () -> {
+      fetchStarted.countDown();
+      await(releaseFetch);
+      throw new IllegalStateException("database is down");
+    }));
+    assertTrue(fetchStarted.await(10, TimeUnit.SECONDS));
+    Future<Object> follower = executor.submit(() -> singleFlight.execute("123456789", Object::new));
+    waitForCoalescedCalls(singleFlight, 1);
+    releaseFetch.countDown();
+
+    for (Future<Object> caller : new Future[] {leader, follower}) {
+      ExecutionException e = assertThrows(ExecutionException.class, () -> caller.get(10, TimeUnit.SECONDS));
+      assertTrue(e.getCause() instanceof IllegalStateException);
+      assertEquals("database is down", e.getCause().getMessage());
+    }
+    assertEquals("recovered", singleFlight.execute("123456789", () -> "recovered"));
+  }
+
+  private static void waitForCoalescedCalls(SingleFlight<?,?> singleFlight, long numCoalesced) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (singleFlight.stats().getNumCoalesced() < numCoalesced) {
+      assertTrue(System.currentTimeMillis() < deadline, "Calls were not coalesced");
+      Thread.sleep(1);
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
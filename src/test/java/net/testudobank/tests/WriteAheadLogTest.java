@@ -0,0 +1,108 @@
+package net.testudobank.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import net.testudobank.BalanceMutation;
+import net.testudobank.CustomerIndexMap;
+import net.testudobank.WriteAheadLog;
+import org.junit.jupiter.api.Test;
+
+public class WriteAheadLogTest {
+  private static int SEGMENT_CAPACITY = 4096;
+
+  private static BalanceMutation record(int i) {
+    return new BalanceMutation(String.valueOf(100000000 + i), (byte) 0, i, 0, 0, i, 0, 1000L * i);
+  }
+
+  /**
+   * Records are read back in the order they were appended, across segments that filled up and rolled over.
+   */
+  @Test
+  public void testRecordsAreReadBackInOrderAcrossSegments() throws IOException {
+    File directory = Files.createTempDirectory("wal").toFile();
+    WriteAheadLog writeAheadLog = new WriteAheadLog(directory, SEGMENT_CAPACITY, true, 1);
+    int numRecords = 500;
+    for (int i = 0; i < numRecords; i++) {
+      writeAheadLog.awaitDurable(writeAheadLog.append(record(i)));
+    }
+
+    // every segment file but the newly opened one is sealed
+    List<Long> segmentNumbers = writeAheadLog.sealSegments();
+    List<Long> segmentFileNumbers = WriteAheadLog.listSegmentNumbers(directory);
+    assertEquals(segmentFileNumbers.subList(0, segmentFileNumbers.size() - 1), segmentNumbers);
+
+    int i = 0;
+    for (long segmentNumber : segmentNumbers) {
+      for (BalanceMutation record : WriteAheadLog.readSegment(directory, segmentNumber)) {
+        assertEquals(String.valueOf(100000000 + i), record.customerID);
+        assertEquals(i, record.amountInPennies);
+        assertEquals(1000L * i, record.timestampMillis);
+        i++;
+      }
+      WriteAheadLog.deleteSegment(directory, segmentNumber);
+    }
+    assertEquals(numRecords, i);
+    assertEquals(1, WriteAheadLog.listSegmentNumbers(directory).size());
+  }
+
+  /**
+   * Records appended after sealing go to a new segment, and sealing an empty segment is a no-op.
+   */
+  @Test
+  public void testSealStartsNewSegment() throws IOException {
+    File directory = Files.createTempDirectory("wal").toFile();
+    WriteAheadLog writeAheadLog = new WriteAheadLog(directory, SEGMENT_CAPACITY, false, 7);
+    writeAheadLog.append(record(1));
+    assertEquals(Arrays.asList(7L), writeAheadLog.sealSegments());
+    assertEquals(0, writeAheadLog.sealSegments().size());
+
+    writeAheadLog.append(record(2));
+    assertEquals(Arrays.asList(8L), writeAheadLog.sealSegments());
+    assertEquals(1, WriteAheadLog.readSegment(directory, 8).size());
+  }
+
+  /**
+   * Transfer saga legs are read back with their saga ID and other customer, next to records of plain mutations.
+   */
+  @Test
+  public void testTransferSagaLegsAreReadBack() throws IOException {
+    File directory = Files.createTempDirectory("wal").toFile();
+    WriteAheadLog writeAheadLog = new WriteAheadLog(directory, SEGMENT_CAPACITY, false, 1);
+    writeAheadLog.append(record(1).forTransferSaga("saga-1", "987654321"));
+    writeAheadLog.append(record(2));
+    writeAheadLog.append(record(3).forTransferSaga("saga-1", null));
+
+    List<BalanceMutation> records = WriteAheadLog.readSegment(directory, writeAheadLog.sealSegments().get(0));
+    assertEquals(3, records.size());
+    assertEquals("saga-1", records.get(0).transferSagaID);
+    assertEquals("987654321", records.get(0).counterpartyID);
+    assertEquals(null, records.get(1).transferSagaID);
+    assertEquals(2000L, records.get(1).timestampMillis);
+    assertEquals("saga-1", records.get(2).transferSagaID);
+    assertEquals(null, records.get(2).counterpartyID);
+    assertEquals(3, records.get(2).amountInPennies);
+  }
+
+  /**
+   * Every index is found under its key, even when many indexes share a key.
+   */
+  @Test
+  public void testCustomerIndexMapKeepsCollidingKeys() {
+    CustomerIndexMap customerIndexes = new CustomerIndexMap(4);
+    for (int i = 0; i < 1000; i++) {
+      customerIndexes.add(i % 100, i);
+    }
+    assertEquals(1000, customerIndexes.size());
+    for (int i = 0; i < 1000; i++) {
+      int expectedIndex = i;
+      assertEquals(expectedIndex, customerIndexes.get(i % 100, index -> index == expectedIndex));
+    }
+    assertEquals(-1, customerIndexes.get(100, index -> true));
+  }
+}
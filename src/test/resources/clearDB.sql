@@ -4,4 +4,17 @@ TRUNCATE OverdraftLogs;
 TRUNCATE TransactionHistory;
 TRUNCATE TransferHistory;
 TRUNCATE CryptoHistory;
-TRUNCATE CryptoHoldings;
\ No newline at end of file
+TRUNCATE CryptoHoldings;
+TRUNCATE TransferSagas;
+TRUNCATE TransferSagaCredits;
+TRUNCATE LedgerEntries;
+TRUNCATE LedgerSnapshots;
+TRUNCATE LedgerSnapshotRuns;
+TRUNCATE BalanceEngineCheckpoints;
+TRUNCATE IdempotencyKeys;
+TRUNCATE InterestAccruals;
+TRUNCATE ReconciliationMismatches;
+TRUNCATE CustomerDailyRollups;
+TRUNCATE BankDailyRollups;
+TRUNCATE LedgerOutbox;
+TRUNCATE AccountViews;
\ No newline at end of file
@@ -5,7 +5,9 @@ CREATE TABLE Customers (
   Balance int,
   OverdraftBalance int,
   NumFraudReversals int,
-  NumDepositsForInterest int
+  NumDepositsForInterest int,
+  PRIMARY KEY (CustomerID),
+  INDEX (OverdraftBalance)
 );
 
 CREATE TABLE Passwords (
@@ -24,8 +26,11 @@ CREATE TABLE OverdraftLogs (
 CREATE TABLE TransactionHistory (
   CustomerID varchar(255),
   Timestamp DATETIME,
-  Action varchar(255) CHECK (Action IN ('Deposit', 'Withdraw', 'TransferSend', 'TransferRecieve', 'CryptoBuy', 'CryptoSell')),
-  Amount int
+  Action varchar(255) CHECK (Action IN ('Deposit', 'Withdraw', 'TransferSend', 'TransferRecieve', 'CryptoBuy', 'CryptoSell', 'TransferRefund')),
+  Amount int,
+  INDEX (CustomerID, Timestamp)
+) PARTITION BY RANGE (TO_DAYS(Timestamp)) (
+  PARTITION pFuture VALUES LESS THAN MAXVALUE
 );
 
 CREATE TABLE TransferHistory (
@@ -33,6 +38,8 @@ CREATE TABLE TransferHistory (
   TransferTo varchar(255),
   Timestamp DATETIME,
   Amount int
+) PARTITION BY RANGE (TO_DAYS(Timestamp)) (
+  PARTITION pFuture VALUES LESS THAN MAXVALUE
 );
 
 CREATE TABLE CryptoHoldings (
@@ -47,4 +54,125 @@ CREATE TABLE CryptoHistory (
   Action varchar(255) CHECK (Action IN ('Buy', 'Sell')),
   CryptoName varchar(255),
   CryptoAmount decimal(30,18)
-);
\ No newline at end of file
+) PARTITION BY RANGE (TO_DAYS(Timestamp)) (
+  PARTITION pFuture VALUES LESS THAN MAXVALUE
+);
+
+CREATE TABLE TransferSagas (
+  SagaID varchar(36) PRIMARY KEY,
+  TransferFrom varchar(255),
+  TransferTo varchar(255),
+  Timestamp DATETIME,
+  Amount int,
+  Status varchar(255) CHECK (Status IN ('Debited', 'Completed', 'Compensated'))
+);
+
+CREATE TABLE TransferSagaCredits (
+  SagaID varchar(36) PRIMARY KEY,
+  CustomerID varchar(255)
+);
+
+CREATE TABLE LedgerEntries (
+  EntryID bigint AUTO_INCREMENT PRIMARY KEY,
+  JournalID varchar(255),
+  CustomerID varchar(255),
+  Account varchar(255),
+  Amount bigint,
+  Action varchar(255),
+  Timestamp DATETIME,
+  INDEX (CustomerID, Account, EntryID, Amount)
+);
+
+CREATE TABLE LedgerSnapshots (
+  CustomerID varchar(255),
+  Account varchar(255),
+  Balance bigint,
+  PRIMARY KEY (CustomerID, Account)
+);
+
+CREATE TABLE LedgerSnapshotRuns (
+  RunID bigint AUTO_INCREMENT PRIMARY KEY,
+  LastEntryID bigint,
+  ObservedEntryID bigint,
+  Timestamp DATETIME
+);
+
+CREATE TABLE BalanceEngineCheckpoints (
+  SegmentNumber bigint PRIMARY KEY,
+  Timestamp DATETIME
+);
+
+CREATE TABLE IdempotencyKeys (
+  CustomerID varchar(255),
+  IdempotencyKey varchar(255),
+  Endpoint varchar(255),
+  Response varchar(255),
+  Timestamp DATETIME,
+  PRIMARY KEY (CustomerID, IdempotencyKey),
+  INDEX (Timestamp)
+);
+
+CREATE TABLE InterestAccruals (
+  AccrualType varchar(255),
+  AccrualDate DATE,
+  RangeIndex int,
+  RangeStart varchar(255),
+  RangeEnd varchar(255),
+  LastCustomerID varchar(255),
+  IsComplete boolean,
+  PRIMARY KEY (AccrualType, AccrualDate, RangeIndex)
+);
+
+CREATE TABLE ReconciliationMismatches (
+  RunTimestamp DATETIME,
+  CustomerID varchar(255),
+  Balance int,
+  ExpectedBalance bigint,
+  OverdraftBalance int,
+  ExpectedOverdraftBalance bigint,
+  PRIMARY KEY (RunTimestamp, CustomerID)
+);
+
+CREATE TABLE CustomerDailyRollups (
+  CustomerID varchar(255),
+  Day DATE,
+  Action varchar(255),
+  NumTransactions int,
+  TotalAmount bigint,
+  PRIMARY KEY (CustomerID, Day, Action)
+);
+
+CREATE TABLE BankDailyRollups (
+  Day DATE,
+  Action varchar(255),
+  Slot int,
+  NumTransactions bigint,
+  TotalAmount bigint,
+  PRIMARY KEY (Day, Action, Slot)
+);
+
+CREATE TABLE LedgerOutbox (
+  EventID bigint AUTO_INCREMENT PRIMARY KEY,
+  JournalID varchar(255),
+  CustomerID varchar(255),
+  Action varchar(255),
+  Amount bigint,
+  Timestamp DATETIME,
+  INDEX (CustomerID, EventID)
+);
+
+CREATE TABLE AccountViews (
+  CustomerID varchar(255),
+  FirstName varchar(255),
+  LastName varchar(255),
+  Balance int,
+  OverdraftBalance int,
+  EthBalance double,
+  SolBalance double,
+  OverdraftLogs mediumtext,
+  TransactionHist text,
+  TransferHist text,
+  CryptoHist mediumtext,
+  LastEventID bigint DEFAULT 0,
+  PRIMARY KEY (CustomerID)
+);